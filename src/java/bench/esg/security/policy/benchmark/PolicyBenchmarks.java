@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.benchmark;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Command line runner for the policy benchmarks, which writes the results of each run as JSON files.
+ * 
+ * The lookup benchmark is run once for each thread count, and the reload benchmark once;
+ * the GC profiler reports the bytes allocated per operation ("gc.alloc.rate.norm").
+ * <pre>
+ * Usage: PolicyBenchmarks &lt;results directory&gt; [thread counts, default 1,4,16] [statements, default 1000,10000,100000] [quick]
+ * </pre>
+ *
+ */
+public class PolicyBenchmarks {
+	
+	public static void main(final String[] args) throws Exception {
+		
+		if (args.length<1) {
+			System.out.println("Usage: PolicyBenchmarks <results directory> [thread counts] [statements] [quick]");
+			System.exit(1);
+		}
+		final File dir = new File(args[0]);
+		dir.mkdirs();
+		final String[] threads = (args.length>1 ? args[1] : "1,4,16").split(",");
+		final String[] statements = (args.length>2 ? args[2] : "1000,10000,100000").split(",");
+		final boolean quick = args.length>3 && args[3].equals("quick");
+		
+		for (final String _threads : threads) {
+			final ChainedOptionsBuilder options = options(quick)
+					.include(LookupBenchmark.class.getName())
+					.param("statements", statements)
+					.threads(Integer.parseInt(_threads))
+					.result(new File(dir, "lookup-threads"+_threads+".json").getAbsolutePath());
+			new Runner(options.build()).run();
+		}
+		
+		final ChainedOptionsBuilder options = options(quick)
+				.include(ReloadBenchmark.class.getName())
+				.param("statements", statements)
+				.result(new File(dir, "reload.json").getAbsolutePath());
+		new Runner(options.build()).run();
+		
+	}
+	
+	private static ChainedOptionsBuilder options(final boolean quick) {
+		return new OptionsBuilder()
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.forks(1)
+				.warmupIterations(quick ? 1 : 5)
+				.warmupTime(TimeValue.seconds(quick ? 1 : 2))
+				.measurementIterations(quick ? 1 : 5)
+				.measurementTime(TimeValue.seconds(quick ? 1 : 2))
+				.jvmArgsAppend("-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog");
+	}
+
+}
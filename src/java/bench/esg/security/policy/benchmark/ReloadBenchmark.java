@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.benchmark;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import esg.security.policy.service.impl.PolicyServiceLocalXmlImpl;
+import esg.security.policy.service.impl.PolicySnapshot;
+
+/**
+ * Benchmark of a full reload of a synthetic policy file by {@link PolicyServiceLocalXmlImpl#parse(List)}:
+ * parsing, index compilation and publication of the new snapshot.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReloadBenchmark {
+	
+	@Param({ "1000", "10000", "100000" })
+	public int statements;
+	
+	@Param({ "mixed" })
+	public String mix;
+	
+	@Param({ "true", "false" })
+	public boolean streaming;
+	
+	private File file;
+	private List<File> files;
+	private PolicyServiceLocalXmlImpl service;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		file = File.createTempFile("esgf_policies_"+statements+"_"+mix+"_", ".xml");
+		new SyntheticPolicies(statements, mix).write(file);
+		files = Arrays.asList(file);
+		service = new PolicyServiceLocalXmlImpl(file.getAbsolutePath());
+		service.setStreaming(streaming);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		service.close();
+		file.delete();
+	}
+	
+	@Benchmark
+	public PolicySnapshot reload() {
+		service.parse(files);
+		return service.getSnapshot();
+	}
+
+}
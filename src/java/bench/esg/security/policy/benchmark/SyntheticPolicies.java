@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Generator of synthetic esgf_policies files, and of resources to look up against them.
+ * 
+ * Each resource expression carries two statements (Read for "user", Write for "admin") of one of 50 groups.
+ * The expressions follow one of three shapes, selected by the "mix" parameter:
+ * <ul>
+ *  <li>"regex": cmip5\.output1\.MODELn\..* (default syntax)
+ *  <li>"prefix": obs4MIPs.MODELn. (prefix syntax)
+ *  <li>"literal": cordex.MODELn.day.tas (literal syntax)
+ *  <li>"mixed": the three shapes in turn
+ * </ul>
+ *
+ */
+public class SyntheticPolicies {
+	
+	public final static String[] MIXES = { "regex", "prefix", "literal", "mixed" };
+	
+	private final static int GROUPS = 50;
+	
+	private final int statements;
+	private final String mix;
+	
+	/**
+	 * @param statements : the number of statements (rounded down to an even number)
+	 * @param mix : "regex", "prefix", "literal" or "mixed"
+	 */
+	public SyntheticPolicies(final int statements, final String mix) {
+		this.statements = statements;
+		this.mix = mix;
+	}
+	
+	/**
+	 * @return the number of resource expressions
+	 */
+	public int getNumberOfExpressions() {
+		return statements/2;
+	}
+	
+	/**
+	 * Method to write the policy file.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(final File file) throws IOException {
+		
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<policies xmlns=\"http://www.esgf.org/security\">\n");
+			for (int i=0; i<getNumberOfExpressions(); i++) {
+				final String group = "Group"+(i%GROUPS);
+				final String syntax;
+				final String resource;
+				switch (getShape(i)) {
+				case 0:
+					syntax = null;
+					resource = "cmip5\\.output1\\.MODEL"+i+"\\..*";
+					break;
+				case 1:
+					syntax = "prefix";
+					resource = "obs4MIPs.MODEL"+i+".";
+					break;
+				default:
+					syntax = "literal";
+					resource = "cordex.MODEL"+i+".day.tas";
+					break;
+				}
+				writeStatement(writer, resource, syntax, group, "user", "Read");
+				writeStatement(writer, resource, syntax, group, "admin", "Write");
+			}
+			writer.write("</policies>\n");
+		} finally {
+			writer.close();
+		}
+		
+	}
+	
+	/**
+	 * Method to create resources to look up: three out of four match one expression, the others match none.
+	 * @param number
+	 * @return
+	 */
+	public String[] getResources(final int number) {
+		
+		final String[] resources = new String[number];
+		final int expressions = Math.max(1, getNumberOfExpressions());
+		for (int k=0; k<number; k++) {
+			// spread the lookups over all the expressions
+			final int i = (int)((k*7919L)%expressions);
+			if (k%4==3) {
+				resources[k] = "unknown.MODEL"+i+".mon.tas";
+			} else if (getShape(i)==0) {
+				resources[k] = "cmip5.output1.MODEL"+i+".mon.tas";
+			} else if (getShape(i)==1) {
+				resources[k] = "obs4MIPs.MODEL"+i+".mon.tas";
+			} else {
+				resources[k] = "cordex.MODEL"+i+".day.tas";
+			}
+		}
+		return resources;
+		
+	}
+	
+	private int getShape(final int i) {
+		if (mix.equals("regex")) return 0;
+		if (mix.equals("prefix")) return 1;
+		if (mix.equals("literal")) return 2;
+		if (mix.equals("mixed")) return i%3;
+		throw new IllegalArgumentException("Unknown mix: "+mix);
+	}
+	
+	private static void writeStatement(final Writer writer, final String resource, final String syntax, 
+			                           final String type, final String value, final String action) throws IOException {
+		writer.write("  <policy resource=\""+resource+"\""+(syntax==null ? "" : " syntax=\""+syntax+"\"")
+		           + " attribute_type=\""+type+"\" attribute_value=\""+value+"\" action=\""+action+"\"/>\n");
+	}
+
+}
@@ -50,9 +50,28 @@ package esg.common.security;
 
 import esg.common.generated.security.*;
 import esg.common.util.ESGFProperties;
+import esg.security.policy.service.impl.PolicyPattern;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.PatternSyntaxException;
 
 /**
    Description:
@@ -60,28 +79,236 @@ import java.util.regex.Pattern;
    This is a simple command line utility to program to tell node
    admins which policies are triggered got a given resource.
 
+   In bulk mode the policies are loaded and compiled once, and the
+   resource paths are read one per line from a file (or stdin when the
+   file is "-") and checked across all cores.  The result is written
+   as a tab separated report with one record per line, the first field
+   giving the record type:
+
+     P  policy-id  resource  attribute_type  attribute_value  action
+     R  resource-path  comma separated ids of the triggered policies
+     H  policy-id  number of paths that triggered the policy
+     S  statistic-name  value   (paths, matched, unmatched, seconds, paths_per_second)
+
+   Usage: PolicyChecker <resource>
+          PolicyChecker --bulk <paths file|-> [--threads n] [policy file ...]
+
  */
 
 public class PolicyChecker {
 
+    //number of paths handed to each worker task
+    private static final int CHUNK_SIZE = 1024;
+
+    private final List<Policy> policies = new ArrayList<Policy>();
+    private final List<PolicyPattern> patterns = new ArrayList<PolicyPattern>();
+
     public PolicyChecker() { }
     
     public void check(String resourceInstance) {
-        PolicyGleaner pGleaner = null;
         System.out.println("Checking policy hit for: ["+resourceInstance+"]");
-        pGleaner = new PolicyGleaner(new Properties());
-        pGleaner.loadMyPolicy();
-        PolicyGleaner.PolicyWrapper pw = null;
-        for(Policy policy : pGleaner.getMyPolicy().getPolicy()) {
-            //System.out.println("checking: "+policy.getResource());
-            if(Pattern.matches(policy.getResource(),resourceInstance)) {
-                pw = pGleaner.new PolicyWrapper(policy);
-                System.out.print("  Triggered policy ->  "+pw);
+        if(policies.isEmpty()) load();
+        PolicyGleaner pGleaner = new PolicyGleaner(new Properties());
+        for(int i : getHits(resourceInstance)) {
+            PolicyGleaner.PolicyWrapper pw = pGleaner.new PolicyWrapper(policies.get(i));
+            System.out.print("  Triggered policy ->  "+pw);
+        }
+    }
+
+    /**
+       Loads the given policy files (or the node's local policy file
+       if none given) and compiles each resource expression once,
+       according to its syntax (regex, literal, prefix or glob).
+       Duplicate policies are dropped, and policies with invalid
+       expressions are reported and skipped.
+    */
+    public synchronized PolicyChecker load(String... filenames) {
+        PolicyGleaner pGleaner = new PolicyGleaner(new Properties());
+        List<Policy> loaded = new ArrayList<Policy>();
+        if(filenames.length == 0) {
+            loaded.addAll(pGleaner.loadMyPolicy().getMyPolicy().getPolicy());
+        }
+        for(String filename : filenames) {
+            loaded.addAll(pGleaner.loadMyPolicy(filename).getMyPolicy().getPolicy());
+        }
+
+        //dedup, keeping the first occurrence, and compile each distinct expression once
+        Map<String,Policy> distinct = new LinkedHashMap<String,Policy>();
+        for(Policy policy : loaded) {
+            String key = pGleaner.new PolicyWrapper(policy).toString();
+            if(!distinct.containsKey(key)) distinct.put(key,policy);
+        }
+        Map<String,PolicyPattern> compiled = new LinkedHashMap<String,PolicyPattern>();
+        policies.clear();
+        patterns.clear();
+        for(Policy policy : distinct.values()) {
+            String key = policy.getSyntax()+":"+policy.getResource();
+            PolicyPattern pattern = compiled.get(key);
+            if(pattern == null) {
+                try{
+                    pattern = new PolicyPattern(PolicyPattern.compile(policy.getResource(),policy.getSyntax()));
+                }catch(PatternSyntaxException e) {
+                    System.err.println("Skipping policy with invalid resource expression ["+policy.getResource()+"]: "+e.getDescription());
+                    continue;
+                }catch(IllegalArgumentException e) {
+                    System.err.println("Skipping policy with resource ["+policy.getResource()+"]: "+e.getMessage());
+                    continue;
+                }
+                compiled.put(key,pattern);
+            }
+            policies.add(policy);
+            patterns.add(pattern);
+        }
+        return this;
+    }
+
+    public List<Policy> getPolicies() { return policies; }
+
+    /**
+       Returns the ids (positions in getPolicies()) of the policies
+       triggered by the given resource.  Safe to call from several
+       threads once the policies are loaded.
+    */
+    public int[] getHits(String resourceInstance) {
+        int[] hits = new int[patterns.size()];
+        int count = 0;
+        for(int i = 0; i < patterns.size(); i++) {
+            if(patterns.get(i).matches(resourceInstance)) hits[count++] = i;
+        }
+        int[] result = new int[count];
+        System.arraycopy(hits,0,result,0,count);
+        return result;
+    }
+
+    /**
+       Checks every resource path read from the given reader (one per
+       line, blank lines ignored) using the given number of threads,
+       and writes the report described above.  The paths are reported
+       in input order, and at most a few chunks per thread are held in
+       memory at any time.
+    */
+    public void checkBulk(BufferedReader in, PrintStream report, int threads) throws IOException {
+        final AtomicLongArray policyHits = new AtomicLongArray(policies.size());
+        final long startTime = System.nanoTime();
+        long paths = 0;
+        long matched = 0;
+
+        PrintWriter out = new PrintWriter(report);
+        for(int i = 0; i < policies.size(); i++) {
+            Policy policy = policies.get(i);
+            out.println("P\t"+i+"\t"+policy.getResource()+"\t"+policy.getAttributeType()+"\t"+policy.getAttributeValue()+"\t"+policy.getAction());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        LinkedList<Future<ChunkChecker>> window = new LinkedList<Future<ChunkChecker>>();
+        try{
+            List<String> chunk = new ArrayList<String>(CHUNK_SIZE);
+            String line = null;
+            while((line = in.readLine()) != null) {
+                if(line.trim().isEmpty()) continue;
+                chunk.add(line);
+                if(chunk.size() == CHUNK_SIZE) {
+                    window.add(executor.submit(new ChunkChecker(chunk,policyHits)));
+                    chunk = new ArrayList<String>(CHUNK_SIZE);
+                    if(window.size() >= threads*4) {
+                        ChunkChecker done = drain(window.removeFirst(),out);
+                        paths += done.chunk.size(); matched += done.matched;
+                    }
+                }
+            }
+            if(!chunk.isEmpty()) window.add(executor.submit(new ChunkChecker(chunk,policyHits)));
+            while(!window.isEmpty()) {
+                ChunkChecker done = drain(window.removeFirst(),out);
+                paths += done.chunk.size(); matched += done.matched;
             }
+        }finally{
+            executor.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime()-startTime)/1e9;
+        for(int i = 0; i < policies.size(); i++) {
+            out.println("H\t"+i+"\t"+policyHits.get(i));
+        }
+        out.println("S\tpaths\t"+paths);
+        out.println("S\tmatched\t"+matched);
+        out.println("S\tunmatched\t"+(paths-matched));
+        out.println("S\tseconds\t"+String.format("%.3f",seconds));
+        out.println("S\tpaths_per_second\t"+(seconds > 0 ? Math.round(paths/seconds) : paths));
+        out.flush();
+    }
+
+    //waits for the next chunk in input order and writes its records
+    private ChunkChecker drain(Future<ChunkChecker> future, PrintWriter out) throws IOException {
+        try{
+            ChunkChecker done = future.get();
+            out.print(done.records);
+            return done;
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while checking policies", e);
+        }catch(ExecutionException e) {
+            throw new IOException("Error while checking policies", e.getCause());
+        }finally{
+            out.flush();
+        }
+    }
+
+    private class ChunkChecker implements Callable<ChunkChecker> {
+        private final List<String> chunk;
+        private final AtomicLongArray policyHits;
+        private final StringBuilder records = new StringBuilder();
+        private long matched = 0;
+        ChunkChecker(List<String> chunk, AtomicLongArray policyHits) {
+            this.chunk = chunk;
+            this.policyHits = policyHits;
+        }
+        public ChunkChecker call() {
+            for(String path : chunk) {
+                int[] hits = getHits(path);
+                records.append("R\t").append(path).append('\t');
+                for(int i = 0; i < hits.length; i++) {
+                    if(i > 0) records.append(',');
+                    records.append(hits[i]);
+                    policyHits.incrementAndGet(hits[i]);
+                }
+                records.append('\n');
+                if(hits.length > 0) matched++;
+            }
+            return this;
         }
     }
     
-    public static void main (String[] args) {
-        new PolicyChecker().check(args[0]);
+    public static void main (String[] args) throws IOException {
+        if(args.length == 0) {
+            System.err.println("Usage: PolicyChecker <resource>\n       PolicyChecker --bulk <paths file|-> [--threads n] [policy file ...]");
+            System.exit(1);
+        }
+        if(!args[0].equals("--bulk")) {
+            new PolicyChecker().check(args[0]);
+            return;
+        }
+
+        if(args.length < 2) {
+            System.err.println("Missing paths file for bulk check (use - for stdin)");
+            System.exit(1);
+        }
+        String pathsFile = args[1];
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> policyFiles = new ArrayList<String>();
+        for(int i = 2; i < args.length; i++) {
+            if(args[i].equals("--threads") && i+1 < args.length) {
+                threads = Math.max(1,Integer.parseInt(args[++i]));
+            }else {
+                policyFiles.add(args[i]);
+            }
+        }
+
+        PolicyChecker checker = new PolicyChecker().load(policyFiles.toArray(new String[policyFiles.size()]));
+        InputStream is = pathsFile.equals("-") ? System.in : new FileInputStream(pathsFile);
+        try{
+            checker.checkBulk(new BufferedReader(new InputStreamReader(is,"UTF-8")),System.out,threads);
+        }finally{
+            is.close();
+        }
     }
-}
\ No newline at end of file
+}
@@ -58,11 +58,17 @@ import javax.xml.bind.Unmarshaller;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Date;
+import java.util.Map;
+import java.util.HashMap;
 import java.util.Properties;
 import java.util.Set;
 import java.util.HashSet;
@@ -79,6 +85,12 @@ import org.apache.commons.logging.impl.*;
    information and save the policy information back to descriptor
    file.
 
+   The policies are indexed by group, role, action and resource, so
+   that bulk removals only visit the matching policies.  Edits are
+   batched in memory until commit(), and saving writes to a temporary
+   file that then atomically replaces the descriptor file, so that a
+   concurrent policy reload never sees a half written file.
+
 **/
 public class PolicyGleaner {
 
@@ -92,6 +104,18 @@ public class PolicyGleaner {
     private Policies myPolicy = null;
     private boolean dirty = true;
 
+    //indexes of policySet
+    private Map<String,Set<PolicyWrapper>> byGroup = null;
+    private Map<String,Set<PolicyWrapper>> byRole = null;
+    private Map<String,Set<PolicyWrapper>> byAction = null;
+    private Map<String,Set<PolicyWrapper>> byResource = null;
+
+    //true when policySet was edited since the last commit
+    private boolean uncommitted = false;
+
+    //JAXB contexts are thread safe and expensive to create, so one is shared
+    private static JAXBContext jaxbContext = null;
+
 
     public PolicyGleaner() { this(null); }
     public PolicyGleaner(Properties props) {
@@ -112,9 +136,18 @@ public class PolicyGleaner {
         policyPath = System.getProperty("ESGF_HOME","/esg")+File.separator+"config";
 
         policySet = new HashSet<PolicyWrapper>();
+        byGroup = new HashMap<String,Set<PolicyWrapper>>();
+        byRole = new HashMap<String,Set<PolicyWrapper>>();
+        byAction = new HashMap<String,Set<PolicyWrapper>>();
+        byResource = new HashMap<String,Set<PolicyWrapper>>();
         myPolicy = new Policies();
     }
 
+    private static synchronized JAXBContext getJAXBContext() throws javax.xml.bind.JAXBException {
+        if(jaxbContext == null) jaxbContext = JAXBContext.newInstance(Policies.class);
+        return jaxbContext;
+    }
+
 
     public Policies getMyPolicy() { return myPolicy; }
 
@@ -123,12 +156,12 @@ public class PolicyGleaner {
         for(String filename : filenames) {
             log.info("Loading my policy info from "+filename);
             try{
-                JAXBContext jc = JAXBContext.newInstance(Policies.class);
-                Unmarshaller u = jc.createUnmarshaller();
+                Unmarshaller u = getJAXBContext().createUnmarshaller();
                 JAXBElement<Policies> root = u.unmarshal(new StreamSource(new File(filename)),Policies.class);
                 myPolicy = root.getValue();
+                uncommitted=true; //myPolicy no longer reflects policySet
                 int count = 0;
-                for(Policy policy : myPolicy.getPolicy()) { policySet.add(new PolicyWrapper(policy)); count++; } //dedup
+                for(Policy policy : myPolicy.getPolicy()) { add(new PolicyWrapper(policy)); count++; } //dedup
                 log.trace("Unmarshalled ["+myPolicy.getPolicy().size()+"] policies - Inspected ["+count+"] polices - resulted in ["+policySet.size()+"] policies");
                 dirty=true;
             }catch(Exception e) {
@@ -138,8 +171,8 @@ public class PolicyGleaner {
         return this;
     }
 
-    public synchronized boolean savePolicy() { return savePolicyAs(myPolicy,policyPath+policyFile); }
-    public synchronized boolean savePolicy(Policies policy)   { return savePolicyAs(policy, policyPath+policyFile); }
+    public synchronized boolean savePolicy() { return savePolicyAs(myPolicy,policyPath+File.separator+policyFile); }
+    public synchronized boolean savePolicy(Policies policy)   { return savePolicyAs(policy, policyPath+File.separator+policyFile); }
     public synchronized boolean savePolicyAs(String location) { return savePolicyAs(myPolicy, location); }
     public synchronized boolean savePolicyAs(Policies policy, String policyFileLocation) {
         boolean success = false;
@@ -148,14 +181,28 @@ public class PolicyGleaner {
             return success;
         }
         log.info("Saving policy information to "+policyFileLocation);
+        File target = new File(policyFileLocation).getAbsoluteFile();
+        File tmpFile = null;
         try{
-            JAXBContext jc = JAXBContext.newInstance(Policies.class);
-            Marshaller m = jc.createMarshaller();
+            tmpFile = File.createTempFile(target.getName(),".tmp",target.getParentFile());
+            Marshaller m = getJAXBContext().createMarshaller();
             m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            m.marshal(policy, new FileOutputStream(policyFileLocation));
+            OutputStream out = new FileOutputStream(tmpFile);
+            try{
+                m.marshal(policy, out);
+            }finally{
+                out.close();
+            }
+            try{
+                Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
             success = true;
         }catch(Exception e) {
             log.error(e);
+        }finally{
+            if(tmpFile != null) tmpFile.delete();
         }
         return success;
     }
@@ -171,7 +218,7 @@ public class PolicyGleaner {
         p.setAttributeType(groupName);
         p.setAttributeValue(roleName);
         p.setAction(action);
-        policySet.add(new PolicyWrapper(p));
+        add(new PolicyWrapper(p));
         return this;
     }
 
@@ -182,65 +229,104 @@ public class PolicyGleaner {
         p.setAttributeType(groupName);
         p.setAttributeValue(roleName);
         p.setAction(action);
-        policySet.remove(new PolicyWrapper(p));
+        remove(new PolicyWrapper(p));
         return this;
     }
 
     public PolicyGleaner removeAllForGroup(String groupName) {
-        dirty=true;
         log.trace("Removing all policies with group = "+groupName);
-        Set<PolicyWrapper> delSet = new HashSet<PolicyWrapper>();
-        for(PolicyWrapper policyWrapper : policySet) {
-            if(policyWrapper.getPolicy().getAttributeType().equals(groupName)) {
-                delSet.add(policyWrapper);
-                log.trace("Removing policy: "+policyWrapper);
-            }
-        }
-        if(policySet.removeAll(delSet)) { log.trace("ok"); } else { log.trace("nope"); }
-        return this;
+        return removeAll(byGroup.get(groupName));
     }
 
     public PolicyGleaner removeAllForRole(String roleName) {
-        dirty=true;
         log.trace("Removing all policies with role = "+roleName);
-        Set<PolicyWrapper> delSet = new HashSet<PolicyWrapper>();
-        for(PolicyWrapper policyWrapper : policySet) {
-            if(policyWrapper.getPolicy().getAttributeValue().equals(roleName)) {
-                delSet.add(policyWrapper);
-                log.trace("Removing policy: "+policyWrapper);
-            }
-        }
-        if(policySet.removeAll(delSet)) { log.trace("ok"); } else { log.trace("nope"); }
-        return this;
+        return removeAll(byRole.get(roleName));
     }
 
     public PolicyGleaner removeAllForAction(String action) {
-        dirty=true;
         log.trace("Removing all policies with action = "+action);
-        Set<PolicyWrapper> delSet = new HashSet<PolicyWrapper>();
-        for(PolicyWrapper policyWrapper : policySet) {
-            if(policyWrapper.getPolicy().getAction().equals(action)) {
-                delSet.add(policyWrapper);
-                log.trace("Removing policy: "+policyWrapper);
-            }
+        return removeAll(byAction.get(action));
+    }
+
+    public PolicyGleaner removeAllForResource(String resource) {
+        log.trace("Removing all policies with resource = "+resource);
+        return removeAll(byResource.get(resource));
+    }
+
+    private PolicyGleaner removeAll(Set<PolicyWrapper> matches) {
+        dirty=true;
+        if(matches == null || matches.isEmpty()) { log.trace("nope"); return this; }
+        //copy, since removing from the indexes modifies the matches
+        for(PolicyWrapper policyWrapper : new HashSet<PolicyWrapper>(matches)) {
+            log.trace("Removing policy: "+policyWrapper);
+            remove(policyWrapper);
         }
-        if(policySet.removeAll(delSet)) { log.trace("ok"); } else { log.trace("nope"); }
+        log.trace("ok");
         return this;
     }
 
+    //--------------------------
+    //Index maintenance
+    //--------------------------
+
+    private void add(PolicyWrapper policyWrapper) {
+        if(!policySet.add(policyWrapper)) return;
+        uncommitted=true;
+        Policy policy = policyWrapper.getPolicy();
+        index(byGroup,policy.getAttributeType(),policyWrapper);
+        index(byRole,policy.getAttributeValue(),policyWrapper);
+        index(byAction,policy.getAction(),policyWrapper);
+        index(byResource,policy.getResource(),policyWrapper);
+    }
+
+    private void remove(PolicyWrapper policyWrapper) {
+        if(!policySet.remove(policyWrapper)) return;
+        uncommitted=true;
+        //the removed instance may differ from the one in the indexes, but they are equal
+        Policy policy = policyWrapper.getPolicy();
+        unindex(byGroup,policy.getAttributeType(),policyWrapper);
+        unindex(byRole,policy.getAttributeValue(),policyWrapper);
+        unindex(byAction,policy.getAction(),policyWrapper);
+        unindex(byResource,policy.getResource(),policyWrapper);
+    }
+
+    private static void index(Map<String,Set<PolicyWrapper>> index, String key, PolicyWrapper policyWrapper) {
+        Set<PolicyWrapper> entries = index.get(key);
+        if(entries == null) {
+            entries = new HashSet<PolicyWrapper>();
+            index.put(key,entries);
+        }
+        entries.add(policyWrapper);
+    }
+
+    private static void unindex(Map<String,Set<PolicyWrapper>> index, String key, PolicyWrapper policyWrapper) {
+        Set<PolicyWrapper> entries = index.get(key);
+        if(entries == null) return;
+        entries.remove(policyWrapper);
+        if(entries.isEmpty()) index.remove(key);
+    }
+
+    //applies all the edits made since the last commit in one pass
     public PolicyGleaner commit() {
         dirty=true;
+        if(!uncommitted) { log.trace("nothing to commit"); return this; }
         myPolicy.getPolicy().clear();
         for(PolicyWrapper policyWrapper : policySet) {
             log.trace("preparing to commit: \n"+policyWrapper);
             myPolicy.getPolicy().add(policyWrapper.getPolicy());
         }
+        uncommitted=false;
         log.trace("commit done");
         return this;
     }
     
     public int size() { return policySet.size(); }
-    public PolicyGleaner clear() { policySet.clear(); myPolicy.getPolicy().clear(); return this; }
+    public PolicyGleaner clear() {
+        policySet.clear(); byGroup.clear(); byRole.clear(); byAction.clear(); byResource.clear();
+        myPolicy.getPolicy().clear();
+        uncommitted=false;
+        return this;
+    }
 
     public String toString() { return this.toString(false); }
     public String toString(boolean force) {
@@ -266,7 +352,9 @@ public class PolicyGleaner {
             sb.append("["+policy.getResource()+"] ");
             sb.append("g["+policy.getAttributeType()+"] ");
             sb.append("r["+policy.getAttributeValue()+"] ");
-            sb.append("a["+policy.getAction()+"]\n");
+            sb.append("a["+policy.getAction()+"]");
+            if(policy.getSyntax() != null && !policy.getSyntax().equals("regex")) sb.append(" s["+policy.getSyntax()+"]");
+            sb.append("\n");
             outputString = sb.toString();
         }
 
@@ -43,8 +43,11 @@ import esg.security.authz.service.api.SAMLAuthorizationFactory;
 import esg.security.authz.service.api.SAMLAuthorizations;
 import esg.security.common.SAMLParameters;
 import esg.security.common.SAMLUnknownPrincipalException;
+import esg.security.policy.service.api.PolicyAccess;
 import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyLookup;
 import esg.security.policy.service.api.PolicyService;
+import esg.security.policy.service.impl.RoleHierarchy;
 import esg.security.registry.service.api.RegistryService;
 import esg.security.registry.service.api.UnknownPolicyAttributeTypeException;
 import esg.xml.EsgWhitelist.TrustedServices.Gateway.AttributeService;
@@ -59,6 +62,7 @@ import esg.xml.EsgWhitelist.TrustedServices.Gateway.AttributeService;
  * The default behavior or this service implementation is to deny access if no determination
  * can be made to support a positive decision. 
  * Freely available resources must be explicitly configured with the special attribute type "ANY".
+ * An optional {@link RoleHierarchy} lets a user role (e.g. "admin") satisfy the policies that require a weaker role (e.g. "user").
  * 
  * @author luca.cinquini
  *
@@ -85,6 +89,11 @@ public class SAMLAuthorizationFactoryImpl implements SAMLAuthorizationFactory {
 	 */
 	private final AttributeServiceClient atsClient;
 	
+	/**
+	 * Implications between the roles (i.e. attribute values) of each group, none by default.
+	 */
+	private RoleHierarchy roleHierarchy = new RoleHierarchy("");
+	
 	private final static Log LOG = LogFactory.getLog(SAMLAuthorizationFactoryImpl.class);
 	
     // Map that caches the user attributes (type and value) retrieved from a remote attribute service, for a given action.
@@ -107,10 +116,14 @@ public class SAMLAuthorizationFactoryImpl implements SAMLAuthorizationFactory {
 		
 		final SAMLAuthorizations authorizations = new SAMLAuthorizationsImpl(identifier, this.issuer);
 		
-		// get map(action, att_type+): for each action it maps to the attribute types that must be queried from the attribute service
-		final Map<String, List<PolicyAttribute>> policyMap = this.getPolicies(resource, actions);
+		// classify each action, together with its required attributes from the same policies: free and authentication-only
+		// actions are decided without retrieving the required attributes or locating the attribute services
+		final Map<String, PolicyLookup> lookups = this.lookup(resource, actions);
 		
-		// get map(att_service_url, att_type+): for each attribute service it maps all the attribute types that must be queried (across all actions)
+		// get map(action, att_type+): for each restricted action it maps to the attribute types that must be queried from the attribute service
+		final Map<String, List<PolicyAttribute>> policyMap = this.getPolicies(lookups);
+		
+		// get map(att_service_url, att_type+): for each attribute service it maps all the attribute types that must be queried (across all restricted actions)
 		final Map<URL, Set<String>> attServiceMap = this.getAttributeServices(resource, policyMap);
 		
 		for (final String action : actions) {
@@ -119,15 +132,20 @@ public class SAMLAuthorizationFactoryImpl implements SAMLAuthorizationFactory {
 			String decision = DecisionTypeEnumeration.DENY.toString();
 			
 			// free action on resource
-			if (isFree(policyMap.get(action))) {
+			final PolicyAccess access = lookups.get(action).getAccess();
+			if (access==PolicyAccess.FREE) {
 				log("Action="+action+" on resource="+resource+" is allowed with NO resctrictions");	
 				decision = DecisionTypeEnumeration.PERMIT.toString();
 				
 			// authentication only required
-			} else if (isAuthOnly(policyMap.get(action))) {
+			} else if (access==PolicyAccess.AUTH_ONLY) {
 				log("Action="+action+" on resource="+resource+" is allowed for ALL authenticated users");	
 				decision = DecisionTypeEnumeration.PERMIT.toString();
-
+				
+			// no policy entitles this action on resource
+			} else if (access==PolicyAccess.NONE) {
+				log("Action="+action+" on resource="+resource+" is not entitled by any policy");
+				
 			// cached permission
 			} else if (isCached(identifier, policyMap.get(action))) {
 			    log("User="+identifier +" has cached attributes for action="+action+" on resource="+resource);
@@ -167,37 +185,12 @@ public class SAMLAuthorizationFactoryImpl implements SAMLAuthorizationFactory {
 	}
 	
 	/**
-	 * Method to check whether a given set of policies entitles free access
-	 * @param policies
-	 * @return
+	 * Setter method for the optional {@link RoleHierarchy}: the policies that require a role
+	 * are then also satisfied by the roles that imply it.
+	 * @param roleHierarchy
 	 */
-	boolean isFree(final List<PolicyAttribute> policies) {
-		
-		for (final PolicyAttribute policy : policies) {
-			// found attribute that entitles free access
-			if (policy.getType().equalsIgnoreCase(SAMLParameters.FREE_RESOURCE_ATTRIBUTE_TYPE)) return true;
-		}
-		
-		// no free access by default
-		return false;
-		
-	}
-	
-	/**
-	 * Method to check whether a given set of policies entitles access to all authenticated users
-	 * @param policies
-	 * @return
-	 */
-	boolean isAuthOnly(final List<PolicyAttribute> policies) {
-		
-		for (final PolicyAttribute policy : policies) {
-			// found attribute that only requires authentication
-			if (policy.getType().equalsIgnoreCase(SAMLParameters.AUTH_ONLY_RESOURCE_ATTRIBUTE_TYPE)) return true;
-		}
-		
-		// no auth only access by default
-		return false;
-		
+	public void setRoleHierarchy(final RoleHierarchy roleHierarchy) {
+		this.roleHierarchy = roleHierarchy;
 	}
 	
 	/**
@@ -243,9 +236,9 @@ public class SAMLAuthorizationFactoryImpl implements SAMLAuthorizationFactory {
 			    // loop through the access control attributes to identify a match by value
 				final Map<String,Set<String>> userAttributes = samlAttributes.getAttributes();
 	
-				// the user attribute values for this attribute type
+				// the user attribute values for this attribute type, or the roles they imply
 				final Set<String> userAttValues = userAttributes.get(policy.getType());
-				if (userAttValues!=null && userAttValues.contains(policy.getValue())) {
+				if (userAttValues!=null && roleHierarchy.implies(userAttValues, policy.getValue())) {
 				    
 				    // cache the user that generated a positive authorization
                     if (!cache.containsKey(identifier)) {
@@ -263,19 +256,34 @@ public class SAMLAuthorizationFactoryImpl implements SAMLAuthorizationFactory {
 	}
 	
 	/**
-	 * Internal method that build a map of action versus required policies.
+	 * Internal method that looks up the policies for each action, with a single call to the policy service per action.
 	 * 
-	 * @param identifier
 	 * @param resource
 	 * @param actions
 	 * @return
 	 */
-	Map<String, List<PolicyAttribute>> getPolicies(String resource, Vector<String> actions) {
+	Map<String, PolicyLookup> lookup(String resource, Vector<String> actions) {
 		
-		final Map<String, List<PolicyAttribute>> policyMap = new HashMap<String, List<PolicyAttribute>>();
+		final Map<String, PolicyLookup> lookups = new HashMap<String, PolicyLookup>();
 		for (final String action : actions) {
-			final List<PolicyAttribute> policies = policyService.getRequiredAttributes(resource, action);
-			policyMap.put(action, policies);
+			lookups.put(action, policyService.lookup(resource, action));
+		}
+		return lookups;
+		
+	}
+	
+	/**
+	 * Internal method that build a map of restricted action versus required policies.
+	 * 
+	 * @param lookups
+	 * @return
+	 */
+	Map<String, List<PolicyAttribute>> getPolicies(Map<String, PolicyLookup> lookups) {
+		
+		final Map<String, List<PolicyAttribute>> policyMap = new HashMap<String, List<PolicyAttribute>>();
+		for (final String action : lookups.keySet()) {
+			final PolicyLookup lookup = lookups.get(action);
+			if (lookup.getAccess()==PolicyAccess.RESTRICTED) policyMap.put(action, lookup.getRequiredAttributes());
 		}
 		
 		return policyMap;
@@ -48,6 +48,13 @@ public interface SAMLParameters {
     public final static String HTTP_PARAMETER_RESOURCE = "resource";
     public final static String HTTP_PARAMETER_ACTION = "action";
     public final static String HTTP_PARAMETER_XML = "xml";
+    public final static String HTTP_PARAMETER_BATCH = "batch";
+    public final static String HTTP_PARAMETER_ENTITLEMENTS = "entitlements";
+    public final static String HTTP_PARAMETER_OPERATION = "operation";
+    public final static String HTTP_PARAMETER_SYNTAX = "syntax";
+    public final static String HTTP_PARAMETER_ATTRIBUTE_TYPE = "attribute_type";
+    public final static String HTTP_PARAMETER_ATTRIBUTE_VALUE = "attribute_value";
+    public final static String HTTP_PARAMETER_SINCE = "since";
     
     public final static String HTTP_PARAMETER_USER = "user";
     public final static String HTTP_PARAMETER_GROUP = "group";
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.api;
+
+import java.io.IOException;
+
+/**
+ * API for changing single policy statements at runtime, in addition to establishing access control on resources.
+ * Only implemented by the services that own their policies: a read-only copy of the policies of another node
+ * only implements {@link PolicyService}.
+ *
+ */
+public interface MutablePolicyService extends PolicyService {
+	
+	/**
+	 * Method to add a single policy statement at runtime, without editing the policy files.
+	 * Callers are responsible for authenticating the administrator requesting the change.
+	 * @param resource
+	 * @param syntax : the syntax of the resource ("regex", "literal", "prefix" or "glob"), or null for a regular expression
+	 * @param attributeType
+	 * @param attributeValue
+	 * @param action
+	 * @return true if the policies changed, false if the statement was already in effect
+	 * @throws IllegalArgumentException if the statement is not valid
+	 * @throws IOException if the change could not be saved
+	 */
+	boolean addPolicy(String resource, String syntax, String attributeType, String attributeValue, String action) throws IOException;
+	
+	/**
+	 * Method to remove a single policy statement at runtime, whether it was added at runtime or is contained in the policy files.
+	 * Callers are responsible for authenticating the administrator requesting the change.
+	 * @param resource
+	 * @param syntax : the syntax of the resource ("regex", "literal", "prefix" or "glob"), or null for a regular expression
+	 * @param attributeType
+	 * @param attributeValue
+	 * @param action
+	 * @return true if the policies changed, false if the statement was not in effect
+	 * @throws IllegalArgumentException if the statement is not valid
+	 * @throws IOException if the change could not be saved
+	 */
+	boolean removePolicy(String resource, String syntax, String attributeType, String attributeValue, String action) throws IOException;
+
+}
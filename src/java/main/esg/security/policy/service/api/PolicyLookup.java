@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of looking up the policies on a (resource, action) pair: the classification of the access,
+ * and the attributes that entitle the action if the access is {@link PolicyAccess#RESTRICTED}.
+ * Both are taken from the same version of the policies.
+ *
+ */
+public final class PolicyLookup {
+	
+	/**
+	 * Result of a lookup that no policy applies to.
+	 */
+	public final static PolicyLookup NONE = new PolicyLookup(PolicyAccess.NONE, Collections.<PolicyAttribute>emptyList());
+	
+	private final PolicyAccess access;
+	
+	private final List<PolicyAttribute> requiredAttributes;
+	
+	/**
+	 * @param access
+	 * @param requiredAttributes : the attributes that entitle the action, or an empty list unless the access is restricted
+	 */
+	public PolicyLookup(final PolicyAccess access, final List<PolicyAttribute> requiredAttributes) {
+		this.access = access;
+		this.requiredAttributes = requiredAttributes;
+	}
+	
+	public PolicyAccess getAccess() {
+		return access;
+	}
+	
+	/**
+	 * @return the attributes that entitle the action, only listed if the access is {@link PolicyAccess#RESTRICTED}
+	 */
+	public List<PolicyAttribute> getRequiredAttributes() {
+		return requiredAttributes;
+	}
+	
+	@Override
+	public String toString() {
+		return access+(access==PolicyAccess.RESTRICTED ? " "+requiredAttributes : "");
+	}
+
+}
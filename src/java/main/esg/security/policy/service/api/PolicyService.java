@@ -19,6 +19,8 @@
 package esg.security.policy.service.api;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * API for establishing access control on resources.
@@ -35,5 +37,38 @@ public interface PolicyService {
 	 * @return
 	 */
 	List<PolicyAttribute> getRequiredAttributes(String resource, String action);
+	
+	/**
+	 * Method to classify the access to the given resource for the given action,
+	 * without building the list of required attributes.
+	 * @param resource
+	 * @param action
+	 * @return
+	 */
+	PolicyAccess getAccess(String resource, String action);
+	
+	/**
+	 * Method to classify the access to the given resource for the given action and, if it is restricted, 
+	 * to retrieve the attributes that entitle it, both from the same version of the policies.
+	 * @param resource
+	 * @param action
+	 * @return
+	 */
+	PolicyLookup lookup(String resource, String action);
+	
+	/**
+	 * Method to list in one pass the policy statements entitled by the attributes of a user,
+	 * including the statements open to all users.
+	 * @param attributes : the user attribute values, by attribute type
+	 * @return one statement for each entitled (resource, action) pair
+	 */
+	List<PolicyStatement> getEntitlements(Map<String, Set<String>> attributes);
+	
+	/**
+	 * Method to return a number that changes every time the policies change,
+	 * so that clients can tell whether results computed earlier are still valid.
+	 * @return
+	 */
+	long getGeneration();
 
 }
@@ -0,0 +1,814 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Regular expression matcher that runs in time proportional to the length of the resource times the size of the expression,
+ * whatever the expression and the resource.
+ * 
+ * The expression is compiled into a non-deterministic automaton (Thompson construction), which is then simulated 
+ * one resource character at a time, following all its active states at once and never backtracking (as in RE2).
+ * Only the part of the {@link java.util.regex.Pattern} syntax that can be matched this way is supported, 
+ * with the same semantics as {@link java.util.regex.Matcher#matches()}:
+ * <ul>
+ *  <li>literal characters, escaped characters, '.', character classes (without nesting or intersection) and the classes \d \D \s \S \w \W
+ *  <li>capturing, named and non-capturing groups, alternation, greedy and reluctant quantifiers
+ *  <li>the anchors ^ $ \A \z \Z
+ *  <li>the DOTALL and UNIX_LINES flags
+ * </ul>
+ * Back references, look-around, atomic groups, possessive quantifiers, word boundaries, Unicode properties and other flags
+ * are rejected by {@link #compile(Pattern)}.
+ *
+ */
+public class LinearPattern {
+	
+	// maximum number of automaton states, which bounds the cost of matching each resource character
+	public final static int MAX_STATES = 10000;
+	
+	// automaton instructions
+	private final static int SET = 0;		// consume one character within ranges[pc], continue at pc+1
+	private final static int SPLIT = 1;		// continue at both next1[pc] and next2[pc]
+	private final static int JUMP = 2;		// continue at next1[pc]
+	private final static int BEGIN = 3;		// continue at pc+1 at the beginning of the resource
+	private final static int END = 4;		// continue at pc+1 at the end of the resource
+	private final static int DOLLAR = 5;	// continue at pc+1 at the end of the resource, or before a final line terminator
+	private final static int MATCH = 6;
+	
+	private final static int[] DIGITS = { '0', '9' };
+	private final static int[] SPACES = { '\t', '\r', ' ', ' ' };
+	private final static int[] WORDS = { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' };
+	
+	private final Pattern pattern;
+	private final boolean unixLines;
+	
+	private final int[] ops;
+	private final int[] next1;
+	private final int[] next2;
+	
+	// character ranges of the SET instructions, as sorted pairs of inclusive code points
+	private final int[][] ranges;
+	
+	private LinearPattern(final Pattern pattern, final Program program) {
+		this.pattern = pattern;
+		this.unixLines = (pattern.flags() & Pattern.UNIX_LINES)!=0;
+		this.ops = Arrays.copyOf(program.ops, program.size);
+		this.next1 = Arrays.copyOf(program.next1, program.size);
+		this.next2 = Arrays.copyOf(program.next2, program.size);
+		this.ranges = Arrays.copyOf(program.ranges, program.size);
+	}
+	
+	/**
+	 * Method to compile a regular expression into a linear-time matcher.
+	 * @param pattern
+	 * @return
+	 * @throws IllegalArgumentException if the expression uses a construct that is not supported
+	 */
+	public static LinearPattern compile(final Pattern pattern) {
+		
+		if ((pattern.flags() & ~(Pattern.DOTALL | Pattern.UNIX_LINES))!=0) {
+			throw new IllegalArgumentException("Unsupported flags: "+pattern.flags());
+		}
+		
+		final Parser parser = new Parser(pattern.pattern(), pattern.flags());
+		final Node node = parser.parse();
+		
+		final Program program = new Program();
+		node.emit(program);
+		program.add(MATCH);
+		return new LinearPattern(pattern, program);
+		
+	}
+	
+	/**
+	 * Method to match the whole resource against this expression.
+	 * @param resource
+	 * @return
+	 */
+	public boolean matches(final CharSequence resource) {
+		
+		final int length = resource.length();
+		
+		// states visited at each position are stamped with the position+1
+		final int[] stamps = new int[ops.length];
+		final int[] stack = new int[ops.length];
+		int[] states = new int[ops.length];
+		int[] nextStates = new int[ops.length];
+		
+		int count = follow(0, 0, resource, states, 0, stamps, stack);
+		int pos = 0;
+		while (count>0) {
+			
+			if (pos==length) {
+				for (int i=0; i<count; i++) {
+					if (ops[states[i]]==MATCH) return true;
+				}
+				return false;
+			}
+			
+			final int c = Character.codePointAt(resource, pos);
+			final int nextPos = pos+Character.charCount(c);
+			int nextCount = 0;
+			for (int i=0; i<count; i++) {
+				final int pc = states[i];
+				if (ops[pc]==SET && contains(ranges[pc], c)) {
+					nextCount = follow(pc+1, nextPos, resource, nextStates, nextCount, stamps, stack);
+				}
+			}
+			
+			final int[] _states = states;
+			states = nextStates;
+			nextStates = _states;
+			count = nextCount;
+			pos = nextPos;
+			
+		}
+		return false;
+		
+	}
+	
+	/**
+	 * Method to add to the given states all the consuming or final states reachable from the given state
+	 * without consuming a character.
+	 * @return the new number of states
+	 */
+	private int follow(final int start, final int pos, final CharSequence resource, 
+			           final int[] states, int count, final int[] stamps, final int[] stack) {
+		
+		final int stamp = pos+1;
+		if (stamps[start]==stamp) return count;
+		stamps[start] = stamp;
+		int top = 0;
+		stack[top++] = start;
+		while (top>0) {
+			final int pc = stack[--top];
+			int target = -1, target2 = -1;
+			switch (ops[pc]) {
+			case SET:
+			case MATCH:
+				states[count++] = pc;
+				break;
+			case JUMP:
+				target = next1[pc];
+				break;
+			case SPLIT:
+				target = next1[pc];
+				target2 = next2[pc];
+				break;
+			case BEGIN:
+				if (pos==0) target = pc+1;
+				break;
+			case END:
+				if (pos==resource.length()) target = pc+1;
+				break;
+			case DOLLAR:
+				if (isDollar(resource, pos)) target = pc+1;
+				break;
+			}
+			if (target>=0 && stamps[target]!=stamp) {
+				stamps[target] = stamp;
+				stack[top++] = target;
+			}
+			if (target2>=0 && stamps[target2]!=stamp) {
+				stamps[target2] = stamp;
+				stack[top++] = target2;
+			}
+		}
+		return count;
+		
+	}
+	
+	/**
+	 * Method to evaluate '$' outside of the MULTILINE mode: at the end of the resource, or before a line terminator that ends it.
+	 */
+	private boolean isDollar(final CharSequence resource, final int pos) {
+		
+		final int length = resource.length();
+		if (pos==length) return true;
+		final char c = resource.charAt(pos);
+		if (unixLines) {
+			return pos==length-1 && c=='\n';
+		} else if (pos==length-2) {
+			return c=='\r' && resource.charAt(pos+1)=='\n';
+		} else if (pos==length-1) {
+			if (c=='\n') return pos==0 || resource.charAt(pos-1)!='\r';
+			return c=='\r' || c=='\u0085' || c=='\u2028' || c=='\u2029';
+		} else {
+			return false;
+		}
+		
+	}
+	
+	private static boolean contains(final int[] ranges, final int c) {
+		int low = 0, high = ranges.length/2-1;
+		while (low<=high) {
+			final int mid = (low+high)>>>1;
+			if (c<ranges[2*mid]) {
+				high = mid-1;
+			} else if (c>ranges[2*mid+1]) {
+				low = mid+1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public Pattern getPattern() {
+		return pattern;
+	}
+	
+	/**
+	 * @return the number of automaton states, which bounds the cost of matching each resource character
+	 */
+	public int size() {
+		return ops.length;
+	}
+	
+	@Override
+	public String toString() {
+		return pattern.pattern();
+	}
+	
+	/**
+	 * Growable automaton under construction.
+	 */
+	private static class Program {
+		
+		int[] ops = new int[16];
+		int[] next1 = new int[16];
+		int[] next2 = new int[16];
+		int[][] ranges = new int[16][];
+		int size = 0;
+		
+		int add(final int op) {
+			if (size==MAX_STATES) {
+				throw new IllegalArgumentException("Expression too large, more than "+MAX_STATES+" states");
+			}
+			if (size==ops.length) {
+				ops = Arrays.copyOf(ops, size*2);
+				next1 = Arrays.copyOf(next1, size*2);
+				next2 = Arrays.copyOf(next2, size*2);
+				ranges = Arrays.copyOf(ranges, size*2);
+			}
+			ops[size] = op;
+			return size++;
+		}
+		
+	}
+	
+	/**
+	 * Node of the parsed expression, which emits its automaton states.
+	 */
+	private static abstract class Node {
+		abstract void emit(Program program);
+	}
+	
+	private static class CharSet extends Node {
+		
+		final int[] ranges;
+		
+		CharSet(final int[] ranges) {
+			this.ranges = ranges;
+		}
+		
+		@Override
+		void emit(final Program program) {
+			final int pc = program.add(SET);
+			program.ranges[pc] = ranges;
+		}
+		
+	}
+	
+	private static class Assertion extends Node {
+		
+		final int op;
+		
+		Assertion(final int op) {
+			this.op = op;
+		}
+		
+		@Override
+		void emit(final Program program) {
+			program.add(op);
+		}
+		
+	}
+	
+	private static class Sequence extends Node {
+		
+		final List<Node> nodes;
+		
+		Sequence(final List<Node> nodes) {
+			this.nodes = nodes;
+		}
+		
+		@Override
+		void emit(final Program program) {
+			for (final Node node : nodes) node.emit(program);
+		}
+		
+	}
+	
+	private static class Alternation extends Node {
+		
+		final List<Node> nodes;
+		
+		Alternation(final List<Node> nodes) {
+			this.nodes = nodes;
+		}
+		
+		@Override
+		void emit(final Program program) {
+			final int[] jumps = new int[nodes.size()-1];
+			for (int i=0; i<jumps.length; i++) {
+				final int split = program.add(SPLIT);
+				program.next1[split] = split+1;
+				nodes.get(i).emit(program);
+				jumps[i] = program.add(JUMP);
+				program.next2[split] = program.size;
+			}
+			nodes.get(jumps.length).emit(program);
+			for (final int jump : jumps) program.next1[jump] = program.size;
+		}
+		
+	}
+	
+	private static class Repetition extends Node {
+		
+		final Node node;
+		final int min;
+		final int max; // or -1 if unbounded
+		
+		Repetition(final Node node, final int min, final int max) {
+			this.node = node;
+			this.min = min;
+			this.max = max;
+		}
+		
+		@Override
+		void emit(final Program program) {
+			for (int i=0; i<min; i++) node.emit(program);
+			if (max<0) {
+				final int split = program.add(SPLIT);
+				program.next1[split] = split+1;
+				node.emit(program);
+				final int jump = program.add(JUMP);
+				program.next1[jump] = split;
+				program.next2[split] = program.size;
+			} else {
+				for (int i=min; i<max; i++) {
+					final int split = program.add(SPLIT);
+					program.next1[split] = split+1;
+					node.emit(program);
+					program.next2[split] = program.size;
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * Recursive descent parser for the supported subset of the regular expression syntax.
+	 * The expression has already been compiled by {@link java.util.regex.Pattern}, so it is known to be valid:
+	 * any construct that is not recognized below is rejected as unsupported.
+	 */
+	private static class Parser {
+		
+		private final String regex;
+		private final int flags;
+		private int pos = 0;
+		
+		Parser(final String regex, final int flags) {
+			this.regex = regex;
+			this.flags = flags;
+		}
+		
+		Node parse() {
+			final Node node = parseAlternation();
+			if (pos<regex.length()) throw unsupported("unbalanced parenthesis");
+			return node;
+		}
+		
+		private Node parseAlternation() {
+			final List<Node> nodes = new ArrayList<Node>();
+			nodes.add(parseSequence());
+			while (pos<regex.length() && regex.charAt(pos)=='|') {
+				pos++;
+				nodes.add(parseSequence());
+			}
+			return nodes.size()==1 ? nodes.get(0) : new Alternation(nodes);
+		}
+		
+		private Node parseSequence() {
+			
+			final List<Node> nodes = new ArrayList<Node>();
+			while (pos<regex.length()) {
+				
+				final char c = regex.charAt(pos);
+				if (c=='|' || c==')') break;
+				
+				final Node atom;
+				if (regex.startsWith("\\Q", pos)) {
+					// quoted text: a following quantifier only applies to its last character
+					int end = regex.indexOf("\\E", pos+2);
+					if (end<0) end = regex.length();
+					final String quoted = regex.substring(pos+2, end);
+					if (quoted.isEmpty()) throw unsupported("empty quotation");
+					pos = Math.min(end+2, regex.length());
+					int i = 0;
+					int cp = quoted.codePointAt(i);
+					while (i+Character.charCount(cp)<quoted.length()) {
+						nodes.add(literal(cp));
+						i += Character.charCount(cp);
+						cp = quoted.codePointAt(i);
+					}
+					atom = literal(cp);
+				} else {
+					atom = parseAtom();
+				}
+				nodes.add(parseQuantifier(atom));
+				
+			}
+			return new Sequence(nodes);
+			
+		}
+		
+		private Node parseQuantifier(final Node atom) {
+			
+			if (pos>=regex.length()) return atom;
+			final char c = regex.charAt(pos);
+			final int min, max;
+			if (c=='*') {
+				pos++;
+				min = 0;
+				max = -1;
+			} else if (c=='+') {
+				pos++;
+				min = 1;
+				max = -1;
+			} else if (c=='?') {
+				pos++;
+				min = 0;
+				max = 1;
+			} else if (c=='{') {
+				pos++;
+				min = parseNumber();
+				if (pos<regex.length() && regex.charAt(pos)==',') {
+					pos++;
+					max = (pos<regex.length() && regex.charAt(pos)=='}') ? -1 : parseNumber();
+				} else {
+					max = min;
+				}
+				if (pos>=regex.length() || regex.charAt(pos)!='}' || (max>=0 && max<min)) throw unsupported("repetition");
+				pos++;
+			} else {
+				return atom;
+			}
+			
+			if (atom instanceof Assertion) throw unsupported("quantified anchor");
+			// java.util.regex does not repeat empty matches of a group the same way when they depend on an anchor
+			if ((max<0 || max>1) && hasAssertion(atom)) throw unsupported("anchor in repeated group");
+			if (pos<regex.length()) {
+				// reluctant quantifiers accept the same resources, possessive ones do not
+				if (regex.charAt(pos)=='?') {
+					pos++;
+				} else if (regex.charAt(pos)=='+') {
+					throw unsupported("possessive quantifier");
+				}
+			}
+			return new Repetition(atom, min, max);
+			
+		}
+		
+		private static boolean hasAssertion(final Node node) {
+			if (node instanceof Assertion) return true;
+			final List<Node> nodes = node instanceof Sequence ? ((Sequence)node).nodes 
+			                       : node instanceof Alternation ? ((Alternation)node).nodes : null;
+			if (nodes!=null) {
+				for (final Node _node : nodes) {
+					if (hasAssertion(_node)) return true;
+				}
+			}
+			return node instanceof Repetition && hasAssertion(((Repetition)node).node);
+		}
+		
+		private int parseNumber() {
+			final int start = pos;
+			while (pos<regex.length() && pos-start<6 && regex.charAt(pos)>='0' && regex.charAt(pos)<='9') pos++;
+			if (pos==start || (pos<regex.length() && Character.isDigit(regex.charAt(pos)))) throw unsupported("repetition");
+			return Integer.parseInt(regex.substring(start, pos));
+		}
+		
+		private Node parseAtom() {
+			
+			final int c = regex.codePointAt(pos);
+			switch (c) {
+			case '(':
+				pos++;
+				if (regex.startsWith("?:", pos)) {
+					pos += 2;
+				} else if (regex.startsWith("?<", pos) && pos+2<regex.length() && isAsciiLetter(regex.charAt(pos+2))) {
+					pos = regex.indexOf('>', pos)+1;
+					if (pos==0) throw unsupported("group name");
+				} else if (regex.startsWith("?", pos)) {
+					throw unsupported("special group");
+				}
+				final Node node = parseAlternation();
+				if (pos>=regex.length() || regex.charAt(pos)!=')') throw unsupported("unbalanced parenthesis");
+				pos++;
+				return node;
+			case '[':
+				return parseClass();
+			case '.':
+				pos++;
+				if ((flags & Pattern.DOTALL)!=0) {
+					return new CharSet(new int[] { 0, Character.MAX_CODE_POINT });
+				} else if ((flags & Pattern.UNIX_LINES)!=0) {
+					return new CharSet(complement(new int[] { '\n', '\n' }));
+				} else {
+					return new CharSet(complement(new int[] { '\n', '\n', '\r', '\r', '\u0085', '\u0085', '\u2028', '\u2029' }));
+				}
+			case '^':
+				pos++;
+				return new Assertion(BEGIN);
+			case '$':
+				pos++;
+				return new Assertion(DOLLAR);
+			case '\\':
+				pos++;
+				if (pos>=regex.length()) throw unsupported("trailing backslash");
+				final char e = regex.charAt(pos);
+				if (e=='A') {
+					pos++;
+					return new Assertion(BEGIN);
+				} else if (e=='z') {
+					pos++;
+					return new Assertion(END);
+				} else if (e=='Z') {
+					pos++;
+					return new Assertion(DOLLAR);
+				}
+				final int[] predefined = predefined(e);
+				if (predefined!=null) {
+					pos++;
+					return new CharSet(predefined);
+				}
+				return literal(parseEscapedChar());
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+				throw unsupported("dangling quantifier");
+			default:
+				pos += Character.charCount(c);
+				return literal(c);
+			}
+			
+		}
+		
+		/**
+		 * Method to parse a character class, without nested classes or intersections.
+		 */
+		private Node parseClass() {
+			
+			pos++;
+			boolean negate = false;
+			if (pos<regex.length() && regex.charAt(pos)=='^') {
+				negate = true;
+				pos++;
+			}
+			
+			final List<int[]> items = new ArrayList<int[]>();
+			boolean first = true;
+			while (true) {
+				
+				if (pos>=regex.length()) throw unsupported("unclosed character class");
+				final char c = regex.charAt(pos);
+				if (c==']') {
+					if (first) throw unsupported("empty character class");
+					pos++;
+					break;
+				}
+				if (c=='[' || regex.startsWith("&&", pos)) throw unsupported("nested character class");
+				first = false;
+				
+				if (c=='\\' && pos+1<regex.length() && predefined(regex.charAt(pos+1))!=null) {
+					items.add(predefined(regex.charAt(pos+1)));
+					pos += 2;
+					if (isRangeDash()) throw unsupported("character range");
+					continue;
+				}
+				
+				final int low = parseClassChar();
+				if (isRangeDash()) {
+					pos++;
+					if (regex.charAt(pos)=='[' || (regex.charAt(pos)=='\\' && pos+1<regex.length() && predefined(regex.charAt(pos+1))!=null)) {
+						throw unsupported("character range");
+					}
+					final int high = parseClassChar();
+					if (high<low || isRangeDash()) throw unsupported("character range");
+					items.add(new int[] { low, high });
+				} else {
+					items.add(new int[] { low, low });
+				}
+				
+			}
+			
+			final int[] ranges = normalize(items);
+			return new CharSet(negate ? complement(ranges) : ranges);
+			
+		}
+		
+		private boolean isRangeDash() {
+			return pos+1<regex.length() && regex.charAt(pos)=='-' && regex.charAt(pos+1)!=']';
+		}
+		
+		private int parseClassChar() {
+			if (pos>=regex.length()) throw unsupported("unclosed character class");
+			if (regex.charAt(pos)=='\\') {
+				pos++;
+				if (pos>=regex.length() || regex.charAt(pos)=='Q' || regex.charAt(pos)=='E') throw unsupported("escape in character class");
+				return parseEscapedChar();
+			}
+			final int c = regex.codePointAt(pos);
+			if (Character.isBmpCodePoint(c) && Character.isSurrogate((char)c)) throw unsupported("unpaired surrogate");
+			pos += Character.charCount(c);
+			return c;
+		}
+		
+		/**
+		 * Method to parse the character escaped by the backslash just before the current position.
+		 */
+		private int parseEscapedChar() {
+			
+			final char c = regex.charAt(pos++);
+			switch (c) {
+			case 't': return '\t';
+			case 'n': return '\n';
+			case 'r': return '\r';
+			case 'f': return '\f';
+			case 'a': return '\u0007';
+			case 'e': return '\u001B';
+			case '0':
+				final int n = octal();
+				if (n<0) throw unsupported("octal escape");
+				final int m = octal();
+				if (m<0) return n;
+				final int o = n<4 ? octal() : -1;
+				return o<0 ? n*8+m : (n*8+m)*8+o;
+			case 'x':
+				if (pos<regex.length() && regex.charAt(pos)=='{') {
+					final int end = regex.indexOf('}', pos);
+					if (end<0) throw unsupported("hexadecimal escape");
+					final int cp = hex(pos+1, end);
+					pos = end+1;
+					return cp;
+				} else {
+					pos += 2;
+					return hex(pos-2, pos);
+				}
+			case 'u':
+				pos += 4;
+				return hex(pos-4, pos);
+			case 'c':
+				if (pos>=regex.length()) throw unsupported("control escape");
+				return regex.charAt(pos++) ^ 64;
+			default:
+				if ((c>='a' && c<='z') || (c>='A' && c<='Z') || (c>='0' && c<='9')) {
+					throw unsupported("escape \\"+c);
+				}
+				pos--;
+				final int cp = regex.codePointAt(pos);
+				if (Character.isBmpCodePoint(cp) && Character.isSurrogate((char)cp)) throw unsupported("unpaired surrogate");
+				pos += Character.charCount(cp);
+				return cp;
+			}
+			
+		}
+		
+		private int octal() {
+			if (pos<regex.length() && regex.charAt(pos)>='0' && regex.charAt(pos)<='7') {
+				return regex.charAt(pos++)-'0';
+			}
+			return -1;
+		}
+		
+		private int hex(final int start, final int end) {
+			if (start>=end || end>regex.length() || end-start>8) throw unsupported("hexadecimal escape");
+			int cp = 0;
+			for (int i=start; i<end; i++) {
+				final int digit = Character.digit(regex.charAt(i), 16);
+				if (digit<0) throw unsupported("hexadecimal escape");
+				cp = cp*16+digit;
+			}
+			if (!Character.isValidCodePoint(cp) || (cp>=Character.MIN_SURROGATE && cp<=Character.MAX_SURROGATE)) {
+				throw unsupported("escaped surrogate");
+			}
+			return cp;
+		}
+		
+		private Node literal(final int c) {
+			if (Character.isBmpCodePoint(c) && Character.isSurrogate((char)c)) throw unsupported("unpaired surrogate");
+			return new CharSet(new int[] { c, c });
+		}
+		
+		private IllegalArgumentException unsupported(final String construct) {
+			return new IllegalArgumentException("Unsupported "+construct+" near index "+pos+" of "+regex);
+		}
+		
+	}
+	
+	private static boolean isAsciiLetter(final char c) {
+		return (c>='a' && c<='z') || (c>='A' && c<='Z');
+	}
+	
+	/**
+	 * @return the ranges of the predefined class \d \D \s \S \w or \W, or null
+	 */
+	private static int[] predefined(final char c) {
+		switch (c) {
+		case 'd': return DIGITS;
+		case 'D': return complement(DIGITS);
+		case 's': return SPACES;
+		case 'S': return complement(SPACES);
+		case 'w': return WORDS;
+		case 'W': return complement(WORDS);
+		default: return null;
+		}
+	}
+	
+	/**
+	 * Method to sort and merge character ranges.
+	 */
+	private static int[] normalize(final List<int[]> items) {
+		
+		final List<int[]> pairs = new ArrayList<int[]>();
+		for (final int[] item : items) {
+			for (int i=0; i<item.length; i+=2) pairs.add(new int[] { item[i], item[i+1] });
+		}
+		Collections.sort(pairs, new Comparator<int[]>() {
+			@Override
+			public int compare(final int[] a, final int[] b) {
+				return a[0]<b[0] ? -1 : (a[0]==b[0] ? 0 : 1);
+			}
+		});
+		
+		final int[] ranges = new int[pairs.size()*2];
+		int size = 0;
+		for (final int[] pair : pairs) {
+			if (size>0 && pair[0]<=ranges[size-1]+1) {
+				ranges[size-1] = Math.max(ranges[size-1], pair[1]);
+			} else {
+				ranges[size++] = pair[0];
+				ranges[size++] = pair[1];
+			}
+		}
+		return Arrays.copyOf(ranges, size);
+		
+	}
+	
+	/**
+	 * @return the ranges of all the code points that are not in the given sorted ranges
+	 */
+	private static int[] complement(final int[] ranges) {
+		final int[] _ranges = new int[ranges.length+2];
+		int size = 0;
+		int next = 0;
+		for (int i=0; i<ranges.length; i+=2) {
+			if (ranges[i]>next) {
+				_ranges[size++] = next;
+				_ranges[size++] = ranges[i]-1;
+			}
+			next = ranges[i+1]+1;
+		}
+		if (next<=Character.MAX_CODE_POINT) {
+			_ranges[size++] = next;
+			_ranges[size++] = Character.MAX_CODE_POINT;
+		}
+		return Arrays.copyOf(_ranges, size);
+	}
+
+}
@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import esg.security.policy.service.api.PolicyAttribute;
+
+/**
+ * Bounded history of the changes between the successive generations of the policies, used to send peers 
+ * only the statements changed since the version they last received (see {@link PolicyDelta}).
+ * 
+ * The versions exchanged with peers combine an identifier of this log, which changes at every restart,
+ * with the snapshot generation: a version from a previous run, or older than the retained history, 
+ * is answered with all the current statements.
+ * The history retains up to a maximum number of changed statements, and drops the oldest generations first.
+ * The log also keeps the snapshot of the latest generation it recorded, so that the version and the changes
+ * sent to peers are always consistent, and can be read without the lock of the policy service.
+ */
+public class PolicyChangeLog {
+	
+	// default maximum number of changed statements retained
+	public final static int DEFAULT_SIZE = 10000;
+	
+	// identifies the versions issued by this log
+	private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+	
+	private final int maxChanges;
+	
+	// changes by generation, oldest first (guarded by this)
+	private final LinkedList<Entry> entries = new LinkedList<Entry>();
+	
+	// number of changed statements in the entries
+	private int size = 0;
+	
+	// generation from which the changes are retained
+	private long oldest = 0L;
+	
+	// snapshot of the latest generation recorded
+	private PolicySnapshot current;
+	
+	/**
+	 * @param maxChanges : the maximum number of changed statements retained
+	 * @param current : the current policies, from which the changes are recorded
+	 */
+	public PolicyChangeLog(final int maxChanges, final PolicySnapshot current) {
+		this.maxChanges = maxChanges;
+		reset(current);
+	}
+	
+	/**
+	 * @param generation : a snapshot generation
+	 * @return the version exchanged with peers for the given generation
+	 */
+	public String getVersion(final long generation) {
+		return epoch+"-"+generation;
+	}
+	
+	/**
+	 * @return the version of the latest generation recorded
+	 */
+	public synchronized String getVersion() {
+		return getVersion(current.getGeneration());
+	}
+	
+	/**
+	 * Method to record the changes that produced the given snapshot from the previous one.
+	 * @param snapshot
+	 * @param additions : the statements added, compared as a set
+	 * @param removals : the statements removed, compared as a set
+	 */
+	public synchronized void record(final PolicySnapshot snapshot, final List<PolicyOverlay.Change> additions, final List<PolicyOverlay.Change> removals) {
+		
+		final long generation = snapshot.getGeneration();
+		final Entry entry = new Entry(generation, additions, removals);
+		current = snapshot;
+		if (entry.size()>maxChanges) {
+			entries.clear();
+			size = 0;
+			oldest = generation;
+			return;
+		}
+		
+		entries.add(entry);
+		size += entry.size();
+		while (size>maxChanges) {
+			final Entry _entry = entries.removeFirst();
+			size -= _entry.size();
+			oldest = _entry.generation;
+		}
+		
+	}
+	
+	/**
+	 * Method to record a new snapshot without its changes: peers receive all its statements.
+	 * @param snapshot
+	 */
+	public synchronized void reset(final PolicySnapshot snapshot) {
+		entries.clear();
+		size = 0;
+		oldest = snapshot.getGeneration();
+		current = snapshot;
+	}
+	
+	/**
+	 * Method to compute the changes from the given version to the latest snapshot recorded.
+	 * @param since : the version last received by a peer, or null if none
+	 * @return the changes since the given version, or all the current statements if the changes are not retained
+	 */
+	public synchronized PolicyDelta getChanges(final String since) {
+		
+		final long generation = getGeneration(since);
+		final String version = getVersion(current.getGeneration());
+		if (generation<oldest || generation>current.getGeneration()) {
+			return new PolicyDelta(version, true, current.getStatements(), Collections.<PolicyOverlay.Change>emptyList());
+		}
+		
+		// net changes: a statement added then removed (or removed then added) did not change
+		final Set<PolicyOverlay.Change> additions = new LinkedHashSet<PolicyOverlay.Change>();
+		final Set<PolicyOverlay.Change> removals = new LinkedHashSet<PolicyOverlay.Change>();
+		for (final Entry entry : entries) {
+			if (entry.generation<=generation) continue;
+			for (final PolicyOverlay.Change change : entry.removals) {
+				if (!additions.remove(change)) removals.add(change);
+			}
+			for (final PolicyOverlay.Change change : entry.additions) {
+				if (!removals.remove(change)) additions.add(change);
+			}
+		}
+		return new PolicyDelta(version, false, new ArrayList<PolicyOverlay.Change>(additions), new ArrayList<PolicyOverlay.Change>(removals));
+		
+	}
+	
+	/**
+	 * @param version
+	 * @return the generation of the given version, or -1 if it was not issued by this log
+	 */
+	private long getGeneration(final String version) {
+		if (version==null || !version.startsWith(epoch+"-")) return -1L;
+		try {
+			return Long.parseLong(version.substring(epoch.length()+1));
+		} catch(NumberFormatException e) {
+			return -1L;
+		}
+	}
+	
+	/**
+	 * Method to compute the changes between two snapshots, from the statements of the policy files that changed
+	 * and from the runtime changes of both snapshots, without enumerating the statements of the unchanged files.
+	 * 
+	 * A statement contained several times in the policies cannot be restored to the same number of copies by a peer,
+	 * which adds a statement once and removes all its copies: if such a statement changed, no changes are returned
+	 * and the peers should receive all the statements instead (see {@link #reset(PolicySnapshot)}).
+	 * 
+	 * @param before
+	 * @param after
+	 * @param removedStores : the statements of the policy files in the first snapshot only
+	 * @param addedStores : the statements of the policy files in the second snapshot only
+	 * @param additions : the list the statements only contained in the second snapshot are appended to
+	 * @param removals : the list the statements only contained in the first snapshot are appended to
+	 * @return true if the changes were computed, false if they cannot be applied by peers
+	 */
+	public static boolean diff(final PolicySnapshot before, final PolicySnapshot after,
+			                   final List<PolicyStore> removedStores, final List<PolicyStore> addedStores,
+			                   final List<PolicyOverlay.Change> additions, final List<PolicyOverlay.Change> removals) {
+		
+		// copies of each statement in the changed files: [before, after]
+		final Map<PolicyOverlay.Change, int[]> counts = new LinkedHashMap<PolicyOverlay.Change, int[]>();
+		for (final PolicyStore store : removedStores) count(store, 0, counts);
+		for (final PolicyStore store : addedStores) count(store, 1, counts);
+		
+		// the runtime changes may apply to the statements of any file
+		final Set<PolicyOverlay.Change> addedBefore = new HashSet<PolicyOverlay.Change>(before.getOverlay().getAdditions());
+		final Set<PolicyOverlay.Change> removedBefore = new HashSet<PolicyOverlay.Change>(before.getOverlay().getRemovals());
+		final Set<PolicyOverlay.Change> addedAfter = new HashSet<PolicyOverlay.Change>(after.getOverlay().getAdditions());
+		final Set<PolicyOverlay.Change> removedAfter = new HashSet<PolicyOverlay.Change>(after.getOverlay().getRemovals());
+		for (final Set<PolicyOverlay.Change> changes : Arrays.asList(addedBefore, removedBefore, addedAfter, removedAfter)) {
+			for (final PolicyOverlay.Change change : changes) {
+				if (!counts.containsKey(change)) counts.put(change, new int[2]);
+			}
+		}
+		
+		for (final Map.Entry<PolicyOverlay.Change, int[]> entry : counts.entrySet()) {
+			
+			final PolicyOverlay.Change change = entry.getKey();
+			final int[] count = entry.getValue();
+			if (count[0]==count[1] && !addedBefore.contains(change) && !removedBefore.contains(change) 
+				                   && !addedAfter.contains(change) && !removedAfter.contains(change)) continue;
+			
+			// copies in all the policy files, including the unchanged ones
+			final int _after = PolicyOverlay.find(after.getIndex(), change).length;
+			final int _before = _after-count[1]+count[0];
+			
+			// copies in effect, after the runtime changes
+			final int effectiveBefore = (removedBefore.contains(change) ? 0 : _before) + (addedBefore.contains(change) ? 1 : 0);
+			final int effectiveAfter = (removedAfter.contains(change) ? 0 : _after) + (addedAfter.contains(change) ? 1 : 0);
+			if (effectiveBefore==effectiveAfter) continue;
+			if (effectiveBefore==0 && effectiveAfter==1) {
+				additions.add(change);
+			} else if (effectiveAfter==0) {
+				removals.add(change);
+			} else {
+				additions.clear();
+				removals.clear();
+				return false;
+			}
+			
+		}
+		return true;
+		
+	}
+	
+	/**
+	 * Method to count the copies of each statement of a store.
+	 * @param store
+	 * @param side : 0 for the statements before the changes, 1 after
+	 * @param counts
+	 */
+	private static void count(final PolicyStore store, final int side, final Map<PolicyOverlay.Change, int[]> counts) {
+		
+		for (int ordinal=0; ordinal<store.size(); ordinal++) {
+			for (int statement=store.getStart(ordinal); statement<store.getEnd(ordinal); statement++) {
+				final PolicyAttribute attribute = store.getAttribute(statement);
+				final PolicyOverlay.Change change = new PolicyOverlay.Change(store.getPattern(ordinal), store.getResource(ordinal), 
+                                                                             attribute.getType(), attribute.getValue(), store.getAction(statement));
+				int[] count = counts.get(change);
+				if (count==null) {
+					count = new int[2];
+					counts.put(change, count);
+				}
+				count[side]++;
+			}
+		}
+		
+	}
+	
+	/**
+	 * @return the number of changed statements retained
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * The changes that produced one generation.
+	 */
+	private static class Entry {
+		
+		private final long generation;
+		private final List<PolicyOverlay.Change> additions;
+		private final List<PolicyOverlay.Change> removals;
+		
+		private Entry(final long generation, final List<PolicyOverlay.Change> additions, final List<PolicyOverlay.Change> removals) {
+			this.generation = generation;
+			this.additions = additions;
+			this.removals = removals;
+		}
+		
+		private int size() {
+			return additions.size()+removals.size();
+		}
+		
+	}
+
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import esg.security.policy.service.api.PolicyAction;
+
+/**
+ * Immutable set of policy changes between two versions of the policies of a peer, as exchanged between peers
+ * (see {@link PolicyChangeLog} and {@link PolicyServiceRemoteImpl}).
+ * 
+ * A delta is either incremental, listing the statements added and removed since the requested version,
+ * or full, listing all the statements of the current version, which then replace any previous copy.
+ * Statements are compared as a set: a removal applies to all the equal statements.
+ * 
+ * Example XML document:
+ * 
+ * <policyChanges xmlns="http://www.esgf.org/security" version="lz3k2a9c-42" full="false">
+ *   <policy expression="\Acmip5.*" flags="0" resource="\Acmip5.*" attribute_type="CMIP5 Research" attribute_value="User" action="Read"/>
+ *   <policy expression="\Aobs4mips.*" flags="0" resource="\Aobs4mips.*" attribute_type="ANY" attribute_value="" action="Read" remove="true"/>
+ * </policyChanges>
+ * 
+ * The resource expressions are exchanged in compiled form (expression and java.util.regex flags), 
+ * together with the original resource text.
+ */
+public class PolicyDelta {
+	
+	private final static String NS = "http://www.esgf.org/security";
+	
+	private final static XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+	
+	private final String version;
+	private final boolean full;
+	private final List<PolicyOverlay.Change> additions;
+	private final List<PolicyOverlay.Change> removals;
+	
+	/**
+	 * @param version : the version of the policies after the changes
+	 * @param full : true if the additions are all the statements of the given version
+	 * @param additions
+	 * @param removals
+	 */
+	public PolicyDelta(final String version, final boolean full, final List<PolicyOverlay.Change> additions, final List<PolicyOverlay.Change> removals) {
+		this.version = version;
+		this.full = full;
+		this.additions = Collections.unmodifiableList(additions);
+		this.removals = Collections.unmodifiableList(removals);
+	}
+	
+	public String getVersion() {
+		return version;
+	}
+	
+	public boolean isFull() {
+		return full;
+	}
+	
+	public List<PolicyOverlay.Change> getAdditions() {
+		return additions;
+	}
+	
+	public List<PolicyOverlay.Change> getRemovals() {
+		return removals;
+	}
+	
+	/**
+	 * @return the number of added and removed statements
+	 */
+	public int size() {
+		return additions.size()+removals.size();
+	}
+	
+	/**
+	 * Method to write this delta as an XML document.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(final Writer out) throws IOException {
+		
+		try {
+			final XMLStreamWriter writer = FACTORY.createXMLStreamWriter(out);
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeCharacters("\n");
+			writer.writeStartElement("policyChanges");
+			writer.writeDefaultNamespace(NS);
+			writer.writeAttribute("version", version);
+			writer.writeAttribute("full", Boolean.toString(full));
+			for (final PolicyOverlay.Change change : additions) {
+				write(writer, change, false);
+			}
+			for (final PolicyOverlay.Change change : removals) {
+				write(writer, change, true);
+			}
+			writer.writeCharacters("\n");
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.flush();
+		} catch(XMLStreamException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		
+	}
+	
+	private static void write(final XMLStreamWriter writer, final PolicyOverlay.Change change, final boolean remove) throws XMLStreamException {
+		writer.writeCharacters("\n\t");
+		writer.writeEmptyElement("policy");
+		writer.writeAttribute("expression", change.getPattern().pattern());
+		writer.writeAttribute("flags", Integer.toString(change.getPattern().flags()));
+		writer.writeAttribute("resource", change.getResource());
+		writer.writeAttribute("attribute_type", change.getType());
+		writer.writeAttribute("attribute_value", change.getValue());
+		writer.writeAttribute("action", change.getAction().toString());
+		if (remove) writer.writeAttribute("remove", "true");
+	}
+	
+	/**
+	 * Method to read a delta from an XML document.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 * @throws XMLStreamException if the document or one of its statements is not valid
+	 */
+	public static PolicyDelta read(final InputStream in) throws IOException, XMLStreamException {
+		
+		String version = null;
+		boolean full = false;
+		final List<PolicyOverlay.Change> additions = new ArrayList<PolicyOverlay.Change>();
+		final List<PolicyOverlay.Change> removals = new ArrayList<PolicyOverlay.Change>();
+		
+		int depth = 0;
+		final XMLStreamReader reader = PolicyStreamParser.FACTORY.createXMLStreamReader(in);
+		try {
+			while (reader.hasNext()) {
+				final int event = reader.next();
+				if (event==XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (!NS.equals(reader.getNamespaceURI())) continue;
+					if (depth==1 && "policyChanges".equals(reader.getLocalName())) {
+						version = reader.getAttributeValue(null, "version");
+						full = "true".equals(reader.getAttributeValue(null, "full"));
+					} else if (depth==2 && "policy".equals(reader.getLocalName())) {
+						final PolicyOverlay.Change change = newChange(reader);
+						if ("true".equals(reader.getAttributeValue(null, "remove"))) {
+							removals.add(change);
+						} else {
+							additions.add(change);
+						}
+					}
+				} else if (event==XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		
+		if (version==null) throw new XMLStreamException("Missing policy changes version");
+		return new PolicyDelta(version, full, additions, removals);
+		
+	}
+	
+	private static PolicyOverlay.Change newChange(final XMLStreamReader reader) throws XMLStreamException {
+		final String expression = reader.getAttributeValue(null, "expression");
+		final String flags = reader.getAttributeValue(null, "flags");
+		final String action = reader.getAttributeValue(null, "action");
+		if (expression==null || action==null) throw new XMLStreamException("Missing policy statement expression or action", reader.getLocation());
+		try {
+			final Pattern pattern = Pattern.compile(expression, flags==null ? 0 : Integer.parseInt(flags));
+			return new PolicyOverlay.Change(pattern, 
+					                        reader.getAttributeValue(null, "resource"),
+					                        reader.getAttributeValue(null, "attribute_type"),
+					                        reader.getAttributeValue(null, "attribute_value"),
+					                        PolicyAction.valueOf(action));
+		} catch(PatternSyntaxException e) {
+			throw new XMLStreamException("Invalid resource expression: "+e.getMessage(), reader.getLocation());
+		} catch(IllegalArgumentException e) {
+			throw new XMLStreamException("Invalid policy statement: "+e.getMessage(), reader.getLocation());
+		}
+	}
+
+}
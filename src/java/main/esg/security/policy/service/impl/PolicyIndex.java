@@ -0,0 +1,839 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import esg.security.common.SAMLParameters;
+import esg.security.policy.service.api.PolicyAccess;
+import esg.security.policy.service.api.PolicyAction;
+import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyStatement;
+
+/**
+ * Compiled, read-only index of policy statements keyed by resource expression.
+ * 
+ * The index returns exactly the same attributes, in the same order, as a linear scan of all resource expressions
+ * in their original order, but only evaluates the expressions that can possibly match a given resource:
+ * <ul>
+ *  <li>Expressions that are plain literals are looked up in a hash table.
+ *  <li>Expressions that start with a literal prefix are stored in a prefix trie, and only evaluated when the resource starts with that prefix.
+ *  <li>The other expressions are grouped by the longest literal text they require, and only evaluated when the resource contains that text:
+ *      the texts contained in a resource are all found in a single pass over the resource, by an Aho-Corasick automaton.
+ *  <li>Expressions without any literal text are always evaluated.
+ * </ul>
+ * The access classification of every (expression, action) pair is computed when the index is built,
+ * so that free and authentication-only requests can be recognized without collecting any attribute.
+ * The index also maps each attribute to the statements that require it, so that all the statements
+ * entitled by a set of user attributes are found in time proportional to the number of attributes.
+ * With the {@link MatchingEngine#LINEAR} engines, the cost of a lookup is bounded by the length of the resource
+ * times the total size of the supported expressions.
+ * 
+ * The tables of the index can be saved as a {@link Layout}, and an index restored from a layout
+ * (see {@link PolicySnapshotFile}) only analyzes and compiles each expression the first time it is evaluated.
+ *
+ */
+public class PolicyIndex {
+	
+	final static int[] NONE = new int[0];
+	
+	private final static PolicyAction[] ACTIONS = PolicyAction.values();
+	private final static PolicyAccess[] ACCESS = PolicyAccess.values();
+	
+	// all resource expressions, in policy file order (analyzed when first evaluated, if the index was restored from a layout)
+	private final PolicyPattern[] patterns;
+	
+	// engine used to match the resource expressions
+	private final MatchingEngine engine;
+	
+	// the policy statements for each resource expression
+	private final PolicyStore store;
+	
+	// access classification (ordinal of PolicyAccess) of each expression and action, at [ordinal*ACTIONS.length+action]
+	private final byte[] access;
+	
+	// literal expressions: literal text > expression ordinals
+	private final Map<String, int[]> exact = new HashMap<String, int[]>();
+	
+	// expressions with a literal prefix
+	private final PrefixTrie prefixes = new PrefixTrie();
+	
+	// expressions with a required literal text, but no prefix: literal text > expression ordinals
+	private final String[] literals;
+	private final int[][] literalOrdinals;
+	private final LiteralMatcher literalMatcher;
+	
+	// expressions that must always be evaluated
+	private final int[] unfiltered;
+	
+	// number of statements whose expression is matched without the regular expression engine
+	private final int fastPathStatements;
+	
+	// number of expressions matched in linear time
+	private final int linearPatterns;
+	
+	// ordinals of the expressions that the linear-time engine was requested for, but does not support
+	private final int[] unsupported;
+	
+	// attribute > positions of the statements that require it
+	private final Map<PolicyAttribute, int[]> entitlements = new HashMap<PolicyAttribute, int[]>();
+	
+	// positions of the statements open to all users (free or authentication only)
+	private final int[] openStatements;
+	
+	// expression text and flags > expression ordinals, built on first use
+	private volatile Map<String, int[]> ordinals;
+	
+	// optional instrumentation of the expression evaluations, and its counters by ordinal (resolved when first used)
+	private volatile PolicyProfiler profiler;
+	private volatile PolicyProfiler.Counters[] counters;
+	
+	/**
+	 * Constructor compiles the index from the given ordered map of policy statements.
+	 * @param policies
+	 */
+	public PolicyIndex(final LinkedHashMap<Pattern, List<PolicyStatement>> policies) {
+		this(policies, MatchingEngine.REGEX);
+	}
+	
+	/**
+	 * Constructor compiles the index from the given ordered map of policy statements,
+	 * matching the expressions with the given engine.
+	 * @param policies
+	 * @param engine
+	 * @throws IllegalArgumentException if the engine is {@link MatchingEngine#LINEAR_ONLY} and some expression is not supported
+	 */
+	public PolicyIndex(final LinkedHashMap<Pattern, List<PolicyStatement>> policies, final MatchingEngine engine) {
+		this(new PolicyStore(policies), engine);
+	}
+	
+	/**
+	 * Constructor compiles the index from the given store of policy statements,
+	 * matching the expressions with the given engine.
+	 * @param store
+	 * @param engine
+	 * @throws IllegalArgumentException if the engine is {@link MatchingEngine#LINEAR_ONLY} and some expression is not supported
+	 */
+	public PolicyIndex(final PolicyStore store, final MatchingEngine engine) {
+		
+		this.store = store;
+		this.engine = engine;
+		patterns = new PolicyPattern[store.size()];
+		access = new byte[patterns.length*ACTIONS.length];
+		
+		final Map<String, List<Integer>> _exact = new HashMap<String, List<Integer>>();
+		final Map<String, List<Integer>> _prefixes = new HashMap<String, List<Integer>>();
+		final Map<String, List<Integer>> _literals = new LinkedHashMap<String, List<Integer>>();
+		final List<Integer> _unfiltered = new ArrayList<Integer>();
+		final List<Integer> _unsupported = new ArrayList<Integer>();
+		
+		int _fastPathStatements = 0;
+		int _linearPatterns = 0;
+		for (int ordinal=0; ordinal<patterns.length; ordinal++) {
+			
+			final PolicyPattern pattern = new PolicyPattern(store.getPattern(ordinal), engine!=MatchingEngine.REGEX);
+			patterns[ordinal] = pattern;
+			if (pattern.isFastPath()) _fastPathStatements += store.getEnd(ordinal)-store.getStart(ordinal);
+			if (pattern.isLinear()) _linearPatterns++;
+			if (pattern.getUnsupportedReason()!=null) {
+				if (engine==MatchingEngine.LINEAR_ONLY) throw new IllegalArgumentException(pattern.getUnsupportedReason());
+				_unsupported.add(ordinal);
+			}
+			
+			for (int statement=store.getStart(ordinal); statement<store.getEnd(ordinal); statement++) {
+				final int i = ordinal*ACTIONS.length+store.getAction(statement).ordinal();
+				access[i] = (byte)Math.max(access[i], classify(store.getAttribute(statement)).ordinal());
+			}
+			
+			if (pattern.isExact()) {
+				group(_exact, pattern.getExact(), ordinal);
+			} else if (pattern.getPrefix().length()>0) {
+				group(_prefixes, pattern.getPrefix(), ordinal);
+			} else if (pattern.getRequiredLiteral().length()>0) {
+				group(_literals, pattern.getRequiredLiteral(), ordinal);
+			} else {
+				_unfiltered.add(ordinal);
+			}
+			
+		}
+		
+		for (final Map.Entry<String, List<Integer>> entry : _exact.entrySet()) {
+			exact.put(entry.getKey(), toArray(entry.getValue()));
+		}
+		for (final Map.Entry<String, List<Integer>> entry : _prefixes.entrySet()) {
+			prefixes.add(entry.getKey(), toArray(entry.getValue()));
+		}
+		literals = _literals.keySet().toArray(new String[_literals.size()]);
+		literalOrdinals = new int[literals.length][];
+		for (int i=0; i<literals.length; i++) {
+			literalOrdinals[i] = toArray(_literals.get(literals[i]));
+		}
+		literalMatcher = new LiteralMatcher(literals);
+		unfiltered = toArray(_unfiltered);
+		unsupported = toArray(_unsupported);
+		openStatements = indexEntitlements();
+		fastPathStatements = _fastPathStatements;
+		linearPatterns = _linearPatterns;
+		
+	}
+	
+	/**
+	 * Constructor restores an index of the given store from its saved tables, without analyzing or compiling any expression:
+	 * each expression is analyzed and compiled the first time it is evaluated.
+	 * @param store
+	 * @param layout : the tables of an index of the same store (see {@link #getLayout()})
+	 * @throws IllegalArgumentException if the layout does not fit the store
+	 */
+	public PolicyIndex(final PolicyStore store, final Layout layout) {
+		
+		if (layout.access.length!=store.size()*ACTIONS.length) throw new IllegalArgumentException("Index layout does not match the policy statements");
+		this.store = store;
+		this.engine = layout.engine;
+		patterns = new PolicyPattern[store.size()];
+		access = layout.access;
+		
+		exact.putAll(layout.exact);
+		for (final Map.Entry<String, int[]> entry : layout.prefixes.entrySet()) {
+			prefixes.add(entry.getKey(), entry.getValue());
+		}
+		literals = layout.literals;
+		literalOrdinals = layout.literalOrdinals;
+		literalMatcher = new LiteralMatcher(literals);
+		unfiltered = layout.unfiltered;
+		unsupported = layout.unsupported;
+		openStatements = indexEntitlements();
+		fastPathStatements = layout.fastPathStatements;
+		linearPatterns = layout.linearPatterns;
+		
+	}
+	
+	/**
+	 * Method to map each attribute to the positions of the statements that require it.
+	 * @return the positions of the statements open to all users
+	 */
+	private int[] indexEntitlements() {
+		
+		final Map<PolicyAttribute, IntBuffer> _entitlements = new HashMap<PolicyAttribute, IntBuffer>();
+		final IntBuffer _openStatements = new IntBuffer(NONE);
+		for (int statement=0; statement<store.getNumberOfStatements(); statement++) {
+			final PolicyAttribute attribute = store.getAttribute(statement);
+			if (classify(attribute)==PolicyAccess.RESTRICTED) {
+				IntBuffer positions = _entitlements.get(attribute);
+				if (positions==null) {
+					positions = new IntBuffer(NONE);
+					_entitlements.put(attribute, positions);
+				}
+				positions.add(statement);
+			} else {
+				_openStatements.add(statement);
+			}
+		}
+		for (final Map.Entry<PolicyAttribute, IntBuffer> entry : _entitlements.entrySet()) {
+			entitlements.put(entry.getKey(), entry.getValue().toArray());
+		}
+		return _openStatements.toArray();
+		
+	}
+	
+	/**
+	 * @return the tables of this index, to restore it without analyzing the expressions
+	 */
+	public Layout getLayout() {
+		final Map<String, int[]> _prefixes = new HashMap<String, int[]>();
+		prefixes.entries(_prefixes);
+		return new Layout(engine, access, exact, _prefixes, literals, literalOrdinals, unfiltered, unsupported, 
+				          fastPathStatements, linearPatterns);
+	}
+	
+	/**
+	 * @param ordinal
+	 * @return the analyzed expression, analyzed and compiled now if it was not evaluated yet
+	 */
+	private PolicyPattern pattern(final int ordinal) {
+		PolicyPattern pattern = patterns[ordinal];
+		if (pattern==null) {
+			// all the fields of the pattern are final, so it can be shared without synchronization
+			pattern = new PolicyPattern(store.getPattern(ordinal), engine!=MatchingEngine.REGEX);
+			patterns[ordinal] = pattern;
+		}
+		return pattern;
+	}
+	
+	/**
+	 * Method to retrieve the attributes that entitle the given action on the given resource.
+	 * The action is compared disregarding case.
+	 * 
+	 * @param resource
+	 * @param action
+	 * @return
+	 */
+	public List<PolicyAttribute> getRequiredAttributes(final String resource, final String action) {
+		
+		final List<PolicyAttribute> attributes = new ArrayList<PolicyAttribute>();
+		
+		PolicyAction _action = null;
+		for (final PolicyAction value : PolicyAction.values()) {
+			if (value.toString().equalsIgnoreCase(action)) _action = value;
+		}
+		if (_action==null) return attributes;
+		
+		collect(resource, _action, NONE, attributes);
+		return attributes;
+		
+	}
+	
+	/**
+	 * Method to collect the attributes that entitle the given action on the given resource,
+	 * skipping the given statements.
+	 * 
+	 * @param resource
+	 * @param action
+	 * @param removed : sorted positions of the statements to skip in the {@link PolicyStore} of this index
+	 * @param attributes : the list the attributes are added to
+	 */
+	public void collect(final String resource, final PolicyAction action, final int[] removed, final List<PolicyAttribute> attributes) {
+		
+		final PolicyProfiler.Counters[] _counters = getCounters();
+		final int[] candidates = getCandidates(resource);
+		for (final int ordinal : candidates) {
+			if (matches(ordinal, resource, _counters)) {
+				store.collect(ordinal, action, removed, attributes);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Method to classify the access to the given resource for the given action.
+	 * The result is the same as classifying the attributes returned by {@link #getRequiredAttributes(String, String)},
+	 * but no attribute is collected, and the expressions that cannot change the result are not evaluated.
+	 * 
+	 * @param resource
+	 * @param action
+	 * @return
+	 */
+	public PolicyAccess getAccess(final String resource, final PolicyAction action) {
+		return getAccess(resource, action, NONE);
+	}
+	
+	/**
+	 * Method to classify the access to the given resource for the given action, skipping the given statements.
+	 * The expressions that have some skipped statement are classified again from their remaining statements.
+	 * 
+	 * @param resource
+	 * @param action
+	 * @param removed : sorted positions of the statements to skip in the {@link PolicyStore} of this index
+	 * @return
+	 */
+	public PolicyAccess getAccess(final String resource, final PolicyAction action, final int[] removed) {
+		
+		int result = PolicyAccess.NONE.ordinal();
+		final int free = PolicyAccess.FREE.ordinal();
+		
+		final PolicyProfiler.Counters[] _counters = getCounters();
+		final int[] candidates = getCandidates(resource);
+		for (int i=0; i<candidates.length && result<free; i++) {
+			final int ordinal = candidates[i];
+			int _access = access[ordinal*ACTIONS.length+action.ordinal()];
+			if (_access>result && removed.length>0 && PolicyStore.contains(removed, store.getStart(ordinal), store.getEnd(ordinal))) {
+				_access = PolicyAccess.NONE.ordinal();
+				for (int statement=store.getStart(ordinal); statement<store.getEnd(ordinal); statement++) {
+					if (store.getAction(statement)==action && Arrays.binarySearch(removed, statement)<0) {
+						_access = Math.max(_access, classify(store.getAttribute(statement)).ordinal());
+					}
+				}
+			}
+			if (_access>result && matches(ordinal, resource, _counters)) result = _access;
+		}
+		
+		return ACCESS[result];
+		
+	}
+	
+	/**
+	 * @param attribute
+	 * @return the positions of the statements that require the given attribute, in policy file order
+	 */
+	public int[] getEntitlements(final PolicyAttribute attribute) {
+		final int[] positions = entitlements.get(attribute);
+		return positions==null ? NONE : positions;
+	}
+	
+	/**
+	 * @return the positions of the statements open to all users (free or authentication only), in policy file order
+	 */
+	public int[] getOpenStatements() {
+		return openStatements;
+	}
+	
+	/**
+	 * Method to look up the ordinals of the given resource expression, compared by text and flags.
+	 * The lookup table is built the first time this method is called.
+	 * 
+	 * @param pattern
+	 * @return the ordinals of the expression, in policy file order (the same expression may appear in several files)
+	 */
+	public int[] getOrdinals(final Pattern pattern) {
+		
+		Map<String, int[]> _ordinals = ordinals;
+		if (_ordinals==null) {
+			final Map<String, List<Integer>> groups = new HashMap<String, List<Integer>>();
+			for (int ordinal=0; ordinal<patterns.length; ordinal++) {
+				group(groups, key(store, ordinal), ordinal);
+			}
+			_ordinals = new HashMap<String, int[]>();
+			for (final Map.Entry<String, List<Integer>> entry : groups.entrySet()) {
+				_ordinals.put(entry.getKey(), toArray(entry.getValue()));
+			}
+			ordinals = _ordinals;
+		}
+		
+		final int[] _pattern = _ordinals.get(key(pattern));
+		return _pattern==null ? NONE : _pattern;
+		
+	}
+	
+	/**
+	 * Method to evaluate a single expression, counting the evaluation if profiled.
+	 * @param ordinal
+	 * @param resource
+	 * @param _counters : the counters of the expressions, or null if not profiled
+	 * @return
+	 */
+	private boolean matches(final int ordinal, final String resource, final PolicyProfiler.Counters[] _counters) {
+		if (_counters==null) return pattern(ordinal).matches(resource);
+		final long start = System.nanoTime();
+		final boolean matches = pattern(ordinal).matches(resource);
+		_counters[ordinal].record(matches, System.nanoTime()-start);
+		return matches;
+	}
+	
+	/**
+	 * Method to count the evaluations of the expressions of this index with the given profiler, while it is enabled.
+	 * @param _profiler
+	 */
+	void setProfiler(final PolicyProfiler _profiler) {
+		if (profiler==_profiler) return;
+		counters = null;
+		profiler = _profiler;
+	}
+	
+	/**
+	 * @return the counters of the expressions, or null if not profiled
+	 */
+	private PolicyProfiler.Counters[] getCounters() {
+		final PolicyProfiler _profiler = profiler;
+		if (_profiler==null || !_profiler.isEnabled()) return null;
+		PolicyProfiler.Counters[] _counters = counters;
+		if (_counters==null) {
+			_counters = _profiler.getCounters(this);
+			counters = _counters;
+		}
+		return _counters;
+	}
+	
+	static String key(final Pattern pattern) {
+		return pattern.flags()+":"+pattern.pattern();
+	}
+	
+	/**
+	 * @return the same key as {@link #key(Pattern)} for an expression of the store, without compiling it
+	 */
+	static String key(final PolicyStore store, final int ordinal) {
+		return store.getFlags(ordinal)+":"+store.getExpression(ordinal);
+	}
+	
+	/**
+	 * Method to classify the access entitled by a single policy attribute.
+	 * @param attribute
+	 * @return
+	 */
+	static PolicyAccess classify(final PolicyAttribute attribute) {
+		if (attribute.getType().equalsIgnoreCase(SAMLParameters.FREE_RESOURCE_ATTRIBUTE_TYPE)) return PolicyAccess.FREE;
+		if (attribute.getType().equalsIgnoreCase(SAMLParameters.AUTH_ONLY_RESOURCE_ATTRIBUTE_TYPE)) return PolicyAccess.AUTH_ONLY;
+		return PolicyAccess.RESTRICTED;
+	}
+	
+	/**
+	 * Method to select the ordinals of the expressions that may match the given resource,
+	 * sorted in policy file order.
+	 * 
+	 * @param resource
+	 * @return
+	 */
+	int[] getCandidates(final String resource) {
+		
+		final IntBuffer candidates = new IntBuffer(unfiltered);
+		
+		final int[] _exact = exact.get(resource);
+		if (_exact!=null) candidates.addAll(_exact);
+		
+		prefixes.collect(resource, candidates);
+		
+		if (literals.length>0) {
+			// a text may occur several times in the resource
+			final IntBuffer groups = new IntBuffer(NONE);
+			literalMatcher.collect(resource, groups);
+			final int[] _groups = groups.toSortedArray();
+			for (int i=0; i<_groups.length; i++) {
+				if (i==0 || _groups[i]!=_groups[i-1]) candidates.addAll(literalOrdinals[_groups[i]]);
+			}
+		}
+		
+		return candidates.toSortedArray();
+		
+	}
+	
+	/**
+	 * @return the number of statements whose resource expression is matched by a string comparison or a wildcard matcher,
+	 *         rather than by the regular expression engine
+	 */
+	public int getNumberOfFastPathStatements() {
+		return fastPathStatements;
+	}
+	
+	/**
+	 * @return the number of resource expressions matched in time proportional to the length of the resource
+	 */
+	public int getNumberOfLinearPatterns() {
+		return linearPatterns;
+	}
+	
+	/**
+	 * @return the expressions that the linear-time engine was requested for, but does not support
+	 *         (they are matched with java.util.regex)
+	 */
+	public List<PolicyPattern> getUnsupportedPatterns() {
+		final List<PolicyPattern> _unsupported = new ArrayList<PolicyPattern>(unsupported.length);
+		for (final int ordinal : unsupported) _unsupported.add(pattern(ordinal));
+		return Collections.unmodifiableList(_unsupported);
+	}
+	
+	public MatchingEngine getEngine() {
+		return engine;
+	}
+	
+	/**
+	 * @return the policy statements of the indexed expressions
+	 */
+	public PolicyStore getStore() {
+		return store;
+	}
+	
+	/**
+	 * @return the number of resource expressions in this index
+	 */
+	public int size() {
+		return patterns.length;
+	}
+	
+	/**
+	 * Method to describe how the resource expressions have been indexed, for logging purposes.
+	 * @return
+	 */
+	public String getStatistics() {
+		
+		int _exact = 0;
+		for (final int[] ordinals : exact.values()) _exact += ordinals.length;
+		int _literal = 0;
+		for (final int[] ordinals : literalOrdinals) _literal += ordinals.length;
+		
+		return "Resource expressions="+patterns.length
+		     + " exact="+_exact
+		     + " prefix="+prefixes.size()
+		     + " literal="+_literal+" (in "+literals.length+" groups)"
+		     + " unfiltered="+unfiltered.length
+		     + " fast path statements="+fastPathStatements
+		     + " linear="+linearPatterns;
+		
+	}
+	
+	private static void group(final Map<String, List<Integer>> groups, final String key, final int ordinal) {
+		if (!groups.containsKey(key)) {
+			groups.put(key, new ArrayList<Integer>());
+		}
+		groups.get(key).add(ordinal);
+	}
+	
+	private static int[] toArray(final List<Integer> values) {
+		if (values.isEmpty()) return NONE;
+		final int[] _values = new int[values.size()];
+		for (int i=0; i<_values.length; i++) _values[i] = values.get(i);
+		return _values;
+	}
+	
+	/**
+	 * The tables of an index, from which the index of the same store can be restored without analyzing the expressions.
+	 * The expression ordinals refer to the {@link PolicyStore} of the index.
+	 */
+	public static class Layout {
+		
+		final MatchingEngine engine;
+		final byte[] access;
+		final Map<String, int[]> exact;
+		final Map<String, int[]> prefixes;
+		final String[] literals;
+		final int[][] literalOrdinals;
+		final int[] unfiltered;
+		final int[] unsupported;
+		final int fastPathStatements;
+		final int linearPatterns;
+		
+		Layout(final MatchingEngine engine, final byte[] access, final Map<String, int[]> exact, final Map<String, int[]> prefixes, 
+			   final String[] literals, final int[][] literalOrdinals, final int[] unfiltered, final int[] unsupported,
+			   final int fastPathStatements, final int linearPatterns) {
+			this.engine = engine;
+			this.access = access;
+			this.exact = exact;
+			this.prefixes = prefixes;
+			this.literals = literals;
+			this.literalOrdinals = literalOrdinals;
+			this.unfiltered = unfiltered;
+			this.unsupported = unsupported;
+			this.fastPathStatements = fastPathStatements;
+			this.linearPatterns = linearPatterns;
+		}
+		
+	}
+	
+	/**
+	 * Minimal growable array of primitive ints.
+	 */
+	static class IntBuffer {
+		
+		private int[] values;
+		private int size;
+		
+		IntBuffer(final int[] initial) {
+			values = Arrays.copyOf(initial, Math.max(initial.length, 8));
+			size = initial.length;
+		}
+		
+		void addAll(final int[] _values) {
+			if (size+_values.length>values.length) {
+				values = Arrays.copyOf(values, Math.max(values.length*2, size+_values.length));
+			}
+			System.arraycopy(_values, 0, values, size, _values.length);
+			size += _values.length;
+		}
+		
+		void add(final int value) {
+			if (size==values.length) values = Arrays.copyOf(values, values.length*2);
+			values[size++] = value;
+		}
+		
+		int[] toArray() {
+			return size==0 ? NONE : Arrays.copyOf(values, size);
+		}
+		
+		int[] toSortedArray() {
+			final int[] _values = Arrays.copyOf(values, size);
+			Arrays.sort(_values);
+			return _values;
+		}
+		
+	}
+	
+	/**
+	 * Character trie storing the expression ordinals at the node of their literal prefix.
+	 * Children are kept in sorted arrays to limit the memory footprint of large policy sets.
+	 */
+	static class PrefixTrie {
+		
+		private final Node root = new Node();
+		private int size = 0;
+		
+		void add(final String prefix, final int[] ordinals) {
+			Node node = root;
+			for (int i=0; i<prefix.length(); i++) {
+				node = node.getOrCreate(prefix.charAt(i));
+			}
+			node.ordinals = ordinals;
+			size += ordinals.length;
+		}
+		
+		/**
+		 * Method to collect the ordinals of all prefixes of the given resource.
+		 */
+		void collect(final String resource, final IntBuffer ordinals) {
+			Node node = root;
+			for (int i=0; i<resource.length() && node!=null; i++) {
+				node = node.get(resource.charAt(i));
+				if (node!=null && node.ordinals.length>0) ordinals.addAll(node.ordinals);
+			}
+		}
+		
+		int size() {
+			return size;
+		}
+		
+		/**
+		 * Method to list the ordinals of each prefix.
+		 */
+		void entries(final Map<String, int[]> entries) {
+			entries(root, new StringBuilder(), entries);
+		}
+		
+		private static void entries(final Node node, final StringBuilder prefix, final Map<String, int[]> entries) {
+			if (node.ordinals.length>0) entries.put(prefix.toString(), node.ordinals);
+			for (int i=0; i<node.keys.length; i++) {
+				prefix.append(node.keys[i]);
+				entries(node.children[i], prefix, entries);
+				prefix.setLength(prefix.length()-1);
+			}
+		}
+		
+		private static class Node {
+			
+			char[] keys = new char[0];
+			Node[] children = new Node[0];
+			int[] ordinals = NONE;
+			
+			Node get(final char c) {
+				final int i = Arrays.binarySearch(keys, c);
+				return i>=0 ? children[i] : null;
+			}
+			
+			Node getOrCreate(final char c) {
+				int i = Arrays.binarySearch(keys, c);
+				if (i>=0) return children[i];
+				i = -(i+1);
+				final char[] _keys = new char[keys.length+1];
+				final Node[] _children = new Node[children.length+1];
+				System.arraycopy(keys, 0, _keys, 0, i);
+				System.arraycopy(children, 0, _children, 0, i);
+				System.arraycopy(keys, i, _keys, i+1, keys.length-i);
+				System.arraycopy(children, i, _children, i+1, children.length-i);
+				_keys[i] = c;
+				_children[i] = new Node();
+				keys = _keys;
+				children = _children;
+				return children[i];
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Aho-Corasick automaton over the literal texts required by the expressions,
+	 * which finds all the texts contained in a resource in time proportional to the length of the resource
+	 * plus the number of occurrences, however many texts there are.
+	 */
+	static class LiteralMatcher {
+		
+		private final Node root = new Node();
+		
+		/**
+		 * @param literals : the texts, each reported by its position in the array
+		 */
+		LiteralMatcher(final String[] literals) {
+			
+			for (int i=0; i<literals.length; i++) {
+				Node node = root;
+				for (int j=0; j<literals[i].length(); j++) {
+					node = node.getOrCreate(literals[i].charAt(j));
+				}
+				node.groups = new int[] { i };
+			}
+			
+			// breadth-first, the failure link of each node points to the node of the longest proper suffix of its text,
+			// and each node also reports the texts of the nodes along its failure links
+			final List<Node> queue = new ArrayList<Node>();
+			root.fail = root;
+			for (final Node child : root.children) {
+				child.fail = root;
+				queue.add(child);
+			}
+			for (int q=0; q<queue.size(); q++) {
+				final Node node = queue.get(q);
+				for (int i=0; i<node.keys.length; i++) {
+					final Node child = node.children[i];
+					child.fail = node.fail.next(node.keys[i], root);
+					if (child.fail.groups.length>0) {
+						final int[] groups = Arrays.copyOf(child.groups, child.groups.length+child.fail.groups.length);
+						System.arraycopy(child.fail.groups, 0, groups, child.groups.length, child.fail.groups.length);
+						child.groups = groups;
+					}
+					queue.add(child);
+				}
+			}
+			
+		}
+		
+		/**
+		 * Method to collect the positions of the texts contained in the given resource, once for each occurrence.
+		 */
+		void collect(final String resource, final IntBuffer groups) {
+			Node node = root;
+			for (int i=0; i<resource.length(); i++) {
+				node = node.next(resource.charAt(i), root);
+				if (node.groups.length>0) groups.addAll(node.groups);
+			}
+		}
+		
+		private static class Node {
+			
+			char[] keys = new char[0];
+			Node[] children = new Node[0];
+			int[] groups = NONE;
+			Node fail;
+			
+			/**
+			 * @return the node reached from this node by the given character, following the failure links as needed
+			 */
+			Node next(final char c, final Node root) {
+				Node node = this;
+				while (true) {
+					final int i = Arrays.binarySearch(node.keys, c);
+					if (i>=0) return node.children[i];
+					if (node==root) return root;
+					node = node.fail;
+				}
+			}
+			
+			Node getOrCreate(final char c) {
+				int i = Arrays.binarySearch(keys, c);
+				if (i>=0) return children[i];
+				i = -(i+1);
+				final char[] _keys = new char[keys.length+1];
+				final Node[] _children = new Node[children.length+1];
+				System.arraycopy(keys, 0, _keys, 0, i);
+				System.arraycopy(children, 0, _children, 0, i);
+				System.arraycopy(keys, i, _keys, i+1, keys.length-i);
+				System.arraycopy(children, i, _children, i+1, children.length-i);
+				_keys[i] = c;
+				_children[i] = new Node();
+				keys = _keys;
+				children = _children;
+				return children[i];
+			}
+			
+		}
+		
+	}
+
+}
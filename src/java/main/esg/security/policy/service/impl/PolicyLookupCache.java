@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import esg.security.policy.service.api.PolicyAction;
+import esg.security.policy.service.api.PolicyAttribute;
+
+/**
+ * Bounded, thread-safe cache of policy lookup results keyed by (resource, action).
+ * The services normalize the resource before both the lookup and the evaluation of the policies
+ * (see {@link PolicyServiceLocalXmlImpl#toResource(String)}), so that the equivalent forms of a resource share one entry.
+ * 
+ * The cache is split into independently locked LRU segments to limit contention between request threads.
+ * Every entry is tagged with the generation of the {@link PolicySnapshot} it was computed from,
+ * and is only returned to callers that look up the same generation: entries from previous snapshots are ignored,
+ * and are discarded altogether by {@link #invalidate()}.
+ * Cached lists are unmodifiable, since they are shared between callers.
+ *
+ */
+public class PolicyLookupCache {
+	
+	private final static int SEGMENTS = 16;
+	
+	private final Segment[] segments;
+	
+	private final int maxSize;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	
+	/**
+	 * @param maxSize : maximum number of cached (resource, action) entries, 0 disables the cache
+	 */
+	public PolicyLookupCache(final int maxSize) {
+		this.maxSize = maxSize;
+		segments = new Segment[SEGMENTS];
+		for (int i=0; i<SEGMENTS; i++) {
+			segments[i] = new Segment(Math.max(1, (maxSize+SEGMENTS-1)/SEGMENTS));
+		}
+	}
+	
+	/**
+	 * Method to discard all cached entries, after new policies have been installed.
+	 */
+	public void invalidate() {
+		for (final Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+	
+	/**
+	 * @return the cached attributes for the given resource and action, or null if not cached for the given generation
+	 */
+	public List<PolicyAttribute> get(final String resource, final PolicyAction action, final long generation) {
+		
+		if (maxSize<=0) return null;
+		
+		final Key key = new Key(resource, action);
+		final Segment segment = segmentFor(key);
+		final Entry entry;
+		synchronized (segment) {
+			entry = segment.get(key);
+		}
+		
+		if (entry!=null && entry.generation==generation) {
+			hits.increment();
+			return entry.attributes;
+		} else {
+			misses.increment();
+			return null;
+		}
+		
+	}
+	
+	/**
+	 * Method to cache the attributes computed from the policies of the given generation.
+	 * @return the unmodifiable cached list
+	 */
+	public List<PolicyAttribute> put(final String resource, final PolicyAction action, final List<PolicyAttribute> attributes, final long generation) {
+		
+		final List<PolicyAttribute> _attributes = Collections.unmodifiableList(attributes);
+		if (maxSize<=0) return _attributes;
+		
+		final Key key = new Key(resource, action);
+		final Segment segment = segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, new Entry(_attributes, generation));
+		}
+		return _attributes;
+		
+	}
+	
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * @return the current number of cached entries
+	 */
+	public int size() {
+		int size = 0;
+		for (final Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+	
+	@Override
+	public String toString() {
+		return "Policy lookup cache: size="+size()+" max size="+maxSize+" hits="+getHits()+" misses="+getMisses();
+	}
+	
+	private Segment segmentFor(final Key key) {
+		final int h = key.hashCode();
+		return segments[(h ^ (h>>>16)) & (SEGMENTS-1)];
+	}
+	
+	private static class Key {
+		
+		private final String resource;
+		private final PolicyAction action;
+		private final int hash;
+		
+		Key(final String resource, final PolicyAction action) {
+			this.resource = resource;
+			this.action = action;
+			this.hash = 31*resource.hashCode() + action.ordinal();
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof Key)) return false;
+			final Key castOther = (Key)other;
+			return action==castOther.action && resource.equals(castOther.resource);
+		}
+		
+	}
+	
+	private static class Entry {
+		
+		final List<PolicyAttribute> attributes;
+		final long generation;
+		
+		Entry(final List<PolicyAttribute> attributes, final long generation) {
+			this.attributes = attributes;
+			this.generation = generation;
+		}
+		
+	}
+	
+	/**
+	 * Access-ordered map that evicts its least recently used entry when full.
+	 */
+	private static class Segment extends LinkedHashMap<Key, Entry> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int capacity;
+		
+		Segment(final int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+			return size()>capacity;
+		}
+		
+	}
+
+}
@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import esg.security.policy.service.api.PolicyAction;
+
+/**
+ * Immutable set of policy changes made at runtime, on top of the statements parsed from the policy files.
+ * 
+ * The added statements are compiled into their own small {@link PolicyIndex}, and follow the statements of the policy files.
+ * The removed statements of the policy files are resolved to their positions in the {@link PolicyStore} of the files,
+ * and skipped by the lookups. Every change creates a new overlay at a cost proportional to the number of changes,
+ * while the index of the policy files is shared, not rebuilt.
+ *
+ */
+public class PolicyOverlay {
+	
+	// statements added to the policy files, in order
+	private final List<Change> additions;
+	
+	// statements removed from the policy files
+	private final List<Change> removals;
+	
+	// compiled added statements
+	private final PolicyIndex index;
+	
+	// sorted positions of the removed statements in the store of the policy files
+	private final int[] removed;
+	
+	/**
+	 * Empty overlay.
+	 */
+	public PolicyOverlay() {
+		this(new ArrayList<Change>(), new ArrayList<Change>(), null, MatchingEngine.REGEX);
+	}
+	
+	/**
+	 * Constructor compiles the added statements, and resolves the removed statements in the given index of the policy files.
+	 * 
+	 * @param additions
+	 * @param removals
+	 * @param base : the index of the policy files, or null if none is loaded
+	 * @param engine : the engine used to match the added expressions
+	 */
+	public PolicyOverlay(final List<Change> additions, final List<Change> removals, final PolicyIndex base, final MatchingEngine engine) {
+		
+		this.additions = Collections.unmodifiableList(additions);
+		this.removals = Collections.unmodifiableList(removals);
+		
+		final PolicyStore.Builder builder = new PolicyStore.Builder();
+		for (final Change addition : additions) {
+			builder.addPattern(addition.pattern, addition.resource);
+			builder.addStatement(addition.type, addition.value, addition.action);
+		}
+		// the expressions were validated when they were added
+		this.index = new PolicyIndex(builder.build(), engine==MatchingEngine.LINEAR_ONLY ? MatchingEngine.LINEAR : engine);
+		
+		int[] _removed = PolicyIndex.NONE;
+		if (base!=null) {
+			for (final Change removal : removals) {
+				final int[] positions = find(base, removal);
+				if (positions.length>0) {
+					_removed = Arrays.copyOf(_removed, _removed.length+positions.length);
+					System.arraycopy(positions, 0, _removed, _removed.length-positions.length, positions.length);
+				}
+			}
+			Arrays.sort(_removed);
+		}
+		this.removed = _removed;
+		
+	}
+	
+	/**
+	 * Method to add a statement.
+	 * A statement of the policy files that was previously removed is restored in place.
+	 * 
+	 * @param change
+	 * @param base : the index of the policy files
+	 * @param engine
+	 * @return the new overlay, or this overlay if the statement is already in effect
+	 */
+	public PolicyOverlay add(final Change change, final PolicyIndex base, final MatchingEngine engine) {
+		return apply(Collections.singletonList(change), Collections.<Change>emptyList(), base, engine);
+	}
+	
+	/**
+	 * Method to remove a statement, whether it was added at runtime or is contained in the policy files.
+	 * 
+	 * @param change
+	 * @param base : the index of the policy files
+	 * @param engine
+	 * @return the new overlay, or this overlay if the statement is not in effect
+	 */
+	public PolicyOverlay remove(final Change change, final PolicyIndex base, final MatchingEngine engine) {
+		return apply(Collections.<Change>emptyList(), Collections.singletonList(change), base, engine);
+	}
+	
+	/**
+	 * Method to remove and then add several statements at once, creating a single new overlay.
+	 * 
+	 * @param _additions : the statements to add
+	 * @param _removals : the statements to remove
+	 * @param base : the index of the policy files
+	 * @param engine
+	 * @return the new overlay, or this overlay if none of the statements changed
+	 */
+	public PolicyOverlay apply(final List<Change> _additions, final List<Change> _removals, final PolicyIndex base, final MatchingEngine engine) {
+		
+		final Set<Change> added = new LinkedHashSet<Change>(additions);
+		final Set<Change> removed = new LinkedHashSet<Change>(removals);
+		boolean changed = false;
+		
+		for (final Change change : _removals) {
+			if (added.remove(change)) changed = true;
+			if (!removed.contains(change) && find(base, change).length>0) {
+				removed.add(change);
+				changed = true;
+			}
+		}
+		
+		for (final Change change : _additions) {
+			if (removed.remove(change)) {
+				// restored in place, unless it was removed from a previous version of the policy files
+				if (find(base, change).length==0) added.add(change);
+				changed = true;
+			} else if (!added.contains(change) && find(base, change).length==0) {
+				added.add(change);
+				changed = true;
+			}
+		}
+		
+		return changed ? new PolicyOverlay(new ArrayList<Change>(added), new ArrayList<Change>(removed), base, engine) : this;
+		
+	}
+	
+	/**
+	 * Method to resolve the same changes in a new index of the policy files, after they have been parsed again.
+	 * @param base
+	 * @param engine
+	 * @return
+	 */
+	public PolicyOverlay rebase(final PolicyIndex base, final MatchingEngine engine) {
+		return new PolicyOverlay(new ArrayList<Change>(additions), new ArrayList<Change>(removals), base, engine);
+	}
+	
+	/**
+	 * Method to find the positions of the statements equal to the given change in the given index.
+	 */
+	static int[] find(final PolicyIndex base, final Change change) {
+		
+		final PolicyStore store = base.getStore();
+		int[] positions = PolicyIndex.NONE;
+		for (final int ordinal : base.getOrdinals(change.pattern)) {
+			for (int statement=store.getStart(ordinal); statement<store.getEnd(ordinal); statement++) {
+				if (change.matches(store, statement)) {
+					positions = Arrays.copyOf(positions, positions.length+1);
+					positions[positions.length-1] = statement;
+				}
+			}
+		}
+		return positions;
+		
+	}
+	
+	public boolean isEmpty() {
+		return additions.isEmpty() && removals.isEmpty();
+	}
+	
+	public List<Change> getAdditions() {
+		return additions;
+	}
+	
+	public List<Change> getRemovals() {
+		return removals;
+	}
+	
+	/**
+	 * @return the index of the added statements
+	 */
+	public PolicyIndex getIndex() {
+		return index;
+	}
+	
+	/**
+	 * @return the sorted positions of the removed statements in the store of the policy files
+	 */
+	public int[] getRemoved() {
+		return removed;
+	}
+	
+	/**
+	 * Method to summarize the changes, for logging purposes.
+	 * @return
+	 */
+	public String getStatistics() {
+		return "overlay additions="+additions.size()+" removals="+removals.size()+" (removed statements="+removed.length+")";
+	}
+	
+	/**
+	 * A single policy statement added or removed at runtime, with its compiled resource expression.
+	 * Two changes are equal if they have the same compiled expression, attribute and action.
+	 */
+	public static class Change {
+		
+		private final String resource;
+		private final String syntax;
+		private final String type;
+		private final String value;
+		private final PolicyAction action;
+		private final Pattern pattern;
+		
+		/**
+		 * @param resource
+		 * @param syntax : the syntax of the resource (see {@link PolicyPattern#compile(String, String)}), null for a regular expression
+		 * @param type
+		 * @param value
+		 * @param action
+		 * @throws IllegalArgumentException if the resource is not valid for the given syntax
+		 */
+		public Change(final String resource, final String syntax, final String type, final String value, final PolicyAction action) {
+			if (resource==null || type==null || action==null) throw new IllegalArgumentException("The resource, attribute type and action are required");
+			this.resource = resource;
+			this.syntax = syntax==null ? PolicyPattern.SYNTAX_REGEX : syntax;
+			this.type = type;
+			this.value = value==null ? "" : value;
+			this.action = action;
+			this.pattern = PolicyPattern.compile(resource, this.syntax);
+		}
+		
+		/**
+		 * Constructor for a statement whose resource expression is already compiled, such as a statement of the policy files.
+		 * Such a change has no syntax, and cannot be saved to a {@link PolicyOverlayFile}.
+		 * @param pattern
+		 * @param resource : the resource text of the statement
+		 * @param type
+		 * @param value
+		 * @param action
+		 */
+		public Change(final Pattern pattern, final String resource, final String type, final String value, final PolicyAction action) {
+			if (pattern==null || type==null || action==null) throw new IllegalArgumentException("The resource, attribute type and action are required");
+			this.resource = resource==null ? pattern.pattern() : resource;
+			this.syntax = null;
+			this.type = type;
+			this.value = value==null ? "" : value;
+			this.action = action;
+			this.pattern = pattern;
+		}
+		
+		/**
+		 * @return true if the given statement of the store has the same expression, attribute and action
+		 *         (the expression is not compared, since the statement is looked up by expression)
+		 */
+		boolean matches(final PolicyStore store, final int statement) {
+			final String _value = store.getAttribute(statement).getValue();
+			return store.getAction(statement)==action
+			    && type.equals(store.getAttribute(statement).getType())
+			    && value.equals(_value==null ? "" : _value);
+		}
+		
+		public String getResource() {
+			return resource;
+		}
+		
+		/**
+		 * @return the syntax of the resource, or null if the change was created from a compiled expression
+		 */
+		public String getSyntax() {
+			return syntax;
+		}
+		
+		public String getType() {
+			return type;
+		}
+		
+		public String getValue() {
+			return value;
+		}
+		
+		public PolicyAction getAction() {
+			return action;
+		}
+		
+		public Pattern getPattern() {
+			return pattern;
+		}
+		
+		@Override
+		public boolean equals(final Object object) {
+			if (!(object instanceof Change)) return false;
+			final Change change = (Change)object;
+			return pattern.flags()==change.pattern.flags() && pattern.pattern().equals(change.pattern.pattern())
+			    && type.equals(change.type) && value.equals(change.value) && action==change.action;
+		}
+		
+		@Override
+		public int hashCode() {
+			return ((pattern.pattern().hashCode()*31+pattern.flags())*31+type.hashCode())*31+value.hashCode()+action.ordinal();
+		}
+		
+		@Override
+		public String toString() {
+			return "Resource="+resource+" Syntax="+syntax+" Attribute type="+type+" Attribute value="+value+" action="+action;
+		}
+		
+	}
+
+}
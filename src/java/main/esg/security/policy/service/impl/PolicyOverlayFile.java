@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import esg.security.policy.service.api.PolicyAction;
+
+/**
+ * Local XML file that stores the policy changes made at runtime (see {@link PolicyOverlay}), so that they survive a restart.
+ * 
+ * The file uses the same format as the policy files: the added statements are listed as "policy" elements in order,
+ * and the statements removed from the policy files are listed as "policy" elements with the attribute remove="true".
+ * The file is written to a temporary file first, which then replaces the previous file in one step,
+ * and is deleted when there are no changes.
+ */
+public class PolicyOverlayFile {
+	
+	private final static String NS = "http://www.esgf.org/security";
+	
+	private final static XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+	
+	private final File file;
+	
+	public PolicyOverlayFile(final File file) {
+		this.file = file;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Method to read the changes from the file, if it exists.
+	 * @param additions : the list the added statements are appended to
+	 * @param removals : the list the removed statements are appended to
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 * @throws IllegalArgumentException if a statement is not valid
+	 */
+	public void read(final List<PolicyOverlay.Change> additions, final List<PolicyOverlay.Change> removals) throws IOException, XMLStreamException {
+		
+		if (!file.exists()) return;
+		
+		final InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			int depth = 0;
+			final XMLStreamReader reader = PolicyStreamParser.FACTORY.createXMLStreamReader(in);
+			try {
+				while (reader.hasNext()) {
+					final int event = reader.next();
+					if (event==XMLStreamConstants.START_ELEMENT) {
+						depth++;
+						if (depth==2 && "policy".equals(reader.getLocalName()) && NS.equals(reader.getNamespaceURI())) {
+							final PolicyOverlay.Change change = new PolicyOverlay.Change(reader.getAttributeValue(null, "resource"),
+									                                                    reader.getAttributeValue(null, "syntax"),
+									                                                    reader.getAttributeValue(null, "attribute_type"),
+									                                                    reader.getAttributeValue(null, "attribute_value"),
+									                                                    PolicyAction.valueOf(reader.getAttributeValue(null, "action")));
+							if ("true".equals(reader.getAttributeValue(null, "remove"))) {
+								removals.add(change);
+							} else {
+								additions.add(change);
+							}
+						}
+					} else if (event==XMLStreamConstants.END_ELEMENT) {
+						depth--;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} finally {
+			in.close();
+		}
+		
+	}
+	
+	/**
+	 * Method to replace the content of the file with the given changes.
+	 * @param overlay
+	 * @throws IOException
+	 */
+	public void write(final PolicyOverlay overlay) throws IOException {
+		
+		if (overlay.isEmpty()) {
+			if (file.exists() && !file.delete()) throw new IOException("Cannot delete policy overlay file: "+file.getAbsolutePath());
+			return;
+		}
+		
+		final File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			final OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+			try {
+				final XMLStreamWriter writer = FACTORY.createXMLStreamWriter(out, "UTF-8");
+				writer.writeStartDocument("UTF-8", "1.0");
+				writer.writeCharacters("\n");
+				writer.writeStartElement("policies");
+				writer.writeDefaultNamespace(NS);
+				for (final PolicyOverlay.Change change : overlay.getAdditions()) {
+					write(writer, change, false);
+				}
+				for (final PolicyOverlay.Change change : overlay.getRemovals()) {
+					write(writer, change, true);
+				}
+				writer.writeCharacters("\n");
+				writer.writeEndElement();
+				writer.writeEndDocument();
+				writer.close();
+			} catch(XMLStreamException e) {
+				throw new IOException(e.getMessage(), e);
+			} finally {
+				out.close();
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmpFile.delete();
+		}
+		
+	}
+	
+	private static void write(final XMLStreamWriter writer, final PolicyOverlay.Change change, final boolean remove) throws XMLStreamException {
+		writer.writeCharacters("\n\t");
+		writer.writeEmptyElement("policy");
+		writer.writeAttribute("resource", change.getResource());
+		if (!PolicyPattern.SYNTAX_REGEX.equals(change.getSyntax())) writer.writeAttribute("syntax", change.getSyntax());
+		writer.writeAttribute("attribute_type", change.getType());
+		writer.writeAttribute("attribute_value", change.getValue());
+		writer.writeAttribute("action", change.getAction().toString());
+		if (remove) writer.writeAttribute("remove", "true");
+	}
+
+}
@@ -0,0 +1,558 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.regex.Pattern;
+
+/**
+ * A compiled policy resource expression, together with the literal text that can be extracted from it.
+ * The literal parts are used by {@link PolicyIndex} to select the few expressions that can possibly match a resource,
+ * before the full regular expression is evaluated.
+ * 
+ * The analysis is conservative: expressions that contain alternations, inline flags, quoting or numeric escapes
+ * are never reduced to literals, and are always evaluated as regular expressions.
+ * 
+ * Expressions that are made only of literal characters and of the wildcards ".", ".*" and ".+"
+ * (such as those compiled from the "literal", "prefix" and "glob" syntaxes, see {@link #compile(String, String)})
+ * are matched by a string comparison or by a simple wildcard matcher, which do not allocate any object.
+ * 
+ * Optionally, the other expressions are matched by a {@link LinearPattern}, in time proportional to the length of the resource,
+ * if they only use the constructs it supports.
+ *
+ */
+public class PolicyPattern {
+	
+	// syntaxes of the resource attribute of a policy statement
+	public final static String SYNTAX_REGEX = "regex";
+	public final static String SYNTAX_LITERAL = "literal";
+	public final static String SYNTAX_PREFIX = "prefix";
+	public final static String SYNTAX_GLOB = "glob";
+	
+	// flags that do not change the meaning of literal characters and wildcards
+	private final static int WILDCARD_FLAGS = Pattern.DOTALL | Pattern.UNIX_LINES;
+	
+	// wildcard tokens: any single character, any sequence of characters
+	private final static int ANY = -1;
+	private final static int STAR = -2;
+	
+	private final Pattern pattern;
+	
+	// wildcard program: literal characters, ANY and STAR tokens, or null if the expression is not a simple wildcard expression
+	private final int[] wildcards;
+	private final boolean hasAny;
+	
+	// linear-time matcher, or null if not requested or not supported
+	private final LinearPattern linear;
+	
+	// the reason why the linear-time matcher is not supported, or null
+	private final String unsupported;
+	
+	// the full literal text, if the expression does not contain any regular expression construct
+	private final String exact;
+	
+	// literal text that every matching resource must start with (may be empty)
+	private final String prefix;
+	
+	// longest literal text that every matching resource must contain (may be empty)
+	private final String requiredLiteral;
+	
+	public PolicyPattern(final Pattern pattern) {
+		this(pattern, false);
+	}
+	
+	/**
+	 * Constructor that optionally compiles the expression into a {@link LinearPattern}.
+	 * @param pattern
+	 * @param linear : true to match the expression in linear time, if it is supported
+	 */
+	public PolicyPattern(final Pattern pattern, final boolean linear) {
+		
+		this.pattern = pattern;
+		
+		final Analyzer analyzer = new Analyzer(pattern.pattern());
+		if ((pattern.flags() & ~WILDCARD_FLAGS)==0 && analyzer.analyze()) {
+			this.exact = analyzer.exact;
+			this.prefix = analyzer.prefix;
+			this.requiredLiteral = analyzer.longest;
+		} else {
+			this.exact = null;
+			this.prefix = "";
+			this.requiredLiteral = "";
+		}
+		this.wildcards = (exact==null && (pattern.flags() & ~WILDCARD_FLAGS)==0) ? toWildcards(pattern.pattern()) : null;
+		boolean _hasAny = false;
+		if (wildcards!=null) {
+			for (final int token : wildcards) {
+				if (token==ANY) _hasAny = true;
+			}
+		}
+		this.hasAny = _hasAny;
+		
+		LinearPattern _linear = null;
+		String _unsupported = null;
+		if (linear && exact==null) {
+			try {
+				_linear = LinearPattern.compile(pattern);
+			} catch(IllegalArgumentException e) {
+				_unsupported = e.getMessage();
+			}
+		}
+		this.linear = _linear;
+		this.unsupported = _unsupported;
+		
+	}
+	
+	/**
+	 * Method to compile the resource attribute of a policy statement according to its syntax:
+	 * <ul>
+	 *  <li>"regex" (the default, if the syntax is null): a Java regular expression matching the whole resource.
+	 *  <li>"literal": the resource must be identical to the given text.
+	 *  <li>"prefix": the resource must start with the given text.
+	 *  <li>"glob": '*' matches any sequence of characters, '?' matches any single character, all other characters match themselves.
+	 * </ul>
+	 * The non-regex syntaxes are translated into equivalent regular expressions, so that they can be handled 
+	 * uniformly, but they are always matched without the regular expression engine.
+	 * 
+	 * @param resource
+	 * @param syntax
+	 * @return
+	 * @throws IllegalArgumentException if the syntax is unknown
+	 */
+	public static Pattern compile(final String resource, final String syntax) {
+		
+		if (syntax==null || syntax.equals(SYNTAX_REGEX)) {
+			return Pattern.compile(resource);
+		} else if (syntax.equals(SYNTAX_LITERAL)) {
+			return Pattern.compile(escape(resource), Pattern.DOTALL);
+		} else if (syntax.equals(SYNTAX_PREFIX)) {
+			return Pattern.compile(escape(resource)+".*", Pattern.DOTALL);
+		} else if (syntax.equals(SYNTAX_GLOB)) {
+			final StringBuilder regex = new StringBuilder();
+			for (int i=0; i<resource.length(); i++) {
+				final char c = resource.charAt(i);
+				if (c=='*') {
+					regex.append(".*");
+				} else if (c=='?') {
+					regex.append('.');
+				} else {
+					escape(c, regex);
+				}
+			}
+			return Pattern.compile(regex.toString(), Pattern.DOTALL);
+		} else {
+			throw new IllegalArgumentException("Unknown resource syntax: "+syntax);
+		}
+		
+	}
+	
+	private static String escape(final String text) {
+		final StringBuilder regex = new StringBuilder(text.length()+8);
+		for (int i=0; i<text.length(); i++) {
+			escape(text.charAt(i), regex);
+		}
+		return regex.toString();
+	}
+	
+	private static void escape(final char c, final StringBuilder regex) {
+		// a backslash before a non-alphabetic character always denotes the character itself
+		if (!Character.isLetterOrDigit(c) && !Character.isSurrogate(c) && c!=' ') regex.append('\\');
+		regex.append(c);
+	}
+	
+	/**
+	 * Method to match the complete resource identifier against this expression,
+	 * with the same semantics as {@link java.util.regex.Matcher#matches()}.
+	 * @param resource
+	 * @return
+	 */
+	public boolean matches(final String resource) {
+		if (exact!=null) {
+			return exact.equals(resource);
+		} else if (wildcards!=null && isPlain(resource)) {
+			return matchWildcards(resource);
+		} else if (linear!=null) {
+			return linear.matches(resource);
+		} else {
+			return pattern.matcher(resource).matches();
+		}
+	}
+	
+	/**
+	 * @return true if this expression is matched without the regular expression engine (at least for plain resources)
+	 */
+	public boolean isFastPath() {
+		return exact!=null || wildcards!=null;
+	}
+	
+	/**
+	 * @return true if the wildcards match any character of the resource: 
+	 *         false if the resource contains line terminators (unless the DOTALL flag is set), 
+	 *         or supplementary characters that a single '.' would match as a whole
+	 */
+	private boolean isPlain(final String resource) {
+		
+		final boolean dotAll = (pattern.flags() & Pattern.DOTALL)!=0;
+		if (dotAll && !hasAny) return true;
+		final boolean unixLines = (pattern.flags() & Pattern.UNIX_LINES)!=0;
+		for (int i=0; i<resource.length(); i++) {
+			final char c = resource.charAt(i);
+			if (hasAny && Character.isSurrogate(c)) return false;
+			if (!dotAll && (c=='\n' || (!unixLines && (c=='\r' || c=='\u0085' || c=='\u2028' || c=='\u2029')))) return false;
+		}
+		return true;
+		
+	}
+	
+	/**
+	 * Wildcard matching with a single backtracking point, in linear space and without allocation.
+	 */
+	private boolean matchWildcards(final String resource) {
+		
+		final int n = resource.length();
+		final int m = wildcards.length;
+		int s = 0, t = 0;
+		int starT = -1, starS = 0;
+		while (s<n) {
+			if (t<m && wildcards[t]==STAR) {
+				starT = t++;
+				starS = s;
+			} else if (t<m && (wildcards[t]==ANY || wildcards[t]==resource.charAt(s))) {
+				t++;
+				s++;
+			} else if (starT>=0) {
+				// let the last star consume one more character
+				t = starT+1;
+				s = ++starS;
+			} else {
+				return false;
+			}
+		}
+		while (t<m && wildcards[t]==STAR) t++;
+		return t==m;
+		
+	}
+	
+	/**
+	 * Method to translate an expression made only of literal characters and of the wildcards ".", ".*" and ".+"
+	 * into a wildcard program.
+	 * @param regex
+	 * @return the wildcard program, or null if the expression contains any other construct
+	 */
+	private static int[] toWildcards(final String regex) {
+		
+		final int[] tokens = new int[regex.length()*2];
+		int m = 0;
+		int pos = 0;
+		final int n = regex.length();
+		
+		// leading anchors are implied by full matching
+		if (regex.startsWith("^")) {
+			pos = 1;
+		} else if (regex.startsWith("\\A")) {
+			pos = 2;
+		}
+		
+		while (pos<n) {
+			final char c = regex.charAt(pos);
+			final char next = pos+1<n ? regex.charAt(pos+1) : 0;
+			if (c=='.') {
+				final char after = pos+2<n ? regex.charAt(pos+2) : 0;
+				if (next=='*' || next=='+') {
+					// lazy and possessive quantifiers are not supported
+					if (after=='?' || after=='+') return null;
+					if (next=='+') tokens[m++] = ANY;
+					tokens[m++] = STAR;
+					pos += 2;
+				} else if (next=='?' || next=='{') {
+					return null;
+				} else {
+					tokens[m++] = ANY;
+					pos++;
+				}
+			} else if (c=='\\') {
+				// only escaped punctuation stands for itself
+				if (pos+1>=n || Character.isLetterOrDigit(next) || Character.isSurrogate(next)) return null;
+				if (!literalToken(regex, pos+2)) return null;
+				tokens[m++] = next;
+				pos += 2;
+			} else if ("^$|?*+()[]{}".indexOf(c)>=0 || Character.isSurrogate(c)) {
+				return null;
+			} else {
+				if (!literalToken(regex, pos+1)) return null;
+				tokens[m++] = c;
+				pos++;
+			}
+		}
+		
+		final int[] wildcards = new int[m];
+		System.arraycopy(tokens, 0, wildcards, 0, m);
+		return wildcards;
+		
+	}
+	
+	/**
+	 * @return true if the literal character ending before the given position is not followed by a quantifier
+	 */
+	private static boolean literalToken(final String regex, final int pos) {
+		if (pos>=regex.length()) return true;
+		final char next = regex.charAt(pos);
+		return next!='?' && next!='*' && next!='+' && next!='{';
+	}
+
+	/**
+	 * @return true if this expression is matched in time proportional to the length of the resource
+	 */
+	public boolean isLinear() {
+		return exact!=null || linear!=null;
+	}
+	
+	/**
+	 * @return the reason why a linear-time matcher was requested but is not supported, or null
+	 */
+	public String getUnsupportedReason() {
+		return unsupported;
+	}
+	
+	public Pattern getPattern() {
+		return pattern;
+	}
+
+	public String getExact() {
+		return exact;
+	}
+	
+	public boolean isExact() {
+		return exact!=null;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public String getRequiredLiteral() {
+		return requiredLiteral;
+	}
+	
+	@Override
+	public String toString() {
+		return pattern.pattern();
+	}
+	
+	/**
+	 * Single-pass scanner over the top level of a regular expression,
+	 * collecting the runs of characters that must appear literally in any match.
+	 */
+	private static class Analyzer {
+		
+		// escaped letters that denote a character class, boundary or anchor: they are skipped
+		private final static String CLASS_ESCAPES = "dDsSwWbBAGZzRhHvVX";
+		
+		private final String regex;
+		private int pos = 0;
+		
+		private final StringBuilder run = new StringBuilder();
+		private boolean leading = true;
+		private boolean broken = false;
+		
+		String exact = null;
+		String prefix = "";
+		String longest = "";
+		
+		Analyzer(final String regex) {
+			this.regex = regex;
+		}
+		
+		/**
+		 * @return false if the expression cannot be safely reduced to literals
+		 */
+		boolean analyze() {
+			
+			// constructs that change the meaning of the characters that follow them
+			if (hasUnescaped('|') || regex.contains("(?") || regex.contains("\\Q")) return false;
+			
+			// leading anchors are implied by full matching
+			if (regex.startsWith("^")) {
+				pos = 1;
+			} else if (regex.startsWith("\\A")) {
+				pos = 2;
+			}
+			
+			final int n = regex.length();
+			while (pos<n) {
+				final char c = regex.charAt(pos);
+				if (c=='\\') {
+					if (pos+1>=n) return false;
+					final char d = regex.charAt(pos+1);
+					if (Character.isLetterOrDigit(d)) {
+						if (CLASS_ESCAPES.indexOf(d)>=0) {
+							pos += 2;
+						} else if (d=='p' || d=='P') {
+							pos += 2;
+							if (pos<n && regex.charAt(pos)=='{') {
+								if (!skipTo('}')) return false;
+							} else {
+								pos++;
+							}
+						} else {
+							// hexadecimal, unicode, octal, control characters and back references
+							return false;
+						}
+						endRun();
+					} else {
+						literal(d, 2);
+					}
+				} else if (c=='[') {
+					if (!skipClass()) return false;
+					endRun();
+				} else if (c=='(') {
+					if (!skipGroup()) return false;
+					endRun();
+				} else if (c=='*' || c=='+' || c=='?') {
+					pos++;
+					endRun();
+				} else if (c=='{') {
+					if (!skipTo('}')) return false;
+					endRun();
+				} else if (c=='.' || c=='$' || c=='^') {
+					pos++;
+					endRun();
+				} else if (c==')' || c==']' || c=='}') {
+					return false;
+				} else {
+					final int cp = regex.codePointAt(pos);
+					if (Character.charCount(cp)>1) {
+						// supplementary characters are not worth the trouble
+						return false;
+					}
+					literal(c, 1);
+				}
+			}
+			
+			if (!broken) exact = run.toString();
+			endRun();
+			return true;
+			
+		}
+		
+		/**
+		 * Method to process a literal character of the given width in the expression,
+		 * taking into account any quantifier that follows it.
+		 */
+		private void literal(final char c, final int width) {
+			
+			pos += width;
+			final char next = pos<regex.length() ? regex.charAt(pos) : 0;
+			if (next=='?' || next=='*' || next=='{') {
+				// optional or repeated character: not part of the literal text
+				endRun();
+			} else if (next=='+') {
+				// at least one occurrence is required
+				run.append(c);
+				endRun();
+			} else {
+				run.append(c);
+			}
+			
+		}
+		
+		private void endRun() {
+			
+			if (leading) {
+				prefix = run.toString();
+				leading = false;
+			}
+			if (run.length()>longest.length()) {
+				longest = run.toString();
+			}
+			run.setLength(0);
+			broken = true;
+			
+		}
+		
+		private boolean skipTo(final char end) {
+			final int i = regex.indexOf(end, pos);
+			if (i<0) return false;
+			pos = i+1;
+			return true;
+		}
+		
+		private boolean skipClass() {
+			
+			int depth = 0;
+			while (pos<regex.length()) {
+				final char c = regex.charAt(pos);
+				if (c=='\\') {
+					pos += 2;
+					continue;
+				} else if (c=='[') {
+					depth++;
+				} else if (c==']') {
+					depth--;
+					if (depth==0) {
+						pos++;
+						return true;
+					}
+				}
+				pos++;
+			}
+			return false;
+			
+		}
+		
+		private boolean skipGroup() {
+			
+			int depth = 0;
+			while (pos<regex.length()) {
+				final char c = regex.charAt(pos);
+				if (c=='\\') {
+					pos += 2;
+					continue;
+				} else if (c=='[') {
+					if (!skipClass()) return false;
+					continue;
+				} else if (c=='(') {
+					depth++;
+				} else if (c==')') {
+					depth--;
+					if (depth==0) {
+						pos++;
+						return true;
+					}
+				}
+				pos++;
+			}
+			return false;
+			
+		}
+		
+		private boolean hasUnescaped(final char target) {
+			for (int i=0; i<regex.length(); i++) {
+				final char c = regex.charAt(i);
+				if (c=='\\') {
+					i++;
+				} else if (c==target) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+	}
+
+}
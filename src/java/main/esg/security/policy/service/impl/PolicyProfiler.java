@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional instrumentation of the resource expressions evaluated by the {@link PolicyIndex}es of a policy service,
+ * to find the expressions that are never matched, and those that cost the most to evaluate.
+ * 
+ * For each expression, the profiler counts the evaluations, the matches and the cumulative evaluation time in nanoseconds,
+ * in {@link LongAdder}s that request threads update without contention. The counters are kept by compiled expression,
+ * so that they survive the reloads of the policy files, and are dropped when the expression is no longer in use.
+ * When the profiler is disabled (the default), an index only checks a flag before evaluating the expressions.
+ * Note that the lookups answered from a {@link PolicyLookupCache} do not evaluate any expression, and are not counted.
+ * 
+ * The profiler is exposed as a JMX MBean (see {@link PolicyProfilerMBean}).
+ *
+ */
+public class PolicyProfiler implements PolicyProfilerMBean {
+	
+	private volatile boolean enabled = false;
+	
+	// counters by compiled expression
+	private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+	
+	// indexes currently in use
+	private volatile PolicyIndex[] indexes = new PolicyIndex[0];
+	
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	@Override
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * Method to profile the given indexes, which replace the ones previously in use.
+	 * @param _indexes
+	 */
+	public void attach(final PolicyIndex... _indexes) {
+		
+		for (final PolicyIndex index : _indexes) {
+			index.setProfiler(this);
+		}
+		indexes = _indexes;
+		
+		// drop the counters of the expressions no longer in use
+		if (!counters.isEmpty()) {
+			final Set<String> keys = new HashSet<String>();
+			for (final PolicyIndex index : _indexes) {
+				final PolicyStore store = index.getStore();
+				for (int ordinal=0; ordinal<store.size(); ordinal++) {
+					keys.add(PolicyIndex.key(store, ordinal));
+				}
+			}
+			counters.keySet().retainAll(keys);
+		}
+		
+	}
+	
+	/**
+	 * @param index
+	 * @return the counters of the expressions of the given index, by ordinal
+	 */
+	Counters[] getCounters(final PolicyIndex index) {
+		final PolicyStore store = index.getStore();
+		final Counters[] _counters = new Counters[store.size()];
+		for (int ordinal=0; ordinal<_counters.length; ordinal++) {
+			final String key = PolicyIndex.key(store, ordinal);
+			Counters _counter = counters.get(key);
+			if (_counter==null) {
+				final Counters counter = new Counters();
+				_counter = counters.putIfAbsent(key, counter);
+				if (_counter==null) _counter = counter;
+			}
+			_counters[ordinal] = _counter;
+		}
+		return _counters;
+	}
+	
+	@Override
+	public void reset() {
+		for (final Counters counter : counters.values()) {
+			counter.reset();
+		}
+	}
+	
+	@Override
+	public int getNumberOfPatterns() {
+		return getProfile().size();
+	}
+	
+	@Override
+	public int getNumberOfUnusedPatterns() {
+		return getUnused().size();
+	}
+	
+	@Override
+	public String dump() {
+		final List<Profile> profile = getProfile();
+		Collections.sort(profile, new Comparator<Profile>() {
+			@Override
+			public int compare(final Profile p1, final Profile p2) {
+				return Long.compare(p2.nanos, p1.nanos);
+			}
+		});
+		return format("Policy expressions by cumulative evaluation time", profile);
+	}
+	
+	@Override
+	public String dumpUnused() {
+		return format("Policy expressions never matched", getUnused());
+	}
+	
+	/**
+	 * @return the current counts of the expressions currently in use, in policy file order
+	 */
+	public List<Profile> getProfile() {
+		
+		final Map<String, Profile> profile = new LinkedHashMap<String, Profile>();
+		for (final PolicyIndex index : indexes) {
+			final PolicyStore store = index.getStore();
+			for (int ordinal=0; ordinal<store.size(); ordinal++) {
+				final String key = PolicyIndex.key(store, ordinal);
+				Profile _profile = profile.get(key);
+				if (_profile==null) {
+					_profile = new Profile(store.getResource(ordinal), counters.get(key));
+					profile.put(key, _profile);
+				}
+				_profile.statements += store.getEnd(ordinal)-store.getStart(ordinal);
+			}
+		}
+		return new ArrayList<Profile>(profile.values());
+		
+	}
+	
+	private List<Profile> getUnused() {
+		final List<Profile> unused = new ArrayList<Profile>();
+		for (final Profile profile : getProfile()) {
+			if (profile.hits==0) unused.add(profile);
+		}
+		return unused;
+	}
+	
+	private String format(final String title, final List<Profile> profile) {
+		final StringBuilder report = new StringBuilder();
+		report.append(title).append(" (profiling ").append(enabled ? "enabled" : "disabled").append(", expressions=").append(profile.size()).append(")\n");
+		report.append(String.format("%12s %12s %12s %10s %10s  %s%n", "evaluations", "matches", "total ms", "avg ns", "statements", "resource"));
+		for (final Profile _profile : profile) {
+			report.append(String.format("%12d %12d %12.3f %10d %10d  %s%n", _profile.attempts, _profile.hits, _profile.nanos/1e6, 
+					                    _profile.attempts==0 ? 0L : _profile.nanos/_profile.attempts, _profile.statements, _profile.resource));
+		}
+		return report.toString();
+	}
+	
+	/**
+	 * Counters of a single resource expression.
+	 */
+	static class Counters {
+		
+		private final LongAdder attempts = new LongAdder();
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		
+		void record(final boolean hit, final long _nanos) {
+			attempts.increment();
+			if (hit) hits.increment();
+			nanos.add(_nanos);
+		}
+		
+		private void reset() {
+			attempts.reset();
+			hits.reset();
+			nanos.reset();
+		}
+		
+	}
+	
+	/**
+	 * Counts of a single resource expression at one time.
+	 */
+	public static class Profile {
+		
+		private final String resource;
+		private final long attempts;
+		private final long hits;
+		private final long nanos;
+		private int statements = 0;
+		
+		private Profile(final String resource, final Counters counters) {
+			this.resource = resource;
+			this.attempts = counters==null ? 0L : counters.attempts.sum();
+			this.hits = counters==null ? 0L : counters.hits.sum();
+			this.nanos = counters==null ? 0L : counters.nanos.sum();
+		}
+		
+		public String getResource() {
+			return resource;
+		}
+		
+		/**
+		 * @return the number of evaluations of the expression
+		 */
+		public long getAttempts() {
+			return attempts;
+		}
+		
+		/**
+		 * @return the number of evaluations that matched the resource
+		 */
+		public long getHits() {
+			return hits;
+		}
+		
+		/**
+		 * @return the cumulative evaluation time, in nanoseconds
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+		
+		/**
+		 * @return the number of statements of the expression
+		 */
+		public int getStatements() {
+			return statements;
+		}
+		
+	}
+
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+/**
+ * JMX management interface of the {@link PolicyProfiler}.
+ */
+public interface PolicyProfilerMBean {
+	
+	/**
+	 * @return true if the evaluations of the resource expressions are counted
+	 */
+	boolean isEnabled();
+	
+	/**
+	 * Method to start or stop counting the evaluations of the resource expressions.
+	 * @param enabled
+	 */
+	void setEnabled(boolean enabled);
+	
+	/**
+	 * @return the number of resource expressions currently in use
+	 */
+	int getNumberOfPatterns();
+	
+	/**
+	 * @return the number of resource expressions currently in use that were never matched since the counters were reset
+	 */
+	int getNumberOfUnusedPatterns();
+	
+	/**
+	 * Method to set all counters back to zero.
+	 */
+	void reset();
+	
+	/**
+	 * @return a report of the resource expressions currently in use, by decreasing cumulative evaluation time
+	 */
+	String dump();
+	
+	/**
+	 * @return a report of the resource expressions currently in use that were never matched since the counters were reset
+	 */
+	String dumpUnused();
+
+}
@@ -20,15 +20,25 @@ package esg.security.policy.service.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.xml.stream.XMLStreamException;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jdom2.Document;
@@ -36,7 +46,11 @@ import org.jdom2.Element;
 import org.jdom2.JDOMException;
 import org.jdom2.Namespace;
 
+import esg.security.policy.service.api.MutablePolicyService;
+import esg.security.policy.service.api.PolicyAccess;
+import esg.security.policy.service.api.PolicyAction;
 import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyLookup;
 import esg.security.policy.service.api.PolicyService;
 import esg.security.policy.service.api.PolicyStatement;
 import esg.security.registry.service.api.ReloadableFileSetObserver;
@@ -48,14 +62,81 @@ import esg.security.utils.xml.Parser;
  * The XML files contain regular expressions matching the resource identifiers, and this service implementation will return
  * the policy statements for the first match found, for the given action. The local policy files are automatically reloaded if changed.
  * 
- * Note that this implementation disregards the case of the "action" parameter (i.e. "Read" and "read" are considered identical).
+ * The regular expressions are compiled into a {@link PolicyIndex} when the files are parsed, so that each request
+ * only evaluates the expressions that share some literal text with the requested resource.
+ * The policies and their index are held in an immutable {@link PolicySnapshot}, which is built and validated
+ * on the side and then published atomically: request threads never block, and always see a complete set of policies.
+ * The results are memoized per (resource, action) in a bounded {@link PolicyLookupCache}, keyed by snapshot generation:
+ * the returned lists are therefore unmodifiable.
+ * When only some of the policy files change, only those files are re-parsed and merged with the statements of the others.
+ * The files are read by default with a streaming {@link PolicyStreamParser}, so that large files do not need to be held
+ * in memory as a document tree, and the statements of each file are kept in a compact {@link PolicyStore}.
+ * Optionally, the parsed policies are also saved to a binary {@link PolicySnapshotFile} that is used to answer
+ * requests at startup, while the XML files are parsed again in the background.
+ * The resource expressions can be matched by a linear-time engine (see {@link #setMatchingEngine(MatchingEngine)}),
+ * so that no expression can backtrack for a long time on a client-supplied resource.
+ * Single statements can be added or removed at runtime: the changes are kept in a {@link PolicyOverlay} on top of the
+ * compiled policy files, so that each change costs time proportional to the number of changes rather than to the number
+ * of policies, and are optionally saved to a {@link PolicyOverlayFile} (see {@link #setOverlayFile(String)}).
+ * The statements entitled by a set of user attributes are listed from an inverted index of the policies (see {@link #getEntitlements(Map)}).
+ * The changes between successive generations are kept in a bounded {@link PolicyChangeLog}, so that peers that copy
+ * these policies (see {@link PolicyServiceRemoteImpl}) only receive the statements changed since their last copy (see {@link #getChanges(String)}).
+ * The evaluations of each resource expression can be counted and timed by a {@link PolicyProfiler}, exposed through JMX 
+ * (see {@link #setJmxName(String)}), to find the expressions that are never matched or that are expensive to evaluate.
+ * 
+ * Note that this implementation disregards the case of the "action" parameter (i.e. "Read" and "read" are considered identical),
+ * and that the path of the "resource" parameter is normalized (see {@link #toResource(String)}) before it is matched and cached,
+ * so that "a/b", "a//b/" and "a%2Fb" are considered identical.
  * 
  * @author luca.cinquini
  *
  */
-public class PolicyServiceLocalXmlImpl implements PolicyService, ReloadableFileSetObserver {
+public class PolicyServiceLocalXmlImpl implements MutablePolicyService, ReloadableFileSetObserver {
+	
+	// current policies, replaced as a whole when the policy files change
+	private final AtomicReference<PolicySnapshot> snapshot = new AtomicReference<PolicySnapshot>(new PolicySnapshot());
+	
+	// statements parsed from each policy file, to merge incremental updates (guarded by this)
+	private Map<File, PolicyStore> fragments = new HashMap<File, PolicyStore>();
+	
+	// true to read the policy files with the streaming parser, false to build a JDOM document
+	private volatile boolean streaming = true;
+	
+	// engine used to match the resource expressions
+	private volatile MatchingEngine matchingEngine = MatchingEngine.REGEX;
+	
+	// runtime changes to the policy files (guarded by this)
+	private PolicyOverlay overlay = new PolicyOverlay();
+	
+	// file the runtime changes are saved to, or null if not saved
+	private PolicyOverlayFile overlayFile;
+	
+	// implications between the roles of each group, none by default
+	private volatile RoleHierarchy roleHierarchy = new RoleHierarchy("");
 	
-	LinkedHashMap<Pattern, List<PolicyStatement>> policies = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+	// binary snapshot of the policy files, or null if not used
+	private PolicySnapshotFile snapshotFile;
+	
+	// true while the policy files are parsed in the background at startup
+	private volatile boolean rebuilding = false;
+	
+	// changes between the successive snapshots, sent to peers
+	private volatile PolicyChangeLog changeLog = new PolicyChangeLog(PolicyChangeLog.DEFAULT_SIZE, snapshot.get());
+	
+	// optional instrumentation of the resource expressions
+	private final PolicyProfiler profiler = new PolicyProfiler();
+	
+	// name the profiler is registered with in the platform MBean server, or null if not registered
+	private ObjectName jmxName;
+	
+	// source of snapshot generation numbers
+	private final AtomicLong generations = new AtomicLong(0L);
+	
+	// default maximum number of memoized (resource, action) lookups
+	public final static int DEFAULT_CACHE_SIZE = 10000;
+	
+	// memoized lookup results
+	private volatile PolicyLookupCache cache = new PolicyLookupCache(DEFAULT_CACHE_SIZE);
 	
     // Utility class that watches the set of local XML configuration files for changes.
     private ReloadableFileSet watcher;
@@ -72,69 +153,763 @@ public class PolicyServiceLocalXmlImpl implements PolicyService, ReloadableFileS
      * @throws Exception
      */
 	public PolicyServiceLocalXmlImpl(final String xmlFilePaths) throws Exception {
+		this(xmlFilePaths, false);
+	}
+	
+    /**
+     * Constructor that optionally keeps a binary snapshot of the policy files (see {@link PolicySnapshotFile}).
+     * If the binary snapshot is newer than all the XML files, the service answers from it immediately,
+     * while the XML files are parsed again in a background thread.
+     * 
+     * @param xmlFilePaths
+     * @param useSnapshotFile : true to read the binary snapshot at startup, and write it after each successful parse
+     * @throws Exception
+     */
+	public PolicyServiceLocalXmlImpl(final String xmlFilePaths, final boolean useSnapshotFile) throws Exception {
 		
         // instantiate files watcher
         watcher = new ReloadableFileSet(xmlFilePaths);
         watcher.setObserver(this);
         
+        // start from the binary snapshot if possible, and rebuild it from the XML files in the background
+        final List<File> policyFiles = watcher.getFiles();
+        if (useSnapshotFile && !policyFiles.isEmpty()) {
+        	snapshotFile = new PolicySnapshotFile(policyFiles);
+        	if (loadSnapshotFile(policyFiles)) {
+        		rebuild();
+        		return;
+        	}
+        }
+        
         // trigger first loading of configuration files
         watcher.reload();
 		
 	}
 	
 	/** Method to update the local policy map by re-parsing the configured XML files.
-	 *  This method disregards parsing errors from any single file, and moves on to parsing the next file.
+	 *  This method disregards parsing errors from any single file, and moves on to parsing the next file:
+	 *  the statements of a file are only used if the whole file was parsed successfully.
+	 *  The new policies are published as a single {@link PolicySnapshot}, replacing the previous one in one step.
 	 */
-	public void parse(final List<File> policyFiles) {
+	public synchronized void parse(final List<File> policyFiles) {
                                 
-        // temporary storage for policy statements
-        final LinkedHashMap<Pattern, List<PolicyStatement>> _policies = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+        final long startTime = System.currentTimeMillis();
+        final long startBytes = getAllocatedBytes();
+        installParsed(policyFiles, parseFiles(policyFiles), startTime, startBytes);
+                
+    }
+	
+	/**
+	 * Method to parse all the given XML files, without installing their statements.
+	 * This method does not access the state of the service, and can be run without holding its lock.
+	 * @param policyFiles
+	 * @return the statements of each file that was parsed successfully
+	 */
+	private Map<File, PolicyStore> parseFiles(final List<File> policyFiles) {
+		
+        final PolicyStreamParser parser = new PolicyStreamParser();
+        
+        // temporary storage for policy statements, by file
+        final Map<File, PolicyStore> _fragments = new HashMap<File, PolicyStore>();
         
         // loop over policy files
         for (final File policyFile : policyFiles) {   
 
             try {
-                parseXml(policyFile, _policies);
+                _fragments.put(policyFile, parseFile(policyFile, parser));
                 if (LOG.isInfoEnabled()) LOG.info("Loaded information from policy file="+policyFile.getAbsolutePath()); 
             } catch(Exception e) {
                 LOG.warn("Error pasring XML policy file: "+policyFile.getAbsolutePath()+": "+e.getMessage());
             }
             
         }
+        return _fragments;
+		
+	}
+	
+	/**
+	 * Method to install the statements parsed from all the XML files, unless none of them could be parsed,
+	 * and save them to the binary snapshot if all files were parsed.
+	 * @param policyFiles
+	 * @param _fragments
+	 * @param startTime
+	 * @param startBytes
+	 */
+	private void installParsed(final List<File> policyFiles, final Map<File, PolicyStore> _fragments, 
+			                   final long startTime, final long startBytes) {
+		
+        // validate the new policies: keep the current ones if none of the files could be parsed
+        final PolicySnapshot current = snapshot.get();
+        if (_fragments.isEmpty() && !policyFiles.isEmpty() && current.getNumberOfStatements()>0) {
+            LOG.warn("None of the policy files could be parsed, keeping policy snapshot generation="+current.getGeneration());
+            return;
+        }
+        
+        install(policyFiles, _fragments, startTime, startBytes);
+        if (_fragments.size()==policyFiles.size()) saveSnapshotFile(policyFiles, _fragments);
+		
+	}
+	
+	/** Method to update the local policy map by re-parsing only the XML files that have changed,
+	 *  and merging their statements with those previously parsed from the other files.
+	 *  The statements of a deleted file are dropped, while a changed file that cannot be parsed
+	 *  keeps contributing the statements it contained when it was last parsed successfully.
+	 */
+	public synchronized void update(final List<File> changedFiles, final List<File> policyFiles) {
+		
+        final long startTime = System.currentTimeMillis();
+        final long startBytes = getAllocatedBytes();
+        final PolicyStreamParser parser = new PolicyStreamParser();
         
-        // update local data storage
-        synchronized (policies) {
-            policies = _policies;
+        boolean success = true;
+        
+        // start from the statements of the previous snapshot
+        final Map<File, PolicyStore> _fragments = new HashMap<File, PolicyStore>(fragments);
+        
+        for (final File policyFile : changedFiles) {
+        	
+        	if (!policyFile.exists()) {
+        		_fragments.remove(policyFile);
+        		if (LOG.isInfoEnabled()) LOG.info("Removed information from deleted policy file="+policyFile.getAbsolutePath());
+        		continue;
+        	}
+        	
+            try {
+                _fragments.put(policyFile, parseFile(policyFile, parser));
+                if (LOG.isInfoEnabled()) LOG.info("Reloaded information from policy file="+policyFile.getAbsolutePath()); 
+            } catch(Exception e) {
+                LOG.warn("Error pasring XML policy file: "+policyFile.getAbsolutePath()+": "+e.getMessage()
+                		+", keeping its previous policies");
+                success = false;
+            }
+        	
         }
-        print();            
-                
-    }
+        
+        install(policyFiles, _fragments, startTime, startBytes);
+        if (success && _fragments.size()==policyFiles.size()) saveSnapshotFile(policyFiles, _fragments);
+		
+	}
+	
+	/**
+	 * Method to load the policies from the binary snapshot, if it is up to date with the XML files.
+	 * @param policyFiles
+	 * @return true if the policies were loaded
+	 */
+	private synchronized boolean loadSnapshotFile(final List<File> policyFiles) {
+		
+		if (!snapshotFile.isUpToDate(policyFiles)) return false;
+		
+        final long startTime = System.currentTimeMillis();
+        final long startBytes = getAllocatedBytes();
+		try {
+			final PolicySnapshotFile.Contents contents = snapshotFile.read(policyFiles, matchingEngine);
+			if (contents==null) return false;
+			final Map<File, PolicyStore> _fragments = contents.getFragments();
+			if (contents.getLayout()==null) {
+				// otherwise the expressions were validated when the index was saved
+				for (final PolicyStore store : _fragments.values()) {
+					validate(store.getPatterns());
+				}
+			}
+			if (LOG.isInfoEnabled()) LOG.info("Loaded information from policy snapshot file="+snapshotFile.getFile().getAbsolutePath()
+					                          +(contents.getLayout()!=null ? " with its index" : ""));
+			install(policyFiles, _fragments, contents.getLayout(), startTime, startBytes);
+			return true;
+		} catch(IOException e) {
+			LOG.warn("Error reading policy snapshot file: "+e.getMessage());
+			return false;
+		} catch(IllegalArgumentException e) {
+			LOG.warn("Policy snapshot file not used: "+e.getMessage());
+			return false;
+		}
+		
+	}
+	
+	/**
+	 * Method to write the policies parsed from the XML files to the binary snapshot, if enabled.
+	 * @param policyFiles
+	 * @param _fragments
+	 */
+	private void saveSnapshotFile(final List<File> policyFiles, final Map<File, PolicyStore> _fragments) {
+		
+		if (snapshotFile==null) return;
+		try {
+			snapshotFile.write(policyFiles, _fragments, snapshot.get().getIndex());
+			if (LOG.isInfoEnabled()) LOG.info("Saved policy snapshot file="+snapshotFile.getFile().getAbsolutePath());
+		} catch(IOException e) {
+			LOG.warn("Error writing policy snapshot file: "+snapshotFile.getFile().getAbsolutePath()+": "+e.getMessage());
+		}
+		
+	}
+	
+	/**
+	 * Method to parse the XML files in a background thread, after the policies were loaded from the binary snapshot.
+	 * Requests do not check the files for changes until the rebuild has completed.
+	 * 
+	 * The files are parsed without holding the lock of the service or of the file watcher, 
+	 * so that the configuration of the service is not delayed: the lock is only taken to install the new statements,
+	 * unless they have been replaced by a more recent reload in the meantime.
+	 */
+	private void rebuild() {
+		
+		rebuilding = true;
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// the files are loaded from now on: later changes are picked up by the next reload
+					final List<File> policyFiles = watcher.getFiles();
+					watcher.markLoaded();
+					final Map<File, PolicyStore> before;
+					synchronized (PolicyServiceLocalXmlImpl.this) {
+						before = fragments;
+					}
+					
+			        final long startTime = System.currentTimeMillis();
+			        final long startBytes = getAllocatedBytes();
+			        final Map<File, PolicyStore> _fragments = parseFiles(policyFiles);
+			        
+			        synchronized (PolicyServiceLocalXmlImpl.this) {
+			        	if (fragments==before) {
+			        		installParsed(policyFiles, _fragments, startTime, startBytes);
+			        	} else {
+			        		if (LOG.isInfoEnabled()) LOG.info("Policy files reloaded during the rebuild, discarding the rebuilt policies");
+			        	}
+			        }
+				} catch(RuntimeException e) {
+					LOG.error("Error parsing policy files: "+e.getMessage(), e);
+				} finally {
+					rebuilding = false;
+				}
+			}
+		}, "PolicyServiceLocalXmlImpl-rebuild");
+		thread.setDaemon(true);
+		thread.start();
+		
+	}
+	
+	/**
+	 * @return true while the XML files are being parsed in the background at startup
+	 */
+	public boolean isRebuilding() {
+		return rebuilding;
+	}
+	
+	/**
+	 * Method to merge the statements parsed from each file, in file order, into a new {@link PolicySnapshot} and publish it.
+	 * @param policyFiles
+	 * @param _fragments : the statements parsed from each file, restricted in place to the given files
+	 * @param startTime
+	 * @param startBytes : the bytes allocated by the current thread when the reload started, or -1 if not available
+	 */
+	private void install(final List<File> policyFiles, final Map<File, PolicyStore> _fragments, 
+			             final long startTime, final long startBytes) {
+		install(policyFiles, _fragments, null, startTime, startBytes);
+	}
+	
+	/**
+	 * Method to merge the statements parsed from each file, in file order, into a new {@link PolicySnapshot} and publish it.
+	 * @param policyFiles
+	 * @param _fragments : the statements parsed from each file, restricted in place to the given files
+	 * @param layout : the saved tables of the index of the merged statements, or null to compile the index
+	 * @param startTime
+	 * @param startBytes : the bytes allocated by the current thread when the reload started, or -1 if not available
+	 */
+	private void install(final List<File> policyFiles, final Map<File, PolicyStore> _fragments, final PolicyIndex.Layout layout,
+			             final long startTime, final long startBytes) {
+		
+		_fragments.keySet().retainAll(policyFiles);
+		
+		// merge the statements in file order
+        final List<PolicyStore> stores = new ArrayList<PolicyStore>();
+        for (final File policyFile : policyFiles) {
+        	final PolicyStore store = _fragments.get(policyFile);
+        	if (store!=null) stores.add(store);
+        }
+		
+        // build the new snapshot on the side, then publish it
+        final PolicyStore store = PolicyStore.merge(stores);
+        PolicySnapshot _snapshot = layout!=null && _fragments.size()==policyFiles.size()
+        		                 ? new PolicySnapshot(generations.incrementAndGet(), store, new PolicyIndex(store, layout), 
+        		                		              _fragments.size(), System.currentTimeMillis()-startTime)
+                                 : new PolicySnapshot(generations.incrementAndGet(), store, 
+                                                      _fragments.size(), System.currentTimeMillis()-startTime, matchingEngine);
+        
+        // apply the runtime changes to the new policies
+        if (!overlay.isEmpty()) {
+        	overlay = overlay.rebase(_snapshot.getIndex(), matchingEngine);
+        	_snapshot = new PolicySnapshot(_snapshot, _snapshot.getGeneration(), overlay);
+        }
+        
+        // the changes sent to peers only come from the files whose statements were replaced
+        final List<PolicyStore> removedStores = new ArrayList<PolicyStore>();
+        final List<PolicyStore> addedStores = new ArrayList<PolicyStore>();
+        for (final Map.Entry<File, PolicyStore> entry : fragments.entrySet()) {
+        	if (_fragments.get(entry.getKey())!=entry.getValue()) removedStores.add(entry.getValue());
+        }
+        for (final Map.Entry<File, PolicyStore> entry : _fragments.entrySet()) {
+        	if (fragments.get(entry.getKey())!=entry.getValue()) addedStores.add(entry.getValue());
+        }
+        publish(_snapshot, removedStores, addedStores);
+        fragments = _fragments;
+        if (LOG.isInfoEnabled()) {
+        	final long endBytes = getAllocatedBytes();
+        	LOG.info("Installed "+_snapshot.getStatistics()+", parser="+(streaming ? "streaming" : "tree")
+        			 +(startBytes>=0 && endBytes>=0 ? ", allocated bytes="+(endBytes-startBytes) : ""));
+        }
+        for (final PolicyPattern pattern : _snapshot.getIndex().getUnsupportedPatterns()) {
+        	LOG.warn("Resource expression not supported by the linear matching engine, using java.util.regex: "+pattern.getUnsupportedReason());
+        }
+        
+        // discard lookups computed from the previous policies
+        cache.invalidate();
+        if (LOG.isDebugEnabled()) print();
+		
+	}
 
 	@Override
 	public List<PolicyAttribute> getRequiredAttributes(String resource, String action) {
 	    	    
-        // reload policies if needed
-        watcher.reload();        
+        // reload policies if needed (unless they are being parsed in the background)
+        if (!rebuilding) watcher.reload();        
 
-		final List<PolicyAttribute> attributes = new ArrayList<PolicyAttribute>();
-		
-		for (final Pattern pattern : policies.keySet()) {
-			Matcher matcher = pattern.matcher(resource);
-			if (matcher.matches()) {
-				for (final PolicyStatement pstmt : policies.get(pattern)) {
-					if (pstmt.getAction().toString().equalsIgnoreCase(action)) {
-						attributes.add(pstmt.getAttribute());
-					}
+        // only the known actions can be entitled by a policy
+        final PolicyAction _action = toAction(action);
+        if (_action==null) return Collections.emptyList();
+        
+        // all lookups below use the same consistent snapshot, and the same form of the resource
+        final PolicySnapshot _snapshot = snapshot.get();
+        final String _resource = toResource(resource);
+        
+        // look up the memoized result first
+        final PolicyLookupCache _cache = cache;
+        final List<PolicyAttribute> attributes = _cache.get(_resource, _action, _snapshot.getGeneration());
+        if (attributes!=null) return attributes;
+        
+        return _cache.put(_resource, _action, _snapshot.getRequiredAttributes(_resource, _action), _snapshot.getGeneration());
+
+	}
+	
+	@Override
+	public PolicyAccess getAccess(String resource, String action) {
+		
+        // reload policies if needed (unless they are being parsed in the background)
+        if (!rebuilding) watcher.reload();        
+        
+        // only the known actions can be entitled by a policy
+        final PolicyAction _action = toAction(action);
+        if (_action==null) return PolicyAccess.NONE;
+        
+        return snapshot.get().getAccess(toResource(resource), _action);
+		
+	}
+	
+	@Override
+	public PolicyLookup lookup(String resource, String action) {
+		
+        // reload policies if needed (unless they are being parsed in the background)
+        if (!rebuilding) watcher.reload();        
+        
+        // only the known actions can be entitled by a policy
+        final PolicyAction _action = toAction(action);
+        if (_action==null) return PolicyLookup.NONE;
+        
+        // the access and the attributes come from the same snapshot
+        return snapshot.get().lookup(toResource(resource), _action, cache);
+		
+	}
+	
+	@Override
+	public List<PolicyStatement> getEntitlements(Map<String, Set<String>> attributes) {
+		
+        // reload policies if needed (unless they are being parsed in the background)
+        if (!rebuilding) watcher.reload();        
+        
+        // the user attributes, with the roles they imply
+        return snapshot.get().getEntitlements(roleHierarchy.getImpliedAttributes(attributes));
+		
+	}
+	
+	/**
+	 * Method to set the implications between the roles of each group, used to list the entitlements of a user
+	 * (see {@link #getEntitlements(Map)}).
+	 * @param roleHierarchy
+	 */
+	public void setRoleHierarchy(final RoleHierarchy roleHierarchy) {
+		this.roleHierarchy = roleHierarchy;
+	}
+	
+	@Override
+	public long getGeneration() {
+		
+        // reload policies if needed (unless they are being parsed in the background)
+        if (!rebuilding) watcher.reload();
+        
+		return snapshot.get().getGeneration();
+	}
+	
+	@Override
+	public synchronized boolean addPolicy(String resource, String syntax, String attributeType, String attributeValue, String action) throws IOException {
+		
+		final PolicyOverlay.Change change = newChange(resource, syntax, attributeType, attributeValue, action);
+		validate(Collections.singleton(change.getPattern()));
+		return apply(overlay.add(change, snapshot.get().getIndex(), matchingEngine), true, change);
+		
+	}
+	
+	@Override
+	public synchronized boolean removePolicy(String resource, String syntax, String attributeType, String attributeValue, String action) throws IOException {
+		
+		final PolicyOverlay.Change change = newChange(resource, syntax, attributeType, attributeValue, action);
+		return apply(overlay.remove(change, snapshot.get().getIndex(), matchingEngine), false, change);
+		
+	}
+	
+	private static PolicyOverlay.Change newChange(String resource, String syntax, String attributeType, String attributeValue, String action) {
+		final PolicyAction _action = toAction(action);
+		if (_action==null) throw new IllegalArgumentException("Unknown action: "+action);
+		return new PolicyOverlay.Change(resource, syntax, attributeType, attributeValue, _action);
+	}
+	
+	/**
+	 * Method to save and publish new runtime changes, sharing the compiled policy files of the current snapshot.
+	 * The changes are not published if they cannot be saved.
+	 * @param _overlay : the new changes, or the current ones if nothing changed
+	 * @param added : true if the statement was added, false if it was removed
+	 * @param change
+	 * @return true if the policies changed
+	 * @throws IOException
+	 */
+	private boolean apply(final PolicyOverlay _overlay, final boolean added, final PolicyOverlay.Change change) throws IOException {
+		
+		if (_overlay==overlay) return false;
+		
+		if (overlayFile!=null) overlayFile.write(_overlay);
+		overlay = _overlay;
+		
+		final PolicySnapshot _snapshot = new PolicySnapshot(snapshot.get(), generations.incrementAndGet(), _overlay);
+		publish(_snapshot, Collections.<PolicyStore>emptyList(), Collections.<PolicyStore>emptyList());
+		cache.invalidate();
+		if (LOG.isInfoEnabled()) LOG.info((added ? "Added" : "Removed")+" policy statement: "+change+", policy snapshot generation="+_snapshot.getGeneration()
+				                          +" "+_overlay.getStatistics());
+		return true;
+		
+	}
+	
+	/**
+	 * Method to save the runtime changes to the given XML file, and apply the changes already saved in it (if it exists).
+	 * @param path
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	public synchronized void setOverlayFile(final String path) throws IOException, XMLStreamException {
+		
+		overlayFile = new PolicyOverlayFile(new File(path));
+		
+		final List<PolicyOverlay.Change> additions = new ArrayList<PolicyOverlay.Change>();
+		final List<PolicyOverlay.Change> removals = new ArrayList<PolicyOverlay.Change>();
+		overlayFile.read(additions, removals);
+		validate(getPatterns(additions));
+		
+		final PolicySnapshot current = snapshot.get();
+		overlay = new PolicyOverlay(additions, removals, current.getIndex(), matchingEngine);
+		publish(new PolicySnapshot(current, generations.incrementAndGet(), overlay), 
+				Collections.<PolicyStore>emptyList(), Collections.<PolicyStore>emptyList());
+		cache.invalidate();
+		if (LOG.isInfoEnabled()) LOG.info("Loaded policy overlay file="+overlayFile.getFile().getAbsolutePath()+" "+overlay.getStatistics());
+		
+	}
+	
+	/**
+	 * Method to publish a new snapshot, and record its changes from the current one.
+	 * The changes are computed from the replaced files and the runtime changes only (see {@link PolicyChangeLog#diff}):
+	 * when the first policies are loaded, or when the changes cannot be applied by peers, the peers receive all the statements.
+	 * @param _snapshot
+	 * @param removedStores : the statements of the files replaced in the new snapshot
+	 * @param addedStores : the statements of the files replacing them
+	 */
+	private void publish(final PolicySnapshot _snapshot, final List<PolicyStore> removedStores, final List<PolicyStore> addedStores) {
+		
+		final PolicySnapshot current = snapshot.get();
+		final List<PolicyOverlay.Change> additions = new ArrayList<PolicyOverlay.Change>();
+		final List<PolicyOverlay.Change> removals = new ArrayList<PolicyOverlay.Change>();
+		final boolean incremental = current.getNumberOfStatements()>0 
+				                 && PolicyChangeLog.diff(current, _snapshot, removedStores, addedStores, additions, removals);
+		profiler.attach(_snapshot.getIndex(), _snapshot.getOverlay().getIndex());
+		snapshot.set(_snapshot);
+		if (incremental) {
+			changeLog.record(_snapshot, additions, removals);
+		} else {
+			changeLog.reset(_snapshot);
+		}
+		
+	}
+	
+	/**
+	 * @return the version of the current policies, as exchanged with peers
+	 */
+	public String getVersion() {
+		
+        // reload policies if needed (unless they are being parsed in the background),
+        // without holding the lock of the service, which is taken by the reload
+        if (!rebuilding) watcher.reload();
+        
+		return changeLog.getVersion();
+	}
+	
+	/**
+	 * Method to list the statements changed since the given version of the policies, for a peer that keeps a copy of them.
+	 * @param since : the version of the policies last received by the peer, or null if none
+	 * @return the changes, or all the current statements if the changes since the given version are no longer known
+	 */
+	public PolicyDelta getChanges(final String since) {
+		
+        // reload policies if needed (unless they are being parsed in the background),
+        // without holding the lock of the service, which is taken by the reload
+        if (!rebuilding) watcher.reload();
+        
+		return changeLog.getChanges(since);
+	}
+	
+	/**
+	 * Method to change the maximum number of changed statements remembered to answer peers (see {@link #getChanges(String)}).
+	 * Peers that are further behind receive all the statements.
+	 * @param changeLogSize
+	 */
+	public synchronized void setChangeLogSize(final int changeLogSize) {
+		changeLog = new PolicyChangeLog(changeLogSize, snapshot.get());
+	}
+	
+	private static List<Pattern> getPatterns(final List<PolicyOverlay.Change> changes) {
+		final List<Pattern> patterns = new ArrayList<Pattern>();
+		for (final PolicyOverlay.Change change : changes) {
+			patterns.add(change.getPattern());
+		}
+		return patterns;
+	}
+	
+	/**
+	 * Method to switch between checking the policy files for changes at every request (the default),
+	 * and watching them for changes from a background thread, which keeps file system access off the request path.
+	 * @param watchFiles
+	 */
+	public void setWatchFiles(final boolean watchFiles) {
+		if (watchFiles) {
+			watcher.startWatching();
+		} else {
+			watcher.stopWatching();
+		}
+	}
+	
+	/**
+	 * Method to release the background file watcher, if any.
+	 * The watcher is stopped without holding the lock of the service, which the watcher thread takes to install changes.
+	 */
+	public void close() {
+		watcher.stopWatching();
+		synchronized (this) {
+			if (jmxName!=null) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+				} catch(JMException e) {
+					LOG.warn("Error unregistering policy profiler: "+jmxName+": "+e.getMessage());
 				}
+				jmxName = null;
 			}
 		}
+	}
+	
+	/**
+	 * Method to start or stop counting the evaluations of each resource expression (disabled by default).
+	 * @param profiling
+	 */
+	public void setProfiling(final boolean profiling) {
+		profiler.setEnabled(profiling);
+	}
+	
+	/**
+	 * Method to register the {@link PolicyProfiler} in the platform MBean server, so that it can be enabled
+	 * and its reports dumped from a JMX console.
+	 * @param name : the object name of the MBean, for example "esg.security:type=PolicyProfiler"
+	 * @throws JMException
+	 */
+	public synchronized void setJmxName(final String name) throws JMException {
+		final ObjectName _jmxName = new ObjectName(name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(profiler, _jmxName);
+		jmxName = _jmxName;
+	}
+	
+	/**
+	 * @return the counters of the evaluations of each resource expression
+	 */
+	public PolicyProfiler getProfiler() {
+		return profiler;
+	}
+	
+	/**
+	 * Method to change the maximum number of memoized (resource, action) lookups.
+	 * A value of 0 disables memoization.
+	 * @param cacheSize
+	 */
+	public void setCacheSize(final int cacheSize) {
+		cache = new PolicyLookupCache(cacheSize);
+	}
+	
+	/**
+	 * @return the cache of memoized lookups, to monitor its hit and miss counts
+	 */
+	public PolicyLookupCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * @return the policies currently in use
+	 */
+	public PolicySnapshot getSnapshot() {
+		return snapshot.get();
+	}
+	
+	/**
+	 * Method to match the requested action to a {@link PolicyAction}, disregarding case.
+	 * @param action
+	 * @return the matching action, or null if none matches
+	 */
+	static PolicyAction toAction(final String action) {
+		for (final PolicyAction _action : PolicyAction.values()) {
+			if (_action.toString().equalsIgnoreCase(action)) return _action;
+		}
+		return null;
+	}
+	
+	/**
+	 * Method to normalize the path of the requested resource, so that its equivalent forms are matched,
+	 * and cached, as one resource: "%2F" is decoded, duplicate slashes are collapsed (except in the "scheme://" of a URL),
+	 * and a trailing slash is removed (except from the root path).
+	 * @param resource
+	 * @return the normalized resource, the same instance if it is already normalized
+	 */
+	static String toResource(final String resource) {
 		
-		return attributes;
-
+		if (resource==null) return null;
+		final int start = getPathStart(resource);
+		if (isNormalized(resource, start)) return resource;
+		
+		final StringBuilder builder = new StringBuilder(resource.length());
+		builder.append(resource, 0, start);
+		for (int i=start; i<resource.length(); i++) {
+			char c = resource.charAt(i);
+			if (isEncodedSlash(resource, i)) {
+				c = '/';
+				i += 2;
+			}
+			if (c=='/' && builder.length()>start && builder.charAt(builder.length()-1)=='/') continue;
+			builder.append(c);
+		}
+		if (builder.length()>start+1 && builder.charAt(builder.length()-1)=='/') builder.setLength(builder.length()-1);
+		return builder.toString();
+		
+	}
+	
+	private static boolean isNormalized(final String resource, final int start) {
+		for (int i=start; i<resource.length(); i++) {
+			if (isEncodedSlash(resource, i)) return false;
+			if (resource.charAt(i)=='/' && (i+1==resource.length() ? i>start : resource.charAt(i+1)=='/')) return false;
+		}
+		return true;
+	}
+	
+	private static boolean isEncodedSlash(final String resource, final int i) {
+		return resource.charAt(i)=='%' && i+2<resource.length() && resource.charAt(i+1)=='2' 
+			   && (resource.charAt(i+2)=='F' || resource.charAt(i+2)=='f');
 	}
 	
 	/**
-	 * Method to parse a single XML file containing policy statements into the given policy map.
+	 * @return the position after the "scheme://" of a URL, or 0
+	 */
+	private static int getPathStart(final String resource) {
+		final int separator = resource.indexOf("://");
+		if (separator<=0) return 0;
+		for (int i=0; i<separator; i++) {
+			final char c = resource.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c!='+' && c!='-' && c!='.') return 0;
+		}
+		return separator+3;
+	}
+	
+	/**
+	 * Method to choose whether the policy files are read with the streaming {@link PolicyStreamParser} (the default),
+	 * or by building a full JDOM document first.
+	 * @param streaming
+	 */
+	public void setStreaming(final boolean streaming) {
+		this.streaming = streaming;
+	}
+	
+	/**
+	 * Method to parse a single XML policy file with the configured parser.
+	 * @param file
+	 * @param parser : the streaming parser shared by all files of the same reload
+	 * @return the policy statements of the file, in compact form
+	 * @throws Exception
+	 */
+	private PolicyStore parseFile(final File file, final PolicyStreamParser parser) throws Exception {
+		
+		final LinkedHashMap<Pattern, List<PolicyStatement>> filePolicies = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+		if (streaming) {
+			parser.parse(file, filePolicies);
+		} else {
+			parseXml(file, filePolicies);
+		}
+		validate(filePolicies.keySet());
+		return new PolicyStore(filePolicies);
+		
+	}
+	
+	/**
+	 * Method to choose the engine used to match the resource expressions ({@link MatchingEngine#REGEX} by default).
+	 * The policy files are parsed again, so that they are validated for the new engine.
+	 * @param matchingEngine
+	 */
+	public void setMatchingEngine(final MatchingEngine matchingEngine) {
+		this.matchingEngine = matchingEngine;
+		parse(watcher.getFiles());
+	}
+	
+	public MatchingEngine getMatchingEngine() {
+		return matchingEngine;
+	}
+	
+	/**
+	 * Method to reject the policies of a file if the linear-time engine is required, and does not support all their expressions.
+	 * @param patterns : the resource expressions of the file
+	 * @throws IllegalArgumentException
+	 */
+	private void validate(final Collection<Pattern> patterns) {
+		
+		if (matchingEngine!=MatchingEngine.LINEAR_ONLY) return;
+		for (final Pattern pattern : patterns) {
+			final String reason = new PolicyPattern(pattern, true).getUnsupportedReason();
+			if (reason!=null) throw new IllegalArgumentException("Resource expression not supported by the linear matching engine: "+reason);
+		}
+		
+	}
+	
+	/**
+	 * @return the number of bytes allocated by the current thread, or -1 if the JVM does not report it
+	 */
+	private static long getAllocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			final com.sun.management.ThreadMXBean _bean = (com.sun.management.ThreadMXBean)bean;
+			if (_bean.isThreadAllocatedMemorySupported() && _bean.isThreadAllocatedMemoryEnabled()) {
+				return _bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1L;
+	}
+	
+	/**
+	 * Method to parse a single XML file containing policy statements into the given policy map, by building a JDOM document.
 	 * 
 	 * @param file
 	 * @param _policies
@@ -152,13 +927,19 @@ public class PolicyServiceLocalXmlImpl implements PolicyService, ReloadableFileS
 		
 		for (final Object pol : root.getChildren("policy", NS)) {
 			final Element policy = (Element)pol;
+			if (PolicyStreamParser.isRemoval(policy.getAttributeValue("remove"))) {
+				PolicyStreamParser.warnRemoval(policy.getAttributeValue("resource"));
+				continue;
+			}
 			final String resource = policy.getAttributeValue("resource");
-			final Pattern pattern = Pattern.compile(resource);
-			if (patterns.get(resource)==null) {
-				patterns.put(resource, pattern);
+			final String syntax = policy.getAttributeValue("syntax");
+			final String key = (syntax==null ? PolicyPattern.SYNTAX_REGEX : syntax)+":"+resource;
+			if (patterns.get(key)==null) {
+				final Pattern pattern = PolicyPattern.compile(resource, syntax);
+				patterns.put(key, pattern);
 				_policies.put(pattern, new ArrayList<PolicyStatement>());
 			}
-			_policies.get(patterns.get(resource)).add(
+			_policies.get(patterns.get(key)).add(
 			  		      new PolicyStatementImpl(policy.getAttributeValue("resource"), 
 					    	 	                  policy.getAttributeValue("attribute_type"), 
 					    		                  policy.getAttributeValue("attribute_value"),
@@ -171,6 +952,7 @@ public class PolicyServiceLocalXmlImpl implements PolicyService, ReloadableFileS
 	// debug method
 	public void print() {
 		
+		final Map<Pattern, List<PolicyStatement>> policies = snapshot.get().getPolicies();
 		for (final Pattern p : policies.keySet()) {
 			System.out.println("Resource Pattern="+p.toString());
 			for (final PolicyStatement pstmt : policies.get(p)) {
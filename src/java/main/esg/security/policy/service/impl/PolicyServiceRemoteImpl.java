@@ -0,0 +1,401 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import esg.security.common.SAMLParameters;
+import esg.security.policy.service.api.PolicyAccess;
+import esg.security.policy.service.api.PolicyAction;
+import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyLookup;
+import esg.security.policy.service.api.PolicyService;
+import esg.security.policy.service.api.PolicyStatement;
+
+/**
+ * Implementation of {@link esg.security.policy.service.api.PolicyService} that keeps a local copy of the policies of a peer,
+ * pulled from its policy export endpoint (see {@link esg.security.policy.web.PolicyExportController}).
+ * The endpoint only answers white-listed peers over HTTPS: this service authenticates with the certificate of the JVM
+ * default key store (see the "javax.net.ssl.keyStore" system property).
+ * 
+ * The copy is compiled into a {@link PolicySnapshot}, so that requests are answered locally without any network access.
+ * The copy is revalidated once per refresh interval by a background thread, started by {@link #start()}: the thread sends
+ * the version of its copy as an ETag, and receives either a 304 (Not Modified) response, or only the statements changed
+ * since that version (see {@link PolicyDelta}). The changes are applied as a {@link PolicyOverlay} on top of the compiled copy,
+ * which is only compiled again when the changes grow large, or when the peer sends all its statements.
+ * Requests never access the network: they are answered from the current copy, which is empty (denying all restricted access)
+ * until the peer is first reached. If the peer cannot be reached, the current copy keeps being used until the next refresh interval.
+ * 
+ * The policies cannot be changed through this service.
+ *
+ */
+public class PolicyServiceRemoteImpl implements PolicyService {
+	
+	// default time between revalidations of the local copy
+	public final static long DEFAULT_REFRESH_INTERVAL_MILLIS = 60000L;
+	
+	// minimum number of changes compiled into a new copy, rather than applied as an overlay
+	private final static int MIN_COMPACTION_SIZE = 1000;
+	
+	// timeout to connect to and read from the peer
+	private final static int TIMEOUT_MILLIS = 10000;
+	
+	// URL of the policy export endpoint of the peer
+	private final String url;
+	
+	// local copy of the policies
+	private final AtomicReference<PolicySnapshot> snapshot = new AtomicReference<PolicySnapshot>(new PolicySnapshot());
+	
+	// version of the local copy, or null if none was received (written while holding this)
+	private volatile String version = null;
+	
+	// compiled statements of the local copy, without the changes of the overlay (guarded by this)
+	private PolicySnapshot base = new PolicySnapshot();
+	
+	private volatile long refreshIntervalMillis = DEFAULT_REFRESH_INTERVAL_MILLIS;
+	
+	// engine used to match the resource expressions
+	private volatile MatchingEngine matchingEngine = MatchingEngine.REGEX;
+	
+	// implications between the roles of each group, none by default
+	private volatile RoleHierarchy roleHierarchy = new RoleHierarchy("");
+	
+	// source of local snapshot generation numbers
+	private long generations = 0L;
+	
+	// memoized lookup results
+	private volatile PolicyLookupCache cache = new PolicyLookupCache(PolicyServiceLocalXmlImpl.DEFAULT_CACHE_SIZE);
+	
+	// true while the background thread is revalidating the copy
+	private volatile boolean running = false;
+	private Thread refreshThread = null;
+	
+	private final Log LOG = LogFactory.getLog(this.getClass());
+	
+	/**
+	 * Constructor does not access the peer: the policies are copied by {@link #start()}, or by {@link #refresh()}.
+	 * @param url : the URL of the policy export endpoint of the peer
+	 */
+	public PolicyServiceRemoteImpl(final String url) {
+		this.url = url;
+	}
+	
+	/**
+	 * Method to start the background thread that copies the policies of the peer right away, 
+	 * and then revalidates the copy every refresh interval.
+	 */
+	public synchronized void start() {
+		
+		if (running) return;
+		
+		refreshThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (running && !Thread.currentThread().isInterrupted()) {
+						try {
+							refresh();
+						} catch(RuntimeException e) {
+							LOG.error("Error refreshing policies from: "+url+": "+e.getMessage(), e);
+						}
+						Thread.sleep(refreshIntervalMillis);
+					}
+				} catch(InterruptedException e) {
+					// stop refreshing
+				}
+			}
+		}, "PolicyServiceRemoteImpl-refresh");
+		refreshThread.setDaemon(true);
+		running = true;
+		refreshThread.start();
+		
+	}
+	
+	/**
+	 * Method to stop the background thread, if any: the current copy keeps being used.
+	 */
+	public synchronized void close() {
+		
+		if (!running) return;
+		
+		running = false;
+		refreshThread.interrupt();
+		refreshThread = null;
+		
+	}
+	
+	/**
+	 * Method to revalidate the local copy of the policies with the peer, and apply the changes received.
+	 * @return true if the local copy changed
+	 */
+	public synchronized boolean refresh() {
+		
+		try {
+			final PolicyDelta delta = fetch();
+			if (delta==null) return false;
+			apply(delta);
+			return true;
+		} catch(IOException e) {
+			LOG.warn("Error retrieving policies from: "+url+": "+e.getMessage()+", keeping policy snapshot generation="+snapshot.get().getGeneration());
+		} catch(XMLStreamException e) {
+			LOG.warn("Error parsing policies from: "+url+": "+e.getMessage()+", keeping policy snapshot generation="+snapshot.get().getGeneration());
+		} catch(IllegalArgumentException e) {
+			LOG.warn("Policies from: "+url+" not used: "+e.getMessage()+", keeping policy snapshot generation="+snapshot.get().getGeneration());
+		}
+		return false;
+		
+	}
+	
+	/**
+	 * Method to request the changes since the version of the local copy.
+	 * @return the changes, or null if the local copy is up to date
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	private PolicyDelta fetch() throws IOException, XMLStreamException {
+		
+		final String _url = version==null ? url 
+				          : url+(url.indexOf('?')<0 ? "?" : "&")+SAMLParameters.HTTP_PARAMETER_SINCE+"="+URLEncoder.encode(version, "UTF-8");
+		final HttpURLConnection connection = (HttpURLConnection)new URL(_url).openConnection();
+		try {
+			connection.setConnectTimeout(TIMEOUT_MILLIS);
+			connection.setReadTimeout(TIMEOUT_MILLIS);
+			if (version!=null) connection.setRequestProperty("If-None-Match", "\""+version+"\"");
+			
+			final int status = connection.getResponseCode();
+			if (status==HttpURLConnection.HTTP_NOT_MODIFIED) {
+				if (LOG.isDebugEnabled()) LOG.debug("Policies from: "+url+" not modified since version="+version);
+				return null;
+			}
+			if (status!=HttpURLConnection.HTTP_OK) throw new IOException("HTTP GET request failed: url="+_url+" error="+status);
+			
+			final InputStream in = new BufferedInputStream(connection.getInputStream());
+			try {
+				return PolicyDelta.read(in);
+			} finally {
+				in.close();
+			}
+		} finally {
+			connection.disconnect();
+		}
+		
+	}
+	
+	/**
+	 * Method to apply the changes received from the peer, and publish the new local copy.
+	 * @param delta
+	 */
+	private void apply(final PolicyDelta delta) {
+		
+		final long startTime = System.currentTimeMillis();
+		final MatchingEngine engine = matchingEngine;
+		validate(delta.getAdditions(), engine);
+		
+		PolicySnapshot _snapshot;
+		if (delta.isFull()) {
+			base = compile(delta.getAdditions(), startTime, engine);
+			_snapshot = base;
+		} else {
+			final PolicyOverlay overlay = snapshot.get().getOverlay().apply(delta.getAdditions(), delta.getRemovals(), base.getIndex(), engine);
+			_snapshot = new PolicySnapshot(base, ++generations, overlay);
+			
+			// compile the changes into the copy once they cost more than the shared index saves
+			if (overlay.getAdditions().size()+overlay.getRemovals().size() > Math.max(MIN_COMPACTION_SIZE, base.getNumberOfStatements()/8)) {
+				base = compile(_snapshot.getStatements(), startTime, engine);
+				_snapshot = base;
+			}
+		}
+		
+		snapshot.set(_snapshot);
+		version = delta.getVersion();
+		cache.invalidate();
+		if (LOG.isInfoEnabled()) LOG.info("Applied "+(delta.isFull() ? "all" : delta.size())+" policy changes from: "+url
+				                          +", version="+version+" "+_snapshot.getStatistics());
+		
+	}
+	
+	/**
+	 * Method to compile the given statements into a new snapshot.
+	 * @param statements
+	 * @param startTime
+	 * @param engine
+	 * @return
+	 */
+	private PolicySnapshot compile(final List<PolicyOverlay.Change> statements, final long startTime, final MatchingEngine engine) {
+		
+		// group the statements by expression, keeping the order of their first occurrence
+		final Map<String, List<PolicyOverlay.Change>> groups = new LinkedHashMap<String, List<PolicyOverlay.Change>>();
+		for (final PolicyOverlay.Change statement : statements) {
+			final String key = statement.getPattern().flags()+":"+statement.getPattern().pattern();
+			List<PolicyOverlay.Change> group = groups.get(key);
+			if (group==null) {
+				group = new ArrayList<PolicyOverlay.Change>();
+				groups.put(key, group);
+			}
+			group.add(statement);
+		}
+		
+		final PolicyStore.Builder builder = new PolicyStore.Builder();
+		for (final List<PolicyOverlay.Change> group : groups.values()) {
+			builder.addPattern(group.get(0).getPattern(), group.get(0).getResource());
+			for (final PolicyOverlay.Change statement : group) {
+				builder.addStatement(statement.getType(), statement.getValue(), statement.getAction());
+			}
+		}
+		return new PolicySnapshot(++generations, builder.build(), 0, System.currentTimeMillis()-startTime, engine);
+		
+	}
+	
+	/**
+	 * Method to reject the changes if the linear-time engine is required, and does not support all their expressions.
+	 * @param statements
+	 * @param engine
+	 * @throws IllegalArgumentException
+	 */
+	private static void validate(final List<PolicyOverlay.Change> statements, final MatchingEngine engine) {
+		
+		if (engine!=MatchingEngine.LINEAR_ONLY) return;
+		for (final PolicyOverlay.Change statement : statements) {
+			final String reason = new PolicyPattern(statement.getPattern(), true).getUnsupportedReason();
+			if (reason!=null) throw new IllegalArgumentException("Resource expression not supported by the linear matching engine: "+reason);
+		}
+		
+	}
+	
+	@Override
+	public List<PolicyAttribute> getRequiredAttributes(String resource, String action) {
+		
+        // only the known actions can be entitled by a policy
+        final PolicyAction _action = PolicyServiceLocalXmlImpl.toAction(action);
+        if (_action==null) return Collections.emptyList();
+        
+        // all lookups below use the same consistent snapshot, and the same form of the resource
+        final PolicySnapshot _snapshot = snapshot.get();
+        final String _resource = PolicyServiceLocalXmlImpl.toResource(resource);
+        
+        // look up the memoized result first
+        final PolicyLookupCache _cache = cache;
+        final List<PolicyAttribute> attributes = _cache.get(_resource, _action, _snapshot.getGeneration());
+        if (attributes!=null) return attributes;
+        
+        return _cache.put(_resource, _action, _snapshot.getRequiredAttributes(_resource, _action), _snapshot.getGeneration());
+		
+	}
+	
+	@Override
+	public PolicyAccess getAccess(String resource, String action) {
+		
+        // only the known actions can be entitled by a policy
+        final PolicyAction _action = PolicyServiceLocalXmlImpl.toAction(action);
+        if (_action==null) return PolicyAccess.NONE;
+        
+        return snapshot.get().getAccess(PolicyServiceLocalXmlImpl.toResource(resource), _action);
+        
+	}
+	
+	@Override
+	public PolicyLookup lookup(String resource, String action) {
+		
+        // only the known actions can be entitled by a policy
+        final PolicyAction _action = PolicyServiceLocalXmlImpl.toAction(action);
+        if (_action==null) return PolicyLookup.NONE;
+        
+        // the access and the attributes come from the same snapshot
+        return snapshot.get().lookup(PolicyServiceLocalXmlImpl.toResource(resource), _action, cache);
+		
+	}
+	
+	@Override
+	public List<PolicyStatement> getEntitlements(Map<String, Set<String>> attributes) {
+		
+        // the user attributes, with the roles they imply
+        return snapshot.get().getEntitlements(roleHierarchy.getImpliedAttributes(attributes));
+        
+	}
+	
+	@Override
+	public long getGeneration() {
+		return snapshot.get().getGeneration();
+	}
+	
+	/**
+	 * Method to change the time between revalidations of the local copy with the peer, from the next revalidation.
+	 * @param refreshIntervalMillis
+	 */
+	public void setRefreshIntervalMillis(final long refreshIntervalMillis) {
+		this.refreshIntervalMillis = refreshIntervalMillis;
+	}
+	
+	/**
+	 * Method to choose the engine used to match the resource expressions of the peer ({@link MatchingEngine#REGEX} by default),
+	 * from the next changes received.
+	 * @param matchingEngine
+	 */
+	public void setMatchingEngine(final MatchingEngine matchingEngine) {
+		this.matchingEngine = matchingEngine;
+	}
+	
+	/**
+	 * Method to set the implications between the roles of each group, used to list the entitlements of a user.
+	 * @param roleHierarchy
+	 */
+	public void setRoleHierarchy(final RoleHierarchy roleHierarchy) {
+		this.roleHierarchy = roleHierarchy;
+	}
+	
+	/**
+	 * Method to change the maximum number of memoized (resource, action) lookups.
+	 * @param cacheSize
+	 */
+	public void setCacheSize(final int cacheSize) {
+		cache = new PolicyLookupCache(cacheSize);
+	}
+	
+	/**
+	 * @return the version of the local copy, as received from the peer, or null if none was received
+	 */
+	public String getVersion() {
+		return version;
+	}
+	
+	/**
+	 * @return the local copy of the policies
+	 */
+	public PolicySnapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+}
@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import esg.security.policy.service.api.PolicyAccess;
+import esg.security.policy.service.api.PolicyAction;
+import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyLookup;
+import esg.security.policy.service.api.PolicyStatement;
+
+/**
+ * Immutable set of policies loaded at one time, together with its compiled {@link PolicyIndex} and loading statistics.
+ * 
+ * A snapshot is fully built before being published, and is never modified afterwards:
+ * it can therefore be shared by any number of request threads without locking.
+ * The policy changes made at runtime are applied as a {@link PolicyOverlay} on top of the statements of the policy files:
+ * a new snapshot with a different overlay shares the store and index of the previous one.
+ *
+ */
+public class PolicySnapshot {
+	
+	// sequential number identifying this snapshot
+	private final long generation;
+	
+	// policy statements, in policy file order
+	private final PolicyStore store;
+	
+	private final PolicyIndex index;
+	
+	// runtime changes on top of the policy files
+	private final PolicyOverlay overlay;
+	
+	private final int numberOfFiles;
+	private final int numberOfStatements;
+	private final long loadTimeMillis;
+	private final long timestamp;
+	
+	/**
+	 * Empty snapshot, used before any policy file is loaded.
+	 */
+	public PolicySnapshot() {
+		this(0L, new LinkedHashMap<Pattern, List<PolicyStatement>>(), 0, 0L);
+	}
+	
+	/**
+	 * Constructor compiles the policy index from the given policy statements.
+	 * 
+	 * @param generation : sequential number of this snapshot
+	 * @param policies : resource expression > policy statements, in policy file order
+	 * @param numberOfFiles : number of policy files successfully parsed
+	 * @param loadTimeMillis : time spent parsing the policy files
+	 */
+	public PolicySnapshot(final long generation, final LinkedHashMap<Pattern, List<PolicyStatement>> policies, 
+			              final int numberOfFiles, final long loadTimeMillis) {
+		this(generation, policies, numberOfFiles, loadTimeMillis, MatchingEngine.REGEX);
+	}
+	
+	/**
+	 * Constructor compiles the policy index from the given policy statements, for the given matching engine.
+	 * 
+	 * @param generation : sequential number of this snapshot
+	 * @param policies : resource expression > policy statements, in policy file order
+	 * @param numberOfFiles : number of policy files successfully parsed
+	 * @param loadTimeMillis : time spent parsing the policy files
+	 * @param engine : the engine used to match the resource expressions
+	 */
+	public PolicySnapshot(final long generation, final LinkedHashMap<Pattern, List<PolicyStatement>> policies, 
+			              final int numberOfFiles, final long loadTimeMillis, final MatchingEngine engine) {
+		this(generation, new PolicyStore(policies), numberOfFiles, loadTimeMillis, engine);
+	}
+	
+	/**
+	 * Constructor compiles the policy index from the given store of policy statements, for the given matching engine.
+	 * 
+	 * @param generation : sequential number of this snapshot
+	 * @param store : policy statements, in policy file order
+	 * @param numberOfFiles : number of policy files successfully parsed
+	 * @param loadTimeMillis : time spent parsing the policy files
+	 * @param engine : the engine used to match the resource expressions
+	 */
+	public PolicySnapshot(final long generation, final PolicyStore store, 
+			              final int numberOfFiles, final long loadTimeMillis, final MatchingEngine engine) {
+		this(generation, store, new PolicyIndex(store, engine), numberOfFiles, loadTimeMillis);
+	}
+	
+	/**
+	 * Constructor for the given store of policy statements and its index, 
+	 * for example restored from a saved {@link PolicyIndex.Layout}.
+	 * 
+	 * @param generation : sequential number of this snapshot
+	 * @param store : policy statements, in policy file order
+	 * @param index : the index of the store
+	 * @param numberOfFiles : number of policy files successfully parsed
+	 * @param loadTimeMillis : time spent loading the policy files
+	 */
+	public PolicySnapshot(final long generation, final PolicyStore store, final PolicyIndex index,
+			              final int numberOfFiles, final long loadTimeMillis) {
+		
+		this.generation = generation;
+		this.store = store;
+		this.index = index;
+		this.overlay = new PolicyOverlay();
+		
+		this.numberOfFiles = numberOfFiles;
+		this.numberOfStatements = store.getNumberOfStatements();
+		this.loadTimeMillis = loadTimeMillis;
+		this.timestamp = System.currentTimeMillis();
+		
+	}
+	
+	/**
+	 * Constructor applies the given runtime changes to the policy files of another snapshot, sharing its compiled index.
+	 * 
+	 * @param snapshot : the snapshot of the policy files
+	 * @param generation : sequential number of this snapshot
+	 * @param overlay : the changes, resolved against the index of the given snapshot
+	 */
+	public PolicySnapshot(final PolicySnapshot snapshot, final long generation, final PolicyOverlay overlay) {
+		
+		this.generation = generation;
+		this.store = snapshot.store;
+		this.index = snapshot.index;
+		this.overlay = overlay;
+		
+		this.numberOfFiles = snapshot.numberOfFiles;
+		this.numberOfStatements = store.getNumberOfStatements()-overlay.getRemoved().length+overlay.getAdditions().size();
+		this.loadTimeMillis = snapshot.loadTimeMillis;
+		this.timestamp = System.currentTimeMillis();
+		
+	}
+	
+	/**
+	 * Method to retrieve the attributes that entitle the given action on the given resource,
+	 * from the policy files and the runtime changes.
+	 * @param resource
+	 * @param action
+	 * @return
+	 */
+	public List<PolicyAttribute> getRequiredAttributes(final String resource, final PolicyAction action) {
+		final List<PolicyAttribute> attributes = new ArrayList<PolicyAttribute>();
+		index.collect(resource, action, overlay.getRemoved(), attributes);
+		if (overlay.getIndex().size()>0) overlay.getIndex().collect(resource, action, PolicyIndex.NONE, attributes);
+		return attributes;
+	}
+	
+	/**
+	 * Method to classify the access to the given resource for the given action,
+	 * from the policy files and the runtime changes.
+	 * @param resource
+	 * @param action
+	 * @return
+	 */
+	public PolicyAccess getAccess(final String resource, final PolicyAction action) {
+		final PolicyAccess access = index.getAccess(resource, action, overlay.getRemoved());
+		if (access==PolicyAccess.FREE || overlay.getIndex().size()==0) return access;
+		final PolicyAccess _access = overlay.getIndex().getAccess(resource, action);
+		return _access.compareTo(access)>0 ? _access : access;
+	}
+
+	/**
+	 * Method to classify the access to the given resource for the given action and, if it is restricted,
+	 * to retrieve the attributes that entitle it from the given cache, or from this snapshot.
+	 * @param resource
+	 * @param action
+	 * @param cache : the memoized attributes of this snapshot's generation
+	 * @return
+	 */
+	public PolicyLookup lookup(final String resource, final PolicyAction action, final PolicyLookupCache cache) {
+		
+		final PolicyAccess access = getAccess(resource, action);
+		if (access!=PolicyAccess.RESTRICTED) return new PolicyLookup(access, Collections.<PolicyAttribute>emptyList());
+		
+		List<PolicyAttribute> attributes = cache.get(resource, action, generation);
+		if (attributes==null) attributes = cache.put(resource, action, getRequiredAttributes(resource, action), generation);
+		return new PolicyLookup(access, attributes);
+		
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Method to list the statements entitled by the given user attributes, from the policy files and the runtime changes,
+	 * together with the statements open to all users. Each (resource expression, action) pair is listed once,
+	 * with the first attribute that entitles it, in policy file order followed by the statements added at runtime.
+	 * @param attributes : the attributes of the user
+	 * @return
+	 */
+	public List<PolicyStatement> getEntitlements(final Collection<PolicyAttribute> attributes) {
+		final List<PolicyStatement> statements = new ArrayList<PolicyStatement>();
+		collect(index, attributes, overlay.getRemoved(), statements);
+		collect(overlay.getIndex(), attributes, PolicyIndex.NONE, statements);
+		return statements;
+	}
+	
+	private static void collect(final PolicyIndex index, final Collection<PolicyAttribute> attributes, final int[] removed, 
+			                    final List<PolicyStatement> statements) {
+		
+		final PolicyIndex.IntBuffer buffer = new PolicyIndex.IntBuffer(index.getOpenStatements());
+		for (final PolicyAttribute attribute : attributes) {
+			buffer.addAll(index.getEntitlements(attribute));
+		}
+		final int[] positions = buffer.toSortedArray();
+		
+		// the statements of an expression are contiguous: keep the actions already listed for the current expression
+		final PolicyStore store = index.getStore();
+		int ordinal = -1;
+		int actions = 0;
+		for (final int statement : positions) {
+			if (removed.length>0 && Arrays.binarySearch(removed, statement)>=0) continue;
+			final int _ordinal = store.getOrdinal(statement);
+			if (_ordinal!=ordinal) {
+				ordinal = _ordinal;
+				actions = 0;
+			}
+			final int action = 1<<store.getAction(statement).ordinal();
+			if ((actions & action)==0) {
+				actions |= action;
+				statements.add(new PolicyStatementImpl(store.getResource(ordinal), store.getAttribute(statement), store.getAction(statement)));
+			}
+		}
+		
+	}
+	
+	/**
+	 * @return the policy statements by resource expression, in policy file order followed by the statements added at runtime,
+	 *         created from the {@link PolicyStore}s
+	 */
+	public Map<Pattern, List<PolicyStatement>> getPolicies() {
+		final Map<Pattern, List<PolicyStatement>> policies = store.toMap(overlay.getRemoved());
+		policies.putAll(overlay.getIndex().getStore().toMap());
+		return Collections.unmodifiableMap(policies);
+	}
+	
+	/**
+	 * @return the statements in effect, in policy file order followed by the statements added at runtime,
+	 *         each with its compiled resource expression
+	 */
+	public List<PolicyOverlay.Change> getStatements() {
+		final int[] removed = overlay.getRemoved();
+		final List<PolicyOverlay.Change> statements = new ArrayList<PolicyOverlay.Change>(numberOfStatements);
+		for (int ordinal=0; ordinal<store.size(); ordinal++) {
+			for (int statement=store.getStart(ordinal); statement<store.getEnd(ordinal); statement++) {
+				if (removed.length>0 && Arrays.binarySearch(removed, statement)>=0) continue;
+				final PolicyAttribute attribute = store.getAttribute(statement);
+				statements.add(new PolicyOverlay.Change(store.getPattern(ordinal), store.getResource(ordinal), 
+						                                attribute.getType(), attribute.getValue(), store.getAction(statement)));
+			}
+		}
+		statements.addAll(overlay.getAdditions());
+		return statements;
+	}
+	
+	public PolicyStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @return the index of the policy files, without the runtime changes
+	 */
+	public PolicyIndex getIndex() {
+		return index;
+	}
+	
+	public PolicyOverlay getOverlay() {
+		return overlay;
+	}
+
+	public int getNumberOfFiles() {
+		return numberOfFiles;
+	}
+
+	public int getNumberOfStatements() {
+		return numberOfStatements;
+	}
+
+	public long getLoadTimeMillis() {
+		return loadTimeMillis;
+	}
+
+	/**
+	 * @return the time this snapshot was built, in milliseconds since the Unix Epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	/**
+	 * Method to summarize the content of this snapshot, for logging purposes.
+	 * @return
+	 */
+	public String getStatistics() {
+		return "Policy snapshot generation="+generation
+		     + " files="+numberOfFiles
+		     + " statements="+numberOfStatements
+		     + " load time="+loadTimeMillis+" ms "
+		     + index.getStatistics()+" "
+		     + store.getHeapReport()
+		     + (overlay.isEmpty() ? "" : " "+overlay.getStatistics());
+	}
+
+}
@@ -0,0 +1,385 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import esg.security.policy.service.api.PolicyAction;
+
+/**
+ * Compact binary format for the policy statements parsed from a set of XML policy files,
+ * used to answer requests at startup without parsing the XML files.
+ * 
+ * The binary file is written next to the first XML file after all files have been parsed successfully,
+ * and is only read back if it was written for the same list of files, and is newer than all of them.
+ * It contains a table of all distinct strings, followed by the statements of each file
+ * expressed as indexes into the string table, and by the tables of the {@link PolicyIndex} of all the statements,
+ * so that the index is restored without analyzing or compiling the resource expressions
+ * (each expression is compiled the first time it is evaluated):
+ * <pre>
+ * int magic, int version
+ * int number of strings, { int length, UTF-8 bytes }
+ * int number of files, { int path, int number of patterns, { int expression, int flags, int resource, int number of statements, { int type, int value, int action } } }
+ * int index present (0 or 1), [ int engine, int fast path statements, int linear patterns, int number of access classes, { byte access },
+ *                               3 x { int number of groups, { int text, ordinals } } (exact, prefix and literal groups),
+ *                               ordinals (unfiltered), ordinals (unsupported) ]
+ * long CRC32 of all the previous bytes
+ * </pre>
+ * where ordinals is: int number of ordinals, { int ordinal }.
+ */
+public class PolicySnapshotFile {
+	
+	private final static int MAGIC = 0x45534750; // "ESGP"
+	private final static int VERSION = 3;
+	
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	
+	// suffix appended to the name of the first XML file
+	public final static String SUFFIX = ".snapshot";
+	
+	private final File file;
+	
+	/**
+	 * Content of a binary snapshot.
+	 */
+	public static class Contents {
+		
+		private final Map<File, PolicyStore> fragments;
+		private final PolicyIndex.Layout layout;
+		
+		Contents(final Map<File, PolicyStore> fragments, final PolicyIndex.Layout layout) {
+			this.fragments = fragments;
+			this.layout = layout;
+		}
+		
+		/**
+		 * @return the statements of each file
+		 */
+		public Map<File, PolicyStore> getFragments() {
+			return fragments;
+		}
+		
+		/**
+		 * @return the tables of the index of all the statements merged in file order, or null if they were not saved
+		 */
+		public PolicyIndex.Layout getLayout() {
+			return layout;
+		}
+		
+	}
+	
+	/**
+	 * Constructor for the binary snapshot of the given XML files.
+	 * @param policyFiles
+	 */
+	public PolicySnapshotFile(final List<File> policyFiles) {
+		this.file = new File(policyFiles.get(0).getAbsolutePath()+SUFFIX);
+	}
+	
+	/**
+	 * @return the location of the binary snapshot
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * @param policyFiles
+	 * @return true if the binary snapshot exists and was written after all the XML files were last modified
+	 */
+	public boolean isUpToDate(final List<File> policyFiles) {
+		if (!file.exists()) return false;
+		final long lastModified = file.lastModified();
+		for (final File policyFile : policyFiles) {
+			if (!policyFile.exists() || policyFile.lastModified()>=lastModified) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Method to write the statements of the given files to the binary snapshot.
+	 * @param policyFiles
+	 * @param fragments : the statements parsed from each file
+	 * @throws IOException
+	 */
+	public void write(final List<File> policyFiles, final Map<File, PolicyStore> fragments) throws IOException {
+		write(policyFiles, fragments, null);
+	}
+	
+	/**
+	 * Method to write the statements of the given files, and the tables of their index, to the binary snapshot.
+	 * The snapshot is written to a temporary file first, which then replaces the previous snapshot in one step.
+	 * 
+	 * @param policyFiles
+	 * @param fragments : the statements parsed from each file
+	 * @param index : the index of all the statements merged in file order, or null
+	 * @throws IOException
+	 */
+	public void write(final List<File> policyFiles, final Map<File, PolicyStore> fragments, final PolicyIndex index) throws IOException {
+		
+		// build the string table
+		final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		int numberOfPatterns = 0;
+		for (final File policyFile : policyFiles) {
+			index(strings, policyFile.getAbsolutePath());
+			final PolicyStore store = fragments.get(policyFile);
+			for (int i=0; i<store.size(); i++) {
+				index(strings, store.getExpression(i));
+				index(strings, store.getResource(i));
+				for (int s=store.getStart(i); s<store.getEnd(i); s++) {
+					index(strings, store.getAttribute(s).getType());
+					index(strings, store.getAttribute(s).getValue());
+				}
+			}
+			numberOfPatterns += store.size();
+		}
+		
+		// the index tables are only valid for the same statements
+		final PolicyIndex.Layout layout = index!=null && index.size()==numberOfPatterns ? index.getLayout() : null;
+		if (layout!=null) {
+			for (final String text : layout.exact.keySet()) index(strings, text);
+			for (final String text : layout.prefixes.keySet()) index(strings, text);
+			for (final String text : layout.literals) index(strings, text);
+		}
+		
+		final File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			final CRC32 checksum = new CRC32();
+			final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+					                     new BufferedOutputStream(new FileOutputStream(tmpFile)), checksum));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(strings.size());
+				for (final String string : strings.keySet()) {
+					final byte[] bytes = string.getBytes(UTF8);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+				out.writeInt(policyFiles.size());
+				for (final File policyFile : policyFiles) {
+					final PolicyStore store = fragments.get(policyFile);
+					out.writeInt(strings.get(policyFile.getAbsolutePath()));
+					out.writeInt(store.size());
+					for (int i=0; i<store.size(); i++) {
+						out.writeInt(strings.get(store.getExpression(i)));
+						out.writeInt(store.getFlags(i));
+						out.writeInt(indexOf(strings, store.getResource(i)));
+						out.writeInt(store.getEnd(i)-store.getStart(i));
+						for (int s=store.getStart(i); s<store.getEnd(i); s++) {
+							out.writeInt(indexOf(strings, store.getAttribute(s).getType()));
+							out.writeInt(indexOf(strings, store.getAttribute(s).getValue()));
+							out.writeInt(store.getAction(s).ordinal());
+						}
+					}
+				}
+				out.writeInt(layout!=null ? 1 : 0);
+				if (layout!=null) {
+					out.writeInt(layout.engine.ordinal());
+					out.writeInt(layout.fastPathStatements);
+					out.writeInt(layout.linearPatterns);
+					out.writeInt(layout.access.length);
+					out.write(layout.access);
+					writeGroups(out, strings, layout.exact);
+					writeGroups(out, strings, layout.prefixes);
+					out.writeInt(layout.literals.length);
+					for (int i=0; i<layout.literals.length; i++) {
+						out.writeInt(strings.get(layout.literals[i]));
+						writeOrdinals(out, layout.literalOrdinals[i]);
+					}
+					writeOrdinals(out, layout.unfiltered);
+					writeOrdinals(out, layout.unsupported);
+				}
+				out.writeLong(checksum.getValue());
+			} finally {
+				out.close();
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmpFile.delete();
+		}
+		
+	}
+	
+	/**
+	 * Method to read the statements of the given files from the memory-mapped binary snapshot.
+	 * 
+	 * @param policyFiles
+	 * @return the statements of each file, or null if the snapshot was written for a different list of files
+	 * @throws IOException if the snapshot cannot be read or is corrupted
+	 */
+	public Map<File, PolicyStore> read(final List<File> policyFiles) throws IOException {
+		final Contents contents = read(policyFiles, null);
+		return contents==null ? null : contents.getFragments();
+	}
+	
+	/**
+	 * Method to read the statements of the given files, and the tables of their index, from the memory-mapped binary snapshot.
+	 * The resource expressions are not compiled: the whole snapshot is verified against its checksum instead.
+	 * 
+	 * @param policyFiles
+	 * @param engine : the engine the index must have been built for, or null to ignore the index tables
+	 * @return the content of the snapshot, or null if the snapshot was written for a different list of files
+	 * @throws IOException if the snapshot cannot be read or is corrupted
+	 */
+	public Contents read(final List<File> policyFiles, final MatchingEngine engine) throws IOException {
+		
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			
+			if (buffer.getInt()!=MAGIC || buffer.getInt()!=VERSION) {
+				throw new IOException("Unknown policy snapshot format: "+file.getAbsolutePath());
+			}
+			final ByteBuffer content = buffer.duplicate();
+			content.position(0).limit(buffer.limit()-8);
+			final CRC32 checksum = new CRC32();
+			checksum.update(content);
+			if (checksum.getValue()!=buffer.getLong(buffer.limit()-8)) {
+				throw new IOException("Corrupted policy snapshot (checksum mismatch): "+file.getAbsolutePath());
+			}
+			
+			final String[] strings = new String[buffer.getInt()];
+			for (int i=0; i<strings.length; i++) {
+				final byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				strings[i] = new String(bytes, UTF8);
+			}
+			
+			final int numberOfFiles = buffer.getInt();
+			if (numberOfFiles!=policyFiles.size()) return null;
+			final Map<File, PolicyStore> fragments = new HashMap<File, PolicyStore>();
+			final PolicyAction[] actions = PolicyAction.values();
+			int totalPatterns = 0;
+			for (final File policyFile : policyFiles) {
+				if (!strings[buffer.getInt()].equals(policyFile.getAbsolutePath())) return null;
+				final PolicyStore.Builder builder = new PolicyStore.Builder();
+				final int numberOfPatterns = buffer.getInt();
+				for (int i=0; i<numberOfPatterns; i++) {
+					final String expression = strings[buffer.getInt()];
+					final int flags = buffer.getInt();
+					final String resource = string(strings, buffer.getInt());
+					builder.addPattern(expression, flags, resource);
+					final int numberOfStatements = buffer.getInt();
+					for (int j=0; j<numberOfStatements; j++) {
+						final String type = string(strings, buffer.getInt());
+						final String value = string(strings, buffer.getInt());
+						builder.addStatement(type, value, actions[buffer.getInt()]);
+					}
+				}
+				fragments.put(policyFile, builder.build());
+				totalPatterns += numberOfPatterns;
+			}
+			
+			PolicyIndex.Layout layout = null;
+			if (buffer.getInt()==1) {
+				final MatchingEngine _engine = MatchingEngine.values()[buffer.getInt()];
+				final int fastPathStatements = buffer.getInt();
+				final int linearPatterns = buffer.getInt();
+				final byte[] access = new byte[buffer.getInt()];
+				buffer.get(access);
+				final Map<String, int[]> exact = readGroups(buffer, strings, totalPatterns);
+				final Map<String, int[]> prefixes = readGroups(buffer, strings, totalPatterns);
+				final String[] literals = new String[buffer.getInt()];
+				final int[][] literalOrdinals = new int[literals.length][];
+				for (int i=0; i<literals.length; i++) {
+					literals[i] = strings[buffer.getInt()];
+					literalOrdinals[i] = readOrdinals(buffer, totalPatterns);
+				}
+				final int[] unfiltered = readOrdinals(buffer, totalPatterns);
+				final int[] unsupported = readOrdinals(buffer, totalPatterns);
+				if (_engine==engine) {
+					layout = new PolicyIndex.Layout(_engine, access, exact, prefixes, literals, literalOrdinals, unfiltered, unsupported, 
+							                        fastPathStatements, linearPatterns);
+				}
+			}
+			return new Contents(fragments, layout);
+			
+		} catch(RuntimeException e) {
+			// truncated buffer, index out of bounds
+			throw new IOException("Corrupted policy snapshot: "+file.getAbsolutePath(), e);
+		} finally {
+			raf.close();
+		}
+		
+	}
+	
+	private static void writeGroups(final DataOutputStream out, final Map<String, Integer> strings, final Map<String, int[]> groups) throws IOException {
+		out.writeInt(groups.size());
+		for (final Map.Entry<String, int[]> entry : groups.entrySet()) {
+			out.writeInt(strings.get(entry.getKey()));
+			writeOrdinals(out, entry.getValue());
+		}
+	}
+	
+	private static void writeOrdinals(final DataOutputStream out, final int[] ordinals) throws IOException {
+		out.writeInt(ordinals.length);
+		for (final int ordinal : ordinals) out.writeInt(ordinal);
+	}
+	
+	private static Map<String, int[]> readGroups(final ByteBuffer buffer, final String[] strings, final int numberOfPatterns) {
+		final int size = buffer.getInt();
+		final Map<String, int[]> groups = new HashMap<String, int[]>();
+		for (int i=0; i<size; i++) {
+			final String text = strings[buffer.getInt()];
+			groups.put(text, readOrdinals(buffer, numberOfPatterns));
+		}
+		return groups;
+	}
+	
+	private static int[] readOrdinals(final ByteBuffer buffer, final int numberOfPatterns) {
+		final int[] ordinals = new int[buffer.getInt()];
+		for (int i=0; i<ordinals.length; i++) {
+			ordinals[i] = buffer.getInt();
+			if (ordinals[i]<0 || ordinals[i]>=numberOfPatterns) throw new IndexOutOfBoundsException("Expression ordinal: "+ordinals[i]);
+		}
+		return ordinals;
+	}
+	
+	private static void index(final Map<String, Integer> strings, final String string) {
+		if (string!=null && !strings.containsKey(string)) strings.put(string, strings.size());
+	}
+	
+	private static int indexOf(final Map<String, Integer> strings, final String string) {
+		return string==null ? -1 : strings.get(string);
+	}
+	
+	private static String string(final String[] strings, final int index) {
+		return index<0 ? null : strings[index];
+	}
+
+}
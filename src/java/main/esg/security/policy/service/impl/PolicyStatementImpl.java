@@ -41,6 +41,12 @@ public class PolicyStatementImpl implements PolicyStatement {
 		this.attribute = new PolicyAttributeImpl(attributeType, attributeValue);
 		this.action = PolicyAction.valueOf(action);
 	}
+	
+	public PolicyStatementImpl(final String resource, final PolicyAttribute attribute, final PolicyAction action) {
+		this.resource = resource;
+		this.attribute = attribute;
+		this.action = action;
+	}
 
 	@Override
 	public String getResource() {
@@ -0,0 +1,482 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+import esg.security.policy.service.api.PolicyAction;
+import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyStatement;
+
+/**
+ * Compact, read-only store of policy statements grouped by resource expression, in policy file order.
+ * 
+ * Instead of one {@link PolicyStatementImpl} and one {@link PolicyAttributeImpl} object per statement,
+ * inside one list per expression, the store keeps:
+ * <ul>
+ *  <li>a dictionary of the distinct attribute type and value strings
+ *  <li>one shared {@link PolicyAttribute} instance per distinct (type, value) pair
+ *  <li>the statements as a single column of primitive ints (attribute and action), ordered by expression,
+ *      with the offset of the first statement of each expression
+ * </ul>
+ * All the statements of an expression share the same resource text.
+ * {@link PolicyStatement} objects are only created on demand, by {@link #getStatements(int)} and {@link #toMap()},
+ * and the expressions of a store read from a {@link PolicySnapshotFile} are only compiled when first used.
+ *
+ */
+public class PolicyStore {
+	
+	private final static PolicyAction[] ACTIONS = PolicyAction.values();
+	
+	// resource expressions (text, flags, and compiled expression once used), and the resource text of their statements
+	private final String[] expressions;
+	private final int[] flags;
+	private final AtomicReferenceArray<Pattern> patterns;
+	private final String[] resources;
+	
+	// the statements of expression i are at offsets[i] (inclusive) to offsets[i+1] (exclusive)
+	private final int[] offsets;
+	
+	// statement column: attribute ordinal * number of actions + action ordinal
+	private final int[] statements;
+	
+	// dictionary of attribute types and values
+	private final String[] strings;
+	
+	// shared attribute instances
+	private final PolicyAttribute[] attributes;
+	
+	/**
+	 * Constructor converts the given ordered map of policy statements.
+	 * @param policies
+	 */
+	public PolicyStore(final Map<Pattern, List<PolicyStatement>> policies) {
+		this(new Builder().addAll(policies));
+	}
+	
+	private PolicyStore(final Builder builder) {
+		this.expressions = builder.expressions.toArray(new String[builder.expressions.size()]);
+		this.flags = Arrays.copyOf(builder.flags, expressions.length);
+		this.patterns = new AtomicReferenceArray<Pattern>(builder.patterns.toArray(new Pattern[builder.patterns.size()]));
+		this.resources = builder.resources.toArray(new String[builder.resources.size()]);
+		this.offsets = Arrays.copyOf(builder.offsets, expressions.length+1);
+		this.offsets[expressions.length] = builder.size;
+		this.statements = Arrays.copyOf(builder.statements, builder.size);
+		this.strings = builder.strings.toArray(new String[builder.strings.size()]);
+		this.attributes = builder.attributes.toArray(new PolicyAttribute[builder.attributes.size()]);
+	}
+	
+	/**
+	 * Method to concatenate several stores, in the given order, sharing their strings and attributes.
+	 * @param stores
+	 * @return
+	 */
+	public static PolicyStore merge(final List<PolicyStore> stores) {
+		final Builder builder = new Builder();
+		for (final PolicyStore store : stores) {
+			for (int i=0; i<store.size(); i++) {
+				builder.addPattern(store.expressions[i], store.flags[i], store.patterns.get(i), store.resources[i]);
+				for (int s=store.offsets[i]; s<store.offsets[i+1]; s++) {
+					builder.addStatement(store.getAttribute(s).getType(), store.getAttribute(s).getValue(), store.getAction(s));
+				}
+			}
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * @return the number of resource expressions
+	 */
+	public int size() {
+		return expressions.length;
+	}
+	
+	/**
+	 * @return the total number of statements
+	 */
+	public int getNumberOfStatements() {
+		return statements.length;
+	}
+	
+	/**
+	 * @param ordinal
+	 * @return the compiled expression, compiled now if it was not used yet
+	 */
+	public Pattern getPattern(final int ordinal) {
+		Pattern pattern = patterns.get(ordinal);
+		if (pattern==null) {
+			pattern = Pattern.compile(expressions[ordinal], flags[ordinal]);
+			patterns.set(ordinal, pattern);
+		}
+		return pattern;
+	}
+	
+	/**
+	 * @return the compiled expressions, each compiled when it is first accessed
+	 */
+	public List<Pattern> getPatterns() {
+		return new AbstractList<Pattern>() {
+			@Override
+			public Pattern get(final int ordinal) {
+				return getPattern(ordinal);
+			}
+			@Override
+			public int size() {
+				return expressions.length;
+			}
+		};
+	}
+	
+	/**
+	 * @return the text of the expression, without compiling it
+	 */
+	public String getExpression(final int ordinal) {
+		return expressions[ordinal];
+	}
+	
+	/**
+	 * @return the flags of the expression, without compiling it
+	 */
+	public int getFlags(final int ordinal) {
+		return flags[ordinal];
+	}
+	
+	public String getResource(final int ordinal) {
+		return resources[ordinal];
+	}
+	
+	/**
+	 * @return the index of the first statement of the given expression
+	 */
+	public int getStart(final int ordinal) {
+		return offsets[ordinal];
+	}
+	
+	/**
+	 * @return the index after the last statement of the given expression
+	 */
+	public int getEnd(final int ordinal) {
+		return offsets[ordinal+1];
+	}
+	
+	/**
+	 * @param statement
+	 * @return the ordinal of the resource expression of the given statement
+	 */
+	public int getOrdinal(final int statement) {
+		// last expression starting at or before the statement (expressions without statements start at the same offset)
+		int low = 0;
+		int high = expressions.length-1;
+		while (low<high) {
+			final int mid = (low+high+1)>>>1;
+			if (offsets[mid]<=statement) {
+				low = mid;
+			} else {
+				high = mid-1;
+			}
+		}
+		return low;
+	}
+	
+	public PolicyAttribute getAttribute(final int statement) {
+		return attributes[statements[statement]/ACTIONS.length];
+	}
+	
+	public PolicyAction getAction(final int statement) {
+		return ACTIONS[statements[statement]%ACTIONS.length];
+	}
+	
+	/**
+	 * Method to add the attributes of the statements of the given expression for the given action to a list.
+	 * @param ordinal
+	 * @param action
+	 * @param list
+	 */
+	public void collect(final int ordinal, final PolicyAction action, final List<PolicyAttribute> list) {
+		final int _action = action.ordinal();
+		for (int s=offsets[ordinal]; s<offsets[ordinal+1]; s++) {
+			if (statements[s]%ACTIONS.length==_action) list.add(attributes[statements[s]/ACTIONS.length]);
+		}
+	}
+	
+	/**
+	 * Method to add the attributes of the statements of the given expression for the given action to a list,
+	 * skipping the given statements.
+	 * @param ordinal
+	 * @param action
+	 * @param removed : sorted positions of the statements to skip
+	 * @param list
+	 */
+	public void collect(final int ordinal, final PolicyAction action, final int[] removed, final List<PolicyAttribute> list) {
+		if (removed.length==0 || !contains(removed, offsets[ordinal], offsets[ordinal+1])) {
+			collect(ordinal, action, list);
+			return;
+		}
+		final int _action = action.ordinal();
+		for (int s=offsets[ordinal]; s<offsets[ordinal+1]; s++) {
+			if (statements[s]%ACTIONS.length==_action && Arrays.binarySearch(removed, s)<0) list.add(attributes[statements[s]/ACTIONS.length]);
+		}
+	}
+	
+	/**
+	 * @param positions : sorted statement positions
+	 * @param start
+	 * @param end
+	 * @return true if some position is in the range [start, end)
+	 */
+	static boolean contains(final int[] positions, final int start, final int end) {
+		int i = Arrays.binarySearch(positions, start);
+		if (i<0) i = -(i+1);
+		return i<positions.length && positions[i]<end;
+	}
+	
+	/**
+	 * Method to create the statements of the given expression.
+	 * @param ordinal
+	 * @return
+	 */
+	public List<PolicyStatement> getStatements(final int ordinal) {
+		final List<PolicyStatement> _statements = new ArrayList<PolicyStatement>(offsets[ordinal+1]-offsets[ordinal]);
+		for (int s=offsets[ordinal]; s<offsets[ordinal+1]; s++) {
+			_statements.add(new PolicyStatementImpl(resources[ordinal], getAttribute(s), getAction(s)));
+		}
+		return _statements;
+	}
+	
+	/**
+	 * Method to create the map of all statements, by resource expression in policy file order.
+	 * @return
+	 */
+	public LinkedHashMap<Pattern, List<PolicyStatement>> toMap() {
+		return toMap(PolicyIndex.NONE);
+	}
+	
+	/**
+	 * Method to create the map of the statements, by resource expression in policy file order, skipping the given statements.
+	 * Expressions whose statements have all been skipped are omitted.
+	 * @param removed : sorted positions of the statements to skip
+	 * @return
+	 */
+	public LinkedHashMap<Pattern, List<PolicyStatement>> toMap(final int[] removed) {
+		final LinkedHashMap<Pattern, List<PolicyStatement>> map = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+		for (int i=0; i<expressions.length; i++) {
+			final List<PolicyStatement> _statements = getStatements(i);
+			for (int s=offsets[i+1]-1; s>=offsets[i] && removed.length>0; s--) {
+				if (Arrays.binarySearch(removed, s)>=0) _statements.remove(s-offsets[i]);
+			}
+			if (!_statements.isEmpty() || offsets[i]==offsets[i+1]) map.put(getPattern(i), _statements);
+		}
+		return map;
+	}
+	
+	/**
+	 * @return the number of distinct attribute types and values
+	 */
+	public int getNumberOfStrings() {
+		return strings.length;
+	}
+	
+	/**
+	 * @return the number of distinct attributes
+	 */
+	public int getNumberOfAttributes() {
+		return attributes.length;
+	}
+	
+	/**
+	 * Method to estimate the heap used by this store, excluding the compiled expressions.
+	 * The estimate assumes a 64-bit JVM with compressed references (12 bytes object headers, 4 bytes references).
+	 * @return
+	 */
+	public long getHeapBytes() {
+		long bytes = array(expressions.length, 4) + array(flags.length, 4) + array(expressions.length, 4) + array(resources.length, 4) + array(offsets.length, 4) + array(statements.length, 4)
+		           + array(strings.length, 4) + array(attributes.length, 4) + attributes.length*align(12+4+4);
+		for (final String string : strings) bytes += string(string);
+		for (int i=0; i<resources.length; i++) {
+			if (i==0 || resources[i]!=resources[i-1]) bytes += string(resources[i]);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Method to estimate the heap that the same statements use as one {@link PolicyStatementImpl} and one {@link PolicyAttributeImpl}
+	 * per statement, in one unmodifiable list per expression, with the same strings.
+	 * @return
+	 */
+	public long getObjectHeapBytes() {
+		long bytes = 0;
+		for (final String string : strings) bytes += string(string);
+		for (int i=0; i<expressions.length; i++) {
+			final int n = offsets[i+1]-offsets[i];
+			bytes += string(resources[i])
+			       + align(12+4+4+4) + array(n, 4)	// ArrayList
+			       + align(12+4+4)					// unmodifiable list
+			       + n*(align(12+4+4+4)+align(12+4+4));	// statement and attribute
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Method to compare the estimated heap used by this store with the equivalent objects, for logging purposes.
+	 * @return
+	 */
+	public String getHeapReport() {
+		final long bytes = getHeapBytes();
+		final long objectBytes = getObjectHeapBytes();
+		final int n = Math.max(1, statements.length);
+		return "strings="+strings.length+" attributes="+attributes.length
+		     + " heap bytes="+bytes+" ("+(bytes/n)+" per statement)"
+		     + " as objects="+objectBytes+" ("+(objectBytes/n)+" per statement)";
+	}
+	
+	private static long align(final long bytes) {
+		return (bytes+7) & ~7L;
+	}
+	
+	private static long array(final int length, final int width) {
+		return align(16+(long)length*width);
+	}
+	
+	private static long string(final String string) {
+		return string==null ? 0 : align(12+4+4+4)+array(string.length(), 2);
+	}
+	
+	/**
+	 * Builder of a store, one expression and its statements at a time.
+	 */
+	public static class Builder {
+		
+		private final List<String> expressions = new ArrayList<String>();
+		private int[] flags = new int[16];
+		private final List<Pattern> patterns = new ArrayList<Pattern>();
+		private final List<String> resources = new ArrayList<String>();
+		private int[] offsets = new int[16];
+		private int[] statements = new int[16];
+		private int size = 0;
+		
+		private final List<String> strings = new ArrayList<String>();
+		private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		private final List<PolicyAttribute> attributes = new ArrayList<PolicyAttribute>();
+		private final Map<Long, Integer> attributeIds = new HashMap<Long, Integer>();
+		
+		/**
+		 * Method to add the given statements, by resource expression.
+		 * @param policies
+		 * @return
+		 */
+		public Builder addAll(final Map<Pattern, List<PolicyStatement>> policies) {
+			for (final Map.Entry<Pattern, List<PolicyStatement>> entry : policies.entrySet()) {
+				final List<PolicyStatement> _statements = entry.getValue();
+				addPattern(entry.getKey(), _statements.isEmpty() ? entry.getKey().pattern() : _statements.get(0).getResource());
+				for (final PolicyStatement statement : _statements) {
+					addStatement(statement.getAttribute().getType(), statement.getAttribute().getValue(), statement.getAction());
+				}
+			}
+			return this;
+		}
+		
+		/**
+		 * Method to start a new resource expression: the following statements belong to it.
+		 * @param pattern
+		 * @param resource
+		 * @return
+		 */
+		public Builder addPattern(final Pattern pattern, final String resource) {
+			return addPattern(pattern.pattern(), pattern.flags(), pattern, resource);
+		}
+		
+		/**
+		 * Method to start a new resource expression that is compiled when first used.
+		 * @param expression
+		 * @param _flags
+		 * @param resource
+		 * @return
+		 */
+		public Builder addPattern(final String expression, final int _flags, final String resource) {
+			return addPattern(expression, _flags, null, resource);
+		}
+		
+		private Builder addPattern(final String expression, final int _flags, final Pattern pattern, final String resource) {
+			if (expressions.size()==offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length*2);
+				flags = Arrays.copyOf(flags, flags.length*2);
+			}
+			offsets[expressions.size()] = size;
+			flags[expressions.size()] = _flags;
+			expressions.add(expression);
+			patterns.add(pattern);
+			// consecutive expressions often share the same resource text
+			final int last = resources.size()-1;
+			resources.add(last>=0 && resource!=null && resource.equals(resources.get(last)) ? resources.get(last) : resource);
+			return this;
+		}
+		
+		/**
+		 * Method to add a statement to the last resource expression.
+		 * @param type
+		 * @param value
+		 * @param action
+		 * @return
+		 */
+		public Builder addStatement(final String type, final String value, final PolicyAction action) {
+			if (expressions.isEmpty()) throw new IllegalStateException("No resource expression");
+			if (size==statements.length) statements = Arrays.copyOf(statements, size*2);
+			statements[size++] = attribute(type, value)*ACTIONS.length+action.ordinal();
+			return this;
+		}
+		
+		public PolicyStore build() {
+			return new PolicyStore(this);
+		}
+		
+		private int attribute(final String type, final String value) {
+			final int typeId = string(type);
+			final int valueId = string(value);
+			final Long key = ((long)typeId<<32) | (valueId & 0xffffffffL);
+			Integer id = attributeIds.get(key);
+			if (id==null) {
+				id = attributes.size();
+				attributes.add(new PolicyAttributeImpl(typeId<0 ? null : strings.get(typeId), valueId<0 ? null : strings.get(valueId)));
+				attributeIds.put(key, id);
+			}
+			return id;
+		}
+		
+		private int string(final String string) {
+			if (string==null) return -1;
+			Integer id = stringIds.get(string);
+			if (id==null) {
+				id = strings.size();
+				strings.add(string);
+				stringIds.put(string, id);
+			}
+			return id;
+		}
+		
+	}
+
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import esg.security.policy.service.api.PolicyStatement;
+
+/**
+ * Streaming parser for XML policy files, based on the StAX API.
+ * The policy elements are read one at a time, without building a document tree, 
+ * so that memory use does not grow with the size of the file beyond the policy statements themselves.
+ * 
+ * The attribute values are interned in a string table shared by all files parsed by the same instance,
+ * so that the many statements that reference the same resource, attribute type, value or action share a single string.
+ * 
+ * Instances are not thread safe, and are meant to be used for a single reload of the policy files.
+ * 
+ * The statements marked with the "remove" attribute are only meaningful in the overlay file of the runtime changes
+ * (see {@link PolicyOverlayFile}): they are skipped, with a warning, rather than loaded as policies granting access.
+ */
+public class PolicyStreamParser {
+	
+	private final static String NS = "http://www.esgf.org/security";
+	
+	final static XMLInputFactory FACTORY = newFactory();
+	
+	// table of interned strings
+	private final Map<String, String> strings = new HashMap<String, String>();
+	
+	private final static Log LOG = LogFactory.getLog(PolicyStreamParser.class);
+	
+	/**
+	 * Method to parse a single XML file containing policy statements into the given policy map.
+	 * 
+	 * @param file
+	 * @param _policies
+	 * @return the number of policy statements parsed from the file
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	public int parse(final File file, final LinkedHashMap<Pattern, List<PolicyStatement>> _policies) throws IOException, XMLStreamException {
+		
+		final InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return parse(in, _policies);
+		} finally {
+			in.close();
+		}
+		
+	}
+	
+	/**
+	 * Method to parse an XML stream containing policy statements into the given policy map.
+	 * Only the "policy" elements that are direct children of the root element are read.
+	 * 
+	 * @param in
+	 * @param _policies
+	 * @return the number of policy statements parsed from the stream
+	 * @throws XMLStreamException
+	 */
+	public int parse(final InputStream in, final LinkedHashMap<Pattern, List<PolicyStatement>> _policies) throws XMLStreamException {
+		
+		// must store additional map because Pattern does not re-implement hashCode()
+		// (keyed by expression and flags, since the same resource may be given with different syntaxes)
+		final Map<String, Pattern> patterns = new HashMap<String, Pattern>();
+		
+		int statements = 0;
+		int depth = 0;
+		final XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+		try {
+			while (reader.hasNext()) {
+				final int event = reader.next();
+				if (event==XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (depth==2 && "policy".equals(reader.getLocalName()) && NS.equals(reader.getNamespaceURI())) {
+						if (isRemoval(reader.getAttributeValue(null, "remove"))) {
+							warnRemoval(reader.getAttributeValue(null, "resource"));
+							continue;
+						}
+						final String resource = intern(reader.getAttributeValue(null, "resource"));
+						final String syntax = reader.getAttributeValue(null, "syntax");
+						final String key = (syntax==null ? PolicyPattern.SYNTAX_REGEX : syntax)+":"+resource;
+						Pattern pattern = patterns.get(key);
+						if (pattern==null) {
+							pattern = PolicyPattern.compile(resource, syntax);
+							patterns.put(key, pattern);
+							_policies.put(pattern, new ArrayList<PolicyStatement>());
+						}
+						_policies.get(pattern).add(
+								new PolicyStatementImpl(resource, 
+										                intern(reader.getAttributeValue(null, "attribute_type")), 
+										                intern(reader.getAttributeValue(null, "attribute_value")),
+										                reader.getAttributeValue(null, "action"))
+						);
+						statements++;
+					}
+				} else if (event==XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return statements;
+		
+	}
+	
+	/**
+	 * @return true if the value of the "remove" attribute marks a statement as a removal
+	 */
+	static boolean isRemoval(final String remove) {
+		return "true".equals(remove) || "1".equals(remove);
+	}
+	
+	static void warnRemoval(final String resource) {
+		LOG.warn("Ignoring policy statement for resource="+resource+" marked as a removal: removals are only allowed in the overlay file");
+	}
+	
+	/**
+	 * @return the number of distinct strings in the interned string table
+	 */
+	public int getNumberOfStrings() {
+		return strings.size();
+	}
+	
+	private String intern(final String string) {
+		if (string==null) return null;
+		final String _string = strings.get(string);
+		if (_string!=null) return _string;
+		strings.put(string, string);
+		return string;
+	}
+	
+	/**
+	 * @return a namespace aware, non validating factory that does not resolve external entities
+	 */
+	private static XMLInputFactory newFactory() {
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+
+}
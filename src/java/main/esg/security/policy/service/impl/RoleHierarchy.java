@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import esg.security.policy.service.api.PolicyAttribute;
+
+/**
+ * Declared implication graph between the roles (i.e. the attribute values) of a group, 
+ * for example "admin > publisher > user": a user with the "admin" role is also entitled 
+ * to the policies that require the "publisher" or "user" role of the same group.
+ * 
+ * The transitive closure of the graph is computed once, when the hierarchy is created,
+ * so that each policy only needs to list the weakest role, and matching a required role 
+ * costs one set lookup per role of the user.
+ *
+ */
+public class RoleHierarchy {
+	
+	// role > all the roles it implies, including itself (only for the declared roles)
+	private final Map<String, Set<String>> closure = new HashMap<String, Set<String>>();
+	
+	/**
+	 * Constructor parses a comma-separated list of implication chains, for example: "super > admin > publisher > user, admin > data_manager".
+	 * Each role implies the roles that follow it in a chain. Roles are compared case-sensitively.
+	 * 
+	 * @param declaration : the implication chains, possibly empty
+	 * @throws IllegalArgumentException if a role name is empty
+	 */
+	public RoleHierarchy(final String declaration) {
+		
+		// direct implications
+		final Map<String, Set<String>> graph = new HashMap<String, Set<String>>();
+		for (final String chain : declaration.split(",")) {
+			if (chain.trim().length()==0) continue;
+			String previous = null;
+			for (String role : chain.split(">")) {
+				role = role.trim();
+				if (role.length()==0) throw new IllegalArgumentException("Empty role in role hierarchy: "+chain.trim());
+				if (!graph.containsKey(role)) graph.put(role, new LinkedHashSet<String>());
+				if (previous!=null) graph.get(previous).add(role);
+				previous = role;
+			}
+		}
+		
+		// transitive closure, by visiting the graph from each role (cycles make roles equivalent)
+		for (final String role : graph.keySet()) {
+			final Set<String> implied = new LinkedHashSet<String>();
+			final Deque<String> stack = new ArrayDeque<String>();
+			stack.push(role);
+			while (!stack.isEmpty()) {
+				final String _role = stack.pop();
+				if (implied.add(_role)) {
+					for (final String next : graph.get(_role)) stack.push(next);
+				}
+			}
+			closure.put(role, Collections.unmodifiableSet(implied));
+		}
+		
+	}
+	
+	/**
+	 * @param role
+	 * @return the roles implied by the given role, including itself
+	 */
+	public Set<String> getImpliedRoles(final String role) {
+		final Set<String> implied = closure.get(role);
+		return implied==null ? Collections.singleton(role) : implied;
+	}
+	
+	/**
+	 * @param attributes : the attributes of a user, as group > roles
+	 * @return the attributes of the user, together with the roles they imply
+	 */
+	public Set<PolicyAttribute> getImpliedAttributes(final Map<String, Set<String>> attributes) {
+		final Set<PolicyAttribute> _attributes = new HashSet<PolicyAttribute>();
+		for (final Map.Entry<String, Set<String>> entry : attributes.entrySet()) {
+			for (final String value : entry.getValue()) {
+				for (final String role : getImpliedRoles(value)) {
+					_attributes.add(new PolicyAttributeImpl(entry.getKey(), role));
+				}
+			}
+		}
+		return _attributes;
+	}
+	
+	/**
+	 * Method to check whether some of the given roles implies the required role.
+	 * @param roles : the roles of a user, for a given group
+	 * @param role : the role required by a policy
+	 * @return
+	 */
+	public boolean implies(final Set<String> roles, final String role) {
+		if (roles.contains(role)) return true;
+		if (closure.isEmpty()) return false;
+		for (final String _role : roles) {
+			final Set<String> implied = closure.get(_role);
+			if (implied!=null && implied.contains(role)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return true if no implication is declared
+	 */
+	public boolean isEmpty() {
+		return closure.isEmpty();
+	}
+	
+	@Override
+	public String toString() {
+		return closure.toString();
+	}
+
+}
@@ -0,0 +1,108 @@
+package esg.security.policy.web;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdom2.Element;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import esg.security.common.SAMLParameters;
+import esg.security.common.WhiteListCertificateProvider;
+import esg.security.policy.service.api.MutablePolicyService;
+import esg.security.utils.xml.Serializer;
+
+/**
+ * HTTP controller that adds or removes single policy statements at runtime, through the MutablePolicyService.
+ * 
+ * Requests must be POSTed over HTTPS by a client authenticated with an X509 certificate
+ * whose subject is included in the configured white list of administrators.
+ * The "operation" parameter is either "add" or "remove", and the statement is given by the parameters
+ * "resource", "syntax" (optional), "attribute_type", "attribute_value" and "action".
+ * 
+ * Example XML response:
+ * 
+ * <esgf:policyChange xmlns:esgf="http://www.esgf.org/" operation="add" changed="true" generation="12" />
+ *
+ */
+@Controller
+@RequestMapping("/secure/policyAdmin.htm")
+public class PolicyAdminController {
+    
+    public final static String OPERATION_ADD = "add";
+    public final static String OPERATION_REMOVE = "remove";
+    
+    private final MutablePolicyService policyService;
+    
+    private final WhiteListCertificateProvider whiteListCertificateProvider;
+    
+    private final Log LOG = LogFactory.getLog(this.getClass());
+    
+    /**
+     * @param policyService
+     * @param whiteListCertificateProvider : the white list of administrators allowed to change the policies
+     */
+    public PolicyAdminController(final MutablePolicyService policyService, final WhiteListCertificateProvider whiteListCertificateProvider) {
+        this.policyService = policyService;
+        this.whiteListCertificateProvider = whiteListCertificateProvider;
+    }
+    
+    /**
+     * Only controller method, processes HTTP requests of type POST.
+     * @param httpRequest
+     * @param httpResponse
+     * @throws Exception
+     */
+    @RequestMapping(method = RequestMethod.POST)
+    public void process(final HttpServletRequest httpRequest, final HttpServletResponse httpResponse) throws Exception {
+        
+        // mandatory SSL mutual authentication of white-listed administrators
+        if (!httpRequest.isSecure() || !whiteListCertificateProvider.validate(httpRequest)) {
+            LOG.warn("Rejected policy change from client="+httpRequest.getRemoteAddr()+": client is not included in the administrators white list");
+            httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN, "Client is not included in server's white list");
+            return;
+        }
+        
+        final String operation = httpRequest.getParameter(SAMLParameters.HTTP_PARAMETER_OPERATION);
+        final String resource = httpRequest.getParameter(SAMLParameters.HTTP_PARAMETER_RESOURCE);
+        final String syntax = httpRequest.getParameter(SAMLParameters.HTTP_PARAMETER_SYNTAX);
+        final String type = httpRequest.getParameter(SAMLParameters.HTTP_PARAMETER_ATTRIBUTE_TYPE);
+        final String value = httpRequest.getParameter(SAMLParameters.HTTP_PARAMETER_ATTRIBUTE_VALUE);
+        final String action = httpRequest.getParameter(SAMLParameters.HTTP_PARAMETER_ACTION);
+        if (!StringUtils.hasText(resource) || !StringUtils.hasText(type) || !StringUtils.hasText(action)) {
+            httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing required HTTP parameter: "+SAMLParameters.HTTP_PARAMETER_RESOURCE
+                                   +", "+SAMLParameters.HTTP_PARAMETER_ATTRIBUTE_TYPE+" and "+SAMLParameters.HTTP_PARAMETER_ACTION+" are required");
+            return;
+        }
+        
+        final boolean changed;
+        try {
+            if (OPERATION_ADD.equals(operation)) {
+                changed = policyService.addPolicy(resource, StringUtils.hasText(syntax) ? syntax : null, type, value, action);
+            } else if (OPERATION_REMOVE.equals(operation)) {
+                changed = policyService.removePolicy(resource, StringUtils.hasText(syntax) ? syntax : null, type, value, action);
+            } else {
+                httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "The HTTP parameter: "+SAMLParameters.HTTP_PARAMETER_OPERATION
+                                       +" must be one of: "+OPERATION_ADD+", "+OPERATION_REMOVE);
+                return;
+            }
+        } catch(IllegalArgumentException e) {
+            httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid policy statement: "+e.getMessage());
+            return;
+        }
+        
+        final Element rootEl = new Element("policyChange", SAMLParameters.NAMESPACE_ESGF);
+        rootEl.setAttribute("operation", operation);
+        rootEl.setAttribute("changed", Boolean.toString(changed));
+        rootEl.setAttribute("generation", Long.toString(policyService.getGeneration()));
+        
+        httpResponse.setContentType(SAMLParameters.CONTENT_TYPE_XML);
+        httpResponse.getWriter().write( Serializer.JDOMtoString(rootEl) );
+        
+    }
+
+}
@@ -0,0 +1,85 @@
+package esg.security.policy.web;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import esg.security.common.SAMLParameters;
+import esg.security.common.WhiteListCertificateProvider;
+import esg.security.policy.service.impl.PolicyDelta;
+import esg.security.policy.service.impl.PolicyServiceLocalXmlImpl;
+
+/**
+ * HTTP controller that exports the local policies to peers, which keep a copy of them
+ * (see {@link esg.security.policy.service.impl.PolicyServiceRemoteImpl}).
+ * 
+ * Since the policies reveal the restricted resources and the groups that can access them, requests must be sent 
+ * over HTTPS by a peer authenticated with an X509 certificate whose subject is included in the configured white list.
+ * 
+ * The response carries the version of the policies as a strong ETag: a request with a matching "If-None-Match" header
+ * receives a 304 (Not Modified) response. Otherwise, a request with the optional "since" parameter set to the version 
+ * the peer last received is answered with only the statements changed since that version, or with all the statements
+ * if those changes are no longer known (see {@link PolicyDelta} for the XML format).
+ *
+ */
+@Controller
+@RequestMapping("/secure/policyExport.htm")
+public class PolicyExportController {
+    
+    private final PolicyServiceLocalXmlImpl policyService;
+    
+    private final WhiteListCertificateProvider whiteListCertificateProvider;
+    
+    private final Log LOG = LogFactory.getLog(this.getClass());
+    
+    /**
+     * @param policyService
+     * @param whiteListCertificateProvider : the white list of peers allowed to copy the policies
+     */
+    public PolicyExportController(final PolicyServiceLocalXmlImpl policyService, final WhiteListCertificateProvider whiteListCertificateProvider) {
+        this.policyService = policyService;
+        this.whiteListCertificateProvider = whiteListCertificateProvider;
+    }
+    
+    /**
+     * Only controller method, processes HTTP requests of type GET.
+     * @param httpRequest
+     * @param httpResponse
+     * @throws Exception
+     */
+    @RequestMapping(method = RequestMethod.GET)
+    public void process(final HttpServletRequest httpRequest, final HttpServletResponse httpResponse) throws Exception {
+        
+        // mandatory SSL mutual authentication of white-listed peers
+        if (!httpRequest.isSecure() || !whiteListCertificateProvider.validate(httpRequest)) {
+            LOG.warn("Rejected policy export to client="+httpRequest.getRemoteAddr()+": client is not included in the peers white list");
+            httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN, "Client is not included in server's white list");
+            return;
+        }
+        
+        // the peer already has the current policies
+        final String etag = "\""+policyService.getVersion()+"\"";
+        if (PolicyServiceController.matches(httpRequest.getHeader("If-None-Match"), etag)) {
+            httpResponse.setHeader("ETag", etag);
+            httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        
+        final String since = httpRequest.getParameter(SAMLParameters.HTTP_PARAMETER_SINCE);
+        final PolicyDelta delta = policyService.getChanges(StringUtils.hasText(since) ? since : null);
+        if (LOG.isDebugEnabled()) LOG.debug("Exporting "+(delta.isFull() ? "all policies" : delta.size()+" policy changes since version="+since)
+                                            +" to client="+httpRequest.getRemoteAddr()+", version="+delta.getVersion());
+        
+        httpResponse.setHeader("ETag", "\""+delta.getVersion()+"\"");
+        httpResponse.setContentType(SAMLParameters.CONTENT_TYPE_XML);
+        delta.write(httpResponse.getWriter());
+        
+    }
+
+}
@@ -1,19 +1,26 @@
 package esg.security.policy.web;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
 
 import esg.security.common.SAMLParameters;
 import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyStatement;
 import esg.security.policy.service.impl.PolicyAttributeImpl;
+import esg.security.policy.service.impl.PolicyStatementImpl;
 import esg.security.utils.xml.Parser;
 import esg.security.utils.xml.Serializer;
 
@@ -36,10 +43,32 @@ import esg.security.utils.xml.Serializer;
  *    </esgf:policy>
  * </esgf:policies>
  * 
+ * Example XML document for a batch request, with one "policies" element for each requested (resource, action) pair, in request order:
+ * 
+ * <esgf:batch xmlns:esgf="http://www.esgf.org/">
+ *    <esgf:policies resource="cmip5.output1.NCAR" action="Read">
+ *       <esgf:policy type="CMIP5 Research" value="user">
+ *          <esgf:registrationUrl>https://pcmdi9.llnl.gov/esgf-idp/secure/registrationService.htm</esgf:registrationUrl>
+ *       </esgf:policy>
+ *    </esgf:policies>
+ *    <esgf:policies resource="/data/free/file.nc" action="Read">
+ *       <esgf:policy type="ANY" value="" />
+ *    </esgf:policies>
+ * </esgf:batch>
+ * 
+ * Example XML document listing the policy statements entitled by a set of user attributes:
+ * 
+ * <esgf:entitlements xmlns:esgf="http://www.esgf.org/">
+ *    <esgf:entitlement resource=".*cmip5.*" action="Read" type="CMIP5 Research" value="user" />
+ *    <esgf:entitlement resource=".*\/free\/.*" action="Read" type="ANY" value="" />
+ * </esgf:entitlements>
+ * 
  * @author Luca Cinquini
  *
  */
 public class PolicySerializer {
+    
+    private final static XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
         
     /**
      * Method to serialize a list of policy attributes to XML.
@@ -100,4 +129,140 @@ public class PolicySerializer {
         
     }
 
+    /**
+     * Method to stream the policy attributes of a batch request to XML, without building the full document in memory.
+     * @param resources : the requested resources
+     * @param actions : the requested actions, one for each resource
+     * @param policyAttributeMaps : the policy attributes and registration URLs, one map for each resource
+     * @param writer
+     * @throws XMLStreamException
+     */
+    public final static void serialize(final List<String> resources, final List<String> actions, 
+                                       final List<Map<PolicyAttribute, List<URL>>> policyAttributeMaps, final Writer writer) throws XMLStreamException {
+        
+        final String prefix = SAMLParameters.NAMESPACE_ESGF.getPrefix();
+        final String uri = SAMLParameters.NAMESPACE_ESGF.getURI();
+        
+        final XMLStreamWriter out = FACTORY.createXMLStreamWriter(writer);
+        out.writeStartDocument("UTF-8", "1.0");
+        out.writeStartElement(prefix, "batch", uri);
+        out.writeNamespace(prefix, uri);
+        
+        for (int i=0; i<resources.size(); i++) {
+            
+            out.writeStartElement(prefix, "policies", uri);
+            out.writeAttribute("resource", resources.get(i));
+            out.writeAttribute("action", actions.get(i));
+            
+            final Map<PolicyAttribute, List<URL>> policyAttributeMap = policyAttributeMaps.get(i);
+            for (final PolicyAttribute pa : policyAttributeMap.keySet()) {
+                
+                out.writeStartElement(prefix, "policy", uri);
+                out.writeAttribute("type", pa.getType());
+                out.writeAttribute("value", pa.getValue());
+                
+                // insert endpoints
+                for (final URL url : policyAttributeMap.get(pa)) {
+                    out.writeStartElement(prefix, "registrationUrl", uri);
+                    out.writeCharacters(url.toString());
+                    out.writeEndElement();
+                }
+                out.writeEndElement();
+                
+            }
+            out.writeEndElement();
+            
+        }
+        
+        out.writeEndElement();
+        out.writeEndDocument();
+        out.flush();
+        
+    }
+    
+    /**
+     * Method to extract the policy attributes and registration URLs of each (resource, action) pair from a batch XML document.
+     * @param xml
+     * @return one map for each "policies" element, in document order
+     * @throws IOException
+     * @throws JDOMException
+     */
+    public final static List<Map<PolicyAttribute, List<URL>>> deserializeBatch(String xml) throws IOException, JDOMException {
+        
+        final List<Map<PolicyAttribute, List<URL>>> policyAttributeMaps = new ArrayList<Map<PolicyAttribute, List<URL>>>();
+        
+        final Document doc = Parser.StringToJDOM(xml, false);
+        final Element root = doc.getRootElement();
+        for (Object pobj : root.getChildren("policies", SAMLParameters.NAMESPACE_ESGF) ) {
+            final Map<PolicyAttribute, List<URL>> policyAttributeMap = new LinkedHashMap<PolicyAttribute, List<URL>>();
+            for (Object obj : ((Element)pobj).getChildren("policy", SAMLParameters.NAMESPACE_ESGF) ) {
+                Element att = (Element)obj;
+                final PolicyAttribute pa = new PolicyAttributeImpl(att.getAttributeValue("type"), att.getAttributeValue("value"));
+                List<URL> endpoints = new ArrayList<URL>();
+                for (final Object cobj : att.getChildren("registrationUrl", SAMLParameters.NAMESPACE_ESGF)) {
+                    Element urlEl = (Element)cobj;
+                    endpoints.add( new URL(urlEl.getText()) );
+                } 
+                policyAttributeMap.put(pa, endpoints);
+            }
+            policyAttributeMaps.add(policyAttributeMap);
+        }
+        
+        return policyAttributeMaps;
+        
+    }
+
+    /**
+     * Method to stream the policy statements entitled by a set of user attributes to XML.
+     * @param statements
+     * @param writer
+     * @throws XMLStreamException
+     */
+    public final static void serialize(final List<PolicyStatement> statements, final Writer writer) throws XMLStreamException {
+        
+        final String prefix = SAMLParameters.NAMESPACE_ESGF.getPrefix();
+        final String uri = SAMLParameters.NAMESPACE_ESGF.getURI();
+        
+        final XMLStreamWriter out = FACTORY.createXMLStreamWriter(writer);
+        out.writeStartDocument("UTF-8", "1.0");
+        out.writeStartElement(prefix, "entitlements", uri);
+        out.writeNamespace(prefix, uri);
+        
+        for (final PolicyStatement statement : statements) {
+            out.writeEmptyElement(prefix, "entitlement", uri);
+            out.writeAttribute("resource", statement.getResource());
+            out.writeAttribute("action", statement.getAction().toString());
+            out.writeAttribute("type", statement.getAttribute().getType());
+            out.writeAttribute("value", statement.getAttribute().getValue()==null ? "" : statement.getAttribute().getValue());
+        }
+        
+        out.writeEndElement();
+        out.writeEndDocument();
+        out.flush();
+        
+    }
+    
+    /**
+     * Method to extract the entitled policy statements from an XML document.
+     * @param xml
+     * @return
+     * @throws IOException
+     * @throws JDOMException
+     */
+    public final static List<PolicyStatement> deserializeEntitlements(String xml) throws IOException, JDOMException {
+        
+        final List<PolicyStatement> statements = new ArrayList<PolicyStatement>();
+        
+        final Document doc = Parser.StringToJDOM(xml, false);
+        final Element root = doc.getRootElement();
+        for (Object obj : root.getChildren("entitlement", SAMLParameters.NAMESPACE_ESGF) ) {
+            Element el = (Element)obj;
+            statements.add(new PolicyStatementImpl(el.getAttributeValue("resource"), el.getAttributeValue("type"), 
+                                                   el.getAttributeValue("value"), el.getAttributeValue("action")));
+        }
+        
+        return statements;
+        
+    }
+
 }
@@ -1,10 +1,26 @@
 package esg.security.policy.web;
 
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -18,8 +34,12 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 
 import esg.security.common.SAMLParameters;
+import esg.security.common.WhiteListCertificateProvider;
 import esg.security.policy.service.api.PolicyAttribute;
 import esg.security.policy.service.api.PolicyService;
+import esg.security.registry.service.api.ObservableRegistryService;
+import esg.security.registry.service.api.RegistryChangeListener;
+import esg.security.registry.service.api.RegistrySection;
 import esg.security.registry.service.api.RegistryService;
 import esg.security.registry.service.api.UnknownPolicyAttributeTypeException;
 
@@ -28,6 +48,24 @@ import esg.security.registry.service.api.UnknownPolicyAttributeTypeException;
  * This controller also includes information from the RegistryService
  * to enable registration workflows.
  * 
+ * A batch of (resource, action) pairs can be requested in a single POST that includes the "batch" parameter,
+ * and repeats the "resource" parameter for each resource, and the "action" parameter either once for all resources,
+ * or once for each resource. The pairs are evaluated in parallel, the registration services of each attribute type 
+ * are looked up only once, and the results are streamed as a single XML document (see {@link PolicySerializer}).
+ * 
+ * The policy statements entitled by the attributes of a user are requested with the "entitlements" parameter,
+ * and the "attribute_type" and "attribute_value" parameters repeated once for each user attribute.
+ * They are listed in one pass from an inverted index of the policies (see {@link PolicySerializer} for the XML format).
+ * Since they disclose the restricted resources and the groups that can access them, entitlement requests must be sent
+ * over HTTPS by a client authenticated with an X509 certificate included in the configured white list
+ * (see {@link #setEntitlementsWhiteList(WhiteListCertificateProvider)}), and are rejected if none is configured.
+ * 
+ * Single requests are answered with a strong ETag computed from the digest of the serialized XML, so that it stays valid
+ * across restarts and across the nodes behind a load balancer: a request with a matching "If-None-Match" header receives 
+ * a 304 (Not Modified) response, and the serialized XML is cached per (resource, action) until the policies or the registry change.
+ * The responses and the registration services are only cached if the registry is an {@link ObservableRegistryService},
+ * which tells when its content changes.
+ * 
  * @author Luca Cinquini
  *
  */
@@ -38,11 +76,62 @@ public class PolicyServiceController {
     private PolicyService policyService;
     private RegistryService registryService;
     
+    // the same registry, if it tells when its content changes, otherwise null
+    private final ObservableRegistryService observableRegistryService;
+    
+    // maximum number of (resource, action) pairs in a batch request
+    public final static int MAX_BATCH_SIZE = 10000;
+    
+    // number of (resource, action) pairs evaluated by each parallel task
+    private final static int BATCH_CHUNK_SIZE = 64;
+    
+    // threads that evaluate batch requests
+    private final ExecutorService executor;
+    
+    // maximum number of cached responses
+    public final static int MAX_CACHED_RESPONSES = 10000;
+    
+    // serialized responses by (resource, action), valid for the generations they were computed for
+    private final Map<String, CachedResponse> responses = new ConcurrentHashMap<String, CachedResponse>();
+    
+    // policy and registry generations of the cached responses
+    private volatile String responseGenerations = "";
+    
+    // registration services by attribute type, cached until the registry changes them
+    private final Map<String, List<URL>> registrationServices = new ConcurrentHashMap<String, List<URL>>();
+    
+    // number of registry changes to the registration services
+    private final AtomicLong registrationChanges = new AtomicLong(0L);
+    
+    // white list of the clients allowed to request entitlements, or null to reject all entitlement requests
+    private WhiteListCertificateProvider entitlementsWhiteList;
+    
     private final Log LOG = LogFactory.getLog(this.getClass());
     
     public PolicyServiceController(final PolicyService policyService, final RegistryService registryService) {
         this.policyService = policyService;
         this.registryService = registryService;
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "PolicyServiceController-batch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.observableRegistryService = registryService instanceof ObservableRegistryService 
+                                       ? (ObservableRegistryService)registryService : null;
+        if (observableRegistryService!=null) {
+            observableRegistryService.addChangeListener(new RegistryChangeListener() {
+                @Override
+                public void registryChanged(final Set<RegistrySection> sections, final long generation) {
+                    if (sections.contains(RegistrySection.REGISTRATION_SERVICES)) {
+                        registrationChanges.incrementAndGet();
+                        registrationServices.clear();
+                    }
+                }
+            });
+        }
     }
     
     /**
@@ -61,32 +150,302 @@ public class PolicyServiceController {
         if (!StringUtils.hasText(action)) throw new ServletException("Missing required HTTP parameter: "+SAMLParameters.HTTP_PARAMETER_ACTION);        
         if (LOG.isTraceEnabled()) LOG.trace("Querying policy for resource="+resource+" action="+action);
         
+        // the generations identify the policies and registry the response is computed from (null if the registry does not tell)
+        final String generations = observableRegistryService!=null 
+                                 ? policyService.getGeneration()+"-"+observableRegistryService.getGeneration() : null;
+        if (generations!=null && !generations.equals(responseGenerations)) {
+            // discard the responses computed from previous generations
+            responses.clear();
+            responseGenerations = generations;
+        }
+        final String key = resource+"\n"+action;
+        CachedResponse cached = generations!=null ? responses.get(key) : null;
+        if (cached==null || !cached.generations.equals(generations)) {
+            cached = new CachedResponse(generations, serialize(resource, action));
+            if (generations!=null) {
+                if (responses.size()>=MAX_CACHED_RESPONSES) responses.clear();
+                responses.put(key, cached);
+            }
+        }
+        httpResponse.setHeader("ETag", cached.etag);
+        
+        // the client already has the current response
+        if (matches(httpRequest.getHeader("If-None-Match"), cached.etag)) {
+            httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        if (LOG.isTraceEnabled()) LOG.trace(cached.xml);
+        
+        // write XML to HTTP response
+        httpResponse.setContentType(SAMLParameters.CONTENT_TYPE_XML);
+        httpResponse.getWriter().write( cached.xml );
+        
+    }
+    
+    /**
+     * Method to compute the XML response for a single (resource, action) pair.
+     * @param resource
+     * @param action
+     * @return
+     * @throws Exception
+     */
+    private String serialize(final String resource, final String action) throws Exception {
+        
         // invoke policy service
         final List<PolicyAttribute> policyAttributes = policyService.getRequiredAttributes(resource, action);
         
         // invoke registry service to determine registration endpoints
         final Map<PolicyAttribute, List<URL>> policyAttributeMap = new LinkedHashMap<PolicyAttribute,List<URL>>();
         for (final PolicyAttribute pa : policyAttributes) {
-            try {
-                final List<URL> paEndpoints = registryService.getRegistrationServices(pa.getType());
-                policyAttributeMap.put(pa, paEndpoints);
-            } catch(UnknownPolicyAttributeTypeException e) {
-                // no registration URL available
-                policyAttributeMap.put(pa, new ArrayList<URL>());
-                LOG.warn(e);
-            }
-            
+            policyAttributeMap.put(pa, getRegistrationServices(pa.getType()));
         }
         
         // encode result as XML
-        final String xml = PolicySerializer.serialize(policyAttributeMap);
-        if (LOG.isTraceEnabled()) LOG.trace(xml);
+        return PolicySerializer.serialize(policyAttributeMap);
         
-        // write XML to HTTP response
+    }
+    
+    /**
+     * Method to check whether an If-None-Match header matches the given ETag,
+     * using the weak comparison (i.e. disregarding a "W/" prefix).
+     * @param ifNoneMatch : the header value, possibly null, "*", or a comma-separated list of ETags
+     * @param etag
+     * @return
+     */
+    static boolean matches(final String ifNoneMatch, final String etag) {
+        if (ifNoneMatch==null) return false;
+        for (String value : ifNoneMatch.split(",")) {
+            value = value.trim();
+            if (value.startsWith("W/")) value = value.substring(2);
+            if (value.equals("*") || value.equals(etag)) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Method to compute the strong ETag of a serialized response, from the SHA-256 digest of its content.
+     * @param xml
+     * @return
+     */
+    static String toETag(final String xml) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(xml.getBytes("UTF-8"));
+            final StringBuilder etag = new StringBuilder("\"");
+            for (final byte b : digest) {
+                etag.append(Character.forDigit((b>>4)&0xF, 16)).append(Character.forDigit(b&0xF, 16));
+            }
+            return etag.append("\"").toString();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Serialized response with its ETag, and the generations it was computed from.
+     */
+    private static class CachedResponse {
+        
+        final String generations;
+        final String etag;
+        final String xml;
+        
+        CachedResponse(final String generations, final String xml) {
+            this.generations = generations;
+            this.etag = toETag(xml);
+            this.xml = xml;
+        }
+        
+    }
+    
+    /**
+     * Controller method for batch requests, processes HTTP requests of type POST that include the "batch" parameter.
+     * @param httpRequest
+     * @param httpResponse
+     * @throws Exception
+     */
+    @RequestMapping(method = RequestMethod.POST, params = SAMLParameters.HTTP_PARAMETER_BATCH)
+    public void processBatch(final HttpServletRequest httpRequest, final HttpServletResponse httpResponse) throws Exception {
+        
+        // retrieve mandatory request parameters
+        final String[] resources = httpRequest.getParameterValues(SAMLParameters.HTTP_PARAMETER_RESOURCE);
+        if (resources==null || resources.length==0) throw new ServletException("Missing required HTTP parameter: "+SAMLParameters.HTTP_PARAMETER_RESOURCE);
+        if (resources.length>MAX_BATCH_SIZE) throw new ServletException("Too many resources in batch request: "+resources.length+" (maximum is "+MAX_BATCH_SIZE+")");
+        final String[] actions = httpRequest.getParameterValues(SAMLParameters.HTTP_PARAMETER_ACTION);
+        if (actions==null || actions.length==0) throw new ServletException("Missing required HTTP parameter: "+SAMLParameters.HTTP_PARAMETER_ACTION);
+        if (actions.length!=1 && actions.length!=resources.length) {
+            throw new ServletException("The HTTP parameter: "+SAMLParameters.HTTP_PARAMETER_ACTION
+                                      +" must be given once, or once for each "+SAMLParameters.HTTP_PARAMETER_RESOURCE);
+        }
+        
+        final List<String> _resources = Arrays.asList(resources);
+        final List<String> _actions = new ArrayList<String>(resources.length);
+        for (int i=0; i<resources.length; i++) {
+            if (!StringUtils.hasText(resources[i])) throw new ServletException("Empty HTTP parameter: "+SAMLParameters.HTTP_PARAMETER_RESOURCE);
+            final String action = actions.length==1 ? actions[0] : actions[i];
+            if (!StringUtils.hasText(action)) throw new ServletException("Empty HTTP parameter: "+SAMLParameters.HTTP_PARAMETER_ACTION);
+            _actions.add(action);
+        }
+        if (LOG.isTraceEnabled()) LOG.trace("Querying policies for batch of size="+resources.length);
+        
+        // invoke policy and registry services
+        final List<Map<PolicyAttribute, List<URL>>> policyAttributeMaps = lookup(_resources, _actions);
+        
+        // stream result as XML to HTTP response
+        httpResponse.setContentType(SAMLParameters.CONTENT_TYPE_XML);
+        PolicySerializer.serialize(_resources, _actions, policyAttributeMaps, httpResponse.getWriter());
+        
+    }
+    
+    /**
+     * Controller method for entitlement requests, processes HTTP requests that include the "entitlements" parameter.
+     * @param httpRequest
+     * @param httpResponse
+     * @throws Exception
+     */
+    @RequestMapping(method = { RequestMethod.GET, RequestMethod.POST }, params = SAMLParameters.HTTP_PARAMETER_ENTITLEMENTS)
+    public void processEntitlements(final HttpServletRequest httpRequest, final HttpServletResponse httpResponse) throws Exception {
+        
+        // mandatory SSL mutual authentication of white-listed clients
+        if (entitlementsWhiteList==null || !httpRequest.isSecure() || !entitlementsWhiteList.validate(httpRequest)) {
+            LOG.warn("Rejected entitlements request from client="+httpRequest.getRemoteAddr()+": client is not included in the entitlements white list");
+            httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN, "Client is not included in server's white list");
+            return;
+        }
+        
+        // the user attributes: one value for each type
+        final String[] types = httpRequest.getParameterValues(SAMLParameters.HTTP_PARAMETER_ATTRIBUTE_TYPE);
+        final String[] values = httpRequest.getParameterValues(SAMLParameters.HTTP_PARAMETER_ATTRIBUTE_VALUE);
+        final int size = types==null ? 0 : types.length;
+        if (size!=(values==null ? 0 : values.length)) {
+            throw new ServletException("The HTTP parameter: "+SAMLParameters.HTTP_PARAMETER_ATTRIBUTE_VALUE
+                                      +" must be given once for each "+SAMLParameters.HTTP_PARAMETER_ATTRIBUTE_TYPE);
+        }
+        if (size>MAX_BATCH_SIZE) throw new ServletException("Too many attributes in entitlements request: "+size+" (maximum is "+MAX_BATCH_SIZE+")");
+        
+        final Map<String, Set<String>> attributes = new HashMap<String, Set<String>>();
+        for (int i=0; i<size; i++) {
+            if (!attributes.containsKey(types[i])) {
+                attributes.put(types[i], new HashSet<String>());
+            }
+            attributes.get(types[i]).add(values[i]);
+        }
+        if (LOG.isTraceEnabled()) LOG.trace("Querying entitlements for attributes="+attributes);
+        
+        // stream result as XML to HTTP response
         httpResponse.setContentType(SAMLParameters.CONTENT_TYPE_XML);
-        httpResponse.getWriter().write( xml );
+        PolicySerializer.serialize(policyService.getEntitlements(attributes), httpResponse.getWriter());
+        
+    }
+    
+    /**
+     * Method to look up the policy attributes, and their registration services, for each (resource, action) pair.
+     * @param resources
+     * @param actions
+     * @return one map of policy attributes to registration URLs for each pair, in request order
+     * @throws Exception
+     */
+    List<Map<PolicyAttribute, List<URL>>> lookup(final List<String> resources, final List<String> actions) throws Exception {
+        
+        // evaluate the policies, in parallel for large batches
+        final List<List<PolicyAttribute>> results = new ArrayList<List<PolicyAttribute>>(Collections.nCopies(resources.size(), (List<PolicyAttribute>)null));
+        if (resources.size()<=BATCH_CHUNK_SIZE) {
+            evaluate(resources, actions, results, 0, resources.size());
+        } else {
+            final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int start=0; start<resources.size(); start+=BATCH_CHUNK_SIZE) {
+                final int _start = start;
+                final int _end = Math.min(start+BATCH_CHUNK_SIZE, resources.size());
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        evaluate(resources, actions, results, _start, _end);
+                        return null;
+                    }
+                });
+            }
+            for (final Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch(ExecutionException e) {
+                    throw new ServletException("Error evaluating batch policy request", e.getCause());
+                }
+            }
+        }
+        
+        // invoke registry service once for each attribute type
+        final List<Map<PolicyAttribute, List<URL>>> policyAttributeMaps = new ArrayList<Map<PolicyAttribute, List<URL>>>(results.size());
+        for (final List<PolicyAttribute> policyAttributes : results) {
+            final Map<PolicyAttribute, List<URL>> policyAttributeMap = new LinkedHashMap<PolicyAttribute,List<URL>>();
+            for (final PolicyAttribute pa : policyAttributes) {
+                policyAttributeMap.put(pa, getRegistrationServices(pa.getType()));
+            }
+            policyAttributeMaps.add(policyAttributeMap);
+        }
         
+        return policyAttributeMaps;
+        
+    }
+    
+    /**
+     * Method to look up the registration services of an attribute type, once until the registry changes them.
+     * @param attributeType
+     * @return the registration services, or an empty list if none is available
+     */
+    private List<URL> getRegistrationServices(final String attributeType) {
+        
+        // without change notifications, the registry is queried every time
+        if (observableRegistryService==null) return lookupRegistrationServices(attributeType);
+        
+        List<URL> paEndpoints = registrationServices.get(attributeType);
+        if (paEndpoints==null) {
+            final long changes = registrationChanges.get();
+            paEndpoints = lookupRegistrationServices(attributeType);
+            // do not keep services looked up while the registry changed
+            registrationServices.put(attributeType, paEndpoints);
+            if (changes!=registrationChanges.get()) registrationServices.remove(attributeType);
+        }
+        return paEndpoints;
+        
+    }
+    
+    /**
+     * @param attributeType
+     * @return the registration services of the attribute type, or an empty list if none is available
+     */
+    private List<URL> lookupRegistrationServices(final String attributeType) {
+        try {
+            return registryService.getRegistrationServices(attributeType);
+        } catch(UnknownPolicyAttributeTypeException e) {
+            // no registration URL available
+            LOG.warn(e);
+            return new ArrayList<URL>();
+        }
+    }
+    
+    /**
+     * Method to evaluate the policies of the (resource, action) pairs in the range [start, end).
+     */
+    private void evaluate(final List<String> resources, final List<String> actions, final List<List<PolicyAttribute>> results, final int start, final int end) {
+        for (int i=start; i<end; i++) {
+            results.set(i, policyService.getRequiredAttributes(resources.get(i), actions.get(i)));
+        }
     }
     
+    /**
+     * Method to allow the entitlement requests of the clients authenticated with the certificates of the given white list.
+     * @param entitlementsWhiteList
+     */
+    public void setEntitlementsWhiteList(final WhiteListCertificateProvider entitlementsWhiteList) {
+        this.entitlementsWhiteList = entitlementsWhiteList;
+    }
+    
+    /**
+     * Method to release the threads that evaluate batch requests.
+     */
+    public void close() {
+        executor.shutdown();
+    }
 
-}
\ No newline at end of file
+}
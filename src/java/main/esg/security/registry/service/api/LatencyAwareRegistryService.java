@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.registry.service.api;
+
+import java.util.LinkedHashSet;
+
+/**
+ * API for registry services that track the health and response times of the Solr shards,
+ * so that distributed searches can query the fastest healthy shards first.
+ */
+public interface LatencyAwareRegistryService extends RegistryService {
+    
+    /**
+     * Method to return the Solr shards ordered by health and response time, leaving out the shards
+     * that are down or in a latency spike, unless no other shard is available.
+     * @return
+     */
+    LinkedHashSet<String> getShardsByLatency();
+    
+    /**
+     * Method to return the Solr shards ordered by health and response time.
+     * @param dropUnhealthy : true to leave out the shards that are down or in a latency spike
+     * @return
+     */
+    LinkedHashSet<String> getShardsByLatency(boolean dropUnhealthy);
+    
+    /**
+     * Method to record the response time of a successful query to a shard.
+     * @param shard
+     * @param millis
+     */
+    void recordShardLatency(String shard, long millis);
+    
+    /**
+     * Method to record a failed query to a shard.
+     * @param shard
+     */
+    void recordShardFailure(String shard);
+
+}
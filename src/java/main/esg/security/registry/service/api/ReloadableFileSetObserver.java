@@ -11,6 +11,20 @@ import java.util.List;
  */
 public interface ReloadableFileSetObserver {
     
+    /**
+     * Method invoked to (re)load the full set of files.
+     * @param files
+     */
     void parse(List<File> files);
+    
+    /**
+     * Method invoked when only some of the files have changed since they were last loaded:
+     * the observer should re-parse the changed files only, and merge their content with the content
+     * previously loaded from the other files. A changed file may also have been deleted.
+     * 
+     * @param changedFiles : the files whose content has changed, a subset of files
+     * @param files : the full set of files, in their configured order
+     */
+    void update(List<File> changedFiles, List<File> files);
 
 }
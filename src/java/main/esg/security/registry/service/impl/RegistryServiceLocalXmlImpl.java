@@ -30,6 +30,12 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,6 +44,10 @@ import org.jdom2.Element;
 import org.jdom2.Namespace;
 import org.springframework.util.StringUtils;
 
+import esg.security.registry.service.api.LatencyAwareRegistryService;
+import esg.security.registry.service.api.ObservableRegistryService;
+import esg.security.registry.service.api.RegistryChangeListener;
+import esg.security.registry.service.api.RegistrySection;
 import esg.security.registry.service.api.RegistryService;
 import esg.security.registry.service.api.ReloadableFileSetObserver;
 import esg.security.registry.service.api.UnknownPolicyAttributeTypeException;
@@ -45,36 +55,42 @@ import esg.security.utils.xml.Parser;
 
 /**
  * Implementation of {@link RegistryService} backed up by one or more local XML configuration files.
- * This implementation automatically reloads its data if any of the underlying files have been updated.
+ * This implementation automatically reloads its data if any of the underlying files have been updated,
+ * re-parsing only the files that have changed.
+ * 
+ * The registry files may also be remote HTTP(S) documents: these are fetched conditionally from a background thread,
+ * parsed off the request path, and stored as local cache files that are used at startup and when the remote servers are unreachable.
+ * 
+ * The registry content is held in an immutable {@link RegistrySnapshot}, which is built on the side
+ * and then published atomically: readers never lock, always see all the sections of the same snapshot,
+ * and receive unmodifiable views of its content.
+ * After new content is published, the registered {@link RegistryChangeListener}s are notified of the sections that changed,
+ * in publication order and from a dedicated thread, so that no registry or file watcher lock is held while they run.
+ * 
+ * The health and response times of the Solr shards are tracked by a {@link ShardLatencyTracker}.
  * 
  * @author luca.cinquini
  */
-public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableFileSetObserver {
+public class RegistryServiceLocalXmlImpl implements ObservableRegistryService, LatencyAwareRegistryService, ReloadableFileSetObserver {
     
-    // local storage for attribute types, descriptions
-    private Map<String, String> attributes = new LinkedHashMap<String, String>();
-	
-	// local storage of attribute type to attribute services mapping (one-to-many)
-	private Map<String, List<URL>> attributeServices = new HashMap<String, List<URL>>();
-	
-	// local storage of attribute type to registration services mapping (one-to-many)
-	private Map<String, List<URL>> registrationServices = new HashMap<String, List<URL>>();
-	
-	// local storage for identity provider endpoints
-	private List<URL> identityProviders = new ArrayList<URL>();
-	
-    // local storage for authorization service endpoints
-    private List<URL> authorizationServices = new ArrayList<URL>();
+    // current registry content, replaced as a whole when the registry files change
+    private final AtomicReference<RegistrySnapshot> snapshot = new AtomicReference<RegistrySnapshot>(new RegistrySnapshot());
     
-    // local storage for LAS servers IP addresses
-    private List<String> lasServers = new ArrayList<String>();
+    // notified of the sections that change
+    private final List<RegistryChangeListener> listeners = new CopyOnWriteArrayList<RegistryChangeListener>();
     
-    // local storage for facet aliases
-    private List<Set<String>> aliases = new ArrayList<Set<String>>();
+    // delivers the change notifications outside of the locks held while publishing
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "RegistryServiceLocalXmlImpl-notifier");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     
-    // local storage for Solr 
-    // NOTE: preserve shards order!
-    private LinkedHashSet<String> shards = new LinkedHashSet<String>();
+    // health and response times of the shards
+    private volatile ShardLatencyTracker shardTracker = new ShardLatencyTracker();
 
 	private final static Namespace NS = Namespace.getNamespace("http://www.esgf.org/whitelist");
 	private final static Namespace NS2 = Namespace.getNamespace("http://www.esgf.org/registry");
@@ -82,6 +98,9 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
 	// Utility class that watches the set of local XML configuration files for changes.
 	private ReloadableFileSet watcher;
 	
+	// parsed XML registry files, re-parsed only when changed (guarded by this)
+	private final Map<File, Document> documents = new HashMap<File, Document>();
+	
 	private final Log LOG = LogFactory.getLog(this.getClass());
 
 	/**
@@ -90,16 +109,88 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
 	 * @throws Exception
 	 */
 	public RegistryServiceLocalXmlImpl(final String xmlFilePaths) throws Exception {
+	    this(xmlFilePaths, ReloadableFileSet.DEFAULT_CACHE_DIRECTORY);
+	}
+	
+	/**
+	 * Constructor that stores the local copies of the remote registry files in the given directory.
+	 * @param xmlFilePaths : comma-separated list of local files and remote HTTP(S) documents
+	 * @param cacheDirectory
+	 * @throws Exception
+	 */
+	public RegistryServiceLocalXmlImpl(final String xmlFilePaths, final String cacheDirectory) throws Exception {
+	    this(xmlFilePaths, cacheDirectory, false);
+	}
+	
+	/**
+	 * Constructor that optionally accepts remote registry files retrieved over plain HTTP.
+	 * @param xmlFilePaths : comma-separated list of local files and remote HTTP(S) documents
+	 * @param cacheDirectory
+	 * @param allowHttp : true to accept remote files retrieved over plain HTTP, which is not recommended for trust white lists
+	 * @throws Exception
+	 */
+	public RegistryServiceLocalXmlImpl(final String xmlFilePaths, final String cacheDirectory, final boolean allowHttp) throws Exception {
 	    
 	    // instantiate files watcher
-	    watcher = new ReloadableFileSet(xmlFilePaths);
+	    watcher = new ReloadableFileSet(xmlFilePaths, cacheDirectory, allowHttp);
 	    watcher.setObserver(this);
 	    
 	    // trigger first loading of configuration files
 		watcher.reload();
+		
+		// keep the remote files up to date
+		watcher.startFetching(ReloadableFileSet.DEFAULT_FETCH_SECONDS);
 	
 	}
 
+    /**
+     * Method to switch between checking the registry files for changes at every request (the default),
+     * and watching them for changes from a background thread, which keeps file system access off the request path.
+     * @param watchFiles
+     */
+    public void setWatchFiles(final boolean watchFiles) {
+        if (watchFiles) {
+            watcher.startWatching();
+        } else {
+            watcher.stopWatching();
+        }
+    }
+    
+    /**
+     * Method to change the interval between fetches of the remote registry files.
+     * @param fetchSeconds
+     */
+    public void setFetchSeconds(final int fetchSeconds) {
+        watcher.stopFetching();
+        watcher.startFetching(fetchSeconds);
+    }
+    
+    /**
+     * Method to change the maximum size of the remote registry files, from their next fetch:
+     * larger documents are rejected, and the cached copies keep being used.
+     * @param maxDownloadBytes
+     */
+    public void setMaxDownloadBytes(final long maxDownloadBytes) {
+        watcher.setMaxDownloadBytes(maxDownloadBytes);
+    }
+    
+    /**
+     * @return the registry content currently in use
+     */
+    public RegistrySnapshot getSnapshot() {
+        return snapshot.get();
+    }
+    
+    /**
+     * Method to release the background file watcher, fetcher, shard prober and listener notifier, if any.
+     */
+    public void close() {
+        watcher.stopWatching();
+        watcher.stopFetching();
+        shardTracker.stopProbing();
+        notifier.shutdown();
+    }
+    
 	/**
      * {@inheritDoc}
      */
@@ -110,8 +201,9 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
 	    watcher.reload();        
 	    
 	    // look up the attribute type 
-		if (attributeServices.containsKey(attributeType)) {
-			return attributeServices.get(attributeType);
+	    final List<URL> attributeServices = snapshot.get().getAttributeServices().get(attributeType);
+		if (attributeServices!=null) {
+			return attributeServices;
 		} else {
 			throw new UnknownPolicyAttributeTypeException("Cannot resolve attribute type="+attributeType);
 		}
@@ -128,8 +220,9 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
         watcher.reload();        
         
         // look up the attribute type 
-        if (registrationServices.containsKey(attributeType)) {
-            return registrationServices.get(attributeType);
+        final List<URL> registrationServices = snapshot.get().getRegistrationServices().get(attributeType);
+        if (registrationServices!=null) {
+            return registrationServices;
         } else {
             throw new UnknownPolicyAttributeTypeException("Cannot resolve attribute type="+attributeType);
         }
@@ -146,7 +239,7 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
         watcher.reload();        
         
         // return white list
-        return Collections.unmodifiableList(authorizationServices);
+        return snapshot.get().getAuthorizationServices();
         
     }
     
@@ -161,7 +254,7 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
         watcher.reload();        
         
         // return white list
-        return Collections.unmodifiableList(identityProviders);
+        return snapshot.get().getIdentityProviders();
         
     }
 	
@@ -175,7 +268,7 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
         watcher.reload();        
         
         // return white list
-        return Collections.unmodifiableMap(attributes);
+        return snapshot.get().getAttributes();
         
     }
 	
@@ -189,7 +282,7 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
         watcher.reload();        
         
         // return white list
-        return Collections.unmodifiableList(lasServers);
+        return snapshot.get().getLasServers();
         
     }
     
@@ -203,10 +296,65 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
         watcher.reload();        
         
         // return white list
-        return shards;
+        return snapshot.get().getShards();
         
     }
     
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LinkedHashSet<String> getShardsByLatency() {
+        return getShardsByLatency(true);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LinkedHashSet<String> getShardsByLatency(final boolean dropUnhealthy) {
+        return shardTracker.order(getShards(), dropUnhealthy);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordShardLatency(final String shard, final long millis) {
+        shardTracker.recordLatency(shard, millis);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordShardFailure(final String shard) {
+        shardTracker.recordFailure(shard);
+    }
+    
+    /**
+     * Method to replace the tracker of the shards' health and response times, for example to change its thresholds.
+     * @param shardTracker
+     */
+    public void setShardTracker(final ShardLatencyTracker shardTracker) {
+        this.shardTracker.stopProbing();
+        this.shardTracker = shardTracker;
+    }
+    
+    public ShardLatencyTracker getShardTracker() {
+        return shardTracker;
+    }
+    
+    /**
+     * Method to probe the shards from a background thread every probeSeconds, 
+     * in addition to the response times recorded by the callers.
+     * @param probeSeconds
+     */
+    public void setShardProbeSeconds(final int probeSeconds) {
+        shardTracker.stopProbing();
+        shardTracker.startProbing(this, probeSeconds);
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -217,7 +365,7 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
         watcher.reload();        
         
         // return aliases list
-        return aliases;
+        return snapshot.get().getAliases();
         
     }
     
@@ -225,10 +373,8 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
      * {@inheritDoc}
      */
     @Override
-	public void setAliases(final List<Set<String>> _aliases) {
-        synchronized (aliases) {
-            aliases = _aliases;             
-        }               
+	public synchronized void setAliases(final List<Set<String>> _aliases) {
+        publish(snapshot.get().withAliases(_aliases));
 	}
 
     /**
@@ -239,7 +385,54 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
 	 * 
 	 * @param file
 	 */
-	public void parse(final List<File> registryFiles) {
+	public synchronized void parse(final List<File> registryFiles) {
+	    
+	    documents.clear();
+	    update(registryFiles, registryFiles);
+	    
+	}
+	
+	/**
+	 * Method to re-parse only the XML registry files that have changed, and rebuild the local map of services
+	 * from these and the documents previously parsed from the other files.
+	 * 
+	 * A deleted file no longer contributes any services, while a changed file that cannot be parsed
+	 * keeps contributing the services it contained when it was last parsed successfully.
+	 * The files are parsed without resolving doctype declarations or external entities,
+	 * since the local copies of remote registry files come from other hosts.
+	 * 
+	 * @param changedFiles
+	 * @param registryFiles
+	 */
+	public synchronized void update(final List<File> changedFiles, final List<File> registryFiles) {
+	    
+	    for (final File registryFile : changedFiles) {
+	        
+	        if (!registryFile.exists()) {
+	            documents.remove(registryFile);
+	            continue;
+	        }
+	        
+	        if (LOG.isInfoEnabled()) LOG.info("Loading information from registry file="+registryFile.getAbsolutePath()); 
+	        try {
+	            documents.put(registryFile, Parser.toSecureJDOM(registryFile.getAbsolutePath()));
+	        } catch(Exception e) {
+	            LOG.warn("Error parsing registry XML file: "+e.getMessage());
+	        }
+	        
+	    }
+	    documents.keySet().retainAll(registryFiles);
+	    
+	    extract(registryFiles);
+	    
+	}
+	
+	/**
+	 * Method to extract the services from the parsed XML registry documents, in file order.
+	 * 
+	 * @param registryFiles
+	 */
+	private void extract(final List<File> registryFiles) {
 	    
 	    final Map<String, List<String>> _registrationServices = new HashMap<String, List<String>>();
 	    boolean reloadRegistrationServices = false;
@@ -261,11 +454,11 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
 	    // loop over registry files
 	    for (final File registryFile : registryFiles) {   
 	        
-	        if (LOG.isInfoEnabled()) LOG.info("Loading information from registry file="+registryFile.getAbsolutePath()); 
+	        final Document doc = documents.get(registryFile);
+	        if (doc==null) continue;
 		        
 	        try {
 		
-        		final Document doc = Parser.toJDOM(registryFile.getAbsolutePath(), false);
         		final Element root = doc.getRootElement();
         		    		
         		// parse Attribute Services section
@@ -363,47 +556,15 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
           
 	    }
    		
-        // update local data storage
-	    if (reloadAttributes) {
-	        synchronized (attributes) {
-	            attributes = _attributes;
-            }
-	    }
-	    if (reloadAttributeServices) {
-	        synchronized (attributeServices) {
-	            attributeServices = toURLs(_attributeServices);
-	        }
-	    }
-	    if (reloadRegistrationServices) {
-            synchronized (registrationServices) {
-                registrationServices = toURLs(_registrationServices);
-	            }
-	    }
-	    if (reloadIdentityProviders) {
-    	    synchronized (identityProviders) {
-                identityProviders = toURLs(_identityProviders);             
-            }
-	    }
-	    if (reloadAuthorizationServices) {
-            synchronized (authorizationServices) {
-                authorizationServices = toURLs(_authorizationServices);             
-            }
-	    }
-	    if (reloadLasServers) {
-            synchronized (lasServers) {
-                lasServers = _lasServers;             
-            }
-	    }
-	    if (reloadShards) {
-            synchronized (shards) {
-                shards = _shards;             
-            }               
-	    }
-	    if (reloadAliases) {
-            synchronized (aliases) {
-            	aliases = _aliases;             
-            }               
-	    }
+        // publish all sections at once, keeping the sections not contained in any file
+	    publish(snapshot.get().replace(reloadAttributes ? _attributes : null,
+	                                   reloadAttributeServices ? toURLs(_attributeServices) : null,
+	                                   reloadRegistrationServices ? toURLs(_registrationServices) : null,
+	                                   reloadIdentityProviders ? toURLs(_identityProviders) : null,
+	                                   reloadAuthorizationServices ? toURLs(_authorizationServices) : null,
+	                                   reloadLasServers ? _lasServers : null,
+	                                   reloadShards ? _shards : null,
+	                                   reloadAliases ? _aliases : null));
         
 		// print content
 		this.print();
@@ -414,10 +575,88 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
      * {@inheritDoc}
      */
     @Override
-	public void setShards(final LinkedHashSet<String> _shards) {
-        synchronized (shards) {
-            shards = _shards;             
-        }               
+	public synchronized void setShards(final LinkedHashSet<String> _shards) {
+        publish(snapshot.get().withShards(_shards));
+	}
+	
+	/**
+	 * Method to publish new registry content, and queue the notification of the sections that changed.
+	 * This method is invoked while holding the registry monitor (and, on the reload path, the file watcher monitor),
+	 * so the listeners are notified later from the notifier thread: a listener calling back into the registry
+	 * cannot deadlock with a concurrent reload.
+	 * @param _snapshot
+	 */
+	private void publish(final RegistrySnapshot _snapshot) {
+	    
+	    final Set<RegistrySection> sections = _snapshot.getChangedSections(snapshot.get());
+	    snapshot.set(_snapshot);
+	    if (sections.isEmpty()) return;
+	    
+	    if (LOG.isInfoEnabled()) LOG.info("Registry generation="+_snapshot.getGeneration()+" changed sections="+sections);
+	    if (sections.contains(RegistrySection.SHARDS)) shardTracker.retain(_snapshot.getShards());
+	    if (listeners.isEmpty()) return;
+	    
+	    // only the listeners registered at publication time are notified
+	    final List<RegistryChangeListener> _listeners = new ArrayList<RegistryChangeListener>(listeners);
+	    final Set<RegistrySection> _sections = Collections.unmodifiableSet(sections);
+	    final long generation = _snapshot.getGeneration();
+	    try {
+	        notifier.execute(new Runnable() {
+	            @Override
+	            public void run() {
+	                notifyListeners(_listeners, _sections, generation);
+	            }
+	        });
+	    } catch(RejectedExecutionException e) {
+	        LOG.warn("Registry closed, listeners not notified of generation="+generation);
+	    }
+	    
+	}
+	
+	/**
+	 * Method to notify the listeners of the sections that changed, without holding any lock.
+	 * @param _listeners
+	 * @param sections
+	 * @param generation
+	 */
+	private void notifyListeners(final List<RegistryChangeListener> _listeners, final Set<RegistrySection> sections, final long generation) {
+	    
+	    for (final RegistryChangeListener listener : _listeners) {
+	        try {
+	            listener.registryChanged(sections, generation);
+	        } catch(RuntimeException e) {
+	            LOG.warn("Error notifying registry change listener: "+e.getMessage(), e);
+	        }
+	    }
+	    
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addChangeListener(final RegistryChangeListener listener) {
+	    listeners.add(listener);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeChangeListener(final RegistryChangeListener listener) {
+	    listeners.remove(listener);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getGeneration() {
+	    
+	    // reload registry if needed
+	    watcher.reload();
+	    
+	    return snapshot.get().getGeneration();
 	}
 	
 	/**
@@ -473,13 +712,16 @@ public class RegistryServiceLocalXmlImpl implements RegistryService, ReloadableF
 	 */
 	void print() {
 	    
+	    final RegistrySnapshot _snapshot = snapshot.get();
+	    final Map<String, List<URL>> attributeServices = _snapshot.getAttributeServices();
+	    
 	    // attribute services
 	    for (final String aType : attributeServices.keySet()) {
 	        if (LOG.isDebugEnabled()) LOG.debug("Attribute type="+aType+" Service URL="+attributeServices.get(aType));
 	    }
 	    
 	    // identity providers
-	    for (final URL idp : identityProviders) {
+	    for (final URL idp : _snapshot.getIdentityProviders()) {
 	        if (LOG.isDebugEnabled()) LOG.debug("Identity provider="+idp.toString());
 	    }
 	    
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.registry.service.impl;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import esg.security.registry.service.api.RegistrySection;
+
+/**
+ * Immutable content of the registry at one time, with all its sections.
+ * 
+ * A snapshot is fully built before being published, and is never modified afterwards:
+ * it can therefore be shared by any number of request threads without locking, and its getters
+ * return unmodifiable views of its content. Every change to the registry creates a new snapshot
+ * with a new generation, which replaces all sections in one step.
+ */
+public class RegistrySnapshot {
+    
+    // incremented for every new snapshot
+    private final long generation;
+    
+    // attribute types, descriptions
+    private final Map<String, String> attributes;
+    
+    // attribute type to attribute services mapping (one-to-many)
+    private final Map<String, List<URL>> attributeServices;
+    
+    // attribute type to registration services mapping (one-to-many)
+    private final Map<String, List<URL>> registrationServices;
+    
+    // identity provider endpoints
+    private final List<URL> identityProviders;
+    
+    // authorization service endpoints
+    private final List<URL> authorizationServices;
+    
+    // LAS servers IP addresses
+    private final List<String> lasServers;
+    
+    // Solr shards, in order
+    private final LinkedHashSet<String> shards;
+    
+    // facet aliases
+    private final List<Set<String>> aliases;
+    
+    /**
+     * Empty snapshot, used before any registry file is loaded.
+     */
+    public RegistrySnapshot() {
+        this(0L, Collections.<String, String>emptyMap(), Collections.<String, List<URL>>emptyMap(), Collections.<String, List<URL>>emptyMap(), 
+             Collections.<URL>emptyList(), Collections.<URL>emptyList(), Collections.<String>emptyList(), 
+             new ReadOnlyLinkedHashSet<String>(Collections.<String>emptySet()), Collections.<Set<String>>emptyList());
+    }
+    
+    private RegistrySnapshot(final long generation, final Map<String, String> attributes, 
+                             final Map<String, List<URL>> attributeServices, final Map<String, List<URL>> registrationServices,
+                             final List<URL> identityProviders, final List<URL> authorizationServices, final List<String> lasServers,
+                             final LinkedHashSet<String> shards, final List<Set<String>> aliases) {
+        this.generation = generation;
+        this.attributes = attributes;
+        this.attributeServices = attributeServices;
+        this.registrationServices = registrationServices;
+        this.identityProviders = identityProviders;
+        this.authorizationServices = authorizationServices;
+        this.lasServers = lasServers;
+        this.shards = shards;
+        this.aliases = aliases;
+    }
+    
+    /**
+     * Method to create the next snapshot, replacing the given sections with a copy, and sharing the other sections of this snapshot.
+     * 
+     * @param attributes : attribute types > descriptions, in order, or null to keep the current ones
+     * @param attributeServices : attribute type > attribute services, or null to keep the current ones
+     * @param registrationServices : attribute type > registration services, or null to keep the current ones
+     * @param identityProviders : or null to keep the current ones
+     * @param authorizationServices : or null to keep the current ones
+     * @param lasServers : or null to keep the current ones
+     * @param shards : or null to keep the current ones
+     * @param aliases : or null to keep the current ones
+     * @return the new snapshot
+     */
+    public RegistrySnapshot replace(final Map<String, String> attributes, 
+                                    final Map<String, List<URL>> attributeServices, final Map<String, List<URL>> registrationServices,
+                                    final List<URL> identityProviders, final List<URL> authorizationServices, final List<String> lasServers,
+                                    final Set<String> shards, final List<Set<String>> aliases) {
+        
+        List<Set<String>> _aliases = this.aliases;
+        if (aliases!=null) {
+            _aliases = new ArrayList<Set<String>>();
+            for (final Set<String> set : aliases) {
+                _aliases.add(Collections.unmodifiableSet(new HashSet<String>(set)));
+            }
+            _aliases = Collections.unmodifiableList(_aliases);
+        }
+        
+        return new RegistrySnapshot(generation+1, 
+                                    attributes==null ? this.attributes : Collections.unmodifiableMap(new LinkedHashMap<String, String>(attributes)),
+                                    attributeServices==null ? this.attributeServices : copy(attributeServices),
+                                    registrationServices==null ? this.registrationServices : copy(registrationServices),
+                                    identityProviders==null ? this.identityProviders : copy(identityProviders),
+                                    authorizationServices==null ? this.authorizationServices : copy(authorizationServices),
+                                    lasServers==null ? this.lasServers : copy(lasServers),
+                                    shards==null ? this.shards : new ReadOnlyLinkedHashSet<String>(shards),
+                                    _aliases);
+        
+    }
+    
+    /**
+     * @param _shards
+     * @return a new snapshot with the given shards, and the other sections of this snapshot
+     */
+    public RegistrySnapshot withShards(final Set<String> _shards) {
+        return replace(null, null, null, null, null, null, _shards, null);
+    }
+    
+    /**
+     * @param _aliases
+     * @return a new snapshot with the given aliases, and the other sections of this snapshot
+     */
+    public RegistrySnapshot withAliases(final List<Set<String>> _aliases) {
+        return replace(null, null, null, null, null, null, null, _aliases);
+    }
+    
+    /**
+     * Method to compare this snapshot with a previous one.
+     * Note that URLs are compared as strings, since comparing URL objects resolves their host names.
+     * @param previous
+     * @return the sections whose content differs
+     */
+    public Set<RegistrySection> getChangedSections(final RegistrySnapshot previous) {
+        
+        final Set<RegistrySection> sections = EnumSet.noneOf(RegistrySection.class);
+        if (!new ArrayList<Map.Entry<String, String>>(attributes.entrySet()).equals(new ArrayList<Map.Entry<String, String>>(previous.attributes.entrySet()))) {
+            sections.add(RegistrySection.ATTRIBUTES);
+        }
+        if (!toStrings(attributeServices).equals(toStrings(previous.attributeServices))) sections.add(RegistrySection.ATTRIBUTE_SERVICES);
+        if (!toStrings(registrationServices).equals(toStrings(previous.registrationServices))) sections.add(RegistrySection.REGISTRATION_SERVICES);
+        if (!toStrings(identityProviders).equals(toStrings(previous.identityProviders))) sections.add(RegistrySection.IDENTITY_PROVIDERS);
+        if (!toStrings(authorizationServices).equals(toStrings(previous.authorizationServices))) sections.add(RegistrySection.AUTHORIZATION_SERVICES);
+        if (!lasServers.equals(previous.lasServers)) sections.add(RegistrySection.LAS_SERVERS);
+        // the order of the shards is significant
+        if (!new ArrayList<String>(shards).equals(new ArrayList<String>(previous.shards))) sections.add(RegistrySection.SHARDS);
+        if (!aliases.equals(previous.aliases)) sections.add(RegistrySection.ALIASES);
+        return sections;
+        
+    }
+    
+    private static List<String> toStrings(final List<URL> urls) {
+        final List<String> values = new ArrayList<String>(urls.size());
+        for (final URL url : urls) {
+            values.add(url.toExternalForm());
+        }
+        return values;
+    }
+    
+    private static Map<String, List<String>> toStrings(final Map<String, List<URL>> urls) {
+        final Map<String, List<String>> values = new HashMap<String, List<String>>();
+        for (final Map.Entry<String, List<URL>> entry : urls.entrySet()) {
+            values.put(entry.getKey(), toStrings(entry.getValue()));
+        }
+        return values;
+    }
+    
+    public long getGeneration() {
+        return generation;
+    }
+    
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+    
+    public Map<String, List<URL>> getAttributeServices() {
+        return attributeServices;
+    }
+    
+    public Map<String, List<URL>> getRegistrationServices() {
+        return registrationServices;
+    }
+    
+    public List<URL> getIdentityProviders() {
+        return identityProviders;
+    }
+    
+    public List<URL> getAuthorizationServices() {
+        return authorizationServices;
+    }
+    
+    public List<String> getLasServers() {
+        return lasServers;
+    }
+    
+    /**
+     * @return the shards, in order, as a set that cannot be modified
+     */
+    public LinkedHashSet<String> getShards() {
+        return shards;
+    }
+    
+    public List<Set<String>> getAliases() {
+        return aliases;
+    }
+    
+    private static <T> List<T> copy(final List<T> list) {
+        return Collections.unmodifiableList(new ArrayList<T>(list));
+    }
+    
+    private static Map<String, List<URL>> copy(final Map<String, List<URL>> map) {
+        final Map<String, List<URL>> _map = new HashMap<String, List<URL>>();
+        for (final Map.Entry<String, List<URL>> entry : map.entrySet()) {
+            _map.put(entry.getKey(), copy(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(_map);
+    }
+    
+    /**
+     * Ordered set that rejects all modifications once built, so that it can be shared as a {@link LinkedHashSet}.
+     */
+    private static class ReadOnlyLinkedHashSet<T> extends LinkedHashSet<T> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        // true once the content is copied
+        private final boolean sealed;
+        
+        private ReadOnlyLinkedHashSet(final Collection<T> values) {
+            super(values);
+            sealed = true;
+        }
+        
+        @Override
+        public boolean add(final T value) {
+            if (sealed) throw new UnsupportedOperationException();
+            return super.add(value);
+        }
+        
+        @Override
+        public boolean remove(final Object value) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public boolean addAll(final Collection<? extends T> values) {
+            if (sealed) throw new UnsupportedOperationException();
+            return super.addAll(values);
+        }
+        
+        @Override
+        public boolean removeAll(final Collection<?> values) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public boolean retainAll(final Collection<?> values) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public boolean removeIf(final Predicate<? super T> filter) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public Iterator<T> iterator() {
+            final Iterator<T> iterator = super.iterator();
+            return new Iterator<T>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+                @Override
+                public T next() {
+                    return iterator.next();
+                }
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        
+    }
+
+}
@@ -1,10 +1,30 @@
 package esg.security.registry.service.impl;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -16,6 +36,14 @@ import esg.security.registry.service.api.ReloadableFileSetObserver;
  * Class that watches a set of local configuration files,
  * and notifies its observer when any of them has changed.
  * 
+ * A content digest is kept for each file, together with its modification time and size:
+ * the observer is only handed the files whose content has actually changed,
+ * and the periodic forced reload is skipped if no digest has changed.
+ * 
+ * Remote HTTP(S) documents are mirrored into local cache files, which are then watched like any other file:
+ * the documents are fetched conditionally from a background thread, and the cached copies are used
+ * at startup and whenever the remote servers cannot be reached.
+ * 
  * @author Luca Cinquini
  *
  */
@@ -24,15 +52,45 @@ public class ReloadableFileSet {
     // set of local files to watch
     private final List<File> files = new ArrayList<File>();
     
+    // remote documents mirrored into some of the local files
+    private final List<RemoteFile> remoteFiles = new ArrayList<RemoteFile>();
+    
+    // default directory for the local copies of the remote documents
+    public final static String DEFAULT_CACHE_DIRECTORY = "/esg/config/registry_cache";
+    
+    // default interval between fetches of the remote documents
+    public final static int DEFAULT_FETCH_SECONDS = 300; // 5 minutes
+    
     // The object that needs to be notified when any of the files has changed.
     ReloadableFileSetObserver observer = null;
     
-    // latest modification time of all files
-    private long fileLastReloaded = 0L; // Unix Epoch
+    // time the files were last checked for changes
+    private volatile long fileLastReloaded = 0L; // Unix Epoch
+    
+    // state of each file when it was last loaded
+    private final Map<File, FileState> states = new ConcurrentHashMap<File, FileState>();
+    
+    private final static String DIGEST_ALGORITHM = "SHA-256";
     
     // mandatory reload time in seconds
     private int reloadEverySeconds = 600; // 10 minutes
     
+    // default intervals used by the background watcher
+    public final static long DEFAULT_DEBOUNCE_MILLIS = 2000L; // 2 seconds
+    public final static int DEFAULT_POLL_SECONDS = 60; // 1 minute
+    
+    // maximum delay of a reload after the first change, in units of the debounce interval,
+    // so that files that are written continuously are still reloaded
+    public final static int MAX_DEBOUNCE_FACTOR = 10;
+    
+    // true while the background watcher is running
+    private volatile boolean watching = false;
+    private Thread watcherThread = null;
+    
+    // true while the background fetcher is running
+    private volatile boolean fetching = false;
+    private Thread fetcherThread = null;
+    
     private static String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
     private static SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
     
@@ -44,17 +102,60 @@ public class ReloadableFileSet {
      * Each file can be specified as an absolute file path (starting with '/') 
      * or as a relative classpath (not starting with '/').
      * Missing files are ignored, but a warning message is logged.
+     * Remote documents are cached in the default cache directory.
      * 
      * @param xmlFilePath
      * @throws Exception
      */
     public ReloadableFileSet(final String filePaths) throws Exception {
+        this(filePaths, DEFAULT_CACHE_DIRECTORY);
+    }
+    
+    /**
+     * Constructor accepts a list of comma-separated files, as above, or remote HTTP(S) documents.
+     * Each remote document is mirrored into a file of the cache directory: if no copy is cached yet,
+     * the document is fetched right away, otherwise the cached copy is used until the next fetch.
+     * The cache directory is created accessible by the service user only, and is rejected if other users can write to it;
+     * cached copies not owned by the service user are discarded.
+     * 
+     * @param filePaths
+     * @param cacheDirectory : directory where the local copies of the remote documents are stored
+     * @throws Exception
+     */
+    public ReloadableFileSet(final String filePaths, final String cacheDirectory) throws Exception {
+        this(filePaths, cacheDirectory, false);
+    }
+    
+    /**
+     * Constructor accepts a list of comma-separated files or remote documents, as above.
+     * Since the remote documents may contain trust white lists, they must be retrieved over HTTPS,
+     * unless plain HTTP is explicitly allowed.
+     * 
+     * @param filePaths
+     * @param cacheDirectory : directory where the local copies of the remote documents are stored
+     * @param allowHttp : true to accept remote documents retrieved over plain HTTP
+     * @throws Exception
+     */
+    public ReloadableFileSet(final String filePaths, final String cacheDirectory, final boolean allowHttp) throws Exception {
         
         // loop over all configured local XML files
         for (final String filePath : filePaths.split("\\s*,\\s*")) {
             if (LOG.isInfoEnabled()) LOG.info("Using file:"+filePath);
+            // remote document
+            if (RemoteFile.isRemote(filePath)) {
+                if (RemoteFile.isInsecure(filePath) && !allowHttp) {
+                    throw new IllegalArgumentException("Remote file: "+filePath+" must be retrieved over HTTPS, unless plain HTTP is explicitly allowed");
+                }
+                RemoteFile.prepareDirectory(new File(cacheDirectory));
+                final RemoteFile remoteFile = new RemoteFile(new URL(filePath), new File(cacheDirectory));
+                remoteFile.discardUntrusted();
+                if (!remoteFile.getFile().exists()) {
+                    fetch(remoteFile);
+                }
+                remoteFiles.add( remoteFile );
+                files.add( remoteFile.getFile() );
             // absolute path
-            if (filePath.startsWith("/")) {
+            } else if (filePath.startsWith("/")) {
                 File file = new File(filePath); 
                 if (!file.exists()) {
                     LOG.warn("File "+file.getAbsolutePath()+" not found");
@@ -85,19 +186,465 @@ public class ReloadableFileSet {
      * and notifies the observer in case it has.
      * A reload is forced even if the file hasn't changed,
      * but reloadEverySeconds has passed.
+     * 
+     * When the background watcher is running, this method returns immediately without accessing the file system,
+     * since changes are detected and loaded by the watcher thread.
      */
     public void reload() {
         
-        // loop over files
-        for (final File file : files) {            
-            if (file.exists() && 
-                (file.lastModified()>fileLastReloaded || (fileLastReloaded+reloadEverySeconds*1000<System.currentTimeMillis()) )) {
-                fileLastReloaded = System.currentTimeMillis();
-                if (LOG.isInfoEnabled()) LOG.info("Reloading file set at time="+df.format(new Date(fileLastReloaded)));
-                // notify the observer
-                if (observer!=null) observer.parse(files);
-                break;
+        // changes are handled by the background watcher
+        if (watching) return;
+        
+        if (isChanged()) check();
+        
+    }
+    
+    /**
+     * Method that checks if any of the files has changed, and notifies the observer in case it has,
+     * even if the background watcher is running.
+     */
+    public synchronized void check() {
+        
+        // check again, another thread may have reloaded the files in the meantime
+        if (isChanged()) reloadNow();
+        
+    }
+    
+    /**
+     * Method to record the current state of the files as loaded, without notifying the observer,
+     * when the observer loads them by other means: only the changes made after this call are reported.
+     */
+    public synchronized void markLoaded() {
+        
+        fileLastReloaded = System.currentTimeMillis();
+        for (final File file : files) {
+            states.put(file, new FileState(file));
+        }
+        
+    }
+    
+    /**
+     * @return the watched files, in their configured order
+     */
+    public List<File> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+    
+    /**
+     * Method to start a background thread that watches the files for changes through the file system's
+     * {@link WatchService}, and notifies the observer after changes have settled for the debounce interval,
+     * or at most {@link #MAX_DEBOUNCE_FACTOR} debounce intervals after the first change.
+     * The files are also checked every pollSeconds, in case the file system does not deliver change events
+     * (for example on network file systems), and the reload is still forced every reloadEverySeconds.
+     * 
+     * Once the watcher is running, {@link #reload()} does not access the file system anymore.
+     * 
+     * @param debounceMillis : time to wait for further changes before reloading the files
+     * @param pollSeconds : interval between checks of the files' modification times
+     */
+    public synchronized void startWatching(final long debounceMillis, final int pollSeconds) {
+        
+        if (watching) return;
+        
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            final Set<Path> directories = new HashSet<Path>();
+            for (final File file : files) {
+                final Path directory = file.getAbsoluteFile().toPath().getParent();
+                if (directories.add(directory)) {
+                    directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, 
+                                                     StandardWatchEventKinds.ENTRY_MODIFY, 
+                                                     StandardWatchEventKinds.ENTRY_DELETE);
+                }
+            }
+        } catch(IOException e) {
+            LOG.warn("Unable to watch files for changes, falling back to polling every "+pollSeconds+" seconds: "+e.getMessage());
+            close(watchService);
+            watchService = null;
+        }
+        
+        watcherThread = new Thread(new Watcher(watchService, debounceMillis, pollSeconds), "ReloadableFileSet-watcher");
+        watcherThread.setDaemon(true);
+        watching = true;
+        watcherThread.start();
+        if (LOG.isInfoEnabled()) LOG.info("Started watching files: "+files);
+        
+    }
+    
+    /**
+     * Method to start the background watcher with the default debounce and polling intervals.
+     */
+    public void startWatching() {
+        startWatching(DEFAULT_DEBOUNCE_MILLIS, DEFAULT_POLL_SECONDS);
+    }
+    
+    /**
+     * Method to stop the background watcher: changes are then detected by {@link #reload()} again.
+     */
+    public synchronized void stopWatching() {
+        
+        if (!watching) return;
+        
+        watching = false;
+        watcherThread.interrupt();
+        watcherThread = null;
+        if (LOG.isInfoEnabled()) LOG.info("Stopped watching files: "+files);
+        
+    }
+    
+    public boolean isWatching() {
+        return watching;
+    }
+    
+    /**
+     * Method to change the time after which all files are checked again, even if their modification time and size have not changed.
+     * @param reloadEverySeconds
+     */
+    public void setReloadEverySeconds(final int reloadEverySeconds) {
+        this.reloadEverySeconds = reloadEverySeconds;
+    }
+    
+    /**
+     * Method to fetch the remote documents that have changed, and notify the observer of their new local copies.
+     * The documents are downloaded without holding any lock: the local copies are only replaced, and parsed,
+     * once all downloads have completed. A document that cannot be fetched keeps its previous local copy.
+     * 
+     * @return true if any local copy was replaced
+     */
+    public boolean fetch() {
+        
+        final List<RemoteFile> downloaded = new ArrayList<RemoteFile>();
+        for (final RemoteFile remoteFile : remoteFiles) {
+            try {
+                if (remoteFile.download()) downloaded.add(remoteFile);
+            } catch(IOException e) {
+                LOG.warn("Unable to fetch remote file: "+remoteFile+", using cached copy: "+e.getMessage());
+            }
+        }
+        if (downloaded.isEmpty()) return false;
+        
+        // replace the local copies and reload them together, so that request threads never parse them
+        synchronized (this) {
+            for (final RemoteFile remoteFile : downloaded) {
+                try {
+                    remoteFile.install();
+                } catch(IOException e) {
+                    LOG.warn("Unable to store remote file: "+remoteFile+": "+e.getMessage());
+                }
+            }
+            if (!states.isEmpty()) reloadNow();
+        }
+        return true;
+        
+    }
+    
+    /**
+     * Method to fetch a remote document synchronously, and store it as its local copy.
+     */
+    private void fetch(final RemoteFile remoteFile) {
+        try {
+            if (remoteFile.download()) remoteFile.install();
+        } catch(IOException e) {
+            LOG.warn("Unable to fetch remote file: "+remoteFile+", no cached copy available: "+e.getMessage());
+        }
+    }
+    
+    /**
+     * Method to change the maximum size of the remote documents, from their next download
+     * (the documents fetched when the file set was created are limited to {@link RemoteFile#DEFAULT_MAX_BYTES}).
+     * @param maxBytes
+     */
+    public void setMaxDownloadBytes(final long maxBytes) {
+        for (final RemoteFile remoteFile : remoteFiles) {
+            remoteFile.setMaxBytes(maxBytes);
+        }
+    }
+    
+    /**
+     * @return true if any of the files is the local copy of a remote document
+     */
+    public boolean hasRemoteFiles() {
+        return !remoteFiles.isEmpty();
+    }
+    
+    /**
+     * Method to start a background thread that fetches the remote documents every fetchSeconds.
+     * @param fetchSeconds
+     */
+    public synchronized void startFetching(final int fetchSeconds) {
+        
+        if (fetching || remoteFiles.isEmpty()) return;
+        
+        fetcherThread = new Thread(new Fetcher(fetchSeconds), "ReloadableFileSet-fetcher");
+        fetcherThread.setDaemon(true);
+        fetching = true;
+        fetcherThread.start();
+        if (LOG.isInfoEnabled()) LOG.info("Started fetching remote files: "+remoteFiles+" every "+fetchSeconds+" seconds");
+        
+    }
+    
+    /**
+     * Method to stop fetching the remote documents: their local copies are not updated anymore.
+     */
+    public synchronized void stopFetching() {
+        
+        if (!fetching) return;
+        
+        fetching = false;
+        fetcherThread.interrupt();
+        fetcherThread = null;
+        if (LOG.isInfoEnabled()) LOG.info("Stopped fetching remote files: "+remoteFiles);
+        
+    }
+    
+    public boolean isFetching() {
+        return fetching;
+    }
+    
+    /**
+     * @return true if the modification time or size of any file has changed since the last reload, 
+     *         or if the mandatory reload time has passed
+     */
+    private boolean isChanged() {
+        
+        if (isExpired()) return true;
+        for (final File file : files) {
+            final FileState state = states.get(file);
+            if (state==null || !state.isSameAs(file)) return true;
+        }
+        return false;
+        
+    }
+    
+    /**
+     * @return true if the mandatory reload time has passed
+     */
+    private boolean isExpired() {
+        return fileLastReloaded+reloadEverySeconds*1000L<System.currentTimeMillis();
+    }
+    
+    /**
+     * Method to determine which files have changed, and notify the observer.
+     * The content digest of a file is only recomputed if its modification time or size has changed,
+     * or if the mandatory reload time has passed.
+     */
+    private synchronized void reloadNow() {
+        
+        final boolean verify = isExpired();
+        final boolean first = states.isEmpty();
+        fileLastReloaded = System.currentTimeMillis();
+        
+        // compare the files to their previous state
+        final List<File> changedFiles = new ArrayList<File>();
+        for (final File file : files) {
+            final FileState state = states.get(file);
+            final FileState _state = (state!=null && !verify && state.isSameAs(file)) ? state : new FileState(file);
+            if (state==null || !state.hasSameContentAs(_state)) {
+                changedFiles.add(file);
+            }
+            states.put(file, _state);
+        }
+        
+        if (first) {
+            if (LOG.isInfoEnabled()) LOG.info("Loading file set at time="+df.format(new Date(fileLastReloaded)));
+            if (observer!=null) observer.parse(files);
+        } else if (changedFiles.isEmpty()) {
+            if (LOG.isDebugEnabled()) LOG.debug("File set unchanged at time="+df.format(new Date(fileLastReloaded)));
+        } else {
+            if (LOG.isInfoEnabled()) LOG.info("Reloading changed files="+changedFiles+" at time="+df.format(new Date(fileLastReloaded)));
+            // notify the observer
+            if (observer!=null) observer.update(changedFiles, files);
+        }
+        
+    }
+    
+    /**
+     * Modification time, size and content digest of a file at a given time.
+     */
+    private static class FileState {
+        
+        final boolean exists;
+        final long lastModified;
+        final long length;
+        final byte[] digest;
+        
+        FileState(final File file) {
+            this.exists = file.exists();
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.digest = exists ? digest(file) : null;
+        }
+        
+        /**
+         * @return true if the file's modification time and size have not changed
+         */
+        boolean isSameAs(final File file) {
+            return file.exists()==exists && file.lastModified()==lastModified && file.length()==length;
+        }
+        
+        /**
+         * @return true if both files are missing, or have the same digest (or are both unreadable)
+         */
+        boolean hasSameContentAs(final FileState other) {
+            return exists==other.exists && Arrays.equals(digest, other.digest);
+        }
+        
+        /**
+         * @return the digest of the file content, or null if it cannot be read
+         */
+        private static byte[] digest(final File file) {
+            
+            InputStream in = null;
+            try {
+                final MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+                in = new FileInputStream(file);
+                final byte[] buffer = new byte[64*1024];
+                int n;
+                while ((n = in.read(buffer))>0) {
+                    md.update(buffer, 0, n);
+                }
+                return md.digest();
+            } catch(NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } catch(IOException e) {
+                return null;
+            } finally {
+                if (in!=null) {
+                    try {
+                        in.close();
+                    } catch(IOException e) {
+                        // nothing to do
+                    }
+                }
+            }
+            
+        }
+        
+    }
+    
+    private static void close(final WatchService watchService) {
+        if (watchService!=null) {
+            try {
+                watchService.close();
+            } catch(IOException e) {
+                // nothing to do
+            }
+        }
+    }
+    
+    /**
+     * Background task that waits for file system events, or for the polling interval to expire,
+     * and reloads the files when needed.
+     */
+    private class Watcher implements Runnable {
+        
+        private final WatchService watchService;
+        private final long debounceMillis;
+        private final int pollSeconds;
+        
+        // names of the watched files, by directory
+        private final Set<Path> paths = new HashSet<Path>();
+        
+        Watcher(final WatchService watchService, final long debounceMillis, final int pollSeconds) {
+            this.watchService = watchService;
+            this.debounceMillis = debounceMillis;
+            this.pollSeconds = pollSeconds;
+            for (final File file : files) {
+                paths.add(file.getAbsoluteFile().toPath());
+            }
+        }
+        
+        @Override
+        public void run() {
+            
+            try {
+                while (watching && !Thread.currentThread().isInterrupted()) {
+                    
+                    boolean changed = false;
+                    if (watchService!=null) {
+                        // wait for the first event, then until no more events arrive for the debounce interval,
+                        // but not longer than the maximum delay after the first event
+                        WatchKey key = watchService.poll(pollSeconds, TimeUnit.SECONDS);
+                        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(debounceMillis*MAX_DEBOUNCE_FACTOR);
+                        while (key!=null) {
+                            changed = isRelevant(key) || changed;
+                            final long remaining = deadline - System.nanoTime();
+                            if (remaining<=0) break;
+                            key = watchService.poll(Math.min(TimeUnit.MILLISECONDS.toNanos(debounceMillis), remaining), TimeUnit.NANOSECONDS);
+                        }
+                    } else {
+                        Thread.sleep(pollSeconds*1000L);
+                    }
+                    
+                    // polling fallback
+                    if (changed || isChanged()) {
+                        try {
+                            reloadNow();
+                        } catch(RuntimeException e) {
+                            LOG.error("Error reloading file set: "+e.getMessage(), e);
+                        }
+                    }
+                    
+                }
+            } catch(InterruptedException e) {
+                // stop watching
+            } catch(ClosedWatchServiceException e) {
+                // stop watching
+            } finally {
+                close(watchService);
+            }
+            
+        }
+        
+        /**
+         * @return true if any of the key's events refers to one of the watched files
+         */
+        private boolean isRelevant(final WatchKey key) {
+            
+            boolean relevant = false;
+            final Path directory = (Path)key.watchable();
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind()==StandardWatchEventKinds.OVERFLOW) {
+                    relevant = true;
+                } else if (paths.contains(directory.resolve((Path)event.context()))) {
+                    relevant = true;
+                }
+            }
+            key.reset();
+            return relevant;
+            
+        }
+        
+    }
+
+    /**
+     * Background task that fetches the remote documents at regular intervals.
+     */
+    private class Fetcher implements Runnable {
+        
+        private final int fetchSeconds;
+        
+        Fetcher(final int fetchSeconds) {
+            this.fetchSeconds = fetchSeconds;
+        }
+        
+        @Override
+        public void run() {
+            
+            try {
+                while (fetching && !Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(fetchSeconds*1000L);
+                    try {
+                        fetch();
+                    } catch(RuntimeException e) {
+                        LOG.error("Error fetching remote files: "+e.getMessage(), e);
+                    }
+                }
+            } catch(InterruptedException e) {
+                // stop fetching
             }
+            
         }
         
     }
@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.registry.service.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import esg.security.utils.xml.Parser;
+
+/**
+ * Class that mirrors a remote HTTP(S) XML document into a local cache file.
+ * 
+ * The document is requested conditionally with the ETag and modification time of the cached copy,
+ * which are kept next to the cache file so that they survive restarts.
+ * Since the document comes from another host, it is parsed without resolving doctype declarations or external entities.
+ * The cache directory must only be writable by the user running the service, and cached copies owned by other users are discarded.
+ * A new copy is downloaded next to the cache file, and replaces it atomically only if it can be parsed:
+ * when the remote server is unreachable or returns an invalid document, the last cached copy keeps being used.
+ * Documents larger than the maximum size (see {@link #setMaxBytes(long)}) are rejected without being downloaded in full.
+ * 
+ * @author luca.cinquini
+ */
+class RemoteFile {
+    
+    private final static int TIMEOUT_MILLIS = 10000;
+    
+    // default maximum size of a remote document
+    public final static long DEFAULT_MAX_BYTES = 10L*1024*1024;
+    
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    
+    private final URL url;
+    
+    // local copy of the remote document
+    private final File file;
+    
+    // ETag of the local copy, stored next to it
+    private final File etagFile;
+    
+    // last document downloaded, and its ETag, until they replace the local copy
+    private final File downloadFile;
+    private String downloadETag = null;
+    
+    // maximum size of the remote document
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    
+    private final Log LOG = LogFactory.getLog(this.getClass());
+    
+    /**
+     * @param url : location of the remote document
+     * @param cacheDirectory : directory where the local copy is stored
+     */
+    RemoteFile(final URL url, final File cacheDirectory) {
+        this.url = url;
+        this.file = new File(cacheDirectory, toFileName(url));
+        this.etagFile = new File(cacheDirectory, file.getName()+".etag");
+        this.downloadFile = new File(cacheDirectory, file.getName()+".download");
+    }
+    
+    /**
+     * Method to create the cache directory, accessible by the service user only,
+     * or to verify that an existing cache directory cannot be written by any other user.
+     * 
+     * @param directory
+     * @throws IOException if the directory cannot be created, or can be written by other users
+     */
+    static void prepareDirectory(final File directory) throws IOException {
+        
+        final Path path = directory.getAbsoluteFile().toPath();
+        final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (!Files.exists(path)) {
+            if (posix) {
+                Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(path);
+            }
+        }
+        
+        if (!Files.isDirectory(path)) throw new IOException("Cache directory: "+path+" is not a directory");
+        if (!isOwned(path)) throw new IOException("Cache directory: "+path+" is not owned by user: "+System.getProperty("user.name"));
+        if (posix) {
+            final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+            if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                throw new IOException("Cache directory: "+path+" must not be writable by other users");
+            }
+        }
+        
+    }
+    
+    /**
+     * @return true if the file is owned by the user running the service
+     */
+    private static boolean isOwned(final Path path) throws IOException {
+        return Files.getOwner(path).getName().equals(System.getProperty("user.name"));
+    }
+    
+    /**
+     * Method to discard the local copy, and its ETag, if they are not owned by the user running the service.
+     * @return true if a local copy was discarded
+     */
+    synchronized boolean discardUntrusted() throws IOException {
+        
+        boolean discarded = false;
+        for (final File _file : new File[] { file, etagFile }) {
+            if (_file.exists() && !isOwned(_file.toPath())) {
+                LOG.warn("Discarding cached file: "+_file.getAbsolutePath()+" not owned by user: "+System.getProperty("user.name"));
+                Files.delete(_file.toPath());
+                discarded = true;
+            }
+        }
+        return discarded;
+        
+    }
+    
+    /**
+     * @return true if the location is a remote HTTP(S) document
+     */
+    static boolean isRemote(final String location) {
+        return location.startsWith("http://") || location.startsWith("https://");
+    }
+    
+    /**
+     * @return true if the location is a remote document retrieved over plain, unauthenticated HTTP
+     */
+    static boolean isInsecure(final String location) {
+        return location.startsWith("http://");
+    }
+    
+    URL getUrl() {
+        return url;
+    }
+    
+    /**
+     * Method to change the maximum size of the remote document, from the next download.
+     * @param maxBytes
+     */
+    void setMaxBytes(final long maxBytes) {
+        if (maxBytes<=0) throw new IllegalArgumentException("The maximum size of a remote file must be positive: "+maxBytes);
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * @return the local copy of the remote document, which may not exist yet
+     */
+    File getFile() {
+        return file;
+    }
+    
+    /**
+     * Method to request the remote document, and download it next to the local copy if it has changed.
+     * The download only replaces the local copy when {@link #install()} is invoked.
+     * 
+     * @return true if a new copy was downloaded
+     * @throws IOException if the remote document cannot be retrieved or parsed, or is larger than the maximum size
+     */
+    synchronized boolean download() throws IOException {
+        
+        final HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            if (file.exists()) {
+                connection.setIfModifiedSince(file.lastModified());
+                final String etag = readETag();
+                if (etag!=null) connection.setRequestProperty("If-None-Match", etag);
+            }
+            
+            final int status = connection.getResponseCode();
+            if (status==HttpURLConnection.HTTP_NOT_MODIFIED) {
+                if (LOG.isDebugEnabled()) LOG.debug("Remote file: "+url+" not modified");
+                return false;
+            }
+            if (status!=HttpURLConnection.HTTP_OK) throw new IOException("HTTP GET request failed: url="+url+" error="+status);
+            final long _maxBytes = maxBytes;
+            if (connection.getContentLengthLong()>_maxBytes) {
+                throw new IOException("Remote file: "+url+" size="+connection.getContentLengthLong()+" exceeds the maximum size="+_maxBytes);
+            }
+            
+            // download next to the local copy, so that it can be replaced atomically,
+            // and stop as soon as the maximum size is exceeded, whatever the declared length
+            final InputStream in = connection.getInputStream();
+            try {
+                final OutputStream out = new FileOutputStream(downloadFile);
+                try {
+                    final byte[] buffer = new byte[8192];
+                    long size = 0;
+                    int n;
+                    while ((n=in.read(buffer))>=0) {
+                        size += n;
+                        if (size>_maxBytes) throw new IOException("Remote file: "+url+" exceeds the maximum size="+_maxBytes);
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    out.close();
+                }
+            } catch(IOException e) {
+                downloadFile.delete();
+                throw e;
+            } finally {
+                in.close();
+            }
+            
+            // never replace a good copy with a document that cannot be parsed
+            try {
+                Parser.toSecureJDOM(downloadFile.getAbsolutePath());
+            } catch(Exception e) {
+                downloadFile.delete();
+                throw new IOException("Invalid XML document from: "+url+": "+e.getMessage());
+            }
+            
+            final long lastModified = connection.getLastModified();
+            if (lastModified>0) downloadFile.setLastModified(lastModified);
+            downloadETag = connection.getHeaderField("ETag");
+            if (LOG.isInfoEnabled()) LOG.info("Downloaded remote file: "+url);
+            return true;
+            
+        } finally {
+            connection.disconnect();
+        }
+        
+    }
+    
+    /**
+     * Method to replace the local copy with the last document downloaded, if any.
+     * @throws IOException
+     */
+    synchronized void install() throws IOException {
+        
+        if (!downloadFile.exists()) return;
+        Files.move(downloadFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writeETag(downloadETag);
+        if (LOG.isInfoEnabled()) LOG.info("Stored remote file: "+url+" to: "+file.getAbsolutePath());
+        
+    }
+    
+    private String readETag() {
+        try {
+            return etagFile.exists() ? new String(Files.readAllBytes(etagFile.toPath()), UTF8).trim() : null;
+        } catch(IOException e) {
+            return null;
+        }
+    }
+    
+    private void writeETag(final String etag) {
+        if (etag==null) {
+            etagFile.delete();
+            return;
+        }
+        try {
+            final OutputStream out = new FileOutputStream(etagFile);
+            try {
+                out.write(etag.getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+        } catch(IOException e) {
+            LOG.warn("Cannot store ETag of remote file: "+url+": "+e.getMessage());
+        }
+    }
+    
+    /**
+     * @return a file name derived from the host, port and path of the URL
+     */
+    private static String toFileName(final URL url) {
+        final String name = url.getHost()+(url.getPort()>0 ? "_"+url.getPort() : "")+url.getPath()
+                          + (url.getQuery()!=null ? "_"+url.getQuery() : "");
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+    
+    @Override
+    public String toString() {
+        return url.toString();
+    }
+
+}
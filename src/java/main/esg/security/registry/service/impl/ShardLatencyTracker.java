@@ -0,0 +1,417 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.registry.service.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import esg.security.registry.service.api.RegistryService;
+
+/**
+ * Class that tracks the health and response times of the Solr shards used for distributed search,
+ * so that they can be queried in order of latency, and the shards that are down or unusually slow can be skipped.
+ * 
+ * The response times are recorded by the callers that query the shards, or by an optional background prober,
+ * and averaged into an exponentially weighted moving average (EWMA) for each shard.
+ * A shard is considered:
+ * <ul>
+ *  <li>down, after maxFailures consecutive failures, until retryMillis have passed since the last failure:
+ *      it is then tried again, after the healthy shards
+ *  <li>in a latency spike, if its average response time is more than spikeFactor times the median of the other measured shards
+ *      (so that a slow shard does not raise its own threshold, which matters most when there are only a few shards),
+ *      and more than minSpikeMillis, until retryMillis have passed since its last response: it is then tried again,
+ *      after the healthy shards
+ *  <li>healthy otherwise, including the shards that have not been measured yet.
+ * </ul>
+ * A moving average older than retryMillis is discarded at the next response, so that a shard tried again
+ * after being skipped is judged on its current response times.
+ * 
+ * @author luca.cinquini
+ */
+public class ShardLatencyTracker {
+    
+    // weight of the last response time in the moving average
+    private double alpha = 0.3;
+    
+    // consecutive failures after which a shard is considered down
+    private int maxFailures = 3;
+    
+    // time after which a shard that is down or in a latency spike is tried again
+    private long retryMillis = 60000L; // 1 minute
+    
+    // ratio to the median response time above which a shard is in a latency spike
+    private double spikeFactor = 3.0;
+    
+    // response time below which a shard is never in a latency spike
+    private long minSpikeMillis = 500L;
+    
+    // path appended to each shard to probe it
+    private String probePath = "/select?q=*:*&rows=0";
+    
+    private final static int PROBE_TIMEOUT_MILLIS = 5000;
+    
+    // statistics by shard
+    private final ConcurrentHashMap<String, ShardStats> stats = new ConcurrentHashMap<String, ShardStats>();
+    
+    // true while the background prober is running
+    private volatile boolean probing = false;
+    private Thread proberThread = null;
+    
+    private final Log LOG = LogFactory.getLog(this.getClass());
+    
+    /**
+     * Health of a shard, in the order the shards are returned.
+     */
+    private enum Health { HEALTHY, RECOVERING, SPIKE, DOWN };
+    
+    /**
+     * Method to record the response time of a successful query to a shard.
+     * @param shard
+     * @param millis
+     */
+    public void recordLatency(final String shard, final long millis) {
+        getStats(shard).success(millis, alpha, retryMillis);
+    }
+    
+    /**
+     * Method to record a failed query to a shard.
+     * @param shard
+     */
+    public void recordFailure(final String shard) {
+        getStats(shard).failure();
+    }
+    
+    /**
+     * Method to order the given shards by health and average response time:
+     * the healthy shards come first, fastest first, followed by the shards not measured yet in their given order,
+     * then by the shards being tried again after being down or in a latency spike, by the shards in a latency spike, 
+     * and by the shards that are down.
+     * 
+     * @param shards
+     * @param dropUnhealthy : true to leave out the shards that are down or in a latency spike,
+     *                        unless no other shard is available
+     * @return
+     */
+    public LinkedHashSet<String> order(final Collection<String> shards, final boolean dropUnhealthy) {
+        
+        // take a consistent copy of the statistics
+        final long now = System.currentTimeMillis();
+        final List<Entry> entries = new ArrayList<Entry>();
+        final List<Double> averages = new ArrayList<Double>();
+        int position = 0;
+        for (final String shard : shards) {
+            final ShardStats _stats = stats.get(shard);
+            final Entry entry = _stats==null ? new Entry(shard, position++) : _stats.toEntry(shard, position++);
+            entries.add(entry);
+            if (entry.average>=0) averages.add(entry.average);
+        }
+        
+        // classify the shards, comparing each one to the others
+        Collections.sort(averages);
+        for (final Entry entry : entries) {
+            if (entry.failures>=maxFailures) {
+                entry.health = now-entry.lastFailure<retryMillis ? Health.DOWN : Health.RECOVERING;
+            } else if (entry.average>=0 && averages.size()>1 
+                       && entry.average>Math.max(minSpikeMillis, spikeFactor*medianOfOthers(averages, entry.average))) {
+                entry.health = now-entry.lastSample<retryMillis ? Health.SPIKE : Health.RECOVERING;
+            } else {
+                entry.health = Health.HEALTHY;
+            }
+        }
+        Collections.sort(entries, ENTRY_COMPARATOR);
+        
+        final LinkedHashSet<String> ordered = new LinkedHashSet<String>();
+        for (final Entry entry : entries) {
+            if (!dropUnhealthy || entry.health==Health.HEALTHY || entry.health==Health.RECOVERING) {
+                ordered.add(entry.shard);
+            }
+        }
+        
+        // never leave a search without any shard
+        if (ordered.isEmpty()) {
+            for (final Entry entry : entries) {
+                ordered.add(entry.shard);
+            }
+        }
+        return ordered;
+        
+    }
+    
+    /**
+     * @return the average response time of a shard, in milliseconds, or -1 if it has not been measured
+     */
+    public double getAverageLatency(final String shard) {
+        final ShardStats _stats = stats.get(shard);
+        return _stats==null ? -1 : _stats.toEntry(shard, 0).average;
+    }
+    
+    /**
+     * Method to discard the statistics of the shards that are not in use anymore.
+     * @param shards
+     */
+    public void retain(final Collection<String> shards) {
+        stats.keySet().retainAll(shards);
+    }
+    
+    /**
+     * Method to query each shard once, and record its response time or failure.
+     * @param shards
+     */
+    public void probe(final Collection<String> shards) {
+        
+        for (final String shard : shards) {
+            final long startTime = System.nanoTime();
+            try {
+                final HttpURLConnection connection = (HttpURLConnection)new URL(toProbeUrl(shard)).openConnection();
+                try {
+                    connection.setConnectTimeout(PROBE_TIMEOUT_MILLIS);
+                    connection.setReadTimeout(PROBE_TIMEOUT_MILLIS);
+                    final int status = connection.getResponseCode();
+                    if (status!=HttpURLConnection.HTTP_OK) throw new IOException("HTTP GET request failed: error="+status);
+                    final InputStream in = connection.getInputStream();
+                    try {
+                        final byte[] buffer = new byte[4096];
+                        while (in.read(buffer)>=0) {
+                            // discard the response
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+                recordLatency(shard, (System.nanoTime()-startTime)/1000000L);
+            } catch(IOException e) {
+                if (LOG.isInfoEnabled()) LOG.info("Probe of shard="+shard+" failed: "+e.getMessage());
+                recordFailure(shard);
+            }
+        }
+        
+    }
+    
+    /**
+     * Method to start a background thread that probes the shards of the registry every probeSeconds.
+     * @param registryService
+     * @param probeSeconds
+     */
+    public synchronized void startProbing(final RegistryService registryService, final int probeSeconds) {
+        
+        if (probing) return;
+        
+        proberThread = new Thread(new Prober(registryService, probeSeconds), "ShardLatencyTracker-prober");
+        proberThread.setDaemon(true);
+        probing = true;
+        proberThread.start();
+        if (LOG.isInfoEnabled()) LOG.info("Started probing shards every "+probeSeconds+" seconds");
+        
+    }
+    
+    /**
+     * Method to stop the background prober, if any.
+     */
+    public synchronized void stopProbing() {
+        
+        if (!probing) return;
+        
+        probing = false;
+        proberThread.interrupt();
+        proberThread = null;
+        if (LOG.isInfoEnabled()) LOG.info("Stopped probing shards");
+        
+    }
+    
+    public boolean isProbing() {
+        return probing;
+    }
+    
+    public void setAlpha(final double alpha) {
+        this.alpha = alpha;
+    }
+
+    public void setMaxFailures(final int maxFailures) {
+        this.maxFailures = maxFailures;
+    }
+
+    public void setRetryMillis(final long retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    public void setSpikeFactor(final double spikeFactor) {
+        this.spikeFactor = spikeFactor;
+    }
+
+    public void setMinSpikeMillis(final long minSpikeMillis) {
+        this.minSpikeMillis = minSpikeMillis;
+    }
+
+    /**
+     * Method to change the path appended to each shard (e.g. "localhost:8983/solr") to probe it.
+     * @param probePath
+     */
+    public void setProbePath(final String probePath) {
+        this.probePath = probePath;
+    }
+    
+    private String toProbeUrl(final String shard) {
+        return (shard.contains("://") ? shard : "http://"+shard)+probePath;
+    }
+    
+    private ShardStats getStats(final String shard) {
+        ShardStats _stats = stats.get(shard);
+        if (_stats==null) {
+            _stats = new ShardStats();
+            final ShardStats previous = stats.putIfAbsent(shard, _stats);
+            if (previous!=null) _stats = previous;
+        }
+        return _stats;
+    }
+    
+    /**
+     * @param values : sorted values, at least two
+     * @param value : one of the values
+     * @return the median of the values, without one occurrence of the given value
+     */
+    private static double medianOfOthers(final List<Double> values, final double value) {
+        final int excluded = Collections.binarySearch(values, value);
+        final int n = values.size()-1;
+        return n%2==1 ? valueOfOthers(values, excluded, n/2) 
+                      : (valueOfOthers(values, excluded, n/2-1)+valueOfOthers(values, excluded, n/2))/2;
+    }
+    
+    /**
+     * @return the value at the given position once the excluded position is removed
+     */
+    private static double valueOfOthers(final List<Double> values, final int excluded, final int position) {
+        return values.get(position<excluded ? position : position+1);
+    }
+    
+    /**
+     * Moving average and failures of a shard.
+     */
+    private static class ShardStats {
+        
+        private double average = -1;
+        private long lastSample = 0L;
+        private int failures = 0;
+        private long lastFailure = 0L;
+        
+        synchronized void success(final long millis, final double alpha, final long retryMillis) {
+            final long now = System.currentTimeMillis();
+            average = (average<0 || now-lastSample>=retryMillis) ? millis : alpha*millis+(1-alpha)*average;
+            lastSample = now;
+            failures = 0;
+        }
+        
+        synchronized void failure() {
+            failures++;
+            lastFailure = System.currentTimeMillis();
+        }
+        
+        synchronized Entry toEntry(final String shard, final int position) {
+            final Entry entry = new Entry(shard, position);
+            entry.average = average;
+            entry.lastSample = lastSample;
+            entry.failures = failures;
+            entry.lastFailure = lastFailure;
+            return entry;
+        }
+        
+    }
+    
+    /**
+     * Copy of the statistics of a shard, used to order the shards.
+     */
+    private static class Entry {
+        
+        final String shard;
+        final int position;
+        double average = -1;
+        long lastSample = 0L;
+        int failures = 0;
+        long lastFailure = 0L;
+        Health health;
+        
+        Entry(final String shard, final int position) {
+            this.shard = shard;
+            this.position = position;
+        }
+        
+    }
+    
+    /**
+     * Orders the shards by health, then the measured shards by average response time, then by their given position.
+     */
+    private final static Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry e1, final Entry e2) {
+            if (e1.health!=e2.health) return e1.health.compareTo(e2.health);
+            final boolean measured1 = e1.average>=0;
+            final boolean measured2 = e2.average>=0;
+            if (measured1!=measured2) return measured1 ? -1 : 1;
+            if (measured1 && e1.average!=e2.average) return Double.compare(e1.average, e2.average);
+            return e1.position-e2.position;
+        }
+    };
+    
+    /**
+     * Background task that probes the shards of the registry at regular intervals.
+     */
+    private class Prober implements Runnable {
+        
+        private final RegistryService registryService;
+        private final int probeSeconds;
+        
+        Prober(final RegistryService registryService, final int probeSeconds) {
+            this.registryService = registryService;
+            this.probeSeconds = probeSeconds;
+        }
+        
+        @Override
+        public void run() {
+            
+            try {
+                while (probing && !Thread.currentThread().isInterrupted()) {
+                    try {
+                        probe(registryService.getShards());
+                    } catch(RuntimeException e) {
+                        LOG.error("Error probing shards: "+e.getMessage(), e);
+                    }
+                    Thread.sleep(probeSeconds*1000L);
+                }
+            } catch(InterruptedException e) {
+                // stop probing
+            }
+            
+        }
+        
+    }
+
+}
@@ -137,6 +137,23 @@ public class Parser {
 
   } // toJDOM()
   
+  /**
+   * Method to parse an untrusted input xml file and return a JDOM document:
+   * doctype declarations are rejected, and no external entities or DTDs are ever loaded.
+   * @param xmlfile : local pathname of XML file
+   */
+  public static Document toSecureJDOM(String xmlfile) throws JDOMException, IOException {
+
+     SAXBuilder _builder = getSecureBuilder();
+     FileInputStream in = new FileInputStream( xmlfile );
+     try {
+         return _builder.build( in );
+     } finally {
+         in.close();
+     }
+
+  } // toSecureJDOM()
+  
   /**
    * Method to parse an input xml file retrieved with the class loader and return a JDOM document
    * @param xmlfile : name of XML file, located in classpath
@@ -212,6 +229,19 @@ public class Parser {
     return _builder;
     
   } // getBuilder()
+  
+  /** Utility method to configure a non-validating XML parser that does not resolve any external resource */
+  private static SAXBuilder getSecureBuilder() {
+      
+    SAXBuilder _builder = getBuilder(false);
+    _builder.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+    _builder.setFeature("http://xml.org/sax/features/external-general-entities", false);
+    _builder.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+    _builder.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+    _builder.setExpandEntities(false);
+    return _builder;
+    
+  } // getSecureBuilder()
 
 } // Parser
 
@@ -0,0 +1,117 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esg-repo.llnl.gov/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esg-repo.llnl.gov/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.common.security;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+/**
+   Description:
+
+   Tests the bulk mode of the PolicyChecker against the policy
+   service test policies.
+
+ */
+public class PolicyCheckerTest {
+
+    private static final String POLICIES = "esg/security/policy/service/data/esgf_policies.xml";
+
+    private PolicyChecker checker = null;
+
+    @Before
+    public void setup() throws Exception {
+        checker = new PolicyChecker().load(new ClassPathResource(POLICIES).getFile().getAbsolutePath());
+    }
+
+    @Test
+    public void testHits() {
+        Assert.assertEquals(8, checker.getPolicies().size());
+        Assert.assertArrayEquals(new int[] { 0, 1, 2 }, checker.getHits("cmip5.output1.NCAR"));
+        Assert.assertArrayEquals(new int[] { 3, 4 }, checker.getHits("nasa.airs.monthly"));
+        Assert.assertArrayEquals(new int[0], checker.getHits("obs4MIPs"));
+    }
+
+    @Test
+    public void testBulkReport() throws Exception {
+        StringBuilder paths = new StringBuilder();
+        for(int i = 0; i < 5000; i++) {
+            paths.append(i%2 == 0 ? "cmip5.path"+i : "other.path"+i).append('\n');
+        }
+        paths.append('\n');
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        checker.checkBulk(new BufferedReader(new StringReader(paths.toString())), new PrintStream(bytes,true,"UTF-8"), 4);
+
+        List<String> records = new ArrayList<String>();
+        String stats = "";
+        for(String line : bytes.toString("UTF-8").split("\n")) {
+            if(line.startsWith("R\t")) records.add(line);
+            if(line.startsWith("S\t") || line.startsWith("H\t")) stats += line+"\n";
+        }
+
+        //paths are reported in input order
+        Assert.assertEquals(5000, records.size());
+        Assert.assertEquals("R\tcmip5.path0\t0,1,2", records.get(0));
+        Assert.assertEquals("R\tother.path4999\t", records.get(4999));
+
+        Assert.assertTrue(stats.contains("S\tpaths\t5000\n"));
+        Assert.assertTrue(stats.contains("S\tmatched\t2500\n"));
+        Assert.assertTrue(stats.contains("H\t0\t2500\n"));
+        Assert.assertTrue(stats.contains("H\t3\t0\n"));
+    }
+}
@@ -0,0 +1,129 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esg-repo.llnl.gov/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esg-repo.llnl.gov/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.common.security;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+/**
+   Description:
+
+   Tests the indexed editing model and the atomic saves of the
+   PolicyGleaner.
+
+ */
+public class PolicyGleanerTest {
+
+    private static final String POLICIES = "esg/security/policy/service/data/esgf_policies.xml";
+
+    private PolicyGleaner pGleaner = null;
+    private File dir = null;
+
+    @Before
+    public void setup() throws Exception {
+        pGleaner = new PolicyGleaner(new Properties());
+        pGleaner.loadMyPolicy(new ClassPathResource(POLICIES).getFile().getAbsolutePath());
+        dir = File.createTempFile("policy_gleaner_","");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void cleanup() {
+        for(File file : dir.listFiles()) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testRemoveAll() {
+        Assert.assertEquals(8, pGleaner.size());
+        pGleaner.removeAllForGroup("NASA OBS");
+        Assert.assertEquals(5, pGleaner.size());
+        pGleaner.removeAllForRole("admin");
+        Assert.assertEquals(4, pGleaner.size());
+        pGleaner.removeAllForAction("Write");
+        Assert.assertEquals(3, pGleaner.size());
+        pGleaner.removeAllForResource("\\Acmip5.*");
+        Assert.assertEquals(1, pGleaner.size());
+
+        //removed policies can be added again, and are indexed again
+        pGleaner.addPolicy(".*test.*", "superGroup", "boss", "Write");
+        pGleaner.addPolicy(".*test.*", "superGroup", "boss", "Write");
+        Assert.assertEquals(2, pGleaner.size());
+        pGleaner.removeAllForGroup("superGroup");
+        Assert.assertEquals(1, pGleaner.size());
+        pGleaner.removeAllForGroup("doesNotExist");
+        Assert.assertEquals(1, pGleaner.size());
+    }
+
+    @Test
+    public void testCommitAndSave() throws Exception {
+        File target = new File(dir,"esgf_policies_local.xml");
+        pGleaner.removeAllForGroup("NASA OBS").addPolicy(".*test.*", "superGroup", "boss", "Write");
+        Assert.assertTrue(pGleaner.commit().savePolicyAs(target.getAbsolutePath()));
+
+        //only the target file is left behind
+        Assert.assertEquals(1, dir.listFiles().length);
+
+        PolicyGleaner reloaded = new PolicyGleaner(new Properties()).loadMyPolicy(target.getAbsolutePath());
+        Assert.assertEquals(6, reloaded.size());
+        Assert.assertEquals(6, reloaded.getMyPolicy().getPolicy().size());
+
+        //saving again replaces the file
+        Assert.assertTrue(pGleaner.removeAllForAction("Write").commit().savePolicyAs(target.getAbsolutePath()));
+        Assert.assertEquals(1, dir.listFiles().length);
+        Assert.assertEquals(3, new PolicyGleaner(new Properties()).loadMyPolicy(target.getAbsolutePath()).size());
+    }
+}
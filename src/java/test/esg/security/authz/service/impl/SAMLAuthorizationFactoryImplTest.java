@@ -33,11 +33,14 @@ import org.junit.Test;
 
 import esg.security.attr.service.api.SAMLAttributes;
 import esg.security.attr.service.impl.SAMLAttributesImpl;
+import esg.security.policy.service.api.PolicyAccess;
 import esg.security.policy.service.api.PolicyAction;
 import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyLookup;
 import esg.security.policy.service.api.PolicyService;
 import esg.security.policy.service.impl.PolicyAttributeImpl;
 import esg.security.policy.service.impl.PolicyServiceLocalXmlImpl;
+import esg.security.policy.service.impl.RoleHierarchy;
 import esg.security.registry.service.api.RegistryService;
 import esg.security.registry.service.impl.RegistryServiceLocalXmlImpl;
 
@@ -74,7 +77,7 @@ public class SAMLAuthorizationFactoryImplTest {
 		Vector<String> actions = new Vector<String>();
 		actions.add(PolicyAction.Read.toString());
 		actions.add(PolicyAction.Write.toString());
-		Map<URL, Set<String>> attServices = factory.getAttributeServices(resource, factory.getPolicies(resource, actions));
+		Map<URL, Set<String>> attServices = factory.getAttributeServices(resource, factory.getPolicies(factory.lookup(resource, actions)));
 		
 		URL url = new URL("https://pcmdi9.llnl.gov/esgf-idp/saml/soap/secure/attributeService.htm");
 		Assert.assertTrue(attServices.containsKey(url));
@@ -91,7 +94,7 @@ public class SAMLAuthorizationFactoryImplTest {
 		String resource = "x.airs.x";
 		Vector<String> actions = new Vector<String>();
 		actions.add(PolicyAction.Read.toString());
-		Map<URL, Set<String>> attServices = factory.getAttributeServices(resource, factory.getPolicies(resource, actions));
+		Map<URL, Set<String>> attServices = factory.getAttributeServices(resource, factory.getPolicies(factory.lookup(resource, actions)));
 		URL url = new URL("https://esg-datanode.jpl.nasa.gov/esgf-idp/saml/soap/secure/attributeService.htm");
 		Assert.assertTrue(attServices.containsKey(url));
 		final Set<String> attTypes = attServices.get(url);
@@ -105,7 +108,7 @@ public class SAMLAuthorizationFactoryImplTest {
 		String resource = "doesnotexist";
 		Vector<String> actions = new Vector<String>();
 		actions.add(PolicyAction.Read.toString());
-		Map<URL, Set<String>> attServices = factory.getAttributeServices(resource, factory.getPolicies(resource, actions));
+		Map<URL, Set<String>> attServices = factory.getAttributeServices(resource, factory.getPolicies(factory.lookup(resource, actions)));
 		Assert.assertTrue(attServices.isEmpty());	
 
 	}
@@ -115,7 +118,7 @@ public class SAMLAuthorizationFactoryImplTest {
 		
 		String resource = "x.airs.x";
 		Vector<String> actions = new Vector<String>();
-		Map<URL, Set<String>> attServices = factory.getAttributeServices(resource, factory.getPolicies(resource, actions));
+		Map<URL, Set<String>> attServices = factory.getAttributeServices(resource, factory.getPolicies(factory.lookup(resource, actions)));
 		Assert.assertTrue(attServices.isEmpty());	
 
 	}
@@ -126,7 +129,7 @@ public class SAMLAuthorizationFactoryImplTest {
 		String resource = "x.airs.x";
 		Vector<String> actions = new Vector<String>();
 		actions.add("Invalid Action");
-		Map<URL, Set<String>> attServices = factory.getAttributeServices(resource, factory.getPolicies(resource, actions));
+		Map<URL, Set<String>> attServices = factory.getAttributeServices(resource, factory.getPolicies(factory.lookup(resource, actions)));
 		Assert.assertTrue(attServices.isEmpty());	
 
 	}
@@ -197,6 +200,25 @@ public class SAMLAuthorizationFactoryImplTest {
 		
 	}
 	
+	@Test
+	public void testMatchWithRoleHierarchy() {
+		
+		List<PolicyAttribute> policies = new ArrayList<PolicyAttribute>();
+		policies.add(new PolicyAttributeImpl("CMIP5 Research","user"));
+		
+		SAMLAttributes userAttributes = new SAMLAttributesImpl("some user", "some issuer");
+		userAttributes.addAttribute("CMIP5 Research", "admin");
+		Assert.assertEquals(false, factory.match(policies, userAttributes, IDENTIFIER));
+		
+		// the admin role implies the user role of the same group only
+		factory.setRoleHierarchy(new RoleHierarchy("admin > publisher > user"));
+		Assert.assertEquals(true, factory.match(policies, userAttributes, IDENTIFIER));
+		userAttributes = new SAMLAttributesImpl("some user", "some issuer");
+		userAttributes.addAttribute("CMIP5 Commercial", "admin");
+		Assert.assertEquals(false, factory.match(policies, userAttributes, IDENTIFIER));
+		
+	}
+	
 	@Test
 	public void testMatchForNoPolicies() {
 		
@@ -210,15 +232,27 @@ public class SAMLAuthorizationFactoryImplTest {
 	}
 	
 	@Test
-	public void testIsFree() {
-		
-		String resource = "/root/free/somefile";
-		List<PolicyAttribute> policies = policyService.getRequiredAttributes(resource, "Read");
-		Assert.assertTrue( factory.isFree(policies) );
-		policies = policyService.getRequiredAttributes(resource, "Write");
-		Assert.assertFalse( factory.isFree(policies) );
-		resource = "/thisisnotfree/file";
-		Assert.assertFalse( factory.isFree(policies) );
+	public void testLookup() {
+		
+		Vector<String> actions = new Vector<String>();
+		actions.add(PolicyAction.Read.toString());
+		actions.add(PolicyAction.Write.toString());
+		
+		// free actions do not require any attribute
+		Map<String, PolicyLookup> lookups = factory.lookup("/root/free/somefile", actions);
+		Assert.assertEquals(PolicyAccess.FREE, lookups.get("Read").getAccess());
+		Assert.assertTrue(lookups.get("Read").getRequiredAttributes().isEmpty());
+		Assert.assertFalse(factory.getPolicies(lookups).containsKey("Read"));
+		
+		// restricted actions come with their required attributes
+		lookups = factory.lookup("cmip5.file", actions);
+		Assert.assertEquals(PolicyAccess.RESTRICTED, lookups.get("Read").getAccess());
+		Assert.assertEquals(policyService.getRequiredAttributes("cmip5.file", "Read"), factory.getPolicies(lookups).get("Read"));
+		
+		// no policy applies
+		lookups = factory.lookup("/thisisnotfree/file", actions);
+		Assert.assertEquals(PolicyAccess.NONE, lookups.get("Read").getAccess());
+		Assert.assertTrue(factory.getPolicies(lookups).isEmpty());
 		
 	}
 	
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test class for {@link LinearPattern}: supported expressions must match exactly like java.util.regex.
+ *
+ */
+public class LinearPatternTest {
+	
+	private final static String[] SUPPORTED = {
+		"cmip5\\..*", ".+\\.airs\\..+", "\\Acmip5.*", "(a|ab)(c|bcd)(d*)", "[^a-c\\d]+x?", "(?:ab){2,3}c*?", 
+		"a{0,2}[-a]\\Q.*\\E", "(?<name>x|y)+\\z", "a$", "a$\n", "[\\w.]+\\x41\\u0042\\0101", "(a*)*b"
+	};
+	
+	private final static String[] UNSUPPORTED = {
+		"(a)\\1", "(?=a).*", "(?i)a", "a*+", "(?>a)", "\\bcmip5", "\\p{Alpha}", "[a-z&&[^b]]", "(^a)*"
+	};
+	
+	private final static String[] RESOURCES = {
+		"", "cmip5.output1", "obs4MIPs.airs.x", "abcd", "abbcdd", "xyz9", "ababcc", "abababc", "aa.*", "-.*", 
+		"yx", "a", "a\n", "a\r\n", "wAB", "aab", "b", "x\u2028"
+	};
+	
+	@Test
+	public void testSameAsRegex() {
+		
+		for (final String regex : SUPPORTED) {
+			for (final int flags : new int[] { 0, Pattern.DOTALL, Pattern.UNIX_LINES }) {
+				final Pattern pattern = Pattern.compile(regex, flags);
+				final LinearPattern linear = LinearPattern.compile(pattern);
+				for (final String resource : RESOURCES) {
+					Assert.assertEquals(regex+" "+resource, pattern.matcher(resource).matches(), linear.matches(resource));
+				}
+			}
+		}
+		
+	}
+	
+	@Test
+	public void testUnsupported() {
+		
+		for (final String regex : UNSUPPORTED) {
+			try {
+				LinearPattern.compile(Pattern.compile(regex));
+				Assert.fail(regex);
+			} catch(IllegalArgumentException e) {
+				// expected
+			}
+		}
+		
+		// too many states
+		try {
+			LinearPattern.compile(Pattern.compile("(a{100}){200}"));
+			Assert.fail();
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		
+	}
+	
+	@Test
+	public void testLinearTime() {
+		
+		// catastrophic backtracking for java.util.regex
+		final LinearPattern linear = LinearPattern.compile(Pattern.compile("(a+)+b"));
+		final StringBuilder resource = new StringBuilder();
+		for (int i=0; i<10000; i++) resource.append('a');
+		
+		final long start = System.currentTimeMillis();
+		Assert.assertFalse(linear.matches(resource));
+		Assert.assertTrue(System.currentTimeMillis()-start<5000);
+		
+	}
+
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import esg.security.policy.service.api.PolicyAccess;
+import esg.security.policy.service.api.PolicyAction;
+import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyStatement;
+
+/**
+ * Test class for {@link PolicyIndex}: the index must return the same attributes, in the same order,
+ * as a linear scan of all the resource expressions.
+ *
+ */
+public class PolicyIndexTest {
+	
+	private final static String[] EXPRESSIONS = new String[] {
+		"\\Acmip5.*", "cmip5\\.output1\\.NCAR\\..*", "cmip5.output1.NCAR.CCSM4.mon", ".+\\.airs\\..+", ".*mls.*", ".*\\/free\\/.*",
+		"obs4MIPs|cmip5.*", "(?i)CMIP5.*", "c?mip5.*", "\\d+\\.nc", "[a-z]+\\.nc", ".*", "cmip5", "cmip5"
+	};
+	
+	private final static String[] RESOURCES = new String[] {
+		"cmip5", "cmip5.output1.NCAR.CCSM4.mon", "cmip5.output1.NCAR.CCSM4.day", "CMIP5.output1", "mip5.x", "obs4MIPs",
+		"nasa.jpl.airs.monthly.file", "xxmlsxx", "/root/free/myfile", "123.nc", "abc.nc", "", "cmip5\nfree"
+	};
+	
+	private LinkedHashMap<Pattern, List<PolicyStatement>> policies;
+	
+	@Before
+	public void setup() {
+		
+		policies = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+		int i = 0;
+		for (final String expression : EXPRESSIONS) {
+			final List<PolicyStatement> statements = new ArrayList<PolicyStatement>();
+			statements.add(new PolicyStatementImpl(expression, "Group"+i, "user", "Read"));
+			statements.add(new PolicyStatementImpl(expression, "Group"+i, "admin", "Write"));
+			policies.put(Pattern.compile(expression), statements);
+			i++;
+		}
+		
+	}
+	
+	@Test
+	public void testSameResultsAsLinearScan() {
+		
+		final PolicyIndex index = new PolicyIndex(policies);
+		Assert.assertEquals(EXPRESSIONS.length, index.size());
+		
+		for (final String resource : RESOURCES) {
+			for (final String action : new String[] { "Read", "write", "Execute" }) {
+				Assert.assertEquals("resource="+resource+" action="+action, 
+						            scan(resource, action), index.getRequiredAttributes(resource, action));
+			}
+		}
+		
+	}
+	
+	@Test
+	public void testLiteralExtraction() {
+		
+		final PolicyPattern exact = new PolicyPattern(Pattern.compile("\\Acmip5\\.output1"));
+		Assert.assertTrue(exact.isExact());
+		Assert.assertEquals("cmip5.output1", exact.getExact());
+		
+		final PolicyPattern prefix = new PolicyPattern(Pattern.compile("cmip5\\.output?1.*"));
+		Assert.assertFalse(prefix.isExact());
+		Assert.assertEquals("cmip5.outpu", prefix.getPrefix());
+		
+		final PolicyPattern literal = new PolicyPattern(Pattern.compile(".+\\.airs\\..+"));
+		Assert.assertEquals("", literal.getPrefix());
+		Assert.assertEquals(".airs.", literal.getRequiredLiteral());
+		
+		// alternations are never reduced to literals
+		final PolicyPattern alternation = new PolicyPattern(Pattern.compile("cmip5|obs4MIPs"));
+		Assert.assertFalse(alternation.isExact());
+		Assert.assertEquals("", alternation.getPrefix());
+		Assert.assertEquals("", alternation.getRequiredLiteral());
+		
+	}
+	
+	@Test
+	public void testOnlyMatchingCandidatesAreEvaluated() {
+		
+		final PolicyIndex index = new PolicyIndex(policies);
+		
+		// only the alternation, the inline flag and ".*" expressions have no literal text, and are always candidates
+		final int[] candidates = index.getCandidates("obs4MIPs");
+		Assert.assertArrayEquals(new int[] { 6, 7, 11 }, candidates);
+		
+	}
+	
+	@Test
+	public void testLiteralMatcher() {
+		
+		// overlapping texts, and texts that are suffixes or infixes of others
+		final String[] literals = new String[] { "he", "she", "his", "hers", ".airs.", "airs", "s" };
+		final PolicyIndex.LiteralMatcher matcher = new PolicyIndex.LiteralMatcher(literals);
+		final Random random = new Random(42L);
+		final String alphabet = "hers.ai";
+		for (int n=0; n<1000; n++) {
+			final StringBuilder resource = new StringBuilder();
+			for (int i=random.nextInt(20); i>0; i--) resource.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			
+			// the same texts as String.contains()
+			final PolicyIndex.IntBuffer groups = new PolicyIndex.IntBuffer(PolicyIndex.NONE);
+			matcher.collect(resource.toString(), groups);
+			final Set<Integer> found = new TreeSet<Integer>();
+			for (final int group : groups.toArray()) found.add(group);
+			final Set<Integer> expected = new TreeSet<Integer>();
+			for (int i=0; i<literals.length; i++) {
+				if (resource.toString().contains(literals[i])) expected.add(i);
+			}
+			Assert.assertEquals(resource.toString(), expected, found);
+		}
+		
+	}
+	
+	@Test
+	public void testAccessClassification() {
+		
+		for (final Pattern pattern : policies.keySet()) {
+			if (pattern.pattern().equals(".*\\/free\\/.*")) {
+				policies.get(pattern).add(new PolicyStatementImpl(pattern.pattern(), "any", "", "Read"));
+			} else if (pattern.pattern().equals(".+\\.airs\\..+")) {
+				policies.get(pattern).add(new PolicyStatementImpl(pattern.pattern(), "AUTH_ONLY", "", "Read"));
+			}
+		}
+		final PolicyIndex index = new PolicyIndex(policies);
+		
+		Assert.assertEquals(PolicyAccess.FREE, index.getAccess("/root/free/myfile", PolicyAction.Read));
+		Assert.assertEquals(PolicyAccess.RESTRICTED, index.getAccess("/root/free/myfile", PolicyAction.Write));
+		Assert.assertEquals(PolicyAccess.AUTH_ONLY, index.getAccess("nasa.jpl.airs.monthly.file", PolicyAction.Read));
+		Assert.assertEquals(PolicyAccess.NONE, index.getAccess("nasa.jpl.airs.monthly.file", PolicyAction.Execute));
+		
+		// same classification as the full list of attributes
+		for (final String resource : RESOURCES) {
+			for (final PolicyAction action : PolicyAction.values()) {
+				PolicyAccess expected = PolicyAccess.NONE;
+				for (final PolicyAttribute attribute : scan(resource, action.toString())) {
+					final PolicyAccess access = PolicyIndex.classify(attribute);
+					if (access.compareTo(expected)>0) expected = access;
+				}
+				Assert.assertEquals("resource="+resource+" action="+action, expected, index.getAccess(resource, action));
+			}
+		}
+		
+	}
+	
+	// reference implementation: linear scan of all expressions
+	private List<PolicyAttribute> scan(final String resource, final String action) {
+		final List<PolicyAttribute> attributes = new ArrayList<PolicyAttribute>();
+		for (final Pattern pattern : policies.keySet()) {
+			if (pattern.matcher(resource).matches()) {
+				for (final PolicyStatement pstmt : policies.get(pattern)) {
+					if (pstmt.getAction().toString().equalsIgnoreCase(action)) {
+						attributes.add(pstmt.getAttribute());
+					}
+				}
+			}
+		}
+		return attributes;
+	}
+
+}
@@ -18,14 +18,31 @@
  ******************************************************************************/
 package esg.security.policy.service.impl;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
 
+import esg.security.policy.service.api.MutablePolicyService;
+import esg.security.policy.service.api.PolicyAccess;
 import esg.security.policy.service.api.PolicyAttribute;
-import esg.security.policy.service.api.PolicyService;
+import esg.security.policy.service.api.PolicyStatement;
 
 /**
  * Test class for {@link PolicyServiceLocalXmlImpl}.
@@ -36,7 +53,7 @@ public class PolicyServiceLocalXmlImplTest {
 	
 	private static String XMLFILE = "esg/security/policy/service/data/esgf_policies.xml";
 	
-	private PolicyService service;
+	private MutablePolicyService service;
 	
 	private final String ATT_TYPE_ANY = "ANY";
 	private final String ATT_TYPE_NONE = "NONE";
@@ -84,6 +101,325 @@ public class PolicyServiceLocalXmlImplTest {
 		
 	}
 	
+	@Test
+	public void testLookupCache() throws Exception {
+		
+		final PolicyServiceLocalXmlImpl _service = (PolicyServiceLocalXmlImpl)service;
+		final PolicyLookupCache cache = _service.getCache();
+		
+		// the action is normalized, so both lookups share the same entry
+		final List<PolicyAttribute> attributes = service.getRequiredAttributes("cmip5.mymodel", "Read");
+		Assert.assertSame(attributes, service.getRequiredAttributes("cmip5.mymodel", "read"));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+		
+		// cached lists are shared, hence unmodifiable
+		try {
+			attributes.clear();
+			Assert.fail("Cached attributes must be unmodifiable");
+		} catch(UnsupportedOperationException e) {}
+		
+		// re-parsing the policy files invalidates the cache
+		_service.parse(new ArrayList<File>());
+		Assert.assertEquals(0, cache.size());
+		Assert.assertTrue(service.getRequiredAttributes("cmip5.mymodel", "Read").isEmpty());
+		
+	}
+	
+	@Test
+	public void testResourceIsNormalized() throws Exception {
+		
+		Assert.assertEquals("a/b", PolicyServiceLocalXmlImpl.toResource("a//b/"));
+		Assert.assertEquals("a/b", PolicyServiceLocalXmlImpl.toResource("a%2Fb"));
+		Assert.assertEquals("a/b", PolicyServiceLocalXmlImpl.toResource("a%2f/b"));
+		Assert.assertEquals("http://h/x", PolicyServiceLocalXmlImpl.toResource("http://h//x/"));
+		Assert.assertEquals("/", PolicyServiceLocalXmlImpl.toResource("/"));
+		final String resource = "cmip5.mymodel";
+		Assert.assertSame(resource, PolicyServiceLocalXmlImpl.toResource(resource));
+		
+		// the equivalent forms of a resource share the same cache entry
+		final PolicyLookupCache cache = ((PolicyServiceLocalXmlImpl)service).getCache();
+		final List<PolicyAttribute> attributes = service.getRequiredAttributes(resource, "Read");
+		Assert.assertSame(attributes, service.getRequiredAttributes(resource+"/", "Read"));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+		
+	}
+	
+	@Test
+	public void testSnapshotIsKeptIfNoFileCanBeParsed() throws Exception {
+		
+		final PolicyServiceLocalXmlImpl _service = (PolicyServiceLocalXmlImpl)service;
+		final PolicySnapshot snapshot = _service.getSnapshot();
+		Assert.assertEquals(8, snapshot.getNumberOfStatements());
+		
+		final List<File> files = new ArrayList<File>();
+		files.add(new File("/does/not/exist/esgf_policies.xml"));
+		_service.parse(files);
+		
+		Assert.assertSame(snapshot, _service.getSnapshot());
+		testPolicy("cmip5", "Read", new String[] { ATT_TYPE1, ATT_TYPE2 }, new String[] { ATT_VALUEA,  ATT_VALUEA  } );
+		
+	}
+	
+	@Test
+	public void testUpdateChangedFileOnly() throws Exception {
+		
+		final PolicyServiceLocalXmlImpl _service = (PolicyServiceLocalXmlImpl)service;
+		final File file = new ClassPathResource(XMLFILE).getFile();
+		final File other = File.createTempFile("esgf_policies_", ".xml");
+		try {
+			
+			final FileWriter writer = new FileWriter(other);
+			writer.write("<policies xmlns=\"http://www.esgf.org/security\">"
+			           + "<policy resource=\".*extra.*\" attribute_type=\"MLS\" attribute_value=\"user\" action=\"Read\"/>"
+			           + "</policies>");
+			writer.close();
+			
+			// the new file is merged with the statements already loaded
+			_service.update(Arrays.asList(other), Arrays.asList(file, other));
+			Assert.assertEquals(9, _service.getSnapshot().getNumberOfStatements());
+			Assert.assertEquals(2, _service.getSnapshot().getNumberOfFiles());
+			testPolicy("extra", "Read", new String[] { ATT_TYPE4 }, new String[] { ATT_VALUEA } );
+			
+			// the statements of a deleted file are dropped
+			Assert.assertTrue(other.delete());
+			_service.update(Arrays.asList(other), Arrays.asList(file, other));
+			Assert.assertEquals(8, _service.getSnapshot().getNumberOfStatements());
+			testPolicy("cmip5", "Read", new String[] { ATT_TYPE1, ATT_TYPE2 }, new String[] { ATT_VALUEA,  ATT_VALUEA  } );
+			
+		} finally {
+			other.delete();
+		}
+		
+	}
+	
+	@Test
+	public void testLinearMatchingEngine() throws Exception {
+		
+		final PolicyServiceLocalXmlImpl _service = (PolicyServiceLocalXmlImpl)service;
+		final File file = new ClassPathResource(XMLFILE).getFile();
+		final File other = File.createTempFile("esgf_policies_", ".xml");
+		try {
+			
+			// all expressions of the test file are supported
+			_service.setMatchingEngine(MatchingEngine.LINEAR_ONLY);
+			Assert.assertEquals(4, _service.getSnapshot().getIndex().getNumberOfLinearPatterns());
+			testPolicy("cmip5", "Read", new String[] { ATT_TYPE1, ATT_TYPE2 }, new String[] { ATT_VALUEA,  ATT_VALUEA  } );
+			testPolicy("/root/free/myfile", "Read", new String[] { ATT_TYPE_ANY }, new String[] { "" } );
+			
+			// a file with a back reference is rejected
+			final FileWriter writer = new FileWriter(other);
+			writer.write("<policies xmlns=\"http://www.esgf.org/security\">"
+			           + "<policy resource=\"(mls)\\1.*\" attribute_type=\"MLS\" attribute_value=\"user\" action=\"Read\"/>"
+			           + "</policies>");
+			writer.close();
+			_service.update(Arrays.asList(other), Arrays.asList(file, other));
+			Assert.assertEquals(8, _service.getSnapshot().getNumberOfStatements());
+			
+			// ...but only flagged with the LINEAR engine
+			_service.setMatchingEngine(MatchingEngine.LINEAR);
+			_service.parse(Arrays.asList(file, other));
+			Assert.assertEquals(9, _service.getSnapshot().getNumberOfStatements());
+			Assert.assertEquals(1, _service.getSnapshot().getIndex().getUnsupportedPatterns().size());
+			testPolicy("mlsmls.x", "Read", new String[] { ATT_TYPE3, ATT_TYPE4 }, new String[] { ATT_VALUEA,  ATT_VALUEA  } );
+			
+		} finally {
+			other.delete();
+		}
+		
+	}
+	
+	@Test
+	public void testRuntimeChanges() throws Exception {
+		
+		final PolicyServiceLocalXmlImpl _service = (PolicyServiceLocalXmlImpl)service;
+		final File file = new ClassPathResource(XMLFILE).getFile();
+		final File overlayFile = File.createTempFile("esgf_policies_overlay_", ".xml");
+		Assert.assertTrue(overlayFile.delete());
+		try {
+			
+			_service.setOverlayFile(overlayFile.getAbsolutePath());
+			final PolicyIndex index = _service.getSnapshot().getIndex();
+			
+			// add a new statement, and remove one from the policy file
+			Assert.assertTrue(service.addPolicy("extra", "prefix", ATT_TYPE4, ATT_VALUEA, "read"));
+			Assert.assertFalse(service.addPolicy("extra", "prefix", ATT_TYPE4, ATT_VALUEA, "Read"));
+			Assert.assertTrue(service.removePolicy("\\Acmip5.*", null, ATT_TYPE2, ATT_VALUEA, "Read"));
+			Assert.assertFalse(service.removePolicy("\\Acmip5.*", null, ATT_TYPE2, ATT_VALUEA, "Read"));
+			testPolicy("extra.file", "Read", new String[] { ATT_TYPE4 }, new String[] { ATT_VALUEA } );
+			testPolicy("cmip5.mymodel", "Read", new String[] { ATT_TYPE1 }, new String[] { ATT_VALUEA } );
+			Assert.assertEquals(PolicyAccess.RESTRICTED, service.getAccess("extra.file", "Read"));
+			Assert.assertEquals(8, _service.getSnapshot().getNumberOfStatements());
+			
+			// the policy files were not compiled again
+			Assert.assertSame(index, _service.getSnapshot().getIndex());
+			Assert.assertTrue(overlayFile.exists());
+			
+			// the changes survive a reload of the policy files, and a restart
+			_service.parse(Arrays.asList(file));
+			testPolicy("cmip5.mymodel", "Read", new String[] { ATT_TYPE1 }, new String[] { ATT_VALUEA } );
+			service = new PolicyServiceLocalXmlImpl(XMLFILE);
+			((PolicyServiceLocalXmlImpl)service).setOverlayFile(overlayFile.getAbsolutePath());
+			testPolicy("extra.file", "Read", new String[] { ATT_TYPE4 }, new String[] { ATT_VALUEA } );
+			testPolicy("cmip5.mymodel", "Read", new String[] { ATT_TYPE1 }, new String[] { ATT_VALUEA } );
+			
+			// undoing all changes removes the overlay file
+			Assert.assertTrue(service.addPolicy("\\Acmip5.*", null, ATT_TYPE2, ATT_VALUEA, "Read"));
+			Assert.assertTrue(service.removePolicy("extra", "prefix", ATT_TYPE4, ATT_VALUEA, "Read"));
+			testPolicy("cmip5.mymodel", "Read", new String[] { ATT_TYPE1, ATT_TYPE2 }, new String[] { ATT_VALUEA,  ATT_VALUEA  } );
+			testPolicy("extra.file", "Read", new String[] {}, new String[] {} );
+			Assert.assertFalse(overlayFile.exists());
+			
+			// invalid statements are rejected
+			try {
+				service.addPolicy("extra", null, ATT_TYPE4, ATT_VALUEA, "Publish");
+				Assert.fail("Unknown action must be rejected");
+			} catch(IllegalArgumentException e) {}
+			
+		} finally {
+			overlayFile.delete();
+		}
+		
+	}
+	
+	@Test
+	public void testEntitlements() throws Exception {
+		
+		final Map<String, Set<String>> attributes = new HashMap<String, Set<String>>();
+		attributes.put(ATT_TYPE1, new HashSet<String>(Arrays.asList(ATT_VALUEB)));
+		attributes.put(ATT_TYPE3, new HashSet<String>(Arrays.asList(ATT_VALUEA)));
+		
+		// one statement for each (expression, action), in policy file order, including the free resources
+		// (the "NONE" attribute type required to write free resources is not open to all users)
+		List<PolicyStatement> statements = service.getEntitlements(attributes);
+		Assert.assertEquals("[\\Acmip5.* Write, .+\\.airs\\..+ Read, .*mls.* Read, .*\\/free\\/.* Read]", 
+				            toString(statements));
+		
+		// roles imply weaker roles of the same group
+		((PolicyServiceLocalXmlImpl)service).setRoleHierarchy(new RoleHierarchy("admin > user"));
+		statements = service.getEntitlements(attributes);
+		Assert.assertEquals("[\\Acmip5.* Read, \\Acmip5.* Write, .+\\.airs\\..+ Read, .*mls.* Read, .*\\/free\\/.* Read]", 
+	                        toString(statements));
+		
+		// runtime changes are included
+		service.removePolicy(".*mls.*", null, ATT_TYPE3, ATT_VALUEA, "Read");
+		service.addPolicy("extra", "prefix", ATT_TYPE3, ATT_VALUEA, "Read");
+		statements = service.getEntitlements(attributes);
+		Assert.assertEquals("[\\Acmip5.* Read, \\Acmip5.* Write, .+\\.airs\\..+ Read, .*\\/free\\/.* Read, extra Read]", 
+                            toString(statements));
+		
+	}
+	
+	@Test
+	public void testProfiler() throws Exception {
+		
+		final PolicyServiceLocalXmlImpl _service = (PolicyServiceLocalXmlImpl)service;
+		_service.setCacheSize(0);
+		
+		// nothing is counted until the profiler is enabled
+		testPolicy("cmip5.mymodel", "Read", new String[] { ATT_TYPE1, ATT_TYPE2 }, new String[] { ATT_VALUEA,  ATT_VALUEA  } );
+		Assert.assertEquals(4, _service.getProfiler().getNumberOfUnusedPatterns());
+		
+		final ObjectName name = new ObjectName("esg.security:type=PolicyProfiler,name=PolicyServiceLocalXmlImplTest");
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		_service.setJmxName(name.toString());
+		try {
+			server.setAttribute(name, new Attribute("Enabled", true));
+			testPolicy("cmip5.mymodel", "Read", new String[] { ATT_TYPE1, ATT_TYPE2 }, new String[] { ATT_VALUEA,  ATT_VALUEA  } );
+			testPolicy("cmip5.mymodel", "Write", new String[] { ATT_TYPE1 }, new String[] { ATT_VALUEB } );
+			testPolicy("nasa.jpl.airs.monthly.file", "Read", new String[] { ATT_TYPE3 }, new String[] { ATT_VALUEA } );
+			
+			// only the candidate expressions are evaluated
+			final PolicyProfiler.Profile profile = _service.getProfiler().getProfile().get(0);
+			Assert.assertEquals("\\Acmip5.*", profile.getResource());
+			Assert.assertEquals(2, profile.getAttempts());
+			Assert.assertEquals(2, profile.getHits());
+			Assert.assertEquals(3, profile.getStatements());
+			Assert.assertEquals(4, server.getAttribute(name, "NumberOfPatterns"));
+			Assert.assertEquals(2, server.getAttribute(name, "NumberOfUnusedPatterns"));
+			Assert.assertTrue(((String)server.invoke(name, "dumpUnused", null, null)).contains(".*mls.*"));
+			Assert.assertTrue(((String)server.invoke(name, "dump", null, null)).contains(".+\\.airs\\..+"));
+			
+			// the counters survive a reload of the policy files
+			_service.parse(Arrays.asList(new ClassPathResource(XMLFILE).getFile()));
+			Assert.assertEquals(2, _service.getProfiler().getProfile().get(0).getHits());
+			server.invoke(name, "reset", null, null);
+			Assert.assertEquals(4, _service.getProfiler().getNumberOfUnusedPatterns());
+		} finally {
+			_service.close();
+		}
+		Assert.assertFalse(server.isRegistered(name));
+		
+	}
+	
+	@Test
+	public void testConcurrentVersionAndLookups() throws Exception {
+		
+		final File file = File.createTempFile("esgf_policies_", ".xml");
+		try {
+			writePolicies(file, 0);
+			final PolicyServiceLocalXmlImpl _service = new PolicyServiceLocalXmlImpl(file.getAbsolutePath());
+			
+			// peers and requests check the policy files for changes at the same time
+			final AtomicBoolean running = new AtomicBoolean(true);
+			final Thread peer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (running.get()) _service.getChanges(_service.getVersion());
+				}
+			});
+			final Thread request = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (running.get()) _service.getRequiredAttributes("extra", "Read");
+				}
+			});
+			peer.setDaemon(true);
+			request.setDaemon(true);
+			peer.start();
+			request.start();
+			
+			try {
+				for (int i=1; i<=10; i++) {
+					writePolicies(file, i);
+					Thread.sleep(50);
+				}
+				Assert.assertNull(ManagementFactory.getThreadMXBean().findDeadlockedThreads());
+			} finally {
+				running.set(false);
+			}
+			peer.join(10000);
+			request.join(10000);
+			Assert.assertFalse(peer.isAlive() || request.isAlive());
+			
+			// the version matches the policies of the last change
+			_service.getRequiredAttributes("extra", "Read");
+			Assert.assertTrue(_service.getVersion().endsWith("-"+_service.getSnapshot().getGeneration()));
+		} finally {
+			file.delete();
+		}
+		
+	}
+	
+	private static void writePolicies(final File file, final int statements) throws Exception {
+		final FileWriter writer = new FileWriter(file);
+		writer.write("<policies xmlns=\"http://www.esgf.org/security\">");
+		for (int i=0; i<=statements; i++) {
+			writer.write("<policy resource=\".*extra.*\" attribute_type=\"MLS\" attribute_value=\"user"+i+"\" action=\"Read\"/>");
+		}
+		writer.write("</policies>");
+		writer.close();
+	}
+	
+	private static String toString(final List<PolicyStatement> statements) {
+		final List<String> _statements = new ArrayList<String>();
+		for (final PolicyStatement statement : statements) {
+			_statements.add(statement.getResource()+" "+statement.getAction());
+		}
+		return _statements.toString();
+	}
+	
 	private void testPolicy(final String resource, final String action, final String[] attribute_types,  final String[] attribute_values) {
 		
 		final List<PolicyAttribute> attributes = service.getRequiredAttributes(resource, action);
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import esg.security.policy.service.api.MutablePolicyService;
+import esg.security.policy.service.api.PolicyAccess;
+
+/**
+ * Test class for {@link PolicyServiceRemoteImpl}, copying the policies of a {@link PolicyServiceLocalXmlImpl}
+ * through a loopback HTTP server that stands in for the policy export endpoint of a peer.
+ */
+public class PolicyServiceRemoteImplTest {
+	
+	private static String XMLFILE = "esg/security/policy/service/data/esgf_policies.xml";
+	
+	private PolicyServiceLocalXmlImpl source;
+	
+	private HttpServer server;
+	
+	private String url;
+	
+	// status and delta sent for each request (null for a 304 response)
+	private final List<Integer> statuses = Collections.synchronizedList(new ArrayList<Integer>());
+	private final List<PolicyDelta> deltas = Collections.synchronizedList(new ArrayList<PolicyDelta>());
+	
+	@Before
+	public void setup() throws Exception {
+		
+		source = new PolicyServiceLocalXmlImpl(XMLFILE);
+		
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/policyExport.htm", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				final String query = exchange.getRequestURI().getRawQuery();
+				final String since = query!=null && query.startsWith("since=") ? URLDecoder.decode(query.substring(6), "UTF-8") : null;
+				final String etag = "\""+source.getVersion()+"\"";
+				if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					statuses.add(304);
+					deltas.add(null);
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				final PolicyDelta delta = source.getChanges(since);
+				final StringWriter writer = new StringWriter();
+				delta.write(writer);
+				final byte[] body = writer.toString().getBytes("UTF-8");
+				statuses.add(200);
+				deltas.add(delta);
+				exchange.getResponseHeaders().set("ETag", "\""+delta.getVersion()+"\"");
+				exchange.sendResponseHeaders(200, body.length);
+				final OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:"+server.getAddress().getPort()+"/policyExport.htm";
+		
+	}
+	
+	@After
+	public void teardown() {
+		server.stop(0);
+		source.close();
+	}
+	
+	@Test
+	public void testCopy() throws Exception {
+		
+		// initial full copy
+		final PolicyServiceRemoteImpl remote = new PolicyServiceRemoteImpl(url);
+		Assert.assertEquals(0, remote.getSnapshot().getNumberOfStatements());
+		Assert.assertTrue(remote.refresh());
+		Assert.assertTrue(deltas.get(0).isFull());
+		Assert.assertEquals(source.getVersion(), remote.getVersion());
+		Assert.assertEquals(8, remote.getSnapshot().getNumberOfStatements());
+		assertSameLookups(remote);
+		Assert.assertEquals(PolicyAccess.FREE, remote.getAccess("/free/file", "Read"));
+		
+		// revalidation of an unchanged copy
+		Assert.assertFalse(remote.refresh());
+		Assert.assertEquals(Integer.valueOf(304), statuses.get(1));
+		
+		// only the changed statements are sent, and applied without compiling the copy again
+		final PolicyIndex index = remote.getSnapshot().getIndex();
+		Assert.assertTrue(source.addPolicy("extra", "prefix", "MLS", "user", "Read"));
+		Assert.assertTrue(source.removePolicy("\\Acmip5.*", null, "CMIP5 Commercial", "user", "Read"));
+		Assert.assertTrue(remote.refresh());
+		Assert.assertFalse(deltas.get(2).isFull());
+		Assert.assertEquals(2, deltas.get(2).size());
+		Assert.assertSame(index, remote.getSnapshot().getIndex());
+		Assert.assertEquals(1, remote.getRequiredAttributes("extra.file", "Read").size());
+		assertSameLookups(remote);
+		
+		// a change undone before the next revalidation is not sent
+		Assert.assertTrue(source.addPolicy("other", "prefix", "MLS", "user", "Read"));
+		Assert.assertTrue(source.removePolicy("other", "prefix", "MLS", "user", "Read"));
+		Assert.assertTrue(source.removePolicy("extra", "prefix", "MLS", "user", "Read"));
+		Assert.assertTrue(remote.refresh());
+		Assert.assertEquals(1, deltas.get(3).getRemovals().size());
+		Assert.assertEquals(0, deltas.get(3).getAdditions().size());
+		assertSameLookups(remote);
+		
+		// all statements are sent once the changes since the copy are no longer known
+		source.setChangeLogSize(10);
+		Assert.assertTrue(remote.refresh());
+		Assert.assertTrue(deltas.get(4).isFull());
+		Assert.assertEquals(7, remote.getSnapshot().getNumberOfStatements());
+		assertSameLookups(remote);
+		
+		// the copy keeps answering while the peer cannot be reached
+		server.stop(0);
+		Assert.assertFalse(remote.refresh());
+		assertSameLookups(remote);
+		
+	}
+	
+	@Test
+	public void testBackgroundRefresh() throws Exception {
+		
+		final PolicyServiceRemoteImpl remote = new PolicyServiceRemoteImpl(url);
+		remote.setRefreshIntervalMillis(50);
+		remote.start();
+		try {
+			// the policies are copied by the background thread, and changes are picked up without any request
+			final long timeout = System.currentTimeMillis()+10000;
+			while (remote.getVersion()==null && System.currentTimeMillis()<timeout) {
+				Thread.sleep(20);
+			}
+			Assert.assertEquals(8, remote.getSnapshot().getNumberOfStatements());
+			Assert.assertTrue(source.addPolicy("extra", "prefix", "MLS", "user", "Read"));
+			while (!source.getVersion().equals(remote.getVersion()) && System.currentTimeMillis()<timeout) {
+				Thread.sleep(20);
+			}
+			Assert.assertEquals(9, remote.getSnapshot().getNumberOfStatements());
+		} finally {
+			remote.close();
+		}
+		
+	}
+	
+	@Test
+	public void testFileChanges() throws Exception {
+		
+		final File file = new ClassPathResource(XMLFILE).getFile();
+		final File other = File.createTempFile("esgf_policies_", ".xml");
+		try {
+			final PolicyServiceRemoteImpl remote = new PolicyServiceRemoteImpl(url);
+			Assert.assertTrue(remote.refresh());
+			
+			// only the statements of the changed file are compared
+			writePolicies(other, 1);
+			source.update(Arrays.asList(other), Arrays.asList(file, other));
+			Assert.assertTrue(remote.refresh());
+			Assert.assertFalse(deltas.get(1).isFull());
+			Assert.assertEquals(1, deltas.get(1).getAdditions().size());
+			assertSameLookups(remote);
+			
+			// a second copy of the same statement cannot be sent as a change
+			writePolicies(other, 2);
+			source.update(Arrays.asList(other), Arrays.asList(file, other));
+			Assert.assertTrue(remote.refresh());
+			Assert.assertTrue(deltas.get(2).isFull());
+			Assert.assertEquals(2, remote.getRequiredAttributes("extra.file", "Read").size());
+			assertSameLookups(remote);
+			
+			// all the copies are removed at once
+			writePolicies(other, 0);
+			source.update(Arrays.asList(other), Arrays.asList(file, other));
+			Assert.assertTrue(remote.refresh());
+			Assert.assertFalse(deltas.get(3).isFull());
+			Assert.assertEquals(1, deltas.get(3).getRemovals().size());
+			assertSameLookups(remote);
+		} finally {
+			other.delete();
+		}
+		
+	}
+	
+	private static void writePolicies(final File file, final int copies) throws IOException {
+		final FileWriter writer = new FileWriter(file);
+		writer.write("<policies xmlns=\"http://www.esgf.org/security\">");
+		for (int i=0; i<copies; i++) {
+			writer.write("<policy resource=\".*extra.*\" attribute_type=\"MLS\" attribute_value=\"user\" action=\"Read\"/>");
+		}
+		writer.write("</policies>");
+		writer.close();
+	}
+	
+	@Test
+	public void testReadOnly() throws Exception {
+		// the copy of the policies of the peer cannot be changed
+		Assert.assertFalse(MutablePolicyService.class.isAssignableFrom(PolicyServiceRemoteImpl.class));
+	}
+	
+	private void assertSameLookups(final PolicyServiceRemoteImpl remote) {
+		for (final String resource : new String[] { "cmip5.mymodel", "nasa.jpl.airs.monthly.file", "nasa.mls.file", "/free/file", "extra.file", "other" }) {
+			for (final String action : new String[] { "Read", "Write" }) {
+				Assert.assertEquals(source.getRequiredAttributes(resource, action), remote.getRequiredAttributes(resource, action));
+				Assert.assertEquals(source.getAccess(resource, action), remote.getAccess(resource, action));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.FileCopyUtils;
+
+import esg.security.policy.service.api.PolicyAction;
+import esg.security.policy.service.api.PolicyAttribute;
+
+/**
+ * Test class for {@link PolicySnapshotFile}, and its use by {@link PolicyServiceLocalXmlImpl}.
+ *
+ */
+public class PolicySnapshotFileTest {
+	
+	private static String XMLFILE = "esg/security/policy/service/data/esgf_policies.xml";
+	
+	private File file;
+	
+	private PolicySnapshotFile snapshotFile;
+	
+	@Before
+	public void setup() throws Exception {
+		file = File.createTempFile("esgf_policies_", ".xml");
+		FileCopyUtils.copy(new ClassPathResource(XMLFILE).getFile(), file);
+		snapshotFile = new PolicySnapshotFile(Arrays.asList(file));
+	}
+	
+	@After
+	public void cleanup() {
+		snapshotFile.getFile().delete();
+		file.delete();
+	}
+	
+	@Test
+	public void testStartFromSnapshotFile() throws Exception {
+		
+		// the snapshot file is written after the XML file is parsed
+		final PolicyServiceLocalXmlImpl service1 = new PolicyServiceLocalXmlImpl(file.getAbsolutePath(), true);
+		Assert.assertFalse(service1.isRebuilding());
+		Assert.assertTrue(snapshotFile.getFile().exists());
+		Assert.assertTrue(snapshotFile.getFile().setLastModified(file.lastModified()+10000));
+		Assert.assertTrue(snapshotFile.isUpToDate(Arrays.asList(file)));
+		
+		// the snapshot file is used at startup
+		final PolicyServiceLocalXmlImpl service2 = new PolicyServiceLocalXmlImpl(file.getAbsolutePath(), true);
+		Assert.assertEquals(service1.getSnapshot().getNumberOfStatements(), service2.getSnapshot().getNumberOfStatements());
+		for (final String resource : new String[] { "cmip5", "obs4MIPs.nasa", "/root/free/file", "other" }) {
+			for (final String action : new String[] { "Read", "Write" }) {
+				final List<PolicyAttribute> attributes = service1.getRequiredAttributes(resource, action);
+				Assert.assertEquals(attributes, service2.getRequiredAttributes(resource, action));
+			}
+		}
+		
+		// the XML file is parsed again in the background
+		final long timeout = System.currentTimeMillis()+10000;
+		while (service2.isRebuilding() && System.currentTimeMillis()<timeout) {
+			Thread.sleep(50);
+		}
+		Assert.assertFalse(service2.isRebuilding());
+		Assert.assertEquals(service1.getSnapshot().getNumberOfStatements(), service2.getSnapshot().getNumberOfStatements());
+		
+		// the rebuilt policies were installed, and the files are not parsed again by the next request
+		final long generation = service2.getGeneration();
+		Assert.assertTrue(generation>1);
+		Assert.assertEquals(generation, service2.getGeneration());
+		
+	}
+	
+	@Test
+	public void testIndexLayout() throws Exception {
+		
+		final PolicyServiceLocalXmlImpl service1 = new PolicyServiceLocalXmlImpl(file.getAbsolutePath(), true);
+		final PolicyIndex index1 = service1.getSnapshot().getIndex();
+		
+		// the index tables are only restored for the engine they were built with
+		Assert.assertNull(snapshotFile.read(Arrays.asList(file), MatchingEngine.LINEAR).getLayout());
+		final PolicySnapshotFile.Contents contents = snapshotFile.read(Arrays.asList(file), MatchingEngine.REGEX);
+		Assert.assertNotNull(contents.getLayout());
+		
+		// the restored index does not compile any expression until it is evaluated
+		final PolicyStore store = contents.getFragments().get(file);
+		final PolicyIndex index2 = new PolicyIndex(store, contents.getLayout());
+		Assert.assertEquals(index1.getStatistics(), index2.getStatistics());
+		for (final String resource : new String[] { "cmip5", "obs4MIPs.nasa", "/root/free/file", "other" }) {
+			Assert.assertEquals(index1.getAccess(resource, PolicyAction.Read), index2.getAccess(resource, PolicyAction.Read));
+		}
+		
+		// the corrupted snapshot is detected without compiling the expressions
+		final byte[] bytes = FileCopyUtils.copyToByteArray(snapshotFile.getFile());
+		bytes[bytes.length/2] ^= 1;
+		FileCopyUtils.copy(bytes, snapshotFile.getFile());
+		try {
+			snapshotFile.read(Arrays.asList(file), MatchingEngine.REGEX);
+			Assert.fail("Corrupted snapshot file must not be read");
+		} catch(IOException e) {
+			// expected
+		}
+		
+	}
+	
+	@Test
+	public void testStaleOrCorruptedSnapshotFile() throws Exception {
+		
+		new PolicyServiceLocalXmlImpl(file.getAbsolutePath(), true);
+		Assert.assertTrue(snapshotFile.getFile().setLastModified(file.lastModified()-10000));
+		Assert.assertFalse(snapshotFile.isUpToDate(Arrays.asList(file)));
+		
+		// a different list of files
+		Assert.assertNull(snapshotFile.read(Arrays.asList(file, new File("other.xml"))));
+		
+		final FileOutputStream out = new FileOutputStream(snapshotFile.getFile());
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+		try {
+			snapshotFile.read(Arrays.asList(file));
+			Assert.fail("Corrupted snapshot file must not be read");
+		} catch(IOException e) {
+			// expected
+		}
+		
+		// the service falls back to the XML file
+		Assert.assertTrue(snapshotFile.getFile().setLastModified(file.lastModified()+10000));
+		final PolicyServiceLocalXmlImpl service = new PolicyServiceLocalXmlImpl(file.getAbsolutePath(), true);
+		Assert.assertFalse(service.isRebuilding());
+		Assert.assertEquals(8, service.getSnapshot().getNumberOfStatements());
+		
+	}
+
+}
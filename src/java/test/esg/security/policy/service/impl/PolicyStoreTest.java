@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import esg.security.policy.service.api.PolicyAction;
+import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyStatement;
+
+/**
+ * Test class for {@link PolicyStore}: the compact store must hold the same statements as the original map.
+ *
+ */
+public class PolicyStoreTest {
+	
+	@Test
+	public void testSameStatements() {
+		
+		final LinkedHashMap<Pattern, List<PolicyStatement>> policies = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+		for (int i=0; i<100; i++) {
+			final String resource = "dataset"+i+"\\..*";
+			final List<PolicyStatement> statements = new ArrayList<PolicyStatement>();
+			statements.add(new PolicyStatementImpl(resource, "Group"+(i%10), "user", "Read"));
+			statements.add(new PolicyStatementImpl(resource, "Group"+(i%10), "admin", "Write"));
+			policies.put(Pattern.compile(resource), statements);
+		}
+		policies.put(Pattern.compile("empty"), new ArrayList<PolicyStatement>());
+		
+		final PolicyStore store = new PolicyStore(policies);
+		Assert.assertEquals(101, store.size());
+		Assert.assertEquals(200, store.getNumberOfStatements());
+		Assert.assertEquals(12, store.getNumberOfStrings());
+		Assert.assertEquals(20, store.getNumberOfAttributes());
+		Assert.assertEquals(policies.toString(), store.toMap().toString());
+		
+		// attributes are shared between statements
+		Assert.assertSame(store.getAttribute(store.getStart(0)), store.getAttribute(store.getStart(10)));
+		
+		final List<PolicyAttribute> attributes = new ArrayList<PolicyAttribute>();
+		store.collect(3, PolicyAction.Write, attributes);
+		Assert.assertEquals(Arrays.asList(new PolicyAttributeImpl("Group3", "admin")), attributes);
+		
+		// the compact form is smaller than one object per statement
+		Assert.assertTrue(store.getHeapReport(), store.getHeapBytes()<store.getObjectHeapBytes());
+		
+	}
+	
+	@Test
+	public void testMerge() {
+		
+		final PolicyStore first = new PolicyStore.Builder().addPattern(Pattern.compile("a.*"), "a.*")
+		                                                   .addStatement("Group", "user", PolicyAction.Read).build();
+		final PolicyStore second = new PolicyStore.Builder().addPattern(Pattern.compile("b.*"), "b.*")
+		                                                    .addStatement("Group", "user", PolicyAction.Read)
+		                                                    .addStatement("Group", "admin", PolicyAction.Write).build();
+		
+		final PolicyStore store = PolicyStore.merge(Arrays.asList(first, second));
+		Assert.assertEquals(2, store.size());
+		Assert.assertEquals(3, store.getNumberOfStatements());
+		Assert.assertEquals(2, store.getNumberOfAttributes());
+		Assert.assertEquals("b.*", store.getResource(1));
+		Assert.assertEquals(1, store.getStart(1));
+		Assert.assertEquals(PolicyAction.Write, store.getAction(2));
+		
+	}
+
+}
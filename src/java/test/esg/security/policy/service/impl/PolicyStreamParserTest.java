@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import esg.security.policy.service.api.PolicyStatement;
+
+/**
+ * Test class for {@link PolicyStreamParser}: the streaming parser must read the same policies as the JDOM parser.
+ *
+ */
+public class PolicyStreamParserTest {
+	
+	private static String XMLFILE = "esg/security/policy/service/data/esgf_policies.xml";
+	
+	@Test
+	public void testSameAsDocumentParser() throws Exception {
+		
+		final File file = new ClassPathResource(XMLFILE).getFile();
+		
+		final LinkedHashMap<Pattern, List<PolicyStatement>> expected = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+		new PolicyServiceLocalXmlImpl(XMLFILE).parseXml(file, expected);
+		
+		final LinkedHashMap<Pattern, List<PolicyStatement>> actual = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+		Assert.assertEquals(8, new PolicyStreamParser().parse(file, actual));
+		
+		Assert.assertEquals(expected.size(), actual.size());
+		final Iterator<Pattern> patterns = actual.keySet().iterator();
+		for (final Pattern pattern : expected.keySet()) {
+			final Pattern _pattern = patterns.next();
+			Assert.assertEquals(pattern.pattern(), _pattern.pattern());
+			Assert.assertEquals(expected.get(pattern).toString(), actual.get(_pattern).toString());
+		}
+		
+	}
+	
+	@Test
+	public void testNestedElementsAndInterning() throws Exception {
+		
+		final String xml = "<policies xmlns=\"http://www.esgf.org/security\">"
+		                 + "<policy resource=\"cmip5.*\" attribute_type=\"CMIP5 Research\" attribute_value=\"user\" action=\"Read\"/>"
+		                 + "<group><policy resource=\"ignored.*\" attribute_type=\"X\" attribute_value=\"user\" action=\"Read\"/></group>"
+		                 + "<policy xmlns=\"http://other\" resource=\"other.*\" attribute_type=\"X\" attribute_value=\"user\" action=\"Read\"/>"
+		                 + "<policy resource=\"obs4MIPs.*\" attribute_type=\"CMIP5 Research\" attribute_value=\"user\" action=\"Write\"/>"
+		                 + "</policies>";
+		
+		final PolicyStreamParser parser = new PolicyStreamParser();
+		final LinkedHashMap<Pattern, List<PolicyStatement>> policies = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+		Assert.assertEquals(2, parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), policies));
+		Assert.assertEquals(2, policies.size());
+		
+		// the same attribute type and value share the same instances
+		final List<PolicyStatement> statements = new ArrayList<PolicyStatement>();
+		for (final List<PolicyStatement> _statements : policies.values()) {
+			statements.addAll(_statements);
+		}
+		Assert.assertSame(statements.get(0).getAttribute().getType(), statements.get(1).getAttribute().getType());
+		Assert.assertSame(statements.get(0).getAttribute().getValue(), statements.get(1).getAttribute().getValue());
+		Assert.assertEquals(4, parser.getNumberOfStrings());
+		
+	}
+
+	@Test
+	public void testRemovalsAreIgnored() throws Exception {
+		
+		final String xml = "<policies xmlns=\"http://www.esgf.org/security\">"
+		                 + "<policy resource=\"cmip5.*\" attribute_type=\"X\" attribute_value=\"user\" action=\"Read\"/>"
+		                 + "<policy resource=\"obs4MIPs.*\" attribute_type=\"X\" attribute_value=\"user\" action=\"Read\" remove=\"true\"/>"
+		                 + "<policy resource=\"nasa.*\" attribute_type=\"X\" attribute_value=\"user\" action=\"Read\" remove=\"false\"/>"
+		                 + "</policies>";
+		
+		// statements marked as removals are not loaded as policies, by either parser
+		final LinkedHashMap<Pattern, List<PolicyStatement>> policies = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+		Assert.assertEquals(2, new PolicyStreamParser().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), policies));
+		Assert.assertEquals(2, policies.size());
+		
+		final File file = File.createTempFile("esgf_policies_", ".xml");
+		try {
+			final FileWriter writer = new FileWriter(file);
+			writer.write(xml);
+			writer.close();
+			final LinkedHashMap<Pattern, List<PolicyStatement>> _policies = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+			new PolicyServiceLocalXmlImpl(XMLFILE).parseXml(file, _policies);
+			Assert.assertEquals(2, _policies.size());
+		} finally {
+			file.delete();
+		}
+		
+	}
+	
+	@Test
+	public void testSyntax() throws Exception {
+		
+		final String xml = "<policies xmlns=\"http://www.esgf.org/security\">"
+		                 + "<policy resource=\"cmip5.*\" attribute_type=\"X\" attribute_value=\"user\" action=\"Read\"/>"
+		                 + "<policy resource=\"cmip5.*\" syntax=\"literal\" attribute_type=\"X\" attribute_value=\"user\" action=\"Read\"/>"
+		                 + "<policy resource=\"cmip5.\" syntax=\"prefix\" attribute_type=\"X\" attribute_value=\"user\" action=\"Read\"/>"
+		                 + "<policy resource=\"cmip?.*.nc\" syntax=\"glob\" attribute_type=\"X\" attribute_value=\"user\" action=\"Read\"/>"
+		                 + "</policies>";
+		
+		final LinkedHashMap<Pattern, List<PolicyStatement>> policies = new LinkedHashMap<Pattern, List<PolicyStatement>>();
+		Assert.assertEquals(4, new PolicyStreamParser().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), policies));
+		
+		// the same resource with a different syntax is a different pattern
+		Assert.assertEquals(4, policies.size());
+		final List<PolicyPattern> patterns = new ArrayList<PolicyPattern>();
+		for (final Pattern pattern : policies.keySet()) {
+			patterns.add(new PolicyPattern(pattern));
+		}
+		Assert.assertTrue(patterns.get(0).matches("cmip5xyz"));
+		Assert.assertFalse(patterns.get(1).matches("cmip5xyz"));
+		Assert.assertTrue(patterns.get(1).matches("cmip5.*"));
+		Assert.assertTrue(patterns.get(2).matches("cmip5.output1"));
+		Assert.assertFalse(patterns.get(2).matches("cmip5_output1"));
+		Assert.assertTrue(patterns.get(3).matches("cmip5.tas.nc"));
+		Assert.assertFalse(patterns.get(3).matches("cmip5.tas.ncx"));
+		for (final PolicyPattern pattern : patterns) {
+			Assert.assertTrue(pattern.isFastPath());
+		}
+		
+	}
+
+}
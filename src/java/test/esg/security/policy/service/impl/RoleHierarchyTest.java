@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.service.impl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test class for {@link RoleHierarchy}.
+ *
+ */
+public class RoleHierarchyTest {
+	
+	@Test
+	public void testTransitiveClosure() {
+		
+		final RoleHierarchy hierarchy = new RoleHierarchy("super > admin, admin > publisher > user, admin > data_manager");
+		
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("super", "admin", "publisher", "user", "data_manager")), hierarchy.getImpliedRoles("super"));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("publisher", "user")), hierarchy.getImpliedRoles("publisher"));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("guest")), hierarchy.getImpliedRoles("guest"));
+		
+		Assert.assertTrue(hierarchy.implies(roles("admin"), "user"));
+		Assert.assertTrue(hierarchy.implies(roles("guest", "publisher"), "user"));
+		Assert.assertFalse(hierarchy.implies(roles("user"), "publisher"));
+		Assert.assertFalse(hierarchy.implies(roles("data_manager"), "user"));
+		
+		// roles are compared case-sensitively
+		Assert.assertFalse(hierarchy.implies(roles("Admin"), "user"));
+		
+	}
+	
+	@Test
+	public void testCycleAndEmptyHierarchy() {
+		
+		final RoleHierarchy cycle = new RoleHierarchy("a > b > a");
+		Assert.assertTrue(cycle.implies(roles("b"), "a"));
+		Assert.assertTrue(cycle.implies(roles("a"), "b"));
+		
+		final RoleHierarchy empty = new RoleHierarchy(" ");
+		Assert.assertTrue(empty.isEmpty());
+		Assert.assertTrue(empty.implies(roles("user"), "user"));
+		Assert.assertFalse(empty.implies(roles("admin"), "user"));
+		
+		try {
+			new RoleHierarchy("admin > > user");
+			Assert.fail("Empty roles must be rejected");
+		} catch(IllegalArgumentException e) {}
+		
+	}
+	
+	private static Set<String> roles(final String... roles) {
+		return new HashSet<String>(Arrays.asList(roles));
+	}
+
+}
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.policy.web;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import esg.security.common.WhiteListCertificateProvider;
+import esg.security.policy.service.api.PolicyAction;
+import esg.security.policy.service.api.PolicyAttribute;
+import esg.security.policy.service.api.PolicyStatement;
+import esg.security.policy.service.impl.PolicyAttributeImpl;
+import esg.security.policy.service.impl.PolicyServiceLocalXmlImpl;
+import esg.security.registry.service.api.RegistryService;
+import esg.security.registry.service.api.UnknownPolicyAttributeTypeException;
+import esg.security.registry.service.impl.RegistryServiceLocalXmlImpl;
+
+/**
+ * Test class for the batch and conditional requests of {@link PolicyServiceController}.
+ *
+ */
+public class PolicyServiceControllerTest {
+	
+	private static String POLICIES = "esg/security/policy/service/data/esgf_policies.xml";
+	private static String ESGF_ATS = "esg/security/registry/service/data/esgf_ats.xml";
+	
+	private final AtomicInteger registryLookups = new AtomicInteger(0);
+	
+	private PolicyServiceLocalXmlImpl policyService;
+	
+	private PolicyServiceController controller;
+	
+	@Before
+	public void setup() throws Exception {
+		
+		final RegistryServiceLocalXmlImpl registryService = new RegistryServiceLocalXmlImpl(ESGF_ATS) {
+			@Override
+			public List<URL> getRegistrationServices(final String attributeType) throws UnknownPolicyAttributeTypeException {
+				registryLookups.incrementAndGet();
+				return super.getRegistrationServices(attributeType);
+			}
+		};
+		policyService = new PolicyServiceLocalXmlImpl(POLICIES);
+		controller = new PolicyServiceController(policyService, registryService);
+		
+	}
+	
+	@After
+	public void cleanup() {
+		controller.close();
+	}
+	
+	@Test
+	public void testBatchLookup() throws Exception {
+		
+		// large enough to be evaluated in parallel
+		final List<String> resources = new ArrayList<String>();
+		final List<String> actions = new ArrayList<String>();
+		for (int i=0; i<500; i++) {
+			resources.add(i%2==0 ? "cmip5.output"+i : "nasa.airs.file"+i);
+			actions.add(i%3==0 ? "Write" : "Read");
+		}
+		
+		final List<Map<PolicyAttribute, List<URL>>> results = controller.lookup(resources, actions);
+		Assert.assertEquals(resources.size(), results.size());
+		
+		// results are in request order
+		Assert.assertTrue(results.get(0).containsKey(new PolicyAttributeImpl("CMIP5 Research", "admin")));
+		Assert.assertEquals(2, results.get(2).size());
+		Assert.assertTrue(results.get(1).containsKey(new PolicyAttributeImpl("NASA OBS", "user")));
+		Assert.assertTrue(results.get(3).containsKey(new PolicyAttributeImpl("NASA OBS", "admin")));
+		Assert.assertTrue(results.get(2).get(new PolicyAttributeImpl("CMIP5 Research", "user"))
+				                 .contains(new URL("https://pcmdi9.llnl.gov/esgf-idp/secure/registrationService.htm")));
+		
+		// one registry lookup for each attribute type: "CMIP5 Research", "CMIP5 Commercial", "NASA OBS"
+		Assert.assertEquals(3, registryLookups.get());
+		
+	}
+	
+	@Test
+	public void testBatchSerialization() throws Exception {
+		
+		final List<String> resources = new ArrayList<String>();
+		resources.add("cmip5.output1");
+		resources.add("/data/free/file.nc");
+		resources.add("unknown");
+		final List<String> actions = new ArrayList<String>();
+		for (int i=0; i<resources.size(); i++) actions.add("Read");
+		
+		final List<Map<PolicyAttribute, List<URL>>> results = controller.lookup(resources, actions);
+		final StringWriter writer = new StringWriter();
+		PolicySerializer.serialize(resources, actions, results, writer);
+		
+		final List<Map<PolicyAttribute, List<URL>>> _results = PolicySerializer.deserializeBatch(writer.toString());
+		Assert.assertEquals(results, _results);
+		Assert.assertEquals(0, _results.get(2).size());
+		
+	}
+
+	@Test
+	public void testConditionalGet() throws Exception {
+		
+		final Map<String, String> headers = new HashMap<String, String>();
+		final Map<String, String> responseHeaders = new HashMap<String, String>();
+		final StringWriter body = new StringWriter();
+		
+		// first request returns the full response
+		controller.process(request("cmip5.output1", "Read", headers), response(responseHeaders, body));
+		final String etag = responseHeaders.get("ETag");
+		Assert.assertNotNull(etag);
+		Assert.assertNull(responseHeaders.get("status"));
+		Assert.assertEquals(2, PolicySerializer.deserialize(body.toString()).size());
+		final int lookups = registryLookups.get();
+		
+		// same request with the ETag is not modified
+		headers.put("If-None-Match", etag);
+		final StringWriter body2 = new StringWriter();
+		controller.process(request("cmip5.output1", "Read", headers), response(responseHeaders, body2));
+		Assert.assertEquals("304", responseHeaders.remove("status"));
+		Assert.assertEquals(etag, responseHeaders.get("ETag"));
+		Assert.assertEquals("", body2.toString());
+		
+		// without the ETag, the response is served from the cache
+		headers.clear();
+		final StringWriter body3 = new StringWriter();
+		controller.process(request("cmip5.output1", "Read", headers), response(responseHeaders, body3));
+		Assert.assertEquals(body.toString(), body3.toString());
+		Assert.assertEquals(lookups, registryLookups.get());
+		
+		// the ETag depends on the content of the response only
+		controller.process(request("cmip5.output2", "Read", headers), response(responseHeaders, new StringWriter()));
+		Assert.assertEquals(etag, responseHeaders.get("ETag"));
+		controller.process(request("nasa.airs.file", "Read", headers), response(responseHeaders, new StringWriter()));
+		Assert.assertFalse(etag.equals(responseHeaders.get("ETag")));
+		
+		// reloading the same policies, or restarting, does not change the ETag
+		policyService.parse(Arrays.asList(new ClassPathResource(POLICIES).getFile()));
+		headers.put("If-None-Match", etag);
+		controller.process(request("cmip5.output1", "Read", headers), response(responseHeaders, new StringWriter()));
+		Assert.assertEquals("304", responseHeaders.remove("status"));
+		final PolicyServiceController restarted = new PolicyServiceController(new PolicyServiceLocalXmlImpl(POLICIES), 
+				                                                              new RegistryServiceLocalXmlImpl(ESGF_ATS));
+		try {
+			restarted.process(request("cmip5.output1", "Read", headers), response(responseHeaders, new StringWriter()));
+			Assert.assertEquals("304", responseHeaders.remove("status"));
+		} finally {
+			restarted.close();
+		}
+		
+		// changing the policies of the resource changes the ETag
+		Assert.assertTrue(policyService.addPolicy("cmip5.output1", "prefix", "NASA OBS", "user", "Read"));
+		controller.process(request("cmip5.output1", "Read", headers), response(responseHeaders, new StringWriter()));
+		Assert.assertNull(responseHeaders.get("status"));
+		Assert.assertFalse(etag.equals(responseHeaders.get("ETag")));
+		
+		Assert.assertTrue(PolicyServiceController.matches("W/"+etag+", \"other\"", etag));
+		Assert.assertTrue(PolicyServiceController.matches("*", etag));
+		Assert.assertFalse(PolicyServiceController.matches("\"other\"", etag));
+		
+	}
+	
+	@Test
+	public void testRegistryWithoutNotifications() throws Exception {
+		
+		// a registry that only implements the base API
+		final RegistryServiceLocalXmlImpl target = new RegistryServiceLocalXmlImpl(ESGF_ATS) {
+			@Override
+			public List<URL> getRegistrationServices(final String attributeType) throws UnknownPolicyAttributeTypeException {
+				registryLookups.incrementAndGet();
+				return super.getRegistrationServices(attributeType);
+			}
+		};
+		final RegistryService registryService = (RegistryService)Proxy.newProxyInstance(getClass().getClassLoader(), 
+				new Class<?>[] { RegistryService.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+				return method.invoke(target, args);
+			}
+		});
+		final PolicyServiceController _controller = new PolicyServiceController(policyService, registryService);
+		try {
+			
+			// the responses are not cached, but still answered with their ETag
+			final Map<String, String> headers = new HashMap<String, String>();
+			final Map<String, String> responseHeaders = new HashMap<String, String>();
+			_controller.process(request("cmip5.output1", "Read", headers), response(responseHeaders, new StringWriter()));
+			final String etag = responseHeaders.get("ETag");
+			final int lookups = registryLookups.get();
+			Assert.assertTrue(lookups>0);
+			headers.put("If-None-Match", etag);
+			_controller.process(request("cmip5.output1", "Read", headers), response(responseHeaders, new StringWriter()));
+			Assert.assertEquals("304", responseHeaders.remove("status"));
+			Assert.assertEquals(2*lookups, registryLookups.get());
+			
+		} finally {
+			_controller.close();
+		}
+		
+	}
+	
+	@Test
+	public void testEntitlements() throws Exception {
+		
+		final Map<String, String[]> parameters = new HashMap<String, String[]>();
+		parameters.put("attribute_type", new String[] { "CMIP5 Research", "CMIP5 Research" });
+		parameters.put("attribute_value", new String[] { "user", "admin" });
+		final Map<String, String> responseHeaders = new HashMap<String, String>();
+		
+		// rejected unless the client is authenticated over SSL, and included in the white list
+		controller.processEntitlements(request(parameters, true), response(responseHeaders, new StringWriter()));
+		Assert.assertEquals("403", responseHeaders.remove("status"));
+		final AtomicInteger validations = new AtomicInteger(0);
+		controller.setEntitlementsWhiteList(new WhiteListCertificateProvider(new ArrayList<String>()) {
+			@Override
+			public boolean validate(final HttpServletRequest request) {
+				return validations.incrementAndGet()>1;
+			}
+		});
+		controller.processEntitlements(request(parameters, false), response(responseHeaders, new StringWriter()));
+		Assert.assertEquals("403", responseHeaders.remove("status"));
+		controller.processEntitlements(request(parameters, true), response(responseHeaders, new StringWriter()));
+		Assert.assertEquals("403", responseHeaders.remove("status"));
+		
+		final StringWriter body = new StringWriter();
+		controller.processEntitlements(request(parameters, true), response(responseHeaders, body));
+		Assert.assertNull(responseHeaders.get("status"));
+		
+		final List<PolicyStatement> statements = PolicySerializer.deserializeEntitlements(body.toString());
+		Assert.assertEquals(3, statements.size());
+		Assert.assertEquals("\\Acmip5.*", statements.get(0).getResource());
+		Assert.assertEquals(new PolicyAttributeImpl("CMIP5 Research", "user"), statements.get(0).getAttribute());
+		Assert.assertEquals(PolicyAction.Write, statements.get(1).getAction());
+		Assert.assertEquals(new PolicyAttributeImpl("ANY", ""), statements.get(2).getAttribute());
+		
+	}
+	
+	private static HttpServletRequest request(final Map<String, String[]> parameters, final boolean secure) {
+		return (HttpServletRequest)Proxy.newProxyInstance(PolicyServiceControllerTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, 
+			new InvocationHandler() {
+				@Override
+				public Object invoke(final Object proxy, final Method method, final Object[] args) {
+					if (method.getName().equals("getParameterValues")) {
+						return parameters.get(args[0]);
+					} else if (method.getName().equals("isSecure")) {
+						return secure;
+					}
+					return null;
+				}
+			});
+	}
+	
+	private static HttpServletRequest request(final String resource, final String action, final Map<String, String> headers) {
+		return (HttpServletRequest)Proxy.newProxyInstance(PolicyServiceControllerTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, 
+			new InvocationHandler() {
+				@Override
+				public Object invoke(final Object proxy, final Method method, final Object[] args) {
+					if (method.getName().equals("getParameter")) {
+						return args[0].equals("resource") ? resource : args[0].equals("action") ? action : null;
+					} else if (method.getName().equals("getHeader")) {
+						return headers.get(args[0]);
+					}
+					return null;
+				}
+			});
+	}
+	
+	private static HttpServletResponse response(final Map<String, String> headers, final StringWriter body) {
+		return (HttpServletResponse)Proxy.newProxyInstance(PolicyServiceControllerTest.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, 
+			new InvocationHandler() {
+				@Override
+				public Object invoke(final Object proxy, final Method method, final Object[] args) {
+					if (method.getName().equals("setHeader")) {
+						headers.put((String)args[0], (String)args[1]);
+					} else if (method.getName().equals("setStatus") || method.getName().equals("sendError")) {
+						headers.put("status", String.valueOf(args[0]));
+					} else if (method.getName().equals("getWriter")) {
+						return new PrintWriter(body, true);
+					}
+					return null;
+				}
+			});
+	}
+
+}
@@ -18,11 +18,25 @@
  ******************************************************************************/
 package esg.security.registry.service.impl;
 
+import java.io.File;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
 
+import esg.security.registry.service.api.RegistryChangeListener;
+import esg.security.registry.service.api.RegistrySection;
 import esg.security.registry.service.api.RegistryService;
 import esg.security.registry.service.api.UnknownPolicyAttributeTypeException;
 
@@ -98,6 +112,81 @@ public class RegistryServiceLocalXmlImplTest {
         
     }
     
+    @Test
+    public void testSnapshotIsReadOnly() throws Exception {
+        
+        final RegistryServiceLocalXmlImpl service = new RegistryServiceLocalXmlImpl(ESGF_SHARDS+", "+ESGF_ATS);
+        final RegistrySnapshot snapshot = service.getSnapshot();
+        
+        // the returned collections cannot be modified
+        try {
+            service.getShards().add("localhost:8983/solr");
+            Assert.fail("Shards modified");
+        } catch(UnsupportedOperationException e) {}
+        try {
+            service.getShards().iterator().remove();
+            Assert.fail("Shards modified");
+        } catch(UnsupportedOperationException e) {}
+        try {
+            service.getAttributeServices("CMIP5 Research").clear();
+            Assert.fail("Attribute services modified");
+        } catch(UnsupportedOperationException e) {}
+        
+        // a change replaces the snapshot, keeping the other sections
+        final LinkedHashSet<String> shards = new LinkedHashSet<String>(Arrays.asList("localhost:8983/solr"));
+        service.setShards(shards);
+        shards.add("localhost:8984/solr");
+        Assert.assertEquals(Arrays.asList("localhost:8983/solr"), new ArrayList<String>(service.getShards()));
+        Assert.assertTrue(snapshot.getShards().contains("esg-datanode.jpl.nasa.gov:8983/solr"));
+        Assert.assertEquals(snapshot.getGeneration()+1, service.getGeneration());
+        Assert.assertSame(snapshot.getAttributes(), service.getAttributes());
+        
+    }
+    
+    @Test
+    public void testChangeListener() throws Exception {
+        
+        final RegistryServiceLocalXmlImpl service = new RegistryServiceLocalXmlImpl(ESGF_ATS);
+        final BlockingQueue<Set<RegistrySection>> events = new LinkedBlockingQueue<Set<RegistrySection>>();
+        final BlockingQueue<Boolean> locked = new LinkedBlockingQueue<Boolean>();
+        service.addChangeListener(new RegistryChangeListener() {
+            @Override
+            public void registryChanged(final Set<RegistrySection> sections, final long generation) {
+                // listeners run without the registry lock, and may call back into the registry
+                locked.add(Thread.holdsLock(service));
+                Assert.assertTrue(service.getGeneration()>=generation);
+                events.add(sections);
+            }
+        });
+        
+        try {
+            // reloading the same content does not notify the listeners,
+            // so the first notification received is for the changed shards
+            final File file = new ClassPathResource(ESGF_ATS).getFile();
+            service.parse(Arrays.asList(file));
+            service.setShards(new LinkedHashSet<String>(Arrays.asList("localhost:8983/solr")));
+            Assert.assertEquals(EnumSet.of(RegistrySection.SHARDS), events.poll(5, TimeUnit.SECONDS));
+            Assert.assertEquals(Boolean.FALSE, locked.poll());
+            
+            // only the changed sections are notified
+            final File changedFile = File.createTempFile("esgf_ats_", ".xml");
+            try {
+                final String xml = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+                Files.write(changedFile.toPath(), xml.replace("https://esg.ccs.ornl.gov/esgf-idp/secure/registrationService.htm", 
+                                                              "https://esg2.ccs.ornl.gov/esgf-idp/secure/registrationService.htm").getBytes("UTF-8"));
+                service.parse(Arrays.asList(changedFile));
+                Assert.assertEquals(EnumSet.of(RegistrySection.REGISTRATION_SERVICES), events.poll(5, TimeUnit.SECONDS));
+                Assert.assertEquals(Boolean.FALSE, locked.poll());
+                Assert.assertEquals(service.getGeneration(), service.getSnapshot().getGeneration());
+            } finally {
+                changedFile.delete();
+            }
+        } finally {
+            service.close();
+        }
+        
+    }
+    
     @Test
     public void testGetAuthorizationServices() throws Exception {
         
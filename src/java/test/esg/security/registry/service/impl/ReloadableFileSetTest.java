@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.registry.service.impl;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import esg.security.registry.service.api.ReloadableFileSetObserver;
+
+/**
+ * Test class for {@link ReloadableFileSet}.
+ *
+ */
+public class ReloadableFileSetTest {
+	
+	private File file;
+	
+	private ReloadableFileSet fileSet;
+	
+	private final AtomicInteger reloads = new AtomicInteger(0);
+	
+	private volatile List<File> changedFiles;
+	
+	@Before
+	public void setup() throws Exception {
+		
+		file = File.createTempFile("reloadable_", ".xml");
+		write("<empty/>");
+		
+		fileSet = new ReloadableFileSet(file.getAbsolutePath());
+		fileSet.setObserver(new ReloadableFileSetObserver() {
+			@Override
+			public void parse(final List<File> files) {
+				reloads.incrementAndGet();
+			}
+			@Override
+			public void update(final List<File> _changedFiles, final List<File> files) {
+				changedFiles = _changedFiles;
+				reloads.incrementAndGet();
+			}
+		});
+		
+	}
+	
+	@After
+	public void cleanup() {
+		fileSet.stopWatching();
+		file.delete();
+	}
+	
+	@Test
+	public void testReloadOnRequest() throws Exception {
+		
+		fileSet.reload();
+		Assert.assertEquals(1, reloads.get());
+		
+		// unchanged file is not reloaded
+		fileSet.reload();
+		Assert.assertEquals(1, reloads.get());
+		
+		// touched file with the same content is not reloaded
+		Assert.assertTrue(file.setLastModified(System.currentTimeMillis()+10000));
+		fileSet.reload();
+		Assert.assertEquals(1, reloads.get());
+		
+		// changed file is reloaded
+		write("<changed/>");
+		Assert.assertTrue(file.setLastModified(System.currentTimeMillis()+20000));
+		fileSet.reload();
+		Assert.assertEquals(2, reloads.get());
+		Assert.assertEquals(Arrays.asList(file), changedFiles);
+		
+	}
+	
+	@Test
+	public void testOnlyChangedFilesAreUpdated() throws Exception {
+		
+		final File other = File.createTempFile("reloadable_", ".xml");
+		try {
+			fileSet = new ReloadableFileSet(file.getAbsolutePath()+","+other.getAbsolutePath());
+			fileSet.setObserver(new ReloadableFileSetObserver() {
+				@Override
+				public void parse(final List<File> files) {
+					Assert.assertEquals(2, files.size());
+					reloads.incrementAndGet();
+				}
+				@Override
+				public void update(final List<File> _changedFiles, final List<File> files) {
+					Assert.assertEquals(2, files.size());
+					changedFiles = _changedFiles;
+					reloads.incrementAndGet();
+				}
+			});
+			fileSet.reload();
+			Assert.assertEquals(1, reloads.get());
+			
+			final FileWriter writer = new FileWriter(other);
+			writer.write("<other/>");
+			writer.close();
+			Assert.assertTrue(other.setLastModified(System.currentTimeMillis()+10000));
+			fileSet.reload();
+			Assert.assertEquals(2, reloads.get());
+			Assert.assertEquals(Arrays.asList(other), changedFiles);
+			
+		} finally {
+			other.delete();
+		}
+		
+	}
+	
+	@Test
+	public void testDeletedFileIsNotReloadedAgain() throws Exception {
+		
+		fileSet.setReloadEverySeconds(0);
+		fileSet.reload();
+		Assert.assertEquals(1, reloads.get());
+		
+		// deleted file is reported once
+		Assert.assertTrue(file.delete());
+		Thread.sleep(5);
+		fileSet.reload();
+		Assert.assertEquals(2, reloads.get());
+		Assert.assertEquals(Arrays.asList(file), changedFiles);
+		
+		// forced reloads do not report the missing file again
+		Thread.sleep(5);
+		fileSet.reload();
+		Thread.sleep(5);
+		fileSet.reload();
+		Assert.assertEquals(2, reloads.get());
+		
+	}
+	
+	@Test
+	public void testBackgroundWatcher() throws Exception {
+		
+		fileSet.reload();
+		fileSet.startWatching(100, 60);
+		Assert.assertTrue(fileSet.isWatching());
+		
+		// request threads don't check the files anymore
+		Assert.assertTrue(file.setLastModified(System.currentTimeMillis()+10000));
+		fileSet.reload();
+		
+		// the watcher thread picks up the change
+		write("<changed/>");
+		final long timeout = System.currentTimeMillis()+10000;
+		while (reloads.get()<2 && System.currentTimeMillis()<timeout) {
+			Thread.sleep(50);
+		}
+		Assert.assertTrue(reloads.get()>=2);
+		
+		fileSet.stopWatching();
+		Assert.assertFalse(fileSet.isWatching());
+		
+	}
+	
+	@Test
+	public void testContinuousWritesAreReloaded() throws Exception {
+		
+		fileSet.reload();
+		fileSet.startWatching(100, 60);
+		
+		// the file is written more often than the debounce interval, 
+		// but is still reloaded within the maximum delay
+		final long timeout = System.currentTimeMillis()+10000;
+		int writes = 0;
+		while (reloads.get()<2 && System.currentTimeMillis()<timeout) {
+			write("<changed count=\""+(writes++)+"\"/>");
+			Thread.sleep(20);
+		}
+		Assert.assertTrue(reloads.get()>=2);
+		
+	}
+	
+	@Test
+	public void testRemoteFile() throws Exception {
+		
+		final File cacheDirectory = Files.createTempDirectory("registry_cache_").toFile();
+		final String[] content = new String[] { "<first/>" };
+		final boolean[] chunked = new boolean[] { false };
+		final AtomicInteger notModified = new AtomicInteger(0);
+		final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/esgf_idp.xml", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				final String etag = "\""+content[0].hashCode()+"\"";
+				if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					notModified.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+				} else {
+					final byte[] body = content[0].getBytes("UTF-8");
+					exchange.getResponseHeaders().set("ETag", etag);
+					exchange.sendResponseHeaders(200, chunked[0] ? 0 : body.length);
+					final OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+		final String url = "http://127.0.0.1:"+server.getAddress().getPort()+"/esgf_idp.xml";
+		
+		try {
+			
+			// plain HTTP must be explicitly allowed
+			try {
+				new ReloadableFileSet(url, cacheDirectory.getAbsolutePath());
+				Assert.fail("Remote file over plain HTTP accepted");
+			} catch(IllegalArgumentException e) {
+				// expected
+			}
+			
+			// the remote file is fetched when first configured
+			fileSet = new ReloadableFileSet(url, cacheDirectory.getAbsolutePath(), true);
+			fileSet.setObserver(new ReloadableFileSetObserver() {
+				@Override
+				public void parse(final List<File> files) {
+					reloads.incrementAndGet();
+				}
+				@Override
+				public void update(final List<File> _changedFiles, final List<File> files) {
+					changedFiles = _changedFiles;
+					reloads.incrementAndGet();
+				}
+			});
+			Assert.assertTrue(fileSet.hasRemoteFiles());
+			final File cachedFile = fileSet.getFiles().get(0);
+			Assert.assertEquals("<first/>", new String(Files.readAllBytes(cachedFile.toPath()), "UTF-8"));
+			fileSet.reload();
+			Assert.assertEquals(1, reloads.get());
+			
+			// unchanged remote file is not downloaded again
+			Assert.assertFalse(fileSet.fetch());
+			Assert.assertEquals(1, notModified.get());
+			
+			// changed remote file is downloaded and reloaded by the fetching thread
+			content[0] = "<second/>";
+			Assert.assertTrue(fileSet.fetch());
+			Assert.assertEquals(2, reloads.get());
+			Assert.assertEquals(Arrays.asList(cachedFile), changedFiles);
+			
+			// invalid remote file does not replace the cached copy
+			content[0] = "<invalid>";
+			Assert.assertFalse(fileSet.fetch());
+			Assert.assertEquals("<second/>", new String(Files.readAllBytes(cachedFile.toPath()), "UTF-8"));
+			
+			// remote file with external entities is rejected
+			content[0] = "<!DOCTYPE x [<!ENTITY e SYSTEM \"file:///etc/passwd\">]><x>&e;</x>";
+			Assert.assertFalse(fileSet.fetch());
+			Assert.assertEquals("<second/>", new String(Files.readAllBytes(cachedFile.toPath()), "UTF-8"));
+			
+			// remote file larger than the maximum size is rejected, whether its length is declared or not
+			fileSet.setMaxDownloadBytes(64);
+			content[0] = "<third>"+new String(new char[100]).replace('\0', 'x')+"</third>";
+			Assert.assertFalse(fileSet.fetch());
+			chunked[0] = true;
+			Assert.assertFalse(fileSet.fetch());
+			Assert.assertEquals("<second/>", new String(Files.readAllBytes(cachedFile.toPath()), "UTF-8"));
+			content[0] = "<third/>";
+			Assert.assertTrue(fileSet.fetch());
+			Assert.assertEquals("<third/>", new String(Files.readAllBytes(cachedFile.toPath()), "UTF-8"));
+			
+			// the cached copy is used when the remote server is unreachable
+			server.stop(0);
+			Assert.assertFalse(fileSet.fetch());
+			fileSet = new ReloadableFileSet(url, cacheDirectory.getAbsolutePath(), true);
+			Assert.assertEquals(Arrays.asList(cachedFile), fileSet.getFiles());
+			Assert.assertEquals("<third/>", new String(Files.readAllBytes(cachedFile.toPath()), "UTF-8"));
+			
+		} finally {
+			server.stop(0);
+			for (final File file : cacheDirectory.listFiles()) {
+				file.delete();
+			}
+			cacheDirectory.delete();
+		}
+		
+	}
+	
+	@Test
+	public void testCacheDirectoryPermissions() throws Exception {
+		
+		final File parent = Files.createTempDirectory("registry_cache_").toFile();
+		final File cacheDirectory = new File(parent, "cache");
+		try {
+			
+			// the cache directory is created accessible by the service user only
+			new ReloadableFileSet("http://127.0.0.1:1/esgf_idp.xml", cacheDirectory.getAbsolutePath(), true);
+			Assert.assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(cacheDirectory.toPath())));
+			
+			// a cache directory writable by other users is rejected
+			Files.setPosixFilePermissions(cacheDirectory.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+			try {
+				new ReloadableFileSet("http://127.0.0.1:1/esgf_idp.xml", cacheDirectory.getAbsolutePath(), true);
+				Assert.fail("Writable cache directory accepted");
+			} catch(IOException e) {
+				// expected
+			}
+			
+		} finally {
+			cacheDirectory.delete();
+			parent.delete();
+		}
+		
+	}
+	
+	private void write(final String content) throws Exception {
+		final FileWriter writer = new FileWriter(file);
+		writer.write(content);
+		writer.close();
+	}
+
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.security.registry.service.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for {@link ShardLatencyTracker}.
+ *
+ */
+public class ShardLatencyTrackerTest {
+	
+	private final static List<String> SHARDS = Arrays.asList("a:8983/solr", "b:8983/solr", "c:8983/solr", "d:8983/solr");
+	
+	private ShardLatencyTracker tracker;
+	
+	@Before
+	public void setup() {
+		tracker = new ShardLatencyTracker();
+		tracker.setMaxFailures(2);
+	}
+	
+	@Test
+	public void testOrderByLatency() {
+		
+		// unmeasured shards keep their order
+		Assert.assertEquals(SHARDS, new ArrayList<String>(tracker.order(SHARDS, true)));
+		
+		// measured shards come first, fastest first
+		tracker.recordLatency("c:8983/solr", 100);
+		tracker.recordLatency("b:8983/solr", 50);
+		Assert.assertEquals(Arrays.asList("b:8983/solr", "c:8983/solr", "a:8983/solr", "d:8983/solr"), 
+				            new ArrayList<String>(tracker.order(SHARDS, true)));
+		
+		// the moving average follows the response times
+		tracker.recordLatency("b:8983/solr", 200);
+		Assert.assertEquals(95.0, tracker.getAverageLatency("b:8983/solr"), 0.001);
+		Assert.assertEquals(Arrays.asList("b:8983/solr", "c:8983/solr", "a:8983/solr", "d:8983/solr"), 
+	                        new ArrayList<String>(tracker.order(SHARDS, true)));
+		tracker.recordLatency("b:8983/solr", 200);
+		Assert.assertEquals(Arrays.asList("c:8983/solr", "b:8983/solr", "a:8983/solr", "d:8983/solr"), 
+                            new ArrayList<String>(tracker.order(SHARDS, true)));
+		
+	}
+	
+	@Test
+	public void testDropUnhealthyShards() throws Exception {
+		
+		tracker.recordLatency("a:8983/solr", 100);
+		tracker.recordLatency("b:8983/solr", 120);
+		tracker.recordLatency("c:8983/solr", 110);
+		
+		// latency spike
+		tracker.recordLatency("d:8983/solr", 5000);
+		
+		// down after consecutive failures
+		tracker.recordFailure("a:8983/solr");
+		Assert.assertTrue(tracker.order(SHARDS, true).contains("a:8983/solr"));
+		tracker.recordFailure("a:8983/solr");
+		
+		Assert.assertEquals(Arrays.asList("c:8983/solr", "b:8983/solr"), new ArrayList<String>(tracker.order(SHARDS, true)));
+		Assert.assertEquals(Arrays.asList("c:8983/solr", "b:8983/solr", "d:8983/solr", "a:8983/solr"), 
+				            new ArrayList<String>(tracker.order(SHARDS, false)));
+		
+		// shards that are down or in a latency spike are tried again after the retry interval
+		tracker.setRetryMillis(10);
+		Thread.sleep(20);
+		Assert.assertEquals(Arrays.asList("c:8983/solr", "b:8983/solr", "a:8983/solr", "d:8983/solr"), new ArrayList<String>(tracker.order(SHARDS, true)));
+		
+		// and are healthy again after a successful query
+		tracker.recordLatency("a:8983/solr", 100);
+		Assert.assertEquals(Arrays.asList("a:8983/solr", "c:8983/solr", "b:8983/solr", "d:8983/solr"), new ArrayList<String>(tracker.order(SHARDS, true)));
+		
+		// the shards are never all dropped
+		tracker.setRetryMillis(60000);
+		final List<String> shards = Arrays.asList("d:8983/solr");
+		Assert.assertEquals(shards, new ArrayList<String>(tracker.order(shards, true)));
+		
+	}
+	
+	@Test
+	public void testSpikeWithTwoShards() throws Exception {
+		
+		// the slow shard does not raise its own threshold
+		final List<String> shards = Arrays.asList("a:8983/solr", "b:8983/solr");
+		tracker.recordLatency("a:8983/solr", 100);
+		tracker.recordLatency("b:8983/solr", 2000);
+		Assert.assertEquals(Arrays.asList("a:8983/solr"), new ArrayList<String>(tracker.order(shards, true)));
+		
+		// a single measured shard is never in a latency spike
+		Assert.assertEquals(Arrays.asList("b:8983/solr", "c:8983/solr"), 
+				            new ArrayList<String>(tracker.order(Arrays.asList("b:8983/solr", "c:8983/solr"), true)));
+		
+	}
+	
+	@Test
+	public void testSpikeRecovery() throws Exception {
+		
+		tracker.recordLatency("a:8983/solr", 100);
+		tracker.recordLatency("b:8983/solr", 120);
+		tracker.recordLatency("c:8983/solr", 5000);
+		Assert.assertEquals(Arrays.asList("a:8983/solr", "b:8983/solr", "d:8983/solr"), new ArrayList<String>(tracker.order(SHARDS, true)));
+		
+		// the shard in a latency spike is tried again after the retry interval, without any probe
+		tracker.setRetryMillis(10);
+		Thread.sleep(20);
+		tracker.recordLatency("a:8983/solr", 100);
+		tracker.recordLatency("b:8983/solr", 120);
+		Assert.assertEquals(Arrays.asList("a:8983/solr", "b:8983/solr", "d:8983/solr", "c:8983/solr"), new ArrayList<String>(tracker.order(SHARDS, true)));
+		
+		// and its stale average is discarded at its next response
+		tracker.recordLatency("c:8983/solr", 110);
+		Assert.assertEquals(110.0, tracker.getAverageLatency("c:8983/solr"), 0.001);
+		Assert.assertEquals(Arrays.asList("a:8983/solr", "c:8983/solr", "b:8983/solr", "d:8983/solr"), new ArrayList<String>(tracker.order(SHARDS, true)));
+		
+	}
+	
+	@Test
+	public void testProbe() throws Exception {
+		
+		final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/solr/select", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		server.createContext("/broken/select", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(500, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		
+		try {
+			final String healthy = "127.0.0.1:"+server.getAddress().getPort()+"/solr";
+			final String broken = "127.0.0.1:"+server.getAddress().getPort()+"/broken";
+			final List<String> shards = Arrays.asList(broken, healthy);
+			tracker.probe(shards);
+			tracker.probe(shards);
+			
+			Assert.assertTrue(tracker.getAverageLatency(healthy)>=0);
+			Assert.assertEquals(-1, tracker.getAverageLatency(broken), 0);
+			Assert.assertEquals(Arrays.asList(healthy), new ArrayList<String>(tracker.order(shards, true)));
+		} finally {
+			server.stop(0);
+		}
+		
+	}
+
+}